@@ -1,12 +1,15 @@
 package org.wikibrain.lucene;
 
+import com.typesafe.config.Config;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.wikibrain.conf.ConfigurationException;
@@ -22,24 +25,46 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * This class is used to index raw pages during the load process.
  *
+ * In bulk mode each indexing thread writes to its own IndexWriter in a
+ * temporary directory. The per-thread indexes are merged into the final
+ * index with addIndexes when the indexer is closed, and the result is
+ * optionally force merged down to a small number of segments for fast searching.
+ * Writer settings are read from the lucene.indexer configuration block.
+ *
  * @author Ari Weiland
  *
  */
 public class LuceneIndexer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(LuceneIndexer.class);
 
     private final File root;
     private final Language language;
-    private final IndexWriter writer;
     private final LuceneOptions[] options;
     private final LuceneOptions mainOptions;
     private final TextFieldBuilder builder;
+    private final File langRoot;
+    private final WikiBrainAnalyzer analyzer;
+    private IndexWriter writer;
     private boolean closed = false;
 
+    // writer tuning
+    private double ramBufferMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private double segmentsPerTier = 10.0;
+    private double maxMergedSegmentMB = 5 * 1024;
+    private int forceMergeSegments = 0;
+
+    // bulk mode
+    private boolean bulk = false;
+    private final Map<Thread, IndexWriter> threadWriters = new HashMap<Thread, IndexWriter>();
+    private final List<File> partDirs = new ArrayList<File>();
+
     /**
      * Constructs a LuceneIndexer that will index any RawPage in a
      * specified Language. Indexes are then placed in language-specific
@@ -65,28 +90,115 @@ public class LuceneIndexer implements Closeable {
     }
 
     private LuceneIndexer(Language language, File root, LuceneOptions... options) throws ConfigurationException {
-        try {
-            this.root = root;
-            this.language = language;
-            this.options = options;
-            this.mainOptions = options[0];
-            this.builder = new TextFieldBuilder(
-                    mainOptions.configurator.get(LocalPageDao.class),
-                    mainOptions.configurator.get(RawPageDao.class),
-                    mainOptions.configurator.get(RedirectDao.class));
-
-
-                File langRoot = new File(root, language.getLangCode());
-                if (langRoot.exists()) {
-                    FileUtils.deleteQuietly(langRoot);
-                }
-                WikiBrainAnalyzer analyzer = new WikiBrainAnalyzer(language, mainOptions);
-                Directory directory = FSDirectory.open(langRoot);
-                IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, analyzer);
-                writer = new IndexWriter(directory, iwc);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        this.root = root;
+        this.language = language;
+        this.options = options;
+        this.mainOptions = options[0];
+        this.builder = new TextFieldBuilder(
+                mainOptions.configurator.get(LocalPageDao.class),
+                mainOptions.configurator.get(RawPageDao.class),
+                mainOptions.configurator.get(RedirectDao.class));
+
+        Config config = mainOptions.configurator.getConf().get();
+        if (config.hasPath("lucene.indexer")) {
+            Config ic = config.getConfig("lucene.indexer");
+            ramBufferMB = ic.getDouble("ramBufferMB");
+            segmentsPerTier = ic.getDouble("segmentsPerTier");
+            maxMergedSegmentMB = ic.getDouble("maxMergedSegmentMB");
+            forceMergeSegments = ic.getInt("forceMergeSegments");
+            bulk = ic.getBoolean("bulk");
         }
+
+        this.langRoot = new File(root, language.getLangCode());
+        if (langRoot.exists()) {
+            FileUtils.deleteQuietly(langRoot);
+        }
+        deletePartialIndexes();
+        this.analyzer = new WikiBrainAnalyzer(language, mainOptions);
+    }
+
+    /**
+     * Removes per-thread indexes for this language left behind by a bulk build that crashed.
+     */
+    private void deletePartialIndexes() {
+        File[] files = root.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = language.getLangCode() + ".part";
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory() && name.startsWith(prefix) && StringUtils.isNumeric(name.substring(prefix.length()))) {
+                LOG.info("deleting partial index " + file + " left by an earlier build");
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables bulk mode, in which each indexing thread builds its own index.
+     * Must be called before any pages are indexed.
+     */
+    public void setBulk(boolean bulk) {
+        this.bulk = bulk;
+    }
+
+    /**
+     * Sets the RAM buffer size of each IndexWriter, in megabytes.
+     */
+    public void setRamBufferMB(double ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+    }
+
+    /**
+     * Sets the tiered merge policy parameters used by each IndexWriter.
+     */
+    public void setMergePolicy(double segmentsPerTier, double maxMergedSegmentMB) {
+        this.segmentsPerTier = segmentsPerTier;
+        this.maxMergedSegmentMB = maxMergedSegmentMB;
+    }
+
+    /**
+     * Sets the maximum number of segments in the final index.
+     * If zero or less, the index is not force merged when the indexer is closed.
+     */
+    public void setForceMergeSegments(int forceMergeSegments) {
+        this.forceMergeSegments = forceMergeSegments;
+    }
+
+    private IndexWriter openWriter(File dir) throws IOException {
+        TieredMergePolicy mp = new TieredMergePolicy();
+        mp.setSegmentsPerTier(segmentsPerTier);
+        mp.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, analyzer);
+        iwc.setRAMBufferSizeMB(ramBufferMB);
+        iwc.setMergePolicy(mp);
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        return new IndexWriter(FSDirectory.open(dir), iwc);
+    }
+
+    /**
+     * @return The writer that should be used by the calling thread.
+     */
+    private synchronized IndexWriter getWriter() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Indexer has already been closed!");
+        }
+        if (!bulk) {
+            if (writer == null) {
+                writer = openWriter(langRoot);
+            }
+            return writer;
+        }
+        IndexWriter w = threadWriters.get(Thread.currentThread());
+        if (w == null) {
+            File dir = new File(root, language.getLangCode() + ".part" + partDirs.size());
+            FileUtils.deleteQuietly(dir);
+            partDirs.add(dir);
+            w = openWriter(dir);
+            threadWriters.put(Thread.currentThread(), w);
+        }
+        return w;
     }
 
     public File getRoot() {
@@ -103,9 +215,6 @@ public class LuceneIndexer implements Closeable {
      * @param page the page to index
      */
     public void indexPage(RawPage page) throws DaoException {
-        if (closed) {
-            throw new IllegalStateException("Indexer has already been closed!");
-        }
         if (!language.equals(page.getLanguage())) {
             throw new IllegalStateException("Language mismatch!");
         }
@@ -122,7 +231,7 @@ public class LuceneIndexer implements Closeable {
                     document.add(builder.buildTextField(page, option.elements));
                 }
             }
-            writer.addDocument(document);
+            getWriter().addDocument(document);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -130,9 +239,47 @@ public class LuceneIndexer implements Closeable {
 
     /**
      * Method should be called when done indexing.
+     * In bulk mode this merges the per-thread indexes into the final index.
      */
-    public void close() {
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
         closed = true;
-        IOUtils.closeQuietly(writer);
+        long start = System.currentTimeMillis();
+        try {
+            for (IndexWriter w : threadWriters.values()) {
+                w.close();
+            }
+            if (writer == null) {
+                writer = openWriter(langRoot);
+            }
+            if (!partDirs.isEmpty()) {
+                Directory parts[] = new Directory[partDirs.size()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = FSDirectory.open(partDirs.get(i));
+                }
+                LOG.info("merging " + parts.length + " partial indexes for " + language);
+                writer.addIndexes(parts);
+                for (Directory d : parts) {
+                    d.close();
+                }
+            }
+            if (forceMergeSegments > 0) {
+                LOG.info("force merging index for " + language + " to " + forceMergeSegments + " segments");
+                writer.forceMerge(forceMergeSegments);
+            }
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+            for (File dir : partDirs) {
+                FileUtils.deleteQuietly(dir);
+            }
+            threadWriters.clear();
+            partDirs.clear();
+        }
+        LOG.info("finished lucene index for " + language + " in " + (System.currentTimeMillis() - start) + " ms");
     }
 }
@@ -1,11 +1,15 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
-import org.apache.lucene.document.Document;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -15,10 +19,11 @@ import org.wikibrain.core.lang.LanguageSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +45,8 @@ public class LuceneSearcher {
     private final Map<Language, IndexSearcher> searchers;
     private final Map<Language, DirectoryReader> readers;
     private final Map<Language, WikiBrainAnalyzer> analyzers;
+    private final ConcurrentMap<Language, IdMapping> idMappings;
+    private final ConcurrentMap<Language, Object> idMappingLocks;
     private final LuceneOptions options;
 
     private int hitCount = DEFAULT_HIT_COUNT;
@@ -75,6 +82,8 @@ public class LuceneSearcher {
             this.searchers = new HashMap<Language, IndexSearcher>();
             this.readers = new HashMap<Language, DirectoryReader>();
             this.analyzers = new HashMap<Language, WikiBrainAnalyzer>();
+            this.idMappings = new ConcurrentHashMap<Language, IdMapping>();
+            this.idMappingLocks = new ConcurrentHashMap<Language, Object>();
             for (Language language : languages) {
                 File langRoot = new File(root, language.getLangCode());
                 if (!langRoot.isDirectory()) {
@@ -173,30 +182,97 @@ public class LuceneSearcher {
      * @return
      */
     public int getLocalIdFromDocId(int docId, Language language) {
-        try {
-            if (docId != -1) {
-                Document document = searchers.get(language).doc(docId);
-                return (Integer) document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
-            } else {
-                LOG.warn("This docId does not exist: " + docId);
-                return -1;
-            }
-        }  catch (IOException e) {
-            throw new RuntimeException(e);
+        if (docId < 0) {
+            LOG.warn("This docId does not exist: " + docId);
+            return -1;
         }
+        int[] localIds = getIdMapping(language).localIds;
+        return (docId < localIds.length) ? localIds[docId] : -1;
     }
 
     public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
-        Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
-        try {
-            ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
+        return getIdMapping(language).docIds.get(localId);
+    }
+
+    /**
+     * Returns the local id of every lucene document in a language, indexed by lucene id.
+     * Deleted documents and documents without a local id map to -1.
+     * The returned array is shared and must not be modified.
+     *
+     * @param language
+     * @return
+     */
+    public int[] getLocalIdsByDocId(Language language) {
+        return getIdMapping(language).localIds;
+    }
+
+    /**
+     * Returns the mapping between lucene ids and local ids for a language,
+     * (re)building it if the reader for the language has changed since it was built.
+     * Mappings are immutable once published, so lookups of a current mapping never
+     * block. A missing or stale mapping is built under a lock for the language, so
+     * threads that find it at the same time wait for a single scan of the index.
+     */
+    private IdMapping getIdMapping(Language language) {
+        DirectoryReader reader = getReaderByLanguage(language);
+        IdMapping mapping = idMappings.get(language);
+        if (mapping != null && mapping.reader == reader) {
+            return mapping;
+        }
+        Object lock = idMappingLocks.get(language);
+        if (lock == null) {
+            idMappingLocks.putIfAbsent(language, new Object());
+            lock = idMappingLocks.get(language);
+        }
+        synchronized (lock) {
+            reader = getReaderByLanguage(language);
+            mapping = idMappings.get(language);
+            if (mapping == null || mapping.reader != reader) {
+                try {
+                    mapping = new IdMapping(reader);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                idMappings.put(language, mapping);
             }
-        } catch (IOException e) {
-            throw new DaoException(e);
+            return mapping;
+        }
+    }
+
+    /**
+     * A bidirectional mapping between lucene ids and local ids for a single reader.
+     * The local ids are read from the field cache of each segment, so building
+     * the mapping requires a single pass over the indexed terms rather than
+     * loading any stored documents. A mapping is never modified after it is constructed.
+     */
+    private static class IdMapping {
+        final DirectoryReader reader;
+        final int[] localIds;
+        final TIntIntMap docIds;
+
+        IdMapping(DirectoryReader reader) throws IOException {
+            long start = System.currentTimeMillis();
+            this.reader = reader;
+            this.localIds = new int[reader.maxDoc()];
+            this.docIds = new TIntIntHashMap(reader.numDocs() * 2, 0.5f, -1, -1);
+            Arrays.fill(localIds, -1);
+            for (AtomicReaderContext context : reader.leaves()) {
+                AtomicReader leaf = context.reader();
+                FieldCache.Ints values = FieldCache.DEFAULT.getInts(
+                        leaf, LuceneOptions.LOCAL_ID_FIELD_NAME, FieldCache.NUMERIC_UTILS_INT_PARSER, true);
+                Bits hasValue = FieldCache.DEFAULT.getDocsWithField(leaf, LuceneOptions.LOCAL_ID_FIELD_NAME);
+                Bits liveDocs = leaf.getLiveDocs();
+                for (int i = 0; i < leaf.maxDoc(); i++) {
+                    if ((liveDocs == null || liveDocs.get(i)) && hasValue.get(i)) {
+                        int docId = context.docBase + i;
+                        int localId = values.get(i);
+                        localIds[docId] = localId;
+                        docIds.put(localId, docId);
+                    }
+                }
+            }
+            LOG.info(String.format("built lucene id mapping for %d documents in %d ms",
+                    docIds.size(), System.currentTimeMillis() - start));
         }
     }
 
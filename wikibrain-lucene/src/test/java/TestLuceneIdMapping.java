@@ -0,0 +1,137 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainAnalyzer;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the mapping between lucene ids and local ids on a small index.
+ */
+public class TestLuceneIdMapping {
+    private static final Language LANG = Language.SIMPLE;
+
+    @Test
+    public void testMapping() throws IOException, DaoException {
+        File root = WpIOUtils.createTempDirectory("lucene-ids");
+        try {
+            writeIndex(root);
+            LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(LANG), root);
+
+            int[] localIds = searcher.getLocalIdsByDocId(LANG);
+            assertEquals(102, localIds.length);
+            int found = 0;
+            for (int docId = 0; docId < localIds.length; docId++) {
+                int localId = localIds[docId];
+                assertEquals(localId, searcher.getLocalIdFromDocId(docId, LANG));
+                if (localId >= 0) {
+                    assertEquals(docId, searcher.getDocIdFromLocalId(localId, LANG));
+                    found++;
+                }
+            }
+            assertEquals(99, found);
+            for (int i = 0; i < 100; i++) {
+                int docId = searcher.getDocIdFromLocalId(localId(i), LANG);
+                if (i == 17) {
+                    assertEquals(-1, docId);
+                } else {
+                    assertEquals(localId(i), searcher.getLocalIdFromDocId(docId, LANG));
+                }
+            }
+
+            // Unknown ids
+            assertEquals(-1, searcher.getDocIdFromLocalId(5, LANG));
+            assertEquals(-1, searcher.getLocalIdFromDocId(-1, LANG));
+            assertEquals(-1, searcher.getLocalIdFromDocId(10000, LANG));
+
+            // The mapping is built once and shared
+            assertSame(localIds, searcher.getLocalIdsByDocId(LANG));
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        File root = WpIOUtils.createTempDirectory("lucene-ids");
+        try {
+            writeIndex(root);
+            final LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(LANG), root);
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 8; t++) {
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 100; i++) {
+                                if (i == 17) continue;
+                                int docId = searcher.getDocIdFromLocalId(localId(i), LANG);
+                                assertEquals(localId(i), searcher.getLocalIdFromDocId(docId, LANG));
+                            }
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }
+                });
+            }
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+            assertTrue(errors.toString(), errors.isEmpty());
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    /**
+     * Writes 100 pages, one deleted, across several segments, plus
+     * two documents without a local id.
+     */
+    private void writeIndex(File root) throws IOException {
+        LuceneOptions options = LuceneOptions.getDefaultOptions();
+        IndexWriterConfig iwc = new IndexWriterConfig(options.matchVersion, new WikiBrainAnalyzer(LANG, options));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(root, LANG.getLangCode())), iwc);
+        for (int i = 0; i < 100; i++) {
+            Document doc = new Document();
+            doc.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId(i), Field.Store.YES));
+            doc.add(new IntField(LuceneOptions.LANG_ID_FIELD_NAME, LANG.getId(), Field.Store.YES));
+            doc.add(new TextField(options.elements.getTextFieldName(), "page number " + i, Field.Store.YES));
+            writer.addDocument(doc);
+            if (i % 30 == 29) {
+                writer.commit();
+            }
+            if (i == 50) {
+                Document unmapped = new Document();
+                unmapped.add(new TextField(options.elements.getTextFieldName(), "no local id", Field.Store.YES));
+                writer.addDocument(unmapped);
+                writer.addDocument(unmapped);
+            }
+        }
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(
+                LuceneOptions.LOCAL_ID_FIELD_NAME, localId(17), localId(17), true, true));
+        writer.close();
+    }
+
+    private static int localId(int i) {
+        return 200 + 7 * i;
+    }
+}
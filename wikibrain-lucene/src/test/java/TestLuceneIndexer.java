@@ -0,0 +1,144 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.RawPageDao;
+import org.wikibrain.core.dao.RedirectDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.lucene.LuceneIndexer;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an index built in bulk mode matches one built by a single writer.
+ */
+public class TestLuceneIndexer {
+    private static final Language LANG = Language.SIMPLE;
+
+    @Test
+    public void testBulkMatchesSerial() throws IOException, ConfigurationException, DaoException {
+        File baseDir = WpIOUtils.createTempDirectory("lucene-indexer");
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("baseDir", baseDir.getAbsolutePath());
+            Configurator conf = new Configurator(new Configuration(params));
+            final List<RawPage> pages = writePages(conf);
+            LuceneOptions options = conf.get(LuceneOptions.class, "plaintext");
+            File root = options.luceneRoot;
+
+            LuceneIndexer serial = new LuceneIndexer(LANG, options);
+            serial.setBulk(false);
+            for (RawPage page : pages) {
+                serial.indexPage(page);
+            }
+            serial.close();
+            IndexSummary expected = new IndexSummary(new File(root, LANG.getLangCode()), options);
+            assertEquals(pages.size(), expected.documents.size());
+
+            // Leftovers of a crashed bulk build are removed; other languages are untouched.
+            File stale = new File(root, LANG.getLangCode() + ".part3");
+            File other = new File(root, "en.part0");
+            stale.mkdirs();
+            other.mkdirs();
+            FileUtils.write(new File(stale, "_0.cfs"), "junk");
+
+            final LuceneIndexer bulk = new LuceneIndexer(LANG, options);
+            assertFalse(stale.exists());
+            assertTrue(other.isDirectory());
+            bulk.setBulk(true);
+            ParallelForEach.loop(pages, 4, new Procedure<RawPage>() {
+                @Override
+                public void call(RawPage page) throws Exception {
+                    bulk.indexPage(page);
+                }
+            });
+            bulk.close();
+            for (String name : root.list()) {
+                assertFalse(name.startsWith(LANG.getLangCode() + ".part"));
+            }
+            IndexSummary actual = new IndexSummary(new File(root, LANG.getLangCode()), options);
+            assertEquals(expected.documents, actual.documents);
+            assertEquals(expected.docFreqs, actual.docFreqs);
+        } finally {
+            FileUtils.deleteQuietly(baseDir);
+        }
+    }
+
+    private List<RawPage> writePages(Configurator conf) throws ConfigurationException, DaoException {
+        LocalPageDao localPageDao = conf.get(LocalPageDao.class);
+        RawPageDao rawPageDao = conf.get(RawPageDao.class);
+        RedirectDao redirectDao = conf.get(RedirectDao.class);
+        localPageDao.beginLoad();
+        rawPageDao.beginLoad();
+        redirectDao.beginLoad();
+        Random random = new Random(0);
+        String[] words = { "apple", "banana", "cherry", "river", "mountain", "city", "music", "science", "history", "game" };
+        List<RawPage> pages = new ArrayList<RawPage>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder body = new StringBuilder();
+            for (int j = 0; j < 30; j++) {
+                body.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            body.append("page").append(i);
+            String title = "Page " + i;
+            RawPage page = new RawPage(i + 1, 100 + i, title, body.toString(), new Date(), LANG, NameSpace.ARTICLE);
+            localPageDao.save(new LocalPage(LANG, i + 1, new Title(title, LANG), NameSpace.ARTICLE));
+            rawPageDao.save(page);
+            pages.add(page);
+        }
+        localPageDao.endLoad();
+        rawPageDao.endLoad();
+        redirectDao.endLoad();
+        return pages;
+    }
+
+    /**
+     * The stored fields of each document, keyed by local id, and the
+     * document frequency of every term in the text field.
+     */
+    private static class IndexSummary {
+        final Map<String, String> documents = new HashMap<String, String>();
+        final Map<String, Integer> docFreqs = new HashMap<String, Integer>();
+
+        IndexSummary(File dir, LuceneOptions options) throws IOException {
+            DirectoryReader reader = DirectoryReader.open(FSDirectory.open(dir));
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                Document doc = reader.document(i);
+                StringBuilder fields = new StringBuilder();
+                for (String name : Arrays.asList(LuceneOptions.LANG_ID_FIELD_NAME, options.elements.getTextFieldName())) {
+                    fields.append(name).append('=').append(doc.get(name)).append('\n');
+                }
+                documents.put(doc.get(LuceneOptions.LOCAL_ID_FIELD_NAME), fields.toString());
+            }
+            Terms terms = MultiFields.getTerms(reader, options.elements.getTextFieldName());
+            TermsEnum termsEnum = terms.iterator(null);
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                docFreqs.put(term.utf8ToString(), termsEnum.docFreq());
+            }
+            reader.close();
+        }
+    }
+}
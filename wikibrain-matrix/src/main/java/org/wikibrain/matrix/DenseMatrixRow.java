@@ -3,6 +3,8 @@ package org.wikibrain.matrix;
 import org.apache.commons.lang3.ArrayUtils;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.LinkedHashMap;
@@ -12,7 +14,14 @@ import org.slf4j.LoggerFactory;
 /**
  * A single dense matrix row backed by a byte buffer. The row contains:
  * - a row id (int),
- * - a set of n columns, each with a value (float packed into two bytes)
+ * - a set of n columns, each with a value
+ *
+ * Values are stored in one of three encodings, identified by the row header:
+ * - PACKED16: floats packed into two bytes by the ValueConf (the original format),
+ * - FLOAT32: raw little-endian floats, preceded by the row norm,
+ * - INT8: one signed byte per value scaled by a per-row factor, preceded by the row norm.
+ * FLOAT32 rows are exact, and INT8 rows use half the space of PACKED16 rows for
+ * fast approximate scoring. Rows in different encodings can share a matrix.
  *
  * Since the matrix is dense, the row assumes that a single copy of column ids is
  * stored somewhere in the container matrix.
@@ -30,6 +39,19 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public static final int PACKED_RANGE = (Short.MAX_VALUE - Short.MIN_VALUE);
 
     public static final int HEADER = 0xfefefefa;
+    public static final int HEADER_FLOAT32 = 0xfefefef9;
+    public static final int HEADER_INT8 = 0xfefefef8;
+
+    public static enum Encoding {
+        PACKED16,
+        FLOAT32,
+        INT8
+    }
+
+    private Encoding encoding;
+
+    // Offset of the first value in the buffer
+    private int valOffset;
     private final float c1;
     private final float c2;
 
@@ -49,10 +71,15 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private int[] colIds;
 
     /**
-     * A view buffer that points to the values.
+     * A view buffer that points to the values for PACKED16 rows.
      */
     private ShortBuffer valBuffer;
 
+    /**
+     * A view buffer that points to the values for FLOAT32 rows.
+     */
+    private FloatBuffer floatBuffer;
+
     private ValueConf vconf;
 
     public DenseMatrixRow(ValueConf vconf, int rowIndex, LinkedHashMap<Integer, Float> row) {
@@ -63,6 +90,10 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
     }
 
     public DenseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[]) {
+        this(vconf, rowIndex, colIds, colVals, Encoding.PACKED16);
+    }
+
+    public DenseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[], Encoding encoding) {
         if (!SparseMatrixUtils.isIncreasing(colIds)) {
             throw new IllegalArgumentException("Columns must be sorted by id");
         }
@@ -70,11 +101,23 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
         this.c1 = vconf.c1;
         this.c2 = vconf.c2;
         this.colIds = colIds;
-        short packed[] = new short[colVals.length];
-        for (int i = 0; i < colVals.length; i++) {
-            packed[i] = vconf.pack(colVals[i]);
+        switch (encoding) {
+            case PACKED16:
+                short packed[] = new short[colVals.length];
+                for (int i = 0; i < colVals.length; i++) {
+                    packed[i] = vconf.pack(colVals[i]);
+                }
+                createBuffer(rowIndex, colIds, packed);
+                break;
+            case FLOAT32:
+                createFloatBuffer(rowIndex, colVals);
+                break;
+            case INT8:
+                createInt8Buffer(rowIndex, colVals);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown encoding: " + encoding);
         }
-        createBuffer(rowIndex, colIds, packed);
     }
 
     public void createBuffer(int rowIndex, int colIds[], short colVals[]) {
@@ -86,18 +129,76 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
                 4 +                 // row index
                 2 * colVals.length  // col values
         );
-        createViewBuffers(colVals.length);
+        createViewBuffers(HEADER);
 
         headerBuffer.put(0, HEADER);
         headerBuffer.put(1, rowIndex);
         valBuffer.put(colVals, 0, colVals.length);
     }
 
-    private void createViewBuffers(int numColumns) {
+    private void createFloatBuffer(int rowIndex, float colVals[]) {
+        buffer = ByteBuffer.allocate(
+                4 +                 // header
+                4 +                 // row index
+                4 +                 // norm
+                4 +                 // padding, so values are 8 byte aligned
+                4 * colVals.length  // col values
+        );
+        buffer.putInt(0, HEADER_FLOAT32);
+        buffer.putInt(4, rowIndex);
+        buffer.putFloat(8, (float) VectorKernels.norm(colVals));
+        createViewBuffers(HEADER_FLOAT32);
+        floatBuffer.put(colVals, 0, colVals.length);
+        floatBuffer.rewind();
+    }
+
+    private void createInt8Buffer(int rowIndex, float colVals[]) {
+        float max = 0.0f;
+        for (float v : colVals) {
+            max = Math.max(max, Math.abs(v));
+        }
+        float scale = (max == 0.0f) ? 1.0f : max / Byte.MAX_VALUE;
+        buffer = ByteBuffer.allocate(
+                4 +                 // header
+                4 +                 // row index
+                4 +                 // norm
+                4 +                 // scale
+                colVals.length      // col values
+        );
+        buffer.putInt(0, HEADER_INT8);
+        buffer.putInt(4, rowIndex);
+        buffer.putFloat(12, scale);
+        createViewBuffers(HEADER_INT8);
+        double norm2 = 0.0;
+        for (int i = 0; i < colVals.length; i++) {
+            byte b = (byte) Math.round(colVals[i] / scale);
+            buffer.put(valOffset + i, b);
+            norm2 += (b * scale) * (b * scale);
+        }
+        buffer.putFloat(8, (float) Math.sqrt(norm2));
+    }
+
+    private void createViewBuffers(int header) {
         buffer.position(0);
         headerBuffer = buffer.asIntBuffer();
-        buffer.position(2 * 4);
-        valBuffer = buffer.asShortBuffer();
+        if (header == HEADER) {
+            encoding = Encoding.PACKED16;
+            valOffset = 2 * 4;
+            buffer.position(valOffset);
+            valBuffer = buffer.asShortBuffer();
+        } else if (header == HEADER_FLOAT32) {
+            encoding = Encoding.FLOAT32;
+            valOffset = 4 * 4;
+            ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            view.position(valOffset);
+            floatBuffer = view.asFloatBuffer();
+        } else if (header == HEADER_INT8) {
+            encoding = Encoding.INT8;
+            valOffset = 4 * 4;
+        } else {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        buffer.position(0);
     }
 
     /**
@@ -114,27 +215,71 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
         this.buffer = buffer;
         this.c1 = vconf.c1;
         this.c2 = vconf.c2;
-        if (this.buffer.getInt(0) != HEADER) {
-            throw new IllegalArgumentException("Invalid header in byte buffer");
-        }
-        createViewBuffers(buffer.getInt(8));
+        createViewBuffers(buffer.getInt(0));
     }
 
     public final double dot(float [] vector) {
         if (vector.length != colIds.length) throw new IllegalArgumentException();
-        double sum = 0.0;
-        for (int i = 0; i < vector.length; i++) {
-            sum += vector[i] * (c1 * valBuffer.get(i) + c2);
+        switch (encoding) {
+            case FLOAT32:
+                return VectorKernels.dot(vector, floatBuffer);
+            case INT8:
+                return VectorKernels.dot(vector, buffer, valOffset) * getScale();
+            default:
+                double sum = 0.0;
+                for (int i = 0; i < vector.length; i++) {
+                    sum += vector[i] * (c1 * valBuffer.get(i) + c2);
+                }
+                return sum;
         }
-        return sum;
     }
 
     public final double dot(DenseMatrixRow X) {
-        double sum = 0.0;
-        for (int i = 0; i < X.colIds.length; i++) {
-            sum += (c1 * X.valBuffer.get(i) + c2) * (c1 * valBuffer.get(i) + c2);
+        if (X.colIds.length != colIds.length) throw new IllegalArgumentException();
+        if (encoding == Encoding.FLOAT32 && X.encoding == Encoding.FLOAT32) {
+            return VectorKernels.dot(floatBuffer, X.floatBuffer, colIds.length);
+        } else if (encoding == Encoding.INT8 && X.encoding == Encoding.INT8) {
+            return VectorKernels.dot(buffer, valOffset, X.buffer, X.valOffset, colIds.length)
+                    * getScale() * X.getScale();
+        } else if (encoding == Encoding.PACKED16 && X.encoding == Encoding.PACKED16) {
+            double sum = 0.0;
+            for (int i = 0; i < X.colIds.length; i++) {
+                sum += (c1 * X.valBuffer.get(i) + c2) * (c1 * valBuffer.get(i) + c2);
+            }
+            return sum;
+        } else {
+            return dot(X.getValues());
+        }
+    }
+
+    /**
+     * Computes the cosine similarity between this row and a vector.
+     * @param vector
+     * @param vectorNorm The L2 norm of the vector, which callers can compute once per query.
+     */
+    public final double cosine(float [] vector, double vectorNorm) {
+        double norms = vectorNorm * getNorm();
+        return (norms == 0.0) ? 0.0 : dot(vector) / norms;
+    }
+
+    /**
+     * @return The L2 norm of the row. This is stored in the header of FLOAT32 and INT8 rows.
+     */
+    @Override
+    public double getNorm() {
+        if (encoding == Encoding.PACKED16) {
+            return super.getNorm();
+        } else {
+            return buffer.getFloat(8);
         }
-        return sum;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    private float getScale() {
+        return buffer.getFloat(12);
     }
 
     @Override
@@ -144,10 +289,20 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     @Override
     public final float getColValue(int i) {
-        return vconf.unpack(valBuffer.get(i));
+        switch (encoding) {
+            case FLOAT32:
+                return floatBuffer.get(i);
+            case INT8:
+                return buffer.get(valOffset + i) * getScale();
+            default:
+                return vconf.unpack(valBuffer.get(i));
+        }
     }
 
     public final short getPackedColValue(int i) {
+        if (encoding != Encoding.PACKED16) {
+            return vconf.pack(getColValue(i));
+        }
         return valBuffer.get(i);
     }
 
@@ -175,6 +330,12 @@ public final class DenseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     public float[] getValues() {
         float vals[] = new float[colIds.length];
+        if (encoding == Encoding.FLOAT32) {
+            FloatBuffer fb = floatBuffer.duplicate();
+            fb.rewind();
+            fb.get(vals);
+            return vals;
+        }
         for (int i = 0; i < vals.length; i++) {
             vals[i] = getColValue(i);
         }
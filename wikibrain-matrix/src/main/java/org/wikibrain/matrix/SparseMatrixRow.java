@@ -15,8 +15,12 @@ import org.slf4j.LoggerFactory;
 /**
  * A single sparse matrix row backed by a byte buffer. The row contains:
  * - a row id (int),
+ * - the L2 norm of the row (float),
  * - a set of n columns, each with an id (int) and value (float packed into two bytes)
  *
+ * Rows written before the norm was added to the header use LEGACY_HEADER.
+ * They can still be read, but their norm is computed on demand.
+ *
  * The row can either be created from the component data, or from a byte buffer.
  * This means that the object can wrap data from an mmap'd file in the correct format.
  *
@@ -31,7 +35,8 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public static final Float SCORE_RANGE = (MAX_SCORE - MIN_SCORE);
     public static final int PACKED_RANGE = (Short.MAX_VALUE - Short.MIN_VALUE);
 
-    public static final int HEADER = 0xfefefefe;
+    public static final int HEADER = 0xfefefefd;
+    public static final int LEGACY_HEADER = 0xfefefefe;
 
     /**
      * The main "source" buffer.
@@ -88,18 +93,26 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
             }
         }
 
+        double sumSquares = 0.0;
+        for (short v : colVals) {
+            float f = vconf.unpack(v);
+            sumSquares += f * f;
+        }
+
         buffer = ByteBuffer.allocate(
                 4 +                 // header
                 4 +                 // row index
                 4 +                 // num cols
+                4 +                 // norm
                 4 * colVals.length +    // col indexes
                 2 * colVals.length      // col values
         );
-        createViewBuffers(colVals.length);
+        createViewBuffers(HEADER, colVals.length);
 
         headerBuffer.put(0, HEADER);
         headerBuffer.put(1, rowIndex);
         headerBuffer.put(2, colVals.length);
+        headerBuffer.put(3, Float.floatToIntBits((float) Math.sqrt(sumSquares)));
         idBuffer.put(colIds, 0, colIds.length);
         valBuffer.put(colVals, 0, colVals.length);
     }
@@ -151,12 +164,13 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
         return true;
     }
 
-    private void createViewBuffers(int numColumns) {
+    private void createViewBuffers(int header, int numColumns) {
+        int headerSize = (header == HEADER) ? 4 * 4 : 3 * 4;
         buffer.position(0);
         headerBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4);
+        buffer.position(headerSize);
         idBuffer = buffer.asIntBuffer();
-        buffer.position(3 * 4 + numColumns * 4);
+        buffer.position(headerSize + numColumns * 4);
         valBuffer = buffer.asShortBuffer();
     }
 
@@ -167,10 +181,11 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     public SparseMatrixRow(ValueConf vconf, ByteBuffer buffer) {
         this.vconf = vconf;
         this.buffer = buffer;
-        if (this.buffer.getInt(0) != HEADER) {
+        int header = this.buffer.getInt(0);
+        if (header != HEADER && header != LEGACY_HEADER) {
             throw new IllegalArgumentException("Invalid header in byte buffer");
         }
-        createViewBuffers(buffer.getInt(8));
+        createViewBuffers(header, buffer.getInt(8));
     }
 
     @Override
@@ -197,6 +212,25 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
         return headerBuffer.get(2);
     }
 
+    /**
+     * @return The L2 norm of the row, read from the header if it was stored there.
+     */
+    @Override
+    public double getNorm() {
+        if (hasStoredNorm()) {
+            return Float.intBitsToFloat(headerBuffer.get(3));
+        } else {
+            return super.getNorm();
+        }
+    }
+
+    /**
+     * @return True if the row header contains the norm, false for rows in the legacy format.
+     */
+    public boolean hasStoredNorm() {
+        return headerBuffer.get(0) == HEADER;
+    }
+
     public ByteBuffer getBuffer() {
         return buffer;
     }
@@ -46,6 +46,9 @@ public class SparseMatrixWriter {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
+        if (!row.hasStoredNorm()) {
+            row = upgradeRow(row);
+        }
         row.getBuffer().rewind();
         byte[] bytes = new byte[row.getBuffer().remaining()];
         row.getBuffer().get(bytes, 0, bytes.length);
@@ -63,6 +66,20 @@ public class SparseMatrixWriter {
         }
     }
 
+    /**
+     * Rewrites a row read from a legacy matrix so that its header contains the row norm.
+     */
+    private static SparseMatrixRow upgradeRow(SparseMatrixRow row) {
+        int n = row.getNumCols();
+        int colIds[] = new int[n];
+        short colVals[] = new short[n];
+        for (int i = 0; i < n; i++) {
+            colIds[i] = row.getColIndex(i);
+            colVals[i] = row.getPackedColValue(i);
+        }
+        return new SparseMatrixRow(row.getValueConf(), row.getRowIndex(), colIds, colVals);
+    }
+
     public void finish() throws IOException {
         body.close();
         info("wrote " + bodyOffset + " bytes in body of matrix");
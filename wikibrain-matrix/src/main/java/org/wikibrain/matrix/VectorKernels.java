@@ -0,0 +1,116 @@
+package org.wikibrain.matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Dot product and norm kernels for dense vectors.
+ *
+ * The loops are unrolled four ways with independent accumulators so the JIT
+ * can keep several multiply-adds in flight and eliminate most bounds checks.
+ * Buffer variants use absolute gets so they work on memory mapped rows
+ * without copying them to the heap.
+ *
+ * @author Shilad Sen
+ */
+public final class VectorKernels {
+
+    private VectorKernels() {}
+
+    public static double dot(float[] X, float[] Y) {
+        if (X.length != Y.length) throw new IllegalArgumentException();
+        int n = X.length;
+        int end = n & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int i = 0; i < end; i += 4) {
+            s0 += X[i] * Y[i];
+            s1 += X[i + 1] * Y[i + 1];
+            s2 += X[i + 2] * Y[i + 2];
+            s3 += X[i + 3] * Y[i + 3];
+        }
+        for (int i = end; i < n; i++) {
+            s0 += X[i] * Y[i];
+        }
+        return (double) s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Dot product of an array and n floats in a buffer.
+     */
+    public static double dot(float[] X, FloatBuffer Y) {
+        int n = X.length;
+        int end = n & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int i = 0; i < end; i += 4) {
+            s0 += X[i] * Y.get(i);
+            s1 += X[i + 1] * Y.get(i + 1);
+            s2 += X[i + 2] * Y.get(i + 2);
+            s3 += X[i + 3] * Y.get(i + 3);
+        }
+        for (int i = end; i < n; i++) {
+            s0 += X[i] * Y.get(i);
+        }
+        return (double) s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Dot product of the first n floats in two buffers.
+     */
+    public static double dot(FloatBuffer X, FloatBuffer Y, int n) {
+        int end = n & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int i = 0; i < end; i += 4) {
+            s0 += X.get(i) * Y.get(i);
+            s1 += X.get(i + 1) * Y.get(i + 1);
+            s2 += X.get(i + 2) * Y.get(i + 2);
+            s3 += X.get(i + 3) * Y.get(i + 3);
+        }
+        for (int i = end; i < n; i++) {
+            s0 += X.get(i) * Y.get(i);
+        }
+        return (double) s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Dot product of an array and X.length signed bytes in a buffer starting at offset.
+     * The result is not scaled.
+     */
+    public static double dot(float[] X, ByteBuffer Y, int offset) {
+        int n = X.length;
+        int end = n & ~3;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int i = 0; i < end; i += 4) {
+            s0 += X[i] * Y.get(offset + i);
+            s1 += X[i + 1] * Y.get(offset + i + 1);
+            s2 += X[i + 2] * Y.get(offset + i + 2);
+            s3 += X[i + 3] * Y.get(offset + i + 3);
+        }
+        for (int i = end; i < n; i++) {
+            s0 += X[i] * Y.get(offset + i);
+        }
+        return (double) s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Dot product of n signed bytes in two buffers, computed exactly in integer arithmetic.
+     * The result is not scaled.
+     */
+    public static long dot(ByteBuffer X, int xOffset, ByteBuffer Y, int yOffset, int n) {
+        int end = n & ~3;
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (int i = 0; i < end; i += 4) {
+            s0 += X.get(xOffset + i) * Y.get(yOffset + i);
+            s1 += X.get(xOffset + i + 1) * Y.get(yOffset + i + 1);
+            s2 += X.get(xOffset + i + 2) * Y.get(yOffset + i + 2);
+            s3 += X.get(xOffset + i + 3) * Y.get(yOffset + i + 3);
+        }
+        for (int i = end; i < n; i++) {
+            s0 += X.get(xOffset + i) * Y.get(yOffset + i);
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    public static double norm(float[] X) {
+        return Math.sqrt(dot(X, X));
+    }
+}
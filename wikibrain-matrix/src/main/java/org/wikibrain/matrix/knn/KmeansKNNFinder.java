@@ -5,6 +5,7 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.VectorKernels;
 
 import java.io.File;
 import java.io.IOException;
@@ -261,20 +262,11 @@ public class KmeansKNNFinder implements KNNFinder {
         if (X == null || Y == null) {
             return 0;
         }
-        double xDotX = 0.0;
-        double yDotY = 0.0;
-        double xDotY = 0.0;
-        for (int i = 0; i < X.getNumCols(); i++) {
-            double x = X.getColValue(i);
-            double y = Y.getColValue(i);
-            xDotX += x * x;
-            yDotY += y * y;
-            xDotY += x * y;
-        }
-        if (xDotX * yDotY == 0) {
+        double norms = X.getNorm() * Y.getNorm();
+        if (norms == 0) {
             return 0.0;
         }
-        return xDotY / Math.sqrt(xDotX * yDotY);
+        return X.dot(Y) / norms;
     }
 
     static double cosine(double [] X, DenseMatrixRow Y) {
@@ -301,20 +293,7 @@ public class KmeansKNNFinder implements KNNFinder {
         if (X == null || Y == null) {
             return 0;
         }
-        double xDotX = 0.0;
-        double yDotY = 0.0;
-        double xDotY = 0.0;
-        for (int i = 0; i < X.length; i++) {
-            double x = X[i];
-            double y = Y.getColValue(i);
-            xDotX += x * x;
-            yDotY += y * y;
-            xDotY += x * y;
-        }
-        if (xDotX * yDotY == 0) {
-            return 0.0;
-        }
-        return xDotY / Math.sqrt(xDotX * yDotY);
+        return Y.cosine(X, VectorKernels.norm(X));
     }
 
 
@@ -65,6 +65,24 @@ public class TestDenseMatrix {
     }
 
 
+    @Test
+    public void testFloat32Rows() throws IOException {
+        List<DenseMatrixRow> rows = new java.util.ArrayList<DenseMatrixRow>();
+        for (DenseMatrixRow src : srcRows) {
+            rows.add(new DenseMatrixRow(new ValueConf(), src.getRowIndex(), src.getColIds(),
+                    src.getValues(), DenseMatrixRow.Encoding.FLOAT32));
+        }
+        File tmp = File.createTempFile("matrix", null);
+        DenseMatrixWriter.write(tmp, rows.iterator());
+        DenseMatrix m = new DenseMatrix(tmp);
+        verifyIsSourceMatrix(m);
+        for (DenseMatrixRow src : srcRows) {
+            DenseMatrixRow dest = m.getRow(src.getRowIndex());
+            assertEquals(DenseMatrixRow.Encoding.FLOAT32, dest.getEncoding());
+            assertEquals(src.dot(src), dest.dot(dest), 0.01);
+        }
+    }
+
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         int j = 0;
         for (DenseMatrixRow srcRow : srcRows) {
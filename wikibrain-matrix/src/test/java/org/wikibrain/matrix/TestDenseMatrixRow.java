@@ -6,6 +6,7 @@ import java.util.LinkedHashMap;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class TestDenseMatrixRow {
     private int[] keys = new int[] { 3, 9, 11, 26, 54 };
@@ -43,6 +44,58 @@ public class TestDenseMatrixRow {
         }
     }
 
+    @Test
+    public void testFloat32() {
+        DenseMatrixRow row = new DenseMatrixRow(new ValueConf(), ROW_INDEX, keys, vals, DenseMatrixRow.Encoding.FLOAT32);
+        DenseMatrixRow wrapped = new DenseMatrixRow(new ValueConf(), keys, row.getBuffer());
+        assertSame(DenseMatrixRow.Encoding.FLOAT32, wrapped.getEncoding());
+        assertEquals(ROW_INDEX, wrapped.getRowIndex());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(vals[i], wrapped.getColValue(i), 0.0);
+        }
+        assertEquals(VectorKernels.norm(vals), wrapped.getNorm(), 0.0001);
+    }
+
+    @Test
+    public void testInt8() {
+        float maxAbs = 2.0f;
+        DenseMatrixRow row = new DenseMatrixRow(new ValueConf(), ROW_INDEX, keys, vals, DenseMatrixRow.Encoding.INT8);
+        DenseMatrixRow wrapped = new DenseMatrixRow(new ValueConf(), keys, row.getBuffer());
+        assertSame(DenseMatrixRow.Encoding.INT8, wrapped.getEncoding());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(vals[i], wrapped.getColValue(i), maxAbs / 127);
+        }
+    }
+
+    @Test
+    public void testDotAcrossEncodings() {
+        Random rand = new Random(1);
+        int n = 101;
+        int[] cols = new int[n];
+        float[] x = new float[n];
+        float[] y = new float[n];
+        for (int i = 0; i < n; i++) {
+            cols[i] = i;
+            x[i] = (float) rand.nextGaussian() / 4;
+            y[i] = (float) rand.nextGaussian() / 4;
+        }
+        double expected = 0.0;
+        for (int i = 0; i < n; i++) {
+            expected += x[i] * y[i];
+        }
+        for (DenseMatrixRow.Encoding e1 : DenseMatrixRow.Encoding.values()) {
+            DenseMatrixRow r1 = new DenseMatrixRow(new ValueConf(), 1, cols, x, e1);
+            assertEquals(expected, r1.dot(y), 0.05);
+            assertEquals(VectorKernels.norm(x), r1.getNorm(), 0.05);
+            for (DenseMatrixRow.Encoding e2 : DenseMatrixRow.Encoding.values()) {
+                DenseMatrixRow r2 = new DenseMatrixRow(new ValueConf(), 2, cols, y, e2);
+                assertEquals(expected, r1.dot(r2), 0.05);
+            }
+            double cosine = expected / (VectorKernels.norm(x) * VectorKernels.norm(y));
+            assertEquals(cosine, r1.cosine(y, VectorKernels.norm(y)), 0.01);
+        }
+    }
+
     public MatrixRow createRow() {
         LinkedHashMap<Integer, Float> m = new LinkedHashMap<Integer, Float>();
         assertEquals(keys.length, vals.length);
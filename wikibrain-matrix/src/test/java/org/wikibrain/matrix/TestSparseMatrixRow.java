@@ -7,6 +7,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Random;
@@ -38,6 +39,36 @@ public class TestSparseMatrixRow {
         }
     }
 
+    @Test
+    public void testNorm() {
+        SparseMatrixRow row = (SparseMatrixRow) createRow();
+        assertTrue(row.hasStoredNorm());
+        double expected = 0.0;
+        for (int i = 0; i < row.getNumCols(); i++) {
+            expected += row.getColValue(i) * row.getColValue(i);
+        }
+        assertEquals(Math.sqrt(expected), row.getNorm(), 0.0001);
+    }
+
+    @Test
+    public void testLegacyHeader() {
+        // Rows without a stored norm have a three int header.
+        ValueConf vconf = new ValueConf();
+        ByteBuffer buffer = ByteBuffer.allocate(12 + 6 * keys.length);
+        buffer.putInt(SparseMatrixRow.LEGACY_HEADER);
+        buffer.putInt(ROW_INDEX);
+        buffer.putInt(keys.length);
+        for (int k : keys) buffer.putInt(k);
+        for (float v : vals) buffer.putShort(vconf.pack(v));
+
+        SparseMatrixRow row = new SparseMatrixRow(vconf, buffer);
+        assertTrue(!row.hasStoredNorm());
+        assertEquals(ROW_INDEX, row.getRowIndex());
+        assertEquals(keys.length, row.getNumCols());
+        assertEquals(keys[2], row.getColIndex(2));
+        assertEquals(createRow().getNorm(), row.getNorm(), 0.0001);
+    }
+
     @Test
     public void testSorting() {
         int maxColumns = 100000;
@@ -0,0 +1,252 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * Parses an hourly pageview dump and aggregates the views of each page.
+ *
+ * Lines have the form "project title views bytes". The parser works on raw bytes:
+ * the project is compared against the language codes before anything is decoded,
+ * so lines for other languages cost little more than a scan for the newline.
+ * Matching titles are percent-decoded into a reusable buffer and resolved through
+ * a {@link PageViewTitleIndex}. Views are summed per page in primitive maps, so
+ * titles that resolve to the same page (e.g. redirects) are combined.
+ *
+ * Unlike PageViewReader, a "+" in a title is kept as is rather than decoded as a space.
+ *
+ * A parser may be used by several threads at once.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Language[] languages;
+    private final byte[][] prefixes;
+    private final PageViewTitleIndex[] indexes;
+
+    public PageViewParser(Collection<PageViewTitleIndex> indexes) {
+        int n = indexes.size();
+        this.languages = new Language[n];
+        this.prefixes = new byte[n][];
+        this.indexes = new PageViewTitleIndex[n];
+        int i = 0;
+        for (PageViewTitleIndex index : indexes) {
+            this.languages[i] = index.getLanguage();
+            this.indexes[i] = index;
+            try {
+                this.prefixes[i] = index.getLanguage().getLangCode().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);  // should not happen
+            }
+            i++;
+        }
+    }
+
+    public Result parse(File file) throws IOException {
+        InputStream in = WpIOUtils.openInputStream(file);
+        try {
+            return parse(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public Result parse(InputStream in) throws IOException {
+        Result result = new Result();
+        byte[] title = new byte[256];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int start = 0;      // start of the current line
+        int scanned = 0;    // everything in [start, scanned) contains no newline
+        int end = 0;        // end of valid data
+        while (true) {
+            int newline = -1;
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline >= 0) {
+                title = parseLine(buffer, start, newline, title, result);
+                start = scanned = newline + 1;
+                continue;
+            }
+            scanned = end;
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                scanned -= start;
+                end -= start;
+                start = 0;
+            }
+            if (end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (end > start) {
+                    parseLine(buffer, start, end, title, result);
+                }
+                break;
+            }
+            end += read;
+        }
+        return result;
+    }
+
+    /**
+     * Parses the line in [from, to) and returns the (possibly grown) title buffer.
+     */
+    private byte[] parseLine(byte[] line, int from, int to, byte[] title, Result result) {
+        result.lines++;
+        if (to > from && line[to - 1] == '\r') {
+            to--;
+        }
+        int space1 = indexOf(line, from, to, (byte) ' ');
+        if (space1 < 0) {
+            return title;
+        }
+        int lang = matchLanguage(line, from, space1);
+        if (lang < 0) {
+            return title;
+        }
+        result.matches++;
+        int space2 = indexOf(line, space1 + 1, to, (byte) ' ');
+        if (space2 < 0) {
+            result.errors++;
+            return title;
+        }
+        int views = 0;
+        int i = space2 + 1;
+        for (; i < to && line[i] != ' '; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                result.errors++;
+                return title;
+            }
+            views = views * 10 + digit;
+        }
+        if (i == space2 + 1) {
+            result.errors++;
+            return title;
+        }
+
+        if (title.length < space2 - space1) {
+            title = new byte[2 * (space2 - space1)];
+        }
+        int length = decode(line, space1 + 1, space2, title);
+        int id = indexes[lang].getId(title, length);
+        if (id >= 0) {
+            result.resolved++;
+            result.getOrCreateViews(languages[lang]).adjustOrPutValue(id, views, views);
+        }
+        return title;
+    }
+
+    private int matchLanguage(byte[] line, int from, int to) {
+        for (int i = 0; i < prefixes.length; i++) {
+            byte[] prefix = prefixes[i];
+            if (prefix.length == to - from) {
+                int j = 0;
+                while (j < prefix.length && prefix[j] == line[from + j]) {
+                    j++;
+                }
+                if (j == prefix.length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Percent-decodes the bytes in [from, to) into dest and replaces spaces with underscores.
+     * Malformed escapes are copied literally.
+     * @return The number of decoded bytes.
+     */
+    static int decode(byte[] src, int from, int to, byte[] dest) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = src[i];
+            if (b == '%' && i + 2 < to) {
+                int hi = Character.digit(src[i + 1], 16);
+                int lo = Character.digit(src[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    b = (byte) ((hi << 4) + lo);
+                    i += 2;
+                }
+            }
+            dest[n++] = (b == ' ') ? (byte) '_' : b;
+        }
+        return n;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The views of each resolved page in one file.
+     */
+    public static class Result {
+        private final Map<Language, TIntIntMap> views = new HashMap<Language, TIntIntMap>();
+        private int lines = 0;
+        private int matches = 0;
+        private int resolved = 0;
+        private int errors = 0;
+
+        /**
+         * @return A map from page id to views. Empty if no pages were resolved.
+         */
+        public TIntIntMap getViews(Language language) {
+            TIntIntMap m = views.get(language);
+            return (m == null) ? new TIntIntHashMap() : m;
+        }
+
+        private TIntIntMap getOrCreateViews(Language language) {
+            TIntIntMap m = views.get(language);
+            if (m == null) {
+                m = new TIntIntHashMap();
+                views.put(language, m);
+            }
+            return m;
+        }
+
+        public int getNumLines() {
+            return lines;
+        }
+
+        /**
+         * @return The number of lines for the parser's languages.
+         */
+        public int getNumMatches() {
+            return matches;
+        }
+
+        /**
+         * @return The number of matching lines whose title resolved to a page.
+         */
+        public int getNumResolved() {
+            return resolved;
+        }
+
+        public int getNumErrors() {
+            return errors;
+        }
+    }
+}
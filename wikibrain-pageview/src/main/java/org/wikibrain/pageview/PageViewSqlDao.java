@@ -14,6 +14,7 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.dao.RedirectDao;
 import org.wikibrain.core.dao.sql.AbstractSqlDao;
 import org.wikibrain.core.dao.sql.JooqUtils;
 import org.wikibrain.core.dao.sql.SimpleSqlDaoIterable;
@@ -26,6 +27,7 @@ import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -41,7 +43,9 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
     public static final String LOADED_CACHE_KEY = "pageviewhours";
     private final File downloadDir;
     private final LocalPageDao pageDao;
+    private final RedirectDao redirectDao;
     private final MetaInfoDao metaDao;
+    private final Map<Language, PageViewTitleIndex> titleIndexes = new HashMap<Language, PageViewTitleIndex>();
 
     private static final TableField [] INSERT_FIELDS = new TableField[] {
             Tables.PAGEVIEW.LANG_ID,
@@ -54,10 +58,11 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
      * @param dataSource      Data source for jdbc connections
      * @throws org.wikibrain.core.dao.DaoException
      */
-    public PageViewSqlDao(WpDataSource dataSource, MetaInfoDao metaDao, LocalPageDao pageDao, File downloadDir) throws DaoException {
+    public PageViewSqlDao(WpDataSource dataSource, MetaInfoDao metaDao, LocalPageDao pageDao, RedirectDao redirectDao, File downloadDir) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/pageview");
         this.downloadDir = downloadDir;
         this.pageDao = pageDao;
+        this.redirectDao = redirectDao;
         this.metaDao = metaDao;
     }
 
@@ -286,6 +291,8 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
             throw new DaoException(e);
         }
 
+        final PageViewParser parser = getParser(langs);
+
         beginLoad();
 
         final AtomicInteger[] counters = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
@@ -294,7 +301,7 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
             @Override
             public void call(DateTime tstamp) throws Exception {
                 LOG.info("loading pageview file " + toLoad.get(tstamp));
-                loadOneFile(tstamp, toLoad.get(tstamp), langs, counters);
+                loadOneFile(tstamp, toLoad.get(tstamp), parser, langs, counters);
                 LOG.info("finished pageview file " + toLoad.get(tstamp));
             }
         });
@@ -324,26 +331,32 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
         cache.put(LOADED_CACHE_KEY, loaded);
     }
 
-    private void loadOneFile(DateTime tstamp, File file, LanguageSet langs, AtomicInteger[] counters) {
-        PageViewReader reader = new PageViewReader(file, langs);
-        for (RawPageView view : reader) {
-            try {
-                counters[0].getAndIncrement();
-                int id = pageDao.getIdByTitle(view.getTitle());
-                if (id >= 0) {
-                    counters[1].incrementAndGet();
-                    PageView pv = new PageView(
-                            new LocalId(view.getLanguage(), id),
-                            tstamp.toDate(),
-                            view.getViews());
-                    save(pv);
-                    metaDao.incrementRecords(PageView.class, pv.getPageId().getLanguage());
-                }
-            } catch (DaoException e) {
-                metaDao.incrementErrorsQuietly(PageView.class);
-                e.printStackTrace();
+    private void loadOneFile(DateTime tstamp, File file, PageViewParser parser, LanguageSet langs, AtomicInteger[] counters) throws IOException, DaoException {
+        PageViewParser.Result result = parser.parse(file);
+        counters[0].addAndGet(result.getNumMatches());
+        counters[1].addAndGet(result.getNumResolved());
+        Date hour = tstamp.toDate();
+        for (Language lang : langs) {
+            TIntIntMap views = result.getViews(lang);
+            for (int id : views.keys()) {
+                insert(lang.getId(), id, hour, views.get(id));
+            }
+            metaDao.incrementRecords(PageView.class, lang, views.size());
+        }
+    }
+
+    /**
+     * Returns a parser for the requested languages, building title indexes as necessary.
+     */
+    private synchronized PageViewParser getParser(LanguageSet langs) throws DaoException {
+        List<PageViewTitleIndex> indexes = new ArrayList<PageViewTitleIndex>();
+        for (Language lang : langs) {
+            if (!titleIndexes.containsKey(lang)) {
+                titleIndexes.put(lang, PageViewTitleIndex.build(pageDao, redirectDao, lang));
             }
+            indexes.add(titleIndexes.get(lang));
         }
+        return new PageViewParser(indexes);
     }
 
     public synchronized  Map<Language, SortedSet<DateTime>> getLoadedHours() throws DaoException {
@@ -422,6 +435,7 @@ public class PageViewSqlDao extends AbstractSqlDao<PageView> implements PageView
                                 config.getString("dataSource")),
                         getConfigurator().get(MetaInfoDao.class),
                         getConfigurator().get(LocalPageDao.class),
+                        getConfigurator().get(RedirectDao.class),
                         new File(config.getString("dir"))
                 );
                 String cachePath = getConfig().get().getString("dao.sqlCachePath");
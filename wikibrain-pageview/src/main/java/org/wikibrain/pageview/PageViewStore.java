@@ -0,0 +1,782 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.DateTime;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file-based store of hourly page views that answers range-sum queries without SQL.
+ *
+ * Each language has its own directory. Pages are assigned dense indexes in the
+ * order they are first seen. For every loaded day (UTC) the store keeps two files:
+ *
+ * <ul>
+ *     <li>A sparse hourly block (day.hours) with the non-zero hourly counts of each
+ *     page viewed that day, sorted by page index. An hour mask records which
+ *     hours of the day have been loaded.</li>
+ *     <li>A cumulative block (day.cum) with the total views of every page from the
+ *     first loaded day through the end of this day.</li>
+ * </ul>
+ *
+ * Both files are memory mapped for reads. The views for a page in an interval are
+ * the difference of two cumulative entries for the whole days, plus the hours of
+ * the partial days at either end, so any (pages, interval) sum costs O(pages).
+ *
+ * Cumulative blocks are dense arrays indexed by page rather than compressed blocks.
+ * After a few days nearly every page has a non-zero running total, so a sparse
+ * encoding would save little space and turn each lookup into a search.
+ *
+ * Cumulative totals are stored as ints and subtracted with wraparound, so sums are
+ * exact whenever the result fits in an int, which the PageViewDao api requires anyway.
+ *
+ * Writing the latest day only writes that day's cumulative block. Writing an earlier
+ * day marks the cumulative blocks from that day on as out of date, and they are
+ * rebuilt once, before the next range query, so loading days in any order costs
+ * time linear in the number of days.
+ *
+ * Queries may run concurrently with each other and with writes. Every query reads
+ * an immutable snapshot whose files were all mapped before they could be replaced,
+ * so a query that runs concurrently with a write sees the store either before or
+ * after the write.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewStore {
+    private static final Logger LOG = LoggerFactory.getLogger(PageViewStore.class);
+
+    public static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+    public static final int HOURS_PER_DAY = 24;
+
+    private static final String PAGES_FILE = "pages.bin";
+    private static final String HOURS_EXT = ".hours";
+    private static final String CUMULATIVE_EXT = ".cum";
+    private static final String DIRTY_FILE = "cumulative.dirty";
+
+    // Marks a snapshot whose cumulative blocks are all up to date.
+    private static final int CLEAN = Integer.MAX_VALUE;
+
+    private final File dir;
+    private final Map<Language, LangStore> stores = new HashMap<Language, LangStore>();
+
+    public PageViewStore(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * @return The languages that have at least one loaded hour.
+     */
+    public synchronized LanguageSet getLanguages() throws IOException {
+        List<Language> langs = new ArrayList<Language>();
+        File [] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory() && new File(f, PAGES_FILE).isFile()) {
+                    langs.add(Language.getByLangCode(f.getName()));
+                }
+            }
+        }
+        return new LanguageSet(langs);
+    }
+
+    /**
+     * Returns the number of views for a page between start and end, inclusive.
+     * Only hours that begin within the interval are counted, matching the sql dao.
+     */
+    public int getNumViews(Language lang, int pageId, DateTime start, DateTime end) throws IOException {
+        Snapshot snapshot = getStore(lang).getCleanSnapshot();
+        int index = snapshot.idToIndex.get(pageId);
+        if (index < 0) {
+            return 0;
+        }
+        return snapshot.prepare(start, end).sum(index);
+    }
+
+    /**
+     * Returns the number of views for each page between start and end, inclusive.
+     * @return An array parallel to pageIds.
+     */
+    public int[] getNumViews(Language lang, int[] pageIds, DateTime start, DateTime end) throws IOException {
+        Snapshot snapshot = getStore(lang).getCleanSnapshot();
+        Query query = snapshot.prepare(start, end);
+        int[] views = new int[pageIds.length];
+        for (int i = 0; i < pageIds.length; i++) {
+            int index = snapshot.idToIndex.get(pageIds[i]);
+            if (index >= 0) {
+                views[i] = query.sum(index);
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Returns the views for every page with non-zero views between start and end, inclusive.
+     */
+    public TIntIntMap getAllViews(Language lang, DateTime start, DateTime end) throws IOException {
+        Snapshot snapshot = getStore(lang).getCleanSnapshot();
+        int[] totals = new int[snapshot.indexToId.size()];
+        snapshot.prepare(start, end).sumAll(totals);
+        TIntIntMap views = new TIntIntHashMap();
+        for (int i = 0; i < totals.length; i++) {
+            if (totals[i] != 0) {
+                views.put(snapshot.indexToId.get(i), totals[i]);
+            }
+        }
+        return views;
+    }
+
+    /**
+     * @return The hourly views of a page on a particular day, indexed by hour of day.
+     */
+    public int[] getHourlyViews(Language lang, int pageId, int day) throws IOException {
+        Snapshot snapshot = getStore(lang).snapshot;
+        int[] views = new int[HOURS_PER_DAY];
+        int index = snapshot.idToIndex.get(pageId);
+        HourBlock block = snapshot.hours.get(day);
+        if (index >= 0 && block != null) {
+            block.addHours(index, 0, HOURS_PER_DAY - 1, views);
+        }
+        return views;
+    }
+
+    /**
+     * @return The page ids with views on a particular day.
+     */
+    public int[] getPagesViewed(Language lang, int day) throws IOException {
+        Snapshot snapshot = getStore(lang).snapshot;
+        HourBlock block = snapshot.hours.get(day);
+        if (block == null) {
+            return new int[0];
+        }
+        int[] ids = new int[block.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = snapshot.indexToId.get(block.getPageIndex(i));
+        }
+        return ids;
+    }
+
+    /**
+     * @return The days that have at least one loaded hour.
+     */
+    public SortedSet<Integer> getLoadedDays(Language lang) throws IOException {
+        return new TreeSet<Integer>(getStore(lang).snapshot.dayMasks.keySet());
+    }
+
+    public boolean isLoaded(Language lang, DateTime hour) throws IOException {
+        long h = toHour(hour);
+        Integer mask = getStore(lang).snapshot.dayMasks.get(dayOfHour(h));
+        return mask != null && (mask & (1 << hourOfDay(h))) != 0;
+    }
+
+    /**
+     * @return The start of every loaded hour.
+     */
+    public SortedSet<DateTime> getLoadedHours(Language lang) throws IOException {
+        SortedSet<DateTime> hours = new TreeSet<DateTime>();
+        for (Map.Entry<Integer, Integer> entry : getStore(lang).snapshot.dayMasks.entrySet()) {
+            for (int h = 0; h < HOURS_PER_DAY; h++) {
+                if ((entry.getValue() & (1 << h)) != 0) {
+                    hours.add(toDateTime((long) entry.getKey() * HOURS_PER_DAY + h));
+                }
+            }
+        }
+        return hours;
+    }
+
+    /**
+     * Writes the views for the loaded hours of a day.
+     *
+     * Hours of the day that were loaded previously but are not loaded in views are
+     * kept. Hours loaded in views replace any previous counts for those hours.
+     * If later days are already stored, their cumulative blocks are rebuilt before
+     * the next range query.
+     */
+    public synchronized void write(Language lang, DayViews views) throws IOException {
+        if (views.getLoadedMask() == 0) {
+            return;
+        }
+        getStore(lang).write(views);
+    }
+
+    /**
+     * Deletes all stored views.
+     */
+    public synchronized void clear() throws IOException {
+        stores.clear();
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+    }
+
+    private synchronized LangStore getStore(Language lang) throws IOException {
+        LangStore store = stores.get(lang);
+        if (store == null) {
+            store = new LangStore(new File(dir, lang.getLangCode()));
+            stores.put(lang, store);
+        }
+        return store;
+    }
+
+    /**
+     * @return The number of hours since the epoch at the start of the hour containing t.
+     */
+    public static long toHour(DateTime t) {
+        return floorDiv(t.getMillis(), MILLIS_PER_HOUR);
+    }
+
+    public static DateTime toDateTime(long hour) {
+        return new DateTime(hour * MILLIS_PER_HOUR);
+    }
+
+    /**
+     * @return The UTC day since the epoch containing the hour.
+     */
+    public static int dayOfHour(long hour) {
+        return (int) floorDiv(hour, HOURS_PER_DAY);
+    }
+
+    public static int hourOfDay(long hour) {
+        return (int) (hour - floorDiv(hour, HOURS_PER_DAY) * HOURS_PER_DAY);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (q * y != x && (x < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * Hourly views for the pages of a single UTC day, accumulated before a write.
+     * Adding views is threadsafe.
+     */
+    public static class DayViews {
+        private final int day;
+        private final TIntObjectMap<int[]> views = new TIntObjectHashMap<int[]>();
+        private int loadedMask = 0;
+
+        public DayViews(int day) {
+            this.day = day;
+        }
+
+        /**
+         * Adds views for the hour beginning at tstamp, which must fall on this day.
+         */
+        public void add(int pageId, DateTime tstamp, int numViews) {
+            add(pageId, getHourOfDay(tstamp), numViews);
+        }
+
+        public synchronized void add(int pageId, int hourOfDay, int numViews) {
+            int[] hourly = views.get(pageId);
+            if (hourly == null) {
+                hourly = new int[HOURS_PER_DAY];
+                views.put(pageId, hourly);
+            }
+            hourly[hourOfDay] += numViews;
+        }
+
+        /**
+         * Marks the hour beginning at tstamp as loaded, even if no page had views.
+         */
+        public void markLoaded(DateTime tstamp) {
+            markLoaded(getHourOfDay(tstamp));
+        }
+
+        public synchronized void markLoaded(int hourOfDay) {
+            loadedMask |= (1 << hourOfDay);
+        }
+
+        public int getDay() {
+            return day;
+        }
+
+        public synchronized int getLoadedMask() {
+            return loadedMask;
+        }
+
+        private int getHourOfDay(DateTime tstamp) {
+            long h = toHour(tstamp);
+            if (dayOfHour(h) != day) {
+                throw new IllegalArgumentException("hour " + tstamp + " is not on day " + day);
+            }
+            return hourOfDay(h);
+        }
+    }
+
+    /**
+     * An immutable view of the page index and the mapped blocks of the loaded days,
+     * replaced on each write. The blocks are mapped when the snapshot is created,
+     * so replacing a file never changes what an existing snapshot reads.
+     */
+    private static class Snapshot {
+        final TIntIntMap idToIndex;
+        final TIntArrayList indexToId;
+        final TreeMap<Integer, HourBlock> hours;
+        final TreeMap<Integer, IntBuffer> cumulative;
+        final TreeMap<Integer, Integer> dayMasks = new TreeMap<Integer, Integer>();
+
+        // The first day whose cumulative block is out of date, or CLEAN.
+        // Cumulative blocks are only present for the loaded days before it.
+        final int dirtyFrom;
+
+        Snapshot(TIntIntMap idToIndex, TIntArrayList indexToId, TreeMap<Integer, HourBlock> hours,
+                 TreeMap<Integer, IntBuffer> cumulative, int dirtyFrom) {
+            this.idToIndex = idToIndex;
+            this.indexToId = indexToId;
+            this.hours = hours;
+            this.cumulative = cumulative;
+            this.dirtyFrom = dirtyFrom;
+            for (Map.Entry<Integer, HourBlock> entry : hours.entrySet()) {
+                dayMasks.put(entry.getKey(), entry.getValue().getLoadedMask());
+            }
+        }
+
+        boolean isClean() {
+            return dirtyFrom == CLEAN;
+        }
+
+        /**
+         * Prepares a range query. The snapshot must be clean.
+         */
+        Query prepare(DateTime start, DateTime end) {
+            long firstHour = toHour(start);
+            if (toDateTime(firstHour).isBefore(start)) {
+                firstHour++;
+            }
+            long lastHour = toHour(end);
+            Query query = new Query();
+            if (lastHour < firstHour) {
+                return query;
+            }
+            int firstDay = dayOfHour(firstHour);
+            int lastDay = dayOfHour(lastHour);
+            int firstHourOfDay = hourOfDay(firstHour);
+            int lastHourOfDay = hourOfDay(lastHour);
+
+            if (firstDay == lastDay && (firstHourOfDay > 0 || lastHourOfDay < HOURS_PER_DAY - 1)) {
+                query.addPartial(hours.get(firstDay), firstHourOfDay, lastHourOfDay);
+                return query;
+            }
+
+            int fullFrom = firstDay;
+            if (firstHourOfDay > 0) {
+                query.addPartial(hours.get(firstDay), firstHourOfDay, HOURS_PER_DAY - 1);
+                fullFrom++;
+            }
+            int fullTo = lastDay;
+            if (lastHourOfDay < HOURS_PER_DAY - 1) {
+                query.addPartial(hours.get(lastDay), 0, lastHourOfDay);
+                fullTo--;
+            }
+            if (fullFrom <= fullTo) {
+                query.upper = getCumulativeThrough(fullTo);
+                query.lower = getCumulativeThrough(fullFrom - 1);
+            }
+            return query;
+        }
+
+        /**
+         * @return The cumulative block for the last loaded day on or before day, or null.
+         */
+        IntBuffer getCumulativeThrough(int day) {
+            Map.Entry<Integer, IntBuffer> entry = cumulative.floorEntry(day);
+            return entry == null ? null : entry.getValue();
+        }
+    }
+
+    /**
+     * The files for a single language.
+     */
+    private static class LangStore {
+        private final File dir;
+        private volatile Snapshot snapshot;
+
+        LangStore(File dir) throws IOException {
+            this.dir = dir;
+            TIntArrayList ids = new TIntArrayList();
+            File pages = new File(dir, PAGES_FILE);
+            if (pages.isFile()) {
+                IntBuffer buffer = map(pages);
+                for (int i = 0; i < buffer.limit(); i++) {
+                    ids.add(buffer.get(i));
+                }
+            }
+            TreeMap<Integer, HourBlock> hours = new TreeMap<Integer, HourBlock>();
+            File [] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(HOURS_EXT)) {
+                        int day = Integer.valueOf(f.getName().substring(0, f.getName().length() - HOURS_EXT.length()));
+                        hours.put(day, new HourBlock(map(f)));
+                    }
+                }
+            }
+
+            // Cumulative blocks are valid up to the first day marked dirty or missing a block.
+            int dirtyFrom = CLEAN;
+            File dirty = new File(dir, DIRTY_FILE);
+            if (dirty.isFile()) {
+                dirtyFrom = Integer.valueOf(FileUtils.readFileToString(dirty).trim());
+            }
+            TreeMap<Integer, IntBuffer> cumulative = new TreeMap<Integer, IntBuffer>();
+            for (int day : hours.headMap(dirtyFrom).keySet()) {
+                File f = new File(dir, day + CUMULATIVE_EXT);
+                if (!f.isFile()) {
+                    dirtyFrom = day;
+                    break;
+                }
+                cumulative.put(day, map(f));
+            }
+            this.snapshot = new Snapshot(makeIndex(ids), ids, hours, cumulative, dirtyFrom);
+        }
+
+        /**
+         * @return The current snapshot, after rebuilding any out of date cumulative blocks.
+         */
+        Snapshot getCleanSnapshot() throws IOException {
+            Snapshot current = snapshot;
+            return current.isClean() ? current : rebuildCumulative();
+        }
+
+        private synchronized Snapshot rebuildCumulative() throws IOException {
+            Snapshot old = snapshot;
+            if (old.isClean()) {
+                return old;
+            }
+            TreeMap<Integer, IntBuffer> cumulative = new TreeMap<Integer, IntBuffer>(old.cumulative);
+            int[] totals = new int[old.indexToId.size()];
+            IntBuffer prev = old.getCumulativeThrough(old.dirtyFrom - 1);
+            if (prev != null) {
+                prev.duplicate().get(totals, 0, prev.limit());
+            }
+            SortedMap<Integer, HourBlock> tail = old.hours.tailMap(old.dirtyFrom);
+            for (Map.Entry<Integer, HourBlock> entry : tail.entrySet()) {
+                cumulative.put(entry.getKey(), writeCumulative(entry.getKey(), entry.getValue(), totals));
+            }
+            FileUtils.deleteQuietly(new File(dir, DIRTY_FILE));
+            LOG.info("rebuilt cumulative page views for " + tail.size() + " days in " + dir);
+            snapshot = new Snapshot(old.idToIndex, old.indexToId, old.hours, cumulative, CLEAN);
+            return snapshot;
+        }
+
+        /**
+         * Callers must hold the PageViewStore lock.
+         */
+        synchronized void write(DayViews views) throws IOException {
+            dir.mkdirs();
+            Snapshot old = snapshot;
+            TIntArrayList indexToId = new TIntArrayList(old.indexToId.toArray());
+            TIntIntMap idToIndex = makeIndex(indexToId);
+            int day = views.getDay();
+            int newMask = views.getLoadedMask();
+
+            // Merge the new hours with any previously loaded hours of the day, keyed by page index.
+            TIntObjectMap<int[]> merged = new TIntObjectHashMap<int[]>();
+            int oldMask = 0;
+            HourBlock oldBlock = old.hours.get(day);
+            if (oldBlock != null) {
+                oldMask = oldBlock.getLoadedMask();
+                int keep = oldMask & ~newMask;
+                for (int i = 0; i < oldBlock.size(); i++) {
+                    int[] hourly = new int[HOURS_PER_DAY];
+                    oldBlock.addEntryHours(i, keep, hourly);
+                    merged.put(oldBlock.getPageIndex(i), hourly);
+                }
+            }
+            synchronized (views) {
+                for (int pageId : views.views.keys()) {
+                    int index = idToIndex.get(pageId);
+                    if (index < 0) {
+                        index = indexToId.size();
+                        indexToId.add(pageId);
+                        idToIndex.put(pageId, index);
+                    }
+                    int[] hourly = merged.get(index);
+                    if (hourly == null) {
+                        hourly = new int[HOURS_PER_DAY];
+                        merged.put(index, hourly);
+                    }
+                    int[] added = views.views.get(pageId);
+                    for (int h = 0; h < HOURS_PER_DAY; h++) {
+                        if ((newMask & (1 << h)) != 0) {
+                            hourly[h] = added[h];
+                        }
+                    }
+                }
+            }
+
+            // Record that the cumulative blocks from this day on are out of date before
+            // changing anything, so a crash part way through is repaired when reopened.
+            int dirtyFrom = Math.min(old.dirtyFrom, day);
+            if (dirtyFrom != old.dirtyFrom) {
+                FileUtils.write(new File(dir, DIRTY_FILE), Integer.toString(dirtyFrom));
+            }
+
+            writeInts(new File(dir, PAGES_FILE), indexToId.toArray());
+            File hoursFile = new File(dir, day + HOURS_EXT);
+            writeHours(hoursFile, oldMask | newMask, merged);
+            TreeMap<Integer, HourBlock> hours = new TreeMap<Integer, HourBlock>(old.hours);
+            HourBlock block = new HourBlock(map(hoursFile));
+            hours.put(day, block);
+
+            TreeMap<Integer, IntBuffer> cumulative;
+            if (dirtyFrom == day && day == hours.lastKey()) {
+                // The latest day only needs its own cumulative block.
+                cumulative = new TreeMap<Integer, IntBuffer>(old.cumulative);
+                int[] totals = new int[indexToId.size()];
+                IntBuffer prev = old.getCumulativeThrough(day - 1);
+                if (prev != null) {
+                    prev.duplicate().get(totals, 0, prev.limit());
+                }
+                cumulative.put(day, writeCumulative(day, block, totals));
+                FileUtils.deleteQuietly(new File(dir, DIRTY_FILE));
+                dirtyFrom = CLEAN;
+            } else {
+                cumulative = new TreeMap<Integer, IntBuffer>(old.cumulative.headMap(dirtyFrom));
+            }
+            snapshot = new Snapshot(idToIndex, indexToId, hours, cumulative, dirtyFrom);
+        }
+
+        /**
+         * Adds the views of a day to the running totals and writes them as the day's cumulative block.
+         * @return The mapped block.
+         */
+        private IntBuffer writeCumulative(int day, HourBlock block, int[] totals) throws IOException {
+            for (int i = 0; i < block.size(); i++) {
+                totals[block.getPageIndex(i)] += block.getEntryTotal(i);
+            }
+            File file = new File(dir, day + CUMULATIVE_EXT);
+            writeInts(file, totals);
+            return map(file);
+        }
+
+        private static TIntIntMap makeIndex(TIntArrayList ids) {
+            TIntIntMap index = new TIntIntHashMap(
+                    Math.max(10, ids.size() * 2),
+                    gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                    -1, -1);
+            for (int i = 0; i < ids.size(); i++) {
+                index.put(ids.get(i), i);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Sums views over whole days from cumulative blocks and over partial days from hourly blocks.
+     */
+    private static class Query {
+        IntBuffer upper;
+        IntBuffer lower;
+        final List<HourBlock> partialBlocks = new ArrayList<HourBlock>(2);
+        final TIntArrayList partialRanges = new TIntArrayList(4);
+
+        void addPartial(HourBlock block, int fromHour, int toHour) {
+            if (block != null) {
+                partialBlocks.add(block);
+                partialRanges.add(fromHour);
+                partialRanges.add(toHour);
+            }
+        }
+
+        int sum(int index) {
+            int total = get(upper, index) - get(lower, index);
+            for (int i = 0; i < partialBlocks.size(); i++) {
+                int entry = partialBlocks.get(i).find(index);
+                if (entry >= 0) {
+                    total += partialBlocks.get(i).getEntryViews(entry, partialRanges.get(2 * i), partialRanges.get(2 * i + 1));
+                }
+            }
+            return total;
+        }
+
+        void sumAll(int[] totals) {
+            if (upper != null) {
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] = get(upper, i) - get(lower, i);
+                }
+            }
+            for (int i = 0; i < partialBlocks.size(); i++) {
+                HourBlock block = partialBlocks.get(i);
+                for (int j = 0; j < block.size(); j++) {
+                    int index = block.getPageIndex(j);
+                    if (index < totals.length) {
+                        totals[index] += block.getEntryViews(j, partialRanges.get(2 * i), partialRanges.get(2 * i + 1));
+                    }
+                }
+            }
+        }
+
+        private static int get(IntBuffer buffer, int index) {
+            return (buffer == null || index >= buffer.limit()) ? 0 : buffer.get(index);
+        }
+    }
+
+    /**
+     * A memory mapped sparse block of hourly views for one day.
+     *
+     * The layout is: loaded hour mask, number of entries n, n sorted page indexes,
+     * n hour masks, n offsets into the counts, and then the non-zero counts of each
+     * entry in hour order.
+     */
+    private static class HourBlock {
+        private final IntBuffer buffer;
+        private final int n;
+
+        HourBlock(IntBuffer buffer) {
+            this.buffer = buffer;
+            this.n = buffer.get(1);
+        }
+
+        int getLoadedMask() {
+            return buffer.get(0);
+        }
+
+        int size() {
+            return n;
+        }
+
+        int getPageIndex(int entry) {
+            return buffer.get(2 + entry);
+        }
+
+        /**
+         * @return The entry for a page index, or -1 if the page has no views.
+         */
+        int find(int pageIndex) {
+            int lo = 0, hi = n - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int v = getPageIndex(mid);
+                if (v < pageIndex) {
+                    lo = mid + 1;
+                } else if (v > pageIndex) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        int getEntryViews(int entry, int fromHour, int toHour) {
+            int mask = buffer.get(2 + n + entry);
+            int offset = 2 + 3 * n + buffer.get(2 + 2 * n + entry);
+            int total = 0;
+            for (int h = 0; h < HOURS_PER_DAY && mask != 0; h++) {
+                if ((mask & 1) != 0) {
+                    if (h >= fromHour && h <= toHour) {
+                        total += buffer.get(offset);
+                    }
+                    offset++;
+                }
+                mask >>>= 1;
+            }
+            return total;
+        }
+
+        int getEntryTotal(int entry) {
+            return getEntryViews(entry, 0, HOURS_PER_DAY - 1);
+        }
+
+        /**
+         * Adds the counts of the hours in hourMask to hourly.
+         */
+        void addEntryHours(int entry, int hourMask, int[] hourly) {
+            int mask = buffer.get(2 + n + entry);
+            int offset = 2 + 3 * n + buffer.get(2 + 2 * n + entry);
+            for (int h = 0; h < HOURS_PER_DAY; h++) {
+                if ((mask & (1 << h)) != 0) {
+                    if ((hourMask & (1 << h)) != 0) {
+                        hourly[h] += buffer.get(offset);
+                    }
+                    offset++;
+                }
+            }
+        }
+
+        void addHours(int pageIndex, int fromHour, int toHour, int[] hourly) {
+            int entry = find(pageIndex);
+            if (entry >= 0) {
+                int rangeMask = ((1 << (toHour + 1)) - 1) & ~((1 << fromHour) - 1);
+                addEntryHours(entry, rangeMask, hourly);
+            }
+        }
+    }
+
+    private static void writeHours(File file, int loadedMask, TIntObjectMap<int[]> views) throws IOException {
+        int[] indexes = views.keys();
+        Arrays.sort(indexes);
+        TIntArrayList masks = new TIntArrayList(indexes.length);
+        TIntArrayList offsets = new TIntArrayList(indexes.length);
+        TIntArrayList counts = new TIntArrayList(indexes.length * 2);
+        TIntArrayList nonEmpty = new TIntArrayList(indexes.length);
+        for (int index : indexes) {
+            int[] hourly = views.get(index);
+            int mask = 0;
+            int offset = counts.size();
+            for (int h = 0; h < HOURS_PER_DAY; h++) {
+                if (hourly[h] != 0) {
+                    mask |= (1 << h);
+                    counts.add(hourly[h]);
+                }
+            }
+            if (mask != 0) {
+                nonEmpty.add(index);
+                masks.add(mask);
+                offsets.add(offset);
+            }
+        }
+        int n = nonEmpty.size();
+        int[] data = new int[2 + 3 * n + counts.size()];
+        data[0] = loadedMask;
+        data[1] = n;
+        nonEmpty.toArray(data, 0, 2, n);
+        masks.toArray(data, 0, 2 + n, n);
+        offsets.toArray(data, 0, 2 + 2 * n, n);
+        counts.toArray(data, 0, 2 + 3 * n, counts.size());
+        writeInts(file, data);
+    }
+
+    /**
+     * Writes ints to a file, replacing it atomically.
+     * Readers that mapped the previous file continue to see its contents.
+     */
+    private static void writeInts(File file, int[] values) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            for (int v : values) {
+                out.writeInt(v);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(tmp, file);
+        }
+    }
+
+    private static IntBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.wikibrain.pageview;
+
+import com.typesafe.config.Config;
+import gnu.trove.map.TIntIntMap;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.dao.RedirectDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A PageViewDao backed by a {@link PageViewStore} instead of a sql table.
+ *
+ * Range queries read memory mapped prefix sums, so they take time proportional
+ * to the number of pages requested regardless of the length of the interval.
+ *
+ * Views passed to save() are buffered by day and written when endLoad() is called.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewStoreDao implements PageViewDao {
+    private static final Logger LOG = LoggerFactory.getLogger(PageViewStoreDao.class);
+
+    private final PageViewStore store;
+    private final File downloadDir;
+    private final LocalPageDao pageDao;
+    private final RedirectDao redirectDao;
+    private final MetaInfoDao metaDao;
+    private final Map<Language, PageViewTitleIndex> titleIndexes = new HashMap<Language, PageViewTitleIndex>();
+
+    private final Map<Language, Map<Integer, PageViewStore.DayViews>> pending =
+            new HashMap<Language, Map<Integer, PageViewStore.DayViews>>();
+
+    public PageViewStoreDao(PageViewStore store, MetaInfoDao metaDao, LocalPageDao pageDao, RedirectDao redirectDao, File downloadDir) {
+        this.store = store;
+        this.metaDao = metaDao;
+        this.pageDao = pageDao;
+        this.redirectDao = redirectDao;
+        this.downloadDir = downloadDir;
+    }
+
+    public PageViewStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        synchronized (pending) {
+            pending.clear();
+        }
+        try {
+            store.clear();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+    }
+
+    @Override
+    public void save(PageView view) throws DaoException {
+        DateTime hour = new DateTime(view.getHour());
+        getPending(view.getPageId().getLanguage(), hour).add(view.getPageId().getId(), hour, view.getViews());
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        Map<Language, Map<Integer, PageViewStore.DayViews>> toWrite;
+        synchronized (pending) {
+            toWrite = new HashMap<Language, Map<Integer, PageViewStore.DayViews>>(pending);
+            pending.clear();
+        }
+        for (Language lang : toWrite.keySet()) {
+            for (PageViewStore.DayViews views : toWrite.get(lang).values()) {
+                try {
+                    store.write(lang, views);
+                } catch (IOException e) {
+                    throw new DaoException(e);
+                }
+            }
+        }
+    }
+
+    private PageViewStore.DayViews getPending(Language lang, DateTime hour) {
+        int day = PageViewStore.dayOfHour(PageViewStore.toHour(hour));
+        synchronized (pending) {
+            Map<Integer, PageViewStore.DayViews> days = pending.get(lang);
+            if (days == null) {
+                days = new TreeMap<Integer, PageViewStore.DayViews>();
+                pending.put(lang, days);
+            }
+            PageViewStore.DayViews views = days.get(day);
+            if (views == null) {
+                views = new PageViewStore.DayViews(day);
+                days.put(day, views);
+            }
+            views.markLoaded(hour);
+            return views;
+        }
+    }
+
+    @Override
+    public TIntIntMap getAllViews(Language language, DateTime startDate, DateTime endDate) throws DaoException {
+        try {
+            return store.getAllViews(language, startDate, endDate);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(pageId, startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, endDate);
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        try {
+            return store.getNumViews(pageId.getLanguage(), pageId.getId(), startDate, endDate);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, DateTime startTime, DateTime endTime) throws ConfigurationException, DaoException {
+        ArrayList<DateTime[]> dates = new ArrayList<DateTime[]>();
+        dates.add(new DateTime[] { startTime, endTime });
+        return getNumViews(lang, ids, dates);
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, ArrayList<DateTime[]> dates) throws ConfigurationException, DaoException {
+        List<Integer> idList = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            idList.add(id);
+        }
+        int[] pageIds = new int[idList.size()];
+        for (int i = 0; i < pageIds.length; i++) {
+            pageIds[i] = idList.get(i);
+        }
+        int[] totals = new int[pageIds.length];
+        try {
+            for (DateTime[] date : dates) {
+                int[] views = store.getNumViews(lang, pageIds, date[0], date[1]);
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += views[i];
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        for (int i = 0; i < pageIds.length; i++) {
+            result.put(pageIds[i], totals[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hourly pageviews that meet the filter criteria.
+     *
+     * @param daoFilter must be a PageViewDaoFilter or DaoException will be thrown
+     * @return
+     * @throws DaoException
+     */
+    @Override
+    public Iterable<PageView> get(DaoFilter daoFilter) throws DaoException {
+        if (!(daoFilter instanceof PageViewDaoFilter)) {
+            throw new DaoException("Need to input PageViewDaoFilter for PageViewStoreDao get method");
+        }
+        PageViewDaoFilter filter = (PageViewDaoFilter) daoFilter;
+        int limit = filter.getLimitOrInfinity();
+        List<PageView> result = new ArrayList<PageView>();
+        try {
+            for (Language lang : store.getLanguages()) {
+                if (filter.getLangIds() != null && !filter.getLangIds().contains(lang.getId())) {
+                    continue;
+                }
+                for (int day : store.getLoadedDays(lang)) {
+                    int[] pageIds;
+                    if (filter.getPageIds() == null) {
+                        pageIds = store.getPagesViewed(lang, day);
+                    } else {
+                        pageIds = new int[filter.getPageIds().size()];
+                        int i = 0;
+                        for (Integer id : filter.getPageIds()) {
+                            pageIds[i++] = id;
+                        }
+                    }
+                    for (int pageId : pageIds) {
+                        int[] hourly = store.getHourlyViews(lang, pageId, day);
+                        for (int h = 0; h < hourly.length; h++) {
+                            if (hourly[h] == 0) {
+                                continue;
+                            }
+                            DateTime tstamp = PageViewStore.toDateTime((long) day * PageViewStore.HOURS_PER_DAY + h);
+                            if (matches(filter, tstamp, hourly[h])) {
+                                result.add(new PageView(new LocalId(lang, pageId), tstamp.toDate(), hourly[h]));
+                                if (result.size() >= limit) {
+                                    return result;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        return result;
+    }
+
+    private static boolean matches(PageViewDaoFilter filter, DateTime tstamp, int views) {
+        return (filter.getMinNumViews() == null || views >= filter.getMinNumViews())
+            && (filter.getMaxNumViews() == null || views <= filter.getMaxNumViews())
+            && (filter.getStartDate() == null || !tstamp.isBefore(filter.getStartDate()))
+            && (filter.getEndDate() == null || !tstamp.isAfter(filter.getEndDate()));
+    }
+
+    /**
+     * As with the sql dao, it is not clear what this should count.
+     */
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        try {
+            return store.getLanguages();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void ensureLoaded(DateTime start, DateTime end, LanguageSet langs) throws DaoException {
+        ensureLoaded(Arrays.asList(new Interval(start, end)), langs);
+    }
+
+    @Override
+    public synchronized void ensureLoaded(List<Interval> intervals, final LanguageSet langs) throws DaoException {
+        SortedSet<DateTime> needed = new TreeSet<DateTime>();
+        try {
+            for (Interval i : intervals) {
+                for (DateTime tstamp : PageViewUtils.timestampsInInterval(i.getStart(), i.getEnd())) {
+                    for (Language l : langs) {
+                        if (!store.isLoaded(l, tstamp)) {
+                            needed.add(tstamp);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+
+        if (needed.isEmpty()) {
+            LOG.info("All requested page views are loaded.");
+            return;
+        }
+
+        LOG.info(String.format("Loading pageviews for %d timestamps between %s and %s",
+                needed.size(), needed.first().toString(), needed.last().toString()));
+
+        final TreeMap<DateTime, File> toLoad;
+        try {
+            toLoad = new PageViewDownloader(downloadDir).download(needed);
+        } catch (WikiBrainException e) {
+            throw new DaoException(e);
+        }
+
+        // Files are aggregated a day at a time, so each day block and its
+        // cumulative sums are written once per call.
+        TreeMap<Integer, List<DateTime>> byDay = new TreeMap<Integer, List<DateTime>>();
+        for (DateTime tstamp : toLoad.keySet()) {
+            int day = PageViewStore.dayOfHour(PageViewStore.toHour(tstamp));
+            if (!byDay.containsKey(day)) {
+                byDay.put(day, new ArrayList<DateTime>());
+            }
+            byDay.get(day).add(tstamp);
+        }
+
+        final PageViewParser parser = getParser(langs);
+        final AtomicInteger[] counters = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
+        for (int day : byDay.keySet()) {
+            final Map<Language, PageViewStore.DayViews> views = new HashMap<Language, PageViewStore.DayViews>();
+            for (Language lang : langs) {
+                views.put(lang, new PageViewStore.DayViews(day));
+            }
+            ParallelForEach.loop(byDay.get(day), new Procedure<DateTime>() {
+                @Override
+                public void call(DateTime tstamp) throws Exception {
+                    LOG.info("loading pageview file " + toLoad.get(tstamp));
+                    loadOneFile(tstamp, toLoad.get(tstamp), parser, langs, views, counters);
+                    LOG.info("finished pageview file " + toLoad.get(tstamp));
+                }
+            });
+            for (Language lang : langs) {
+                try {
+                    store.write(lang, views.get(lang));
+                } catch (IOException e) {
+                    throw new DaoException(e);
+                }
+            }
+        }
+
+        LOG.info(String.format("Found %d pageviews for langs %s and resolved %d of them.",
+                counters[0].get(), langs, counters[1].get()));
+    }
+
+    private void loadOneFile(DateTime tstamp, File file, PageViewParser parser, LanguageSet langs, Map<Language, PageViewStore.DayViews> views, AtomicInteger[] counters) throws IOException, DaoException {
+        PageViewParser.Result result = parser.parse(file);
+        counters[0].addAndGet(result.getNumMatches());
+        counters[1].addAndGet(result.getNumResolved());
+        for (Language lang : langs) {
+            PageViewStore.DayViews dayViews = views.get(lang);
+            dayViews.markLoaded(tstamp);
+            TIntIntMap pageViews = result.getViews(lang);
+            for (int id : pageViews.keys()) {
+                dayViews.add(id, tstamp, pageViews.get(id));
+            }
+            metaDao.incrementRecords(PageView.class, lang, pageViews.size());
+        }
+    }
+
+    /**
+     * Returns a parser for the requested languages, building title indexes as necessary.
+     */
+    private synchronized PageViewParser getParser(LanguageSet langs) throws DaoException {
+        List<PageViewTitleIndex> indexes = new ArrayList<PageViewTitleIndex>();
+        for (Language lang : langs) {
+            if (!titleIndexes.containsKey(lang)) {
+                titleIndexes.put(lang, PageViewTitleIndex.build(pageDao, redirectDao, lang));
+            }
+            indexes.add(titleIndexes.get(lang));
+        }
+        return new PageViewParser(indexes);
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PageViewDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return PageViewDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.pageView";
+        }
+
+        @Override
+        public PageViewDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("store")) {
+                return null;
+            }
+            return new PageViewStoreDao(
+                    new PageViewStore(new File(config.getString("storeDir"))),
+                    getConfigurator().get(MetaInfoDao.class),
+                    getConfigurator().get(LocalPageDao.class),
+                    getConfigurator().get(RedirectDao.class),
+                    new File(config.getString("dir"))
+            );
+        }
+    }
+}
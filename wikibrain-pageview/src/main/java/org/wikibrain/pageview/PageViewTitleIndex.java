@@ -0,0 +1,145 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.RedirectDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.MurmurHash;
+
+import java.io.UnsupportedEncodingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps titles as they appear in pageview dumps to local page ids for one language.
+ *
+ * Titles are keyed by a 64 bit hash of their UTF-8 bytes with spaces replaced by
+ * underscores, which is how most titles appear in the dumps. This lets the parser
+ * look up a title without creating a String or a Title. Redirects map to their
+ * destination, like LocalPageDao.getIdByTitle.
+ *
+ * Titles that are not found and might not be canonical (for example, lowercase
+ * first letters) are canonicalized and looked up again.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewTitleIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(PageViewTitleIndex.class);
+
+    private final Language language;
+    private final LanguageInfo info;
+    private final TLongIntHashMap ids;
+
+    public PageViewTitleIndex(Language language, int capacity) {
+        this.language = language;
+        this.info = LanguageInfo.getByLanguage(language);
+        this.ids = new TLongIntHashMap(
+                Math.max(capacity, Constants.DEFAULT_CAPACITY),
+                Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+    }
+
+    /**
+     * Builds the index for all pages and redirects in a language.
+     * Redirect destinations are read in a single pass over the redirect table.
+     */
+    public static PageViewTitleIndex build(LocalPageDao pageDao, RedirectDao redirectDao, Language language) throws DaoException {
+        LOG.info("building pageview title index for " + language);
+        PageViewTitleIndex index = new PageViewTitleIndex(
+                language, pageDao.getCount(new DaoFilter().setLanguages(language)));
+        for (LocalPage page : pageDao.get(new DaoFilter().setLanguages(language).setRedirect(false))) {
+            if (page != null) {
+                index.put(page.getTitle().getCanonicalTitle(), page.getLocalId());
+            }
+        }
+        int redirects = 0;
+        TIntIntMap destinations = redirectDao.getAllRedirectIdsToDestIds(language);
+        for (LocalPage page : pageDao.get(new DaoFilter().setLanguages(language).setRedirect(true))) {
+            if (page != null && destinations.containsKey(page.getLocalId())) {
+                index.put(page.getTitle().getCanonicalTitle(), destinations.get(page.getLocalId()));
+                redirects++;
+            }
+        }
+        LOG.info("built pageview title index for " + language + " with " + index.size() +
+                " titles, including " + redirects + " redirects");
+        return index;
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public void put(String canonicalTitle, int id) {
+        ids.put(hash(canonicalTitle), id);
+    }
+
+    /**
+     * @return The page id for a title, or -1 if it is not found.
+     */
+    public int getId(String title) {
+        int id = ids.get(hash(title));
+        if (id < 0) {
+            id = ids.get(hash(Title.canonicalize(title, info)));
+        }
+        return id;
+    }
+
+    /**
+     * Looks up a decoded title in the first length bytes of title.
+     * Spaces must already be replaced by underscores.
+     *
+     * @return The page id for the title, or -1 if it is not found.
+     */
+    public int getId(byte[] title, int length) {
+        int id = ids.get(MurmurHash.hash64(title, length));
+        if (id < 0 && mightNotBeCanonical(title, length)) {
+            try {
+                id = getId(new String(title, 0, length, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);  // should not happen
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns false if canonicalizing the title cannot change it, which is true of
+     * ascii titles with an uppercase first letter and no namespace or fragment.
+     */
+    private static boolean mightNotBeCanonical(byte[] title, int length) {
+        if (length == 0) {
+            return false;
+        }
+        if ((title[0] >= 'a' && title[0] <= 'z') || title[0] == '_' || title[length - 1] == '_') {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = title[i];
+            if (b < 0 || b == ':' || b == '#') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hash(String title) {
+        try {
+            byte[] bytes = title.replace(' ', '_').getBytes("UTF-8");
+            return MurmurHash.hash64(bytes, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // should not happen
+        }
+    }
+}
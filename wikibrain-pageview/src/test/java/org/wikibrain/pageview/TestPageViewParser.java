@@ -0,0 +1,80 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageViewParser {
+    private static final Language EN = Language.getByLangCode("en");
+    private static final Language DE = Language.getByLangCode("de");
+
+    @Test
+    public void testParse() throws IOException {
+        PageViewTitleIndex en = new PageViewTitleIndex(EN, 10);
+        en.put("Barack Obama", 1);
+        en.put("Obama", 1);                 // a redirect
+        en.put("C++", 2);
+        en.put("Zürich", 3);
+        en.put("Category:Living people", 4);
+        PageViewTitleIndex de = new PageViewTitleIndex(DE, 10);
+        de.put("Zürich", 30);
+
+        String dump =
+                "en Barack_Obama 10 1000\n" +
+                "en Obama 5 200\n" +
+                "en.b Barack_Obama 100 1000\n" +
+                "fr Barack_Obama 100 1000\n" +
+                "en C%2B%2B 7 100\n" +
+                "en Z%C3%BCrich 2 100\r\n" +
+                "en barack_Obama 1 100\n" +
+                "en Category:Living_people 4 100\n" +
+                "en Unknown_page 3 100\n" +
+                "en Bad_count x 100\n" +
+                "de Z%c3%bcrich 9 100";     // no trailing newline
+
+        PageViewParser parser = new PageViewParser(Arrays.asList(en, de));
+        PageViewParser.Result result = parser.parse(new ByteArrayInputStream(dump.getBytes("UTF-8")));
+
+        assertEquals(11, result.getNumLines());
+        assertEquals(9, result.getNumMatches());
+        assertEquals(7, result.getNumResolved());
+        assertEquals(1, result.getNumErrors());
+
+        TIntIntMap enViews = result.getViews(EN);
+        assertEquals(4, enViews.size());
+        assertEquals(16, enViews.get(1));
+        assertEquals(7, enViews.get(2));
+        assertEquals(2, enViews.get(3));
+        assertEquals(4, enViews.get(4));
+
+        TIntIntMap deViews = result.getViews(DE);
+        assertEquals(1, deViews.size());
+        assertEquals(9, deViews.get(30));
+    }
+
+    @Test
+    public void testLongLines() throws IOException {
+        PageViewTitleIndex en = new PageViewTitleIndex(EN, 10);
+        StringBuilder title = new StringBuilder("A");
+        for (int i = 0; i < 100000; i++) {
+            title.append('a');
+        }
+        en.put(title.toString(), 5);
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            dump.append("en ").append(title).append(" 2 10\n");
+        }
+        PageViewParser parser = new PageViewParser(Arrays.asList(en));
+        PageViewParser.Result result = parser.parse(new ByteArrayInputStream(dump.toString().getBytes("UTF-8")));
+        assertEquals(6, result.getViews(EN).get(5));
+    }
+}
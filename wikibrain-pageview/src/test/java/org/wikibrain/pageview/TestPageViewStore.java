@@ -0,0 +1,170 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.map.TIntIntMap;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageViewStore {
+    private static final Language EN = Language.getByLangCode("en");
+    private static final DateTime START = new DateTime(2014, 3, 1, 0, 0, DateTimeZone.UTC);
+
+    @Test
+    public void testRangeSums() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("pageview-store");
+        try {
+            int numDays = 6;
+            int[] pages = { 3, 17, 42, 1000 };
+            int[][] views = new int[pages.length][numDays * 24];
+            Random random = new Random(1);
+            PageViewStore store = new PageViewStore(dir);
+
+            // Write the days out of order so cumulative blocks must be rebuilt.
+            int[] order = { 2, 0, 1, 5, 3, 4 };
+            for (int d : order) {
+                int day = PageViewStore.dayOfHour(PageViewStore.toHour(START)) + d;
+                PageViewStore.DayViews dayViews = new PageViewStore.DayViews(day);
+                for (int h = 0; h < 24; h++) {
+                    dayViews.markLoaded(h);
+                    for (int p = 0; p < pages.length; p++) {
+                        if (random.nextDouble() < 0.6) {
+                            int n = random.nextInt(100);
+                            views[p][d * 24 + h] = n;
+                            dayViews.add(pages[p], h, n);
+                        }
+                    }
+                }
+                store.write(EN, dayViews);
+            }
+
+            // Reopen to read from disk.
+            store = new PageViewStore(dir);
+            assertEquals(numDays * 24, store.getLoadedHours(EN).size());
+            assertTrue(store.isLoaded(EN, START.plusHours(5)));
+            assertFalse(store.isLoaded(EN, START.minusHours(1)));
+
+            for (int i = 0; i < 200; i++) {
+                int h1 = random.nextInt(numDays * 24);
+                int h2 = h1 + random.nextInt(numDays * 24 - h1);
+                DateTime start = START.plusHours(h1);
+                DateTime end = START.plusHours(h2);
+                int[] ids = new int[] { pages[0], pages[1], pages[2], pages[3], 99 };
+                int[] batch = store.getNumViews(EN, ids, start, end);
+                TIntIntMap all = store.getAllViews(EN, start, end);
+                for (int p = 0; p < pages.length; p++) {
+                    int expected = 0;
+                    for (int h = h1; h <= h2; h++) {
+                        expected += views[p][h];
+                    }
+                    assertEquals(expected, store.getNumViews(EN, pages[p], start, end));
+                    assertEquals(expected, batch[p]);
+                    assertEquals(expected, all.containsKey(pages[p]) ? all.get(pages[p]) : 0);
+                }
+                assertEquals(0, batch[4]);
+            }
+
+            // Intervals that do not begin on an hour only count hours that start inside them.
+            assertEquals(views[0][1] + views[0][2],
+                    store.getNumViews(EN, pages[0], START.plusMinutes(30), START.plusMinutes(150)));
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testReplaceHours() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("pageview-store");
+        try {
+            PageViewStore store = new PageViewStore(dir);
+            int day = PageViewStore.dayOfHour(PageViewStore.toHour(START));
+
+            PageViewStore.DayViews first = new PageViewStore.DayViews(day);
+            first.markLoaded(0);
+            first.markLoaded(1);
+            first.add(7, 0, 10);
+            first.add(7, 1, 20);
+            store.write(EN, first);
+
+            PageViewStore.DayViews next = new PageViewStore.DayViews(day + 1);
+            next.markLoaded(0);
+            next.add(7, 0, 5);
+            store.write(EN, next);
+
+            // Reload hour 1 and add hour 2; hour 0 is kept.
+            PageViewStore.DayViews second = new PageViewStore.DayViews(day);
+            second.markLoaded(1);
+            second.markLoaded(2);
+            second.add(7, 1, 1);
+            second.add(7, 2, 2);
+            store.write(EN, second);
+
+            assertArrayEquals(new int[] { 10, 1, 2 }, java.util.Arrays.copyOf(store.getHourlyViews(EN, 7, day), 3));
+            assertEquals(18, store.getNumViews(EN, 7, START, START.plusDays(2)));
+            assertEquals(4, store.getLoadedHours(EN).size());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testInterleavedWritesAndQueries() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("pageview-store");
+        try {
+            int numDays = 10;
+            int first = PageViewStore.dayOfHour(PageViewStore.toHour(START));
+            int[] totals = new int[numDays];
+            PageViewStore store = new PageViewStore(dir);
+
+            // Write the days newest first, querying after each write so that stale
+            // cumulative blocks would be visible.
+            for (int d = numDays - 1; d >= 0; d--) {
+                PageViewStore.DayViews dayViews = new PageViewStore.DayViews(first + d);
+                for (int h = 0; h < 24; h++) {
+                    dayViews.markLoaded(h);
+                    dayViews.add(5, h, d + 1);
+                }
+                totals[d] = 24 * (d + 1);
+                store.write(EN, dayViews);
+                for (int from = 0; from < numDays; from++) {
+                    int expected = 0;
+                    for (int to = from; to < numDays; to++) {
+                        expected += totals[to];
+                        DateTime end = START.plusDays(to + 1).minusHours(1);
+                        assertEquals(expected, store.getNumViews(EN, 5, START.plusDays(from), end));
+                    }
+                }
+            }
+
+            // Replace an hour of a middle day without querying, then reopen.
+            PageViewStore.DayViews dayViews = new PageViewStore.DayViews(first + 4);
+            dayViews.markLoaded(0);
+            dayViews.add(5, 0, 100);
+            store.write(EN, dayViews);
+            assertTrue(new File(dir, "en/cumulative.dirty").isFile());
+
+            store = new PageViewStore(dir);
+            totals[4] = 100 + 23 * 5;
+            int expected = 0;
+            for (int d = 0; d < numDays; d++) {
+                expected += totals[d];
+            }
+            assertEquals(expected, store.getNumViews(EN, 5, START, START.plusDays(numDays)));
+            assertEquals(totals[4], store.getNumViews(EN, 5, START.plusDays(4), START.plusDays(5).minusHours(1)));
+            assertFalse(new File(dir, "en/cumulative.dirty").isFile());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
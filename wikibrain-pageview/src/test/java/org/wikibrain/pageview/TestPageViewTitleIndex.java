@@ -0,0 +1,67 @@
+package org.wikibrain.pageview;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.RedirectDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageViewTitleIndex {
+    private static final Language LANG = Language.SIMPLE;
+
+    @Test
+    public void testBuild() throws IOException, ConfigurationException, DaoException {
+        File baseDir = WpIOUtils.createTempDirectory("pageview-titles");
+        try {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("baseDir", baseDir.getAbsolutePath());
+            Configurator conf = new Configurator(new Configuration(params));
+            LocalPageDao pageDao = conf.get(LocalPageDao.class);
+            RedirectDao redirectDao = conf.get(RedirectDao.class);
+            pageDao.beginLoad();
+            redirectDao.beginLoad();
+            pageDao.save(page(1, "Barack Obama", false));
+            pageDao.save(page(2, "Zürich", false));
+            pageDao.save(page(3, "Obama", true));
+            pageDao.save(page(4, "President Obama", true));
+            pageDao.save(page(5, "Broken redirect", true));
+            redirectDao.save(LANG, 3, 1);
+            redirectDao.save(LANG, 4, 1);
+            pageDao.endLoad();
+            redirectDao.endLoad();
+
+            PageViewTitleIndex index = PageViewTitleIndex.build(pageDao, redirectDao, LANG);
+            assertEquals(4, index.size());
+            assertEquals(1, index.getId("Barack_Obama"));
+            assertEquals(2, index.getId("Zürich"));
+            assertEquals(1, index.getId("Obama"));
+            assertEquals(1, index.getId("President_Obama"));
+            assertEquals(1, index.getId("president Obama"));
+            assertEquals(-1, index.getId("Broken_redirect"));
+        } finally {
+            FileUtils.deleteQuietly(baseDir);
+        }
+    }
+
+    private static LocalPage page(int id, String title, boolean redirect) {
+        return new LocalPage(LANG, id, new Title(title, LANG), NameSpace.ARTICLE, redirect, false);
+    }
+}
@@ -0,0 +1,86 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.dao.SpatialContainmentDao;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A SpatialContainmentDao that answers queries from the STR-trees of an EmbeddedSpatialDB.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialContainmentDao implements SpatialContainmentDao {
+
+    private final EmbeddedSpatialDB db;
+
+    public EmbeddedSpatialContainmentDao(EmbeddedSpatialDB db) {
+        this.db = db;
+    }
+
+    @Override
+    public TIntSet getContainedItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, ContainmentOperationType opType) throws DaoException {
+        Geometry g = db.getGeometry(itemId, layerName, refSysName);
+        if (g == null) {
+            throw new DaoException(String.format("Could not find item %d in layer %s (%s)", itemId, layerName, refSysName));
+        }
+        return getContainedItemIds(g, refSysName, subLayers, opType);
+    }
+
+    @Override
+    public TIntSet getContainedItemIds(Geometry g, String refSysName, Set<String> subLayers, ContainmentOperationType opType) throws DaoException {
+        if (subLayers.size() == 0) throw new DaoException("Cannot get containment without any layers");
+        if (opType != ContainmentOperationType.CONTAINMENT && opType != ContainmentOperationType.INTERSECTION) {
+            throw new DaoException("Illegal containment operation type (not supported): " + opType);
+        }
+
+        PreparedGeometry container = PreparedGeometryFactory.prepare(g);
+        TIntSet rVal = new TIntHashSet();
+        for (String subLayer : subLayers) {
+            Map<Integer, Geometry> candidates = db.getCandidates(subLayer, refSysName, g.getEnvelopeInternal());
+            for (Map.Entry<Integer, Geometry> entry : candidates.entrySet()) {
+                boolean matches = (opType == ContainmentOperationType.CONTAINMENT)
+                        ? container.contains(entry.getValue())
+                        : container.intersects(entry.getValue());
+                if (matches) {
+                    rVal.add(entry.getKey());
+                }
+            }
+        }
+        return rVal;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialContainmentDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialContainmentDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialContainment";
+        }
+
+        @Override
+        public EmbeddedSpatialContainmentDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialContainmentDao(getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")));
+        }
+    }
+}
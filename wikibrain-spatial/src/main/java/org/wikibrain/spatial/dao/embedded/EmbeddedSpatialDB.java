@@ -0,0 +1,550 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file-based spatial store that needs no database server.
+ *
+ * Each (reference system, layer) pair is stored as two files in dir/refSys:
+ * layer.wkb holds the WKB encoding of every geometry and layer.idx holds the item ids
+ * in sorted order along with the offset, length and envelope of each geometry.
+ * Both files are memory-mapped, so looking up a geometry is a binary search followed
+ * by a WKB decode. Geometries never straddle a 1GB boundary in the data file, which
+ * lets it be mapped in segments.
+ *
+ * Spatial queries use an STR-tree per layer that is built from the stored envelopes
+ * the first time the layer is queried.
+ *
+ * Writes are buffered in temporary files for each layer and become visible when
+ * endSaveGeometries() is called. Saving a geometry for an item that already has
+ * one in the layer replaces it.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialDB {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedSpatialDB.class);
+
+    private static final int MAGIC = 0x57424731;   // "WBG1"
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private static final String INDEX_EXT = ".idx";
+    private static final String DATA_EXT = ".wkb";
+
+    private final File dir;
+
+    /**
+     * Reference system -> layer -> layer contents.
+     */
+    private final Map<String, Map<String, Layer>> layers = new ConcurrentHashMap<String, Map<String, Layer>>();
+
+    /**
+     * Layers that are being written, keyed by refSys and layer name.
+     */
+    private final Map<String, LayerWriter> writers = new HashMap<String, LayerWriter>();
+
+    public EmbeddedSpatialDB(File dir) throws DaoException {
+        this.dir = dir;
+        dir.mkdirs();
+        File [] refSysDirs = dir.listFiles();
+        if (refSysDirs == null) {
+            throw new DaoException("Could not list spatial directory " + dir);
+        }
+        for (File refSysDir : refSysDirs) {
+            File [] files = refSysDir.listFiles();
+            if (!refSysDir.isDirectory() || files == null) {
+                continue;
+            }
+            String refSys = decode(refSysDir.getName());
+            for (File f : files) {
+                if (f.getName().endsWith(INDEX_EXT)) {
+                    String layer = decode(f.getName().substring(0, f.getName().length() - INDEX_EXT.length()));
+                    getOrCreateLayers(refSys).put(layer, openLayer(refSys, layer));
+                }
+            }
+        }
+    }
+
+    public Geometry getGeometry(int itemId, String layerName, String refSysName) throws DaoException {
+        Layer layer = getLayer(layerName, refSysName);
+        if (layer == null) {
+            return null;
+        }
+        int i = layer.find(itemId);
+        return (i < 0) ? null : layer.getGeometry(i);
+    }
+
+    public SpatialContainerMetadata getLayerMetadata(String layerName, String refSysName) throws DaoException {
+        Layer layer = getLayer(layerName, refSysName);
+        if (layer == null || layer.shapeType == null) {
+            return new SpatialContainerMetadata(layerName, refSysName, 0, SpatialContainerMetadata.ShapeType.OTHER);
+        }
+        return new SpatialContainerMetadata(layerName, refSysName, layer.size(), layer.shapeType);
+    }
+
+    /**
+     * Gets all the layers in a given reference system
+     * @param refSysName
+     * @return empty set if no layers or refSys does not exist, otherwise a set with all the layers in the input refsys
+     */
+    public Set<String> getLayersInReferenceSystem(String refSysName) {
+        Map<String, Layer> m = layers.get(refSysName);
+        return (m == null) ? new HashSet<String>() : new HashSet<String>(m.keySet());
+    }
+
+    /**
+     * Gets all loaded reference systems
+     * @return
+     */
+    public Set<String> getAllReferenceSystems() {
+        Set<String> result = new HashSet<String>();
+        for (String refSys : layers.keySet()) {
+            if (!layers.get(refSys).isEmpty()) {
+                result.add(refSys);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return null if the layer does not exist.
+     */
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, String refSysName) throws DaoException {
+        Layer layer = getLayer(layerName, refSysName);
+        if (layer == null || layer.size() == 0) {
+            return null;
+        }
+        Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+        for (int i = 0; i < layer.size(); i++) {
+            geometries.put(layer.getItemId(i), layer.getGeometry(i));
+        }
+        return geometries;
+    }
+
+    public Map<Integer, Geometry> getBulkGeometriesInLayer(List<Integer> idList, String layerName, String refSysName) throws DaoException {
+        Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+        Layer layer = getLayer(layerName, refSysName);
+        if (layer != null) {
+            for (Integer id : idList) {
+                int i = layer.find(id);
+                if (i >= 0) {
+                    geometries.put(id, layer.getGeometry(i));
+                }
+            }
+        }
+        return geometries;
+    }
+
+    /**
+     * Returns the geometries in a layer whose envelopes intersect the query envelope.
+     * Callers must apply any exact spatial predicate themselves.
+     *
+     * @return A map from item id to geometry. Empty if the layer does not exist.
+     */
+    public Map<Integer, Geometry> getCandidates(String layerName, String refSysName, Envelope envelope) throws DaoException {
+        Map<Integer, Geometry> candidates = new HashMap<Integer, Geometry>();
+        Layer layer = getLayer(layerName, refSysName);
+        if (layer != null) {
+            for (Integer i : (List<Integer>) layer.getTree().query(envelope)) {
+                candidates.put(layer.getItemId(i), layer.getGeometry(i));
+            }
+        }
+        return candidates;
+    }
+
+    public synchronized void removeLayer(String refSysName, String layerName) throws DaoException {
+        Map<String, Layer> m = layers.get(refSysName);
+        if (m != null) {
+            m.remove(layerName);
+        }
+        LayerWriter writer = writers.remove(refSysName + "\t" + layerName);
+        if (writer != null) {
+            writer.abort();
+        }
+        FileUtils.deleteQuietly(getFile(refSysName, layerName, INDEX_EXT));
+        FileUtils.deleteQuietly(getFile(refSysName, layerName, DATA_EXT));
+    }
+
+    public void saveGeometry(int itemId, String layerName, String refSysName, Geometry g) throws DaoException {
+        LayerWriter writer;
+        synchronized (this) {
+            String key = refSysName + "\t" + layerName;
+            writer = writers.get(key);
+            if (writer == null) {
+                writer = new LayerWriter(refSysName, layerName);
+                writers.put(key, writer);
+            }
+        }
+        writer.add(itemId, g);
+    }
+
+    /**
+     * Writes all layers saved since the last flush and makes them visible to readers.
+     */
+    public synchronized void flush() throws DaoException {
+        for (LayerWriter writer : writers.values()) {
+            writer.finish();
+            getOrCreateLayers(writer.refSys).put(writer.layer, openLayer(writer.refSys, writer.layer));
+        }
+        writers.clear();
+    }
+
+    public synchronized void abort() {
+        for (LayerWriter writer : writers.values()) {
+            writer.abort();
+        }
+        writers.clear();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    private Layer getLayer(String layerName, String refSysName) {
+        Map<String, Layer> m = layers.get(refSysName);
+        return (m == null) ? null : m.get(layerName);
+    }
+
+    private Map<String, Layer> getOrCreateLayers(String refSys) {
+        synchronized (layers) {
+            Map<String, Layer> m = layers.get(refSys);
+            if (m == null) {
+                m = new ConcurrentHashMap<String, Layer>();
+                layers.put(refSys, m);
+            }
+            return m;
+        }
+    }
+
+    private File getFile(String refSys, String layer, String ext) {
+        return new File(new File(dir, encode(refSys)), encode(layer) + ext);
+    }
+
+    private Layer openLayer(String refSys, String layer) throws DaoException {
+        try {
+            return new Layer(getFile(refSys, layer, INDEX_EXT), getFile(refSys, layer, DATA_EXT));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // should not happen
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // should not happen
+        }
+    }
+
+    /**
+     * A read-only, memory-mapped layer.
+     *
+     * Index file layout: magic, count, shape type ordinal (-1 if unknown), then count
+     * sorted item ids, count data offsets (longs), count data lengths and count
+     * envelopes (minX, maxX, minY, maxY as doubles).
+     */
+    private static class Layer {
+        private final int n;
+        private final SpatialContainerMetadata.ShapeType shapeType;
+        private final IntBuffer ids;
+        private final LongBuffer offsets;
+        private final IntBuffer lengths;
+        private final DoubleBuffer envelopes;
+        private final MappedByteBuffer[] segments;
+        private volatile STRtree tree = null;
+
+        Layer(File indexFile, File dataFile) throws IOException {
+            FileInputStream indexIn = new FileInputStream(indexFile);
+            FileInputStream dataIn = new FileInputStream(dataFile);
+            try {
+                FileChannel channel = indexIn.getChannel();
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.getInt(0) != MAGIC) {
+                    throw new IOException("Invalid spatial index file " + indexFile);
+                }
+                n = index.getInt(4);
+                int type = index.getInt(8);
+                shapeType = (type < 0) ? null : SpatialContainerMetadata.ShapeType.values()[type];
+                ids = slice(index, 12, 4 * n).asIntBuffer();
+                offsets = slice(index, 12 + 4L * n, 8 * n).asLongBuffer();
+                lengths = slice(index, 12 + 12L * n, 4 * n).asIntBuffer();
+                envelopes = slice(index, 12 + 16L * n, 32 * n).asDoubleBuffer();
+
+                FileChannel data = dataIn.getChannel();
+                long size = data.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    segments[i] = data.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+            } finally {
+                IOUtils.closeQuietly(indexIn);
+                IOUtils.closeQuietly(dataIn);
+            }
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, long start, int length) {
+            ByteBuffer b = buffer.duplicate();
+            b.position((int) start);
+            b.limit((int) start + length);
+            return b.slice();
+        }
+
+        int size() {
+            return n;
+        }
+
+        int getItemId(int i) {
+            return ids.get(i);
+        }
+
+        /**
+         * @return The index of the item, or a negative number if it is not in the layer.
+         */
+        int find(int itemId) {
+            int lo = 0, hi = n - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = ids.get(mid);
+                if (id < itemId) {
+                    lo = mid + 1;
+                } else if (id > itemId) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        Geometry getGeometry(int i) throws DaoException {
+            long offset = offsets.get(i);
+            byte [] wkb = new byte[lengths.get(i)];
+            ByteBuffer segment = segments[(int) (offset >> SEGMENT_BITS)].duplicate();
+            segment.position((int) (offset & (SEGMENT_SIZE - 1)));
+            segment.get(wkb);
+            try {
+                return new WKBReader().read(wkb);
+            } catch (ParseException e) {
+                throw new DaoException(e);
+            }
+        }
+
+        STRtree getTree() {
+            if (tree == null) {
+                synchronized (this) {
+                    if (tree == null) {
+                        STRtree t = new STRtree();
+                        for (int i = 0; i < n; i++) {
+                            t.insert(new Envelope(
+                                    envelopes.get(4 * i), envelopes.get(4 * i + 1),
+                                    envelopes.get(4 * i + 2), envelopes.get(4 * i + 3)), i);
+                        }
+                        t.build();
+                        tree = t;
+                    }
+                }
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Accumulates the geometries of one layer in a temporary data file.
+     */
+    private class LayerWriter {
+        private final String refSys;
+        private final String layer;
+        private final File dataFile;
+        private final OutputStream out;
+        private final WKBWriter wkbWriter = new WKBWriter();
+        private long position = 0;
+
+        private final TIntArrayList ids = new TIntArrayList();
+        private final TLongArrayList offsets = new TLongArrayList();
+        private final TIntArrayList lengths = new TIntArrayList();
+        private final TDoubleArrayList envelopes = new TDoubleArrayList();
+        private SpatialContainerMetadata.ShapeType shapeType = null;
+
+        LayerWriter(String refSys, String layer) throws DaoException {
+            this.refSys = refSys;
+            this.layer = layer;
+            this.dataFile = new File(getFile(refSys, layer, DATA_EXT) + ".tmp");
+            try {
+                dataFile.getParentFile().mkdirs();
+                this.out = new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+
+        synchronized void add(int itemId, Geometry g) throws DaoException {
+            add(itemId, wkbWriter.write(g), g.getEnvelopeInternal(), SpatialContainerMetadata.getShapeTypeFromGeometry(g));
+        }
+
+        private void add(int itemId, byte [] wkb, Envelope env, SpatialContainerMetadata.ShapeType type) throws DaoException {
+            if (wkb.length > SEGMENT_SIZE) {
+                throw new DaoException("Geometry for item " + itemId + " in layer " + layer + " is too large");
+            }
+            try {
+                // Don't let a geometry cross a segment boundary
+                long remaining = SEGMENT_SIZE - (position & (SEGMENT_SIZE - 1));
+                if (wkb.length > remaining) {
+                    out.write(new byte[(int) remaining]);
+                    position += remaining;
+                }
+                out.write(wkb);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            ids.add(itemId);
+            offsets.add(position);
+            lengths.add(wkb.length);
+            envelopes.add(new double[] { env.getMinX(), env.getMaxX(), env.getMinY(), env.getMaxY() });
+            if (shapeType == null) {
+                shapeType = type;
+            } else if (type != null && type != shapeType) {
+                shapeType = SpatialContainerMetadata.ShapeType.MIXED;
+            }
+            position += wkb.length;
+        }
+
+        /**
+         * Copies entries from the existing layer that were not saved again, then writes
+         * the sorted index and replaces the layer's files.
+         */
+        synchronized void finish() throws DaoException {
+            Layer existing = getLayer(layer, refSys);
+            if (existing != null && existing.size() > 0) {
+                int n = ids.size();
+                int [] saved = ids.toArray();
+                Arrays.sort(saved);
+                for (int i = 0; i < existing.size(); i++) {
+                    int id = existing.getItemId(i);
+                    if (Arrays.binarySearch(saved, id) < 0) {
+                        Geometry g = existing.getGeometry(i);
+                        add(id, wkbWriter.write(g), g.getEnvelopeInternal(), SpatialContainerMetadata.getShapeTypeFromGeometry(g));
+                    }
+                }
+                LOG.info("merged " + (ids.size() - n) + " existing geometries into layer " + layer + " (" + refSys + ")");
+            }
+            IOUtils.closeQuietly(out);
+
+            // Sort by item id, keeping the last geometry saved for each item.
+            long [] order = new long[ids.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = ((long) ids.get(i) << 32) | i;
+            }
+            Arrays.sort(order);
+            TIntArrayList keep = new TIntArrayList();
+            for (int i = 0; i < order.length; i++) {
+                if (i + 1 < order.length && (order[i] >> 32) == (order[i + 1] >> 32)) {
+                    continue;
+                }
+                keep.add((int) order[i]);
+            }
+
+            int n = keep.size();
+            File indexFile = new File(getFile(refSys, layer, INDEX_EXT) + ".tmp");
+            DataOutputStream indexOut = null;
+            try {
+                indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+                indexOut.writeInt(MAGIC);
+                indexOut.writeInt(n);
+                indexOut.writeInt(shapeType == null ? -1 : shapeType.ordinal());
+                for (int i = 0; i < n; i++) indexOut.writeInt(ids.get(keep.get(i)));
+                for (int i = 0; i < n; i++) indexOut.writeLong(offsets.get(keep.get(i)));
+                for (int i = 0; i < n; i++) indexOut.writeInt(lengths.get(keep.get(i)));
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < 4; j++) {
+                        indexOut.writeDouble(envelopes.get(4 * keep.get(i) + j));
+                    }
+                }
+                indexOut.close();
+                indexOut = null;
+
+                File finalData = getFile(refSys, layer, DATA_EXT);
+                File finalIndex = getFile(refSys, layer, INDEX_EXT);
+                FileUtils.deleteQuietly(finalIndex);
+                FileUtils.deleteQuietly(finalData);
+                FileUtils.moveFile(dataFile, finalData);
+                FileUtils.moveFile(indexFile, finalIndex);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            } finally {
+                IOUtils.closeQuietly(indexOut);
+                FileUtils.deleteQuietly(indexFile);
+                FileUtils.deleteQuietly(dataFile);
+            }
+            LOG.info("wrote " + n + " geometries to layer " + layer + " (" + refSys + ")");
+        }
+
+        synchronized void abort() {
+            IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(dataFile);
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialDB> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return EmbeddedSpatialDB.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.dataSource";
+        }
+
+        @Override
+        public EmbeddedSpatialDB get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            try {
+                return new EmbeddedSpatialDB(new File(config.getString("dir")));
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
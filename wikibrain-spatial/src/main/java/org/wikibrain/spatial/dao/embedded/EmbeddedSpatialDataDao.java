@@ -0,0 +1,236 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+import org.wikibrain.spatial.constants.Precision;
+import org.wikibrain.spatial.constants.RefSys;
+import org.wikibrain.spatial.dao.SpatialDataDao;
+import org.wikibrain.wikidata.WikidataDao;
+
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SpatialDataDao backed by an EmbeddedSpatialDB instead of PostGIS.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialDataDao implements SpatialDataDao {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedSpatialDataDao.class);
+
+    private final EmbeddedSpatialDB db;
+    private final WikidataDao wikidataDao;
+    private final LocalPageDao localPageDao;
+
+    public EmbeddedSpatialDataDao(EmbeddedSpatialDB db, WikidataDao wikidataDao, LocalPageDao localPageDao) {
+        this.db = db;
+        this.wikidataDao = wikidataDao;
+        this.localPageDao = localPageDao;
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName, String refSysName) throws DaoException {
+        return db.getGeometry(itemId, layerName, refSysName);
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName) throws DaoException {
+        return getGeometry(itemId, layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        return filterByPrecision(getGeometry(itemId, layerName), minPrecision);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName) throws DaoException {
+        return getGeometry(articleName, language, layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        return filterByPrecision(getGeometry(articleName, language, layerName), minPrecision);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName, String refSysName) throws DaoException {
+        LocalPage lp = localPageDao.getByTitle(new Title(articleName, language), NameSpace.ARTICLE);
+        if (lp == null) return null;
+        Integer id = wikidataDao.getItemId(lp);
+        if (id == null) throw new DaoException("Could not find Wikidata item for \"" + lp.toString() + "\"");
+        return getGeometry(id, layerName, refSysName);
+    }
+
+    @Override
+    public Map<String, Geometry> getGeometries(int itemId) throws DaoException {
+        Map<String, Geometry> result = new HashMap<String, Geometry>();
+        for (String refSys : getAllRefSysNames()) {
+            for (String layer : getAllLayerNames(refSys)) {
+                Geometry g = getGeometry(itemId, layer, refSys);
+                if (g != null) {
+                    result.put(layer, g);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, String refSysName) throws DaoException {
+        return db.getAllGeometriesInLayer(layerName, refSysName);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName) throws DaoException {
+        return getAllGeometriesInLayer(layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        Map<Integer, Geometry> geoms = getAllGeometriesInLayer(layerName);
+        if (geoms != null) {
+            Iterator<Geometry> iter = geoms.values().iterator();
+            while (iter.hasNext()) {
+                if (filterByPrecision(iter.next(), minPrecision) == null) {
+                    iter.remove();
+                }
+            }
+        }
+        return geoms;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, String[] notInLayers, String refSysName) throws DaoException {
+        Map<Integer, Geometry> rVal = getAllGeometriesInLayer(layerName, refSysName);
+        if (rVal == null) {
+            return null;
+        }
+        for (String notInLayer : notInLayers) {
+            Map<Integer, Geometry> temp = getAllGeometriesInLayer(notInLayer, refSysName);
+            if (temp != null) {
+                rVal.keySet().removeAll(temp.keySet());
+            } else {
+                LOG.warn("Could not find any geometries in layer: " + notInLayer);
+            }
+        }
+        return rVal;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getBulkGeometriesInLayer(List<Integer> idList, String layerName, String refSysName) throws DaoException {
+        return db.getBulkGeometriesInLayer(idList, layerName, refSysName);
+    }
+
+    @Override
+    public Iterable<String> getAllRefSysNames() throws DaoException {
+        return db.getAllReferenceSystems();
+    }
+
+    @Override
+    public Iterable<String> getAllLayerNames(String refSysName) throws DaoException {
+        return db.getLayersInReferenceSystem(refSysName);
+    }
+
+    @Override
+    public SpatialContainerMetadata getReferenceSystemMetadata(String refSysName) throws DaoException {
+        try {
+            SpatialContainerMetadata rVal = null;
+            for (String layerName : getAllLayerNames(refSysName)) {
+                if (rVal == null) {
+                    rVal = getLayerMetadata(layerName, refSysName);
+                } else {
+                    rVal = rVal.merge(getLayerMetadata(layerName, refSysName));
+                }
+            }
+            if (rVal == null) {
+                throw new DaoException("No layers in reference system " + refSysName);
+            }
+            rVal.toReferenceSystem();
+            return rVal;
+        } catch (WikiBrainException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public SpatialContainerMetadata getLayerMetadata(String layerName, String refSysName) throws DaoException {
+        return db.getLayerMetadata(layerName, refSysName);
+    }
+
+    @Override
+    public void beginSaveGeometries() throws DaoException {
+        // layers are created as geometries are saved
+    }
+
+    @Override
+    public void endSaveGeometries() throws DaoException {
+        db.flush();
+    }
+
+    @Override
+    public void saveGeometry(int itemId, String layerName, String refSysName, Geometry g) throws DaoException {
+        db.saveGeometry(itemId, layerName, refSysName, g);
+    }
+
+    @Override
+    public void removeLayer(String refSysName, String layerName) throws DaoException {
+        db.removeLayer(refSysName, layerName);
+    }
+
+    @Override
+    public void optimize() throws DaoException {
+        // layers are sorted and indexed when they are written
+    }
+
+    private Geometry filterByPrecision(Geometry g, Precision.LatLonPrecision minPrecision) {
+        if (g == null) return null;
+        if (!(g instanceof Point)) return g;
+        if (Precision.isGreaterThanOrEqualTo(Precision.getLatLonPrecision((Point) g), minPrecision)) {
+            return g;
+        } else {
+            return null;
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialDataDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialDataDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialData";
+        }
+
+        @Override
+        public EmbeddedSpatialDataDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialDataDao(
+                    getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")),
+                    getConfigurator().get(WikidataDao.class),
+                    getConfigurator().get(LocalPageDao.class));
+        }
+    }
+}
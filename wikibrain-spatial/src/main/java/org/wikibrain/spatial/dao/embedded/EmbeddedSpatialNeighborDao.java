@@ -0,0 +1,202 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.dao.SpatialNeighborDao;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+
+import java.util.*;
+
+/**
+ * A SpatialNeighborDao that answers queries from the STR-trees of an EmbeddedSpatialDB.
+ * Distances are in degrees, as in the PostGIS implementation.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialNeighborDao implements SpatialNeighborDao {
+
+    private final EmbeddedSpatialDB db;
+
+    public EmbeddedSpatialNeighborDao(EmbeddedSpatialDB db) {
+        this.db = db;
+    }
+
+    @Override
+    public TIntSet getNeighboringItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, double minDist, double maxDist) throws DaoException {
+        return getNeighboringItemIds(getGeometry(itemId, layerName, refSysName), refSysName, subLayers, minDist, maxDist);
+    }
+
+    @Override
+    public TIntSet getNeighboringItemIds(Geometry g, String refSysName, Set<String> subLayers, double minDist, double maxDist) throws DaoException {
+        if (subLayers.size() == 0) throw new DaoException("Cannot get containment without any layers");
+
+        Envelope env = new Envelope(g.getEnvelopeInternal());
+        env.expandBy(maxDist);
+        TIntSet rVal = new TIntHashSet();
+        for (String subLayer : subLayers) {
+            for (Map.Entry<Integer, Geometry> entry : db.getCandidates(subLayer, refSysName, env).entrySet()) {
+                double d = g.distance(entry.getValue());
+                if (d <= maxDist && d > minDist) {
+                    rVal.add(entry.getKey());
+                }
+            }
+        }
+        return rVal;
+    }
+
+    @Override
+    public TIntSet getMaxDistanceKmItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, double maxDist) throws DaoException {
+        return getNeighboringItemIds(itemId, layerName, refSysName, subLayers, 0, maxDist / 112);
+    }
+
+    @Override
+    public TIntSet getMaxDistanceKmItemIds(Geometry g, String refSysName, Set<String> subLayers, double maxDist) throws DaoException {
+        return getNeighboringItemIds(g, refSysName, subLayers, 0, maxDist / 112);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getKNNeighbors(Integer itemId, int k, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        return getKNNeighbors(getGeometry(itemId, layerName, refSysName), k, layerName, refSysName, excludeSet);
+    }
+
+    /**
+     * Returns the k items whose first coordinates are closest to the first coordinate
+     * of g by great circle distance.
+     *
+     * The search covers a spherical cap around g whose radius doubles until the cap
+     * holds at least k items. Every item in the cap is examined, and items outside it
+     * are farther than the cap radius, so the k closest items in the cap are exact.
+     * The cap is covered by latitude / longitude windows that widen near the poles
+     * and wrap around the antimeridian.
+     */
+    @Override
+    public Map<Integer, Geometry> getKNNeighbors(Geometry g, int k, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        Coordinate c = g.getCoordinate();
+        double angle = Math.toRadians(0.01 * k);
+        final Map<Integer, Double> distMap = new HashMap<Integer, Double>();
+        Map<Integer, Geometry> candidates = new HashMap<Integer, Geometry>();
+        while (true) {
+            double radius = angle * WikiBrainSpatialUtils.EARTH_RADIUS;
+            distMap.clear();
+            candidates.clear();
+            // The windows are padded slightly so rounding cannot drop items on the edge of the cap.
+            for (Envelope env : getCapEnvelopes(c, angle + 1e-9)) {
+                for (Map.Entry<Integer, Geometry> entry : db.getCandidates(layerName, refSysName, env).entrySet()) {
+                    if (excludeSet.contains(entry.getKey()) || distMap.containsKey(entry.getKey())) {
+                        continue;
+                    }
+                    Coordinate c2 = entry.getValue().getCoordinate();
+                    double d = WikiBrainSpatialUtils.haversine(c.x, c.y, c2.x, c2.y);
+                    if (d <= radius) {
+                        distMap.put(entry.getKey(), d);
+                        candidates.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if (distMap.size() >= k || angle >= Math.PI) {
+                break;
+            }
+            angle = Math.min(Math.PI, angle * 2);
+        }
+
+        List<Integer> order = new ArrayList<Integer>(distMap.keySet());
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(distMap.get(i1), distMap.get(i2));
+            }
+        });
+
+        Map<Integer, Geometry> result = new LinkedHashMap<Integer, Geometry>();
+        for (Integer id : order.subList(0, Math.min(k, order.size()))) {
+            result.put(id, candidates.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Returns longitude / latitude envelopes (in degrees) that together contain every
+     * point within a great circle angle (in radians) of c.
+     */
+    static List<Envelope> getCapEnvelopes(Coordinate c, double angle) {
+        double lat = Math.toRadians(c.y);
+        double minLat = Math.max(-90.0, Math.toDegrees(lat - angle));
+        double maxLat = Math.min(90.0, Math.toDegrees(lat + angle));
+
+        // The cap reaches a pole, so it spans every longitude.
+        if (lat + angle >= Math.PI / 2 || lat - angle <= -Math.PI / 2 || Math.sin(angle) >= Math.cos(lat)) {
+            return Arrays.asList(new Envelope(-180.0, 180.0, minLat, maxLat));
+        }
+        double dLon = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(lat)));
+        double minLon = c.x - dLon;
+        double maxLon = c.x + dLon;
+        List<Envelope> envelopes = new ArrayList<Envelope>();
+        envelopes.add(new Envelope(Math.max(-180.0, minLon), Math.min(180.0, maxLon), minLat, maxLat));
+        if (minLon < -180.0) {
+            envelopes.add(new Envelope(minLon + 360.0, 180.0, minLat, maxLat));
+        }
+        if (maxLon > 180.0) {
+            envelopes.add(new Envelope(-180.0, maxLon - 360.0, minLat, maxLat));
+        }
+        return envelopes;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getNeighbors(Integer itemId, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        return getNeighbors(getGeometry(itemId, layerName, refSysName), layerName, refSysName, excludeSet);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getNeighbors(Geometry g, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(g);
+        Map<Integer, Geometry> result = new HashMap<Integer, Geometry>();
+        for (Map.Entry<Integer, Geometry> entry : db.getCandidates(layerName, refSysName, g.getEnvelopeInternal()).entrySet()) {
+            if (!excludeSet.contains(entry.getKey()) && prepared.intersects(entry.getValue())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private Geometry getGeometry(int itemId, String layerName, String refSysName) throws DaoException {
+        Geometry g = db.getGeometry(itemId, layerName, refSysName);
+        if (g == null) {
+            throw new DaoException(String.format("Could not find item %d in layer %s (%s)", itemId, layerName, refSysName));
+        }
+        return g;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialNeighborDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialNeighborDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialNeighbor";
+        }
+
+        @Override
+        public EmbeddedSpatialNeighborDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialNeighborDao(getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")));
+        }
+    }
+}
@@ -482,6 +482,9 @@ public class PostGISDB {
 
         @Override
         public PostGISDB get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (config.hasPath("type") && !config.getString("type").equals("postgis")) {
+                return null;
+            }
 
             try {
 
@@ -341,6 +341,9 @@ public class PostGISSpatialNeighborDao implements SpatialNeighborDao{
 
         @Override
         public PostGISSpatialNeighborDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (config.hasPath("type") && !config.getString("type").equals("postgis")) {
+                return null;
+            }
 
             return new PostGISSpatialNeighborDao( getConfigurator().get(PostGISDB.class, config.getString("dataSource")));
 
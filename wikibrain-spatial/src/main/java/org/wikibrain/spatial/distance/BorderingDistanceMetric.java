@@ -5,10 +5,7 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.operation.distance.DistanceOp;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.linked.TIntLinkedList;
-import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -16,6 +13,7 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.constants.Precision;
 import org.wikibrain.spatial.dao.SpatialDataDao;
 import org.wikibrain.spatial.util.ContainmentIndex;
+import org.wikibrain.spatial.util.SpatialGraph;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
@@ -46,7 +44,7 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
     private final SpatialDataDao dao;
     private Map<Integer, Geometry> geometries;
     private TIntSet concepts;
-    private final TIntObjectMap<TIntSet> adjacencyList = new TIntObjectHashMap<TIntSet>();
+    private SpatialGraph graph = new SpatialGraph(new TIntObjectHashMap<TIntSet>());
     private Map<Integer, TIntList> children = new HashMap<Integer, TIntList>();
     private ContainmentIndex index;
     private boolean forceContains = false;
@@ -64,6 +62,7 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
     @Override
     public void enableCache(boolean enable) throws DaoException {
         final AtomicInteger numEdges = new AtomicInteger();
+        final TIntObjectMap<TIntSet> adjacencyList = new TIntObjectHashMap<TIntSet>();
         geometries = dao.getAllGeometriesInLayer(layer, Precision.LatLonPrecision.HIGH);
         index = new ContainmentIndex();
         ParallelForEach.loop(geometries.keySet(), WpThreadUtils.getMaxThreads(),
@@ -78,6 +77,7 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
                         index.insert(conceptId, geometries.get(conceptId));
                     }
                 }, 50000);
+        graph = new SpatialGraph(adjacencyList);
         LOG.info("Found " + adjacencyList.size() + " nodes and " + numEdges.get() + " edges.");
 
         final Map<Integer, Geometry> points = dao.getAllGeometriesInLayer("wikidata", Precision.LatLonPrecision.HIGH);
@@ -123,11 +123,11 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
 
     @Override
     public double distance(Geometry g1, Geometry g2) {
-        if (adjacencyList.isEmpty()) {
+        if (graph.getNumNodes() == 0) {
             throw new UnsupportedOperationException();
         }
         int srcId = getContainingGeometry(g1);
-        int destId = getContainingGeometry(g2);
+        final int destId = getContainingGeometry(g2);
         if (srcId < 0) {
             throw new IllegalArgumentException("No containing geometry for source geometry");
         }
@@ -138,46 +138,49 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
             return 0;
         }
 
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        for (int id: adjacencyList.get(srcId).toArray()) {
-            if (id == destId) {
-                return 1;
-            }
-            queue.add(id);
-            seen.add(id);
-        }
-
-        for (int level = 2; level <= maxSteps; level++) {
-            // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
-                }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (id2 == destId) {
-                        return level;
-                    }
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
-                    }
+        final int [] distance = { -1 };
+        graph.bfs(new int[] { srcId }, 0, maxSteps, new SpatialGraph.Visitor() {
+            @Override
+            public boolean visit(int id, int level) {
+                if (id == destId) {
+                    distance[0] = level;
+                    return false;
                 }
+                return true;
             }
-        }
-        return Double.POSITIVE_INFINITY;
+        });
+        return (distance[0] < 0) ? Double.POSITIVE_INFINITY : distance[0];
     }
 
+    /**
+     * Computes all distances with one bit-parallel breadth first search per 64 rows.
+     */
     @Override
     public float[][] distance(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
-        return new float[0][];
+        if (graph.getNumNodes() == 0) {
+            throw new UnsupportedOperationException();
+        }
+        List<int[]> sources = new ArrayList<int[]>();
+        for (Geometry g : rowGeometries) {
+            int srcId = getContainingGeometry(g);
+            if (srcId < 0) {
+                throw new IllegalArgumentException("No containing geometry for source geometry " + g);
+            }
+            sources.add(new int[] { srcId });
+        }
+        int [] targets = new int[colGeometries.size()];
+        for (int j = 0; j < targets.length; j++) {
+            targets[j] = getContainingGeometry(colGeometries.get(j));
+            if (targets[j] < 0) {
+                throw new IllegalArgumentException("No containing geometry for destination geometry " + colGeometries.get(j));
+            }
+        }
+        return graph.hopDistances(sources, 0, maxSteps, targets);
     }
 
     @Override
     public float[][] distance(List<Geometry> geometries) {
-        return new float[0][];
+        return distance(geometries, geometries);
     }
 
     @Override
@@ -186,8 +189,8 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
     }
 
     @Override
-    public List<Neighbor> getNeighbors(Geometry g, int maxNeighbors, double maxDistance) {
-        if (adjacencyList.isEmpty()) {
+    public List<Neighbor> getNeighbors(Geometry g, final int maxNeighbors, double maxDistance) {
+        if (graph.getNumNodes() == 0) {
             throw new UnsupportedOperationException();
         }
         int srcId = getContainingGeometry(g);
@@ -195,53 +198,29 @@ public class BorderingDistanceMetric implements SpatialDistanceMetric {
             throw new IllegalArgumentException("No containing geometry for source geometry");
         }
 
-        List<Neighbor> neighbors = new ArrayList<Neighbor>();
-        if (concepts == null || concepts.contains(srcId)) {
-            neighbors.add(new Neighbor(srcId, 0));
-        }
-        if (children.containsKey(srcId)) {
-            for (int id : children.get(srcId).toArray()) {
-                neighbors.add(new Neighbor(id, 0));
-            }
-        }
-
-        TIntSet added = new TIntHashSet();
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        seen.add(srcId);
-        added.add(srcId);
-        queue.addAll(adjacencyList.get(srcId));
-
-        int distance = 0;
-        while (!queue.isEmpty() && neighbors.size() < maxNeighbors) {
-            distance++;
-
-            // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!added.contains(id)) {
-                    added.add(id);
-                    if (concepts == null || concepts.contains(id)) {
-                        neighbors.add(new Neighbor(id, distance));
-                    }
-                    if (children.containsKey(id)) {
-                        for (int childId : children.get(id).toArray()) {
-                            neighbors.add(new Neighbor(childId, distance));
-                        }
+        final List<Neighbor> neighbors = new ArrayList<Neighbor>();
+        final int [] currentLevel = { 0 };
+        graph.bfs(new int[] { srcId }, 0, Integer.MAX_VALUE, new SpatialGraph.Visitor() {
+            @Override
+            public boolean visit(int id, int level) {
+                // Like the level-by-level search, only stop between levels
+                if (level > currentLevel[0]) {
+                    currentLevel[0] = level;
+                    if (neighbors.size() >= maxNeighbors) {
+                        return false;
                     }
                 }
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
+                if (concepts == null || concepts.contains(id)) {
+                    neighbors.add(new Neighbor(id, level));
                 }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
+                if (children.containsKey(id)) {
+                    for (int childId : children.get(id).toArray()) {
+                        neighbors.add(new Neighbor(childId, level));
                     }
                 }
+                return true;
             }
-        }
+        });
         return neighbors;
     }
 
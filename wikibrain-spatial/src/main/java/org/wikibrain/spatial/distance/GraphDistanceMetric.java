@@ -1,16 +1,15 @@
 package org.wikibrain.spatial.distance;
 
 import com.vividsolutions.jts.geom.Geometry;
-import gnu.trove.list.linked.TIntLinkedList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.constants.Precision;
 import org.wikibrain.spatial.dao.SpatialDataDao;
 import org.wikibrain.spatial.util.ClosestPointIndex;
+import org.wikibrain.spatial.util.SpatialGraph;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
@@ -32,7 +31,7 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
     private static final Logger LOG = LoggerFactory.getLogger(GraphDistanceMetric.class);
 
     private final SpatialDataDao spatialDao;
-    private final TIntObjectMap<TIntSet> adjacencyList = new TIntObjectHashMap<TIntSet>();
+    private SpatialGraph graph = new SpatialGraph(new TIntObjectHashMap<TIntSet>());
     private final ClosestPointIndex index;
     private int numNeighbors = 100;
     private int maxDistance = 30;
@@ -87,6 +86,7 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
     public void enableCache(boolean enable) throws DaoException {
         if (index == null) throw new NullPointerException();
         final AtomicInteger numEdges = new AtomicInteger();
+        final TIntObjectMap<TIntSet> adjacencyList = new TIntObjectHashMap<TIntSet>();
         final Map<Integer, Geometry> points = this.spatialDao.getAllGeometriesInLayer("wikidata", Precision.LatLonPrecision.HIGH);
 
         // Insert points into the index if necessary.
@@ -98,6 +98,7 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
                             index.insert(conceptId, points.get(conceptId));
                         }
                     }, 50000);
+            index.build();
         }
 
         ParallelForEach.loop(points.keySet(), WpThreadUtils.getMaxThreads(),
@@ -129,7 +130,8 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
             }
 
         }
-        LOG.info("Found " + adjacencyList.size() + " edges and " + numEdges.get() + " edges.");
+        graph = new SpatialGraph(adjacencyList);
+        LOG.info("Found " + graph.getNumNodes() + " nodes and " + graph.getNumEdges() + " edges.");
     }
 
     @Override
@@ -140,7 +142,7 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
 
     @Override
     public double distance(Geometry g1, Geometry g2) {
-        if (adjacencyList.isEmpty()) {
+        if (graph.getNumNodes() == 0) {
             throw new UnsupportedOperationException();
         }
         // Hack: Replace g2 with CLOSEST concept
@@ -154,49 +156,55 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
             return 0;
         }
 
-        int targetId = closest.get(0).id;
-
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        for (ClosestPointIndex.Result n : index.query(g1, numNeighbors)) {
-            if (n.id== targetId) {
-                return 1;
-            }
-            queue.add(n.id);
-            seen.add(n.id);
-        }
-
-        for (int level = 2; level <= maxSteps; level++) {
-            // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
-                }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (id2 == targetId) {
-                        return level;
-                    }
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
-                    }
+        final int targetId = closest.get(0).id;
+        final int [] distance = { -1 };
+        graph.bfs(getSources(g1), 1, maxSteps, new SpatialGraph.Visitor() {
+            @Override
+            public boolean visit(int id, int level) {
+                if (id == targetId) {
+                    distance[0] = level;
+                    return false;
                 }
+                return true;
             }
-//            System.err.println("at level " + level + " saw " + seen.size());
-        }
-        return Double.POSITIVE_INFINITY;
+        });
+        return (distance[0] < 0) ? Double.POSITIVE_INFINITY : distance[0];
     }
 
+    /**
+     * Computes all distances with one bit-parallel breadth first search per 64 rows.
+     * Like distance(g1, g2), each column geometry is replaced by its closest concept.
+     */
     @Override
     public float[][] distance(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
-        return new float[0][];
+        if (graph.getNumNodes() == 0) {
+            throw new UnsupportedOperationException();
+        }
+        List<int[]> sources = new ArrayList<int[]>();
+        for (Geometry g : rowGeometries) {
+            sources.add(maxDistance == 0 ? new int[0] : getSources(g));
+        }
+        int [] targets = new int[colGeometries.size()];
+        for (int j = 0; j < targets.length; j++) {
+            List<ClosestPointIndex.Result> closest = index.query(colGeometries.get(j), 1);
+            targets[j] = closest.isEmpty() ? -1 : closest.get(0).id;
+        }
+        float [][] matrix = graph.hopDistances(sources, 1, maxDistance, targets);
+        for (int i = 0; i < rowGeometries.size(); i++) {
+            for (int j = 0; j < colGeometries.size(); j++) {
+                Geometry g1 = rowGeometries.get(i);
+                Geometry g2 = colGeometries.get(j);
+                if (maxDistance != 0 && targets[j] >= 0 && (g1 == g2 || g1.equals(g2))) {
+                    matrix[i][j] = 0f;
+                }
+            }
+        }
+        return matrix;
     }
 
     @Override
     public float[][] distance(List<Geometry> geometries) {
-        return new float[0][];
+        return distance(geometries, geometries);
     }
 
     @Override
@@ -205,49 +213,36 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
     }
 
     @Override
-    public List<Neighbor> getNeighbors(Geometry g, int maxNeighbors, double maxDistance) {
-        List<Neighbor> result = new ArrayList<Neighbor>();
+    public List<Neighbor> getNeighbors(Geometry g, final int maxNeighbors, double maxDistance) {
+        final List<Neighbor> result = new ArrayList<Neighbor>();
         int maxSteps = (int) Math.round(maxDistance);
         if (maxSteps == 0) {
             return result;
         }
-
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        for (ClosestPointIndex.Result r : index.query(g, numNeighbors)) {
-            queue.add(r.id);
-            seen.add(r.id);
-            if (concepts == null || concepts.contains(r.id)) {
-                result.add(new Neighbor(r.id, 1));
-            }
-        }
-
-        for (int level = 2; !queue.isEmpty() && level <= maxSteps; level++) {
-//            System.err.println("at level " + level + ", size is " + seen.size() + ", " + result.size());
-            // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
-                }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
-                        if (concepts == null || concepts.contains(id2)) {
-                            result.add(new Neighbor(id2, level));
-                        }
-                    }
-                    if (result.size() >= maxNeighbors) {
-                        return result;
-                    }
+        graph.bfs(getSources(g), 1, maxSteps, new SpatialGraph.Visitor() {
+            @Override
+            public boolean visit(int id, int level) {
+                if (concepts == null || concepts.contains(id)) {
+                    result.add(new Neighbor(id, level));
                 }
+                return level == 1 || result.size() < maxNeighbors;
             }
-        }
+        });
         return result;
     }
 
+    /**
+     * @return The ids of the concepts closest to g, which are one step away from it.
+     */
+    private int[] getSources(Geometry g) {
+        List<ClosestPointIndex.Result> closest = index.query(g, numNeighbors);
+        int [] ids = new int[closest.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = closest.get(i).id;
+        }
+        return ids;
+    }
+
     public void setDirected(boolean directed) {
         this.directed = directed;
     }
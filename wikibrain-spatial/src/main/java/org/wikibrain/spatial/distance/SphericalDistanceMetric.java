@@ -71,6 +71,7 @@ public class SphericalDistanceMetric implements SpatialDistanceMetric {
                 index.insert(conceptId, points.get(conceptId));
             }
         }, 100000);
+        index.build();
         LOG.info("loaded " + index.size() + " points");
     }
 
@@ -1,45 +1,103 @@
 package org.wikibrain.spatial.util;
 
-import ags.utils.dataStructures.MaxHeap;
-import ags.utils.dataStructures.trees.thirdGenKD.KdTree;
-import ags.utils.dataStructures.trees.thirdGenKD.SquareEuclideanDistanceFunction;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
-import org.geotools.referencing.GeodeticCalculator;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
  * Creates a spherical approximation of the closest points to a particular point.
- * This class is threadsafe for multiple readers or writers (but not both).
  *
+ * Points are projected onto the unit sphere and stored in an implicit k-d tree:
+ * the node for a range of the arrays is the median of the range, and its children
+ * are the ranges on either side. The tree is just a float array of xyz coordinates
+ * and an int array of ids, so it holds no Geometry references and can be written to
+ * disk and memory-mapped with {@link #write(java.io.File)} and {@link #read(java.io.File)}.
+ *
+ * Points added with insert() are buffered until build() is called, which sorts them
+ * into the tree in parallel. Queries build the tree first if necessary. Queries take
+ * no locks and may run concurrently, but not at the same time as inserts.
  *
  * @author Shilad Sen
  */
 public class ClosestPointIndex implements Serializable {
-    private final KdTree<Result> index = new KdTree<Result>(3);
+    private static final int MAGIC = 0x43504931;    // "CPI1"
+
+    /**
+     * Subtrees smaller than this are built by a single thread.
+     */
+    private static final int MIN_PARALLEL_SIZE = 50000;
+
+    // Points inserted since the last build
+    private transient TFloatArrayList pendingCoords = new TFloatArrayList();
+    private transient TIntArrayList pendingIds = new TIntArrayList();
+    private transient volatile Tree tree = new Tree(FloatBuffer.allocate(0), IntBuffer.allocate(0));
+
+    private static final ThreadLocal<Heap> HEAPS = new ThreadLocal<Heap>() {
+        @Override
+        protected Heap initialValue() {
+            return new Heap();
+        }
+    };
 
     public ClosestPointIndex() {}
 
+    private ClosestPointIndex(Tree tree) {
+        this.tree = tree;
+    }
+
     /**
      * Insert a geometry into the index and associate it with a particular id.
      * If the geometry is not a point, uses WikiBrainSpatialUtils.getCenter to
      * convert it to a single point.
      *
+     * The point becomes visible to queries after the next call to build().
+     *
      * @param id
      * @param geometry
      */
     public void insert(int id, Geometry geometry) {
-        Point p = WikiBrainSpatialUtils.getCenter(geometry);
-        Result r = new Result(id, geometry, p);
-        synchronized (index) {
-            index.addPoint(WikiBrainSpatialUtils.get3DPoints(p), r);
+        double [] xyz = WikiBrainSpatialUtils.get3DPoints(WikiBrainSpatialUtils.getCenter(geometry));
+        synchronized (this) {
+            pendingIds.add(id);
+            for (double d : xyz) {
+                pendingCoords.add((float) d);
+            }
         }
     }
 
+    /**
+     * Sorts all inserted points into the tree.
+     */
+    public synchronized void build() {
+        if (pendingIds.isEmpty()) {
+            return;
+        }
+        Tree current = tree;
+        int n = current.size + pendingIds.size();
+        float [] coords = new float[3 * n];
+        int [] ids = new int[n];
+        current.coords.duplicate().get(coords, 0, 3 * current.size);
+        current.ids.duplicate().get(ids, 0, current.size);
+        pendingCoords.toArray(coords, 0, 3 * current.size, pendingCoords.size());
+        pendingIds.toArray(ids, 0, current.size, pendingIds.size());
+        pendingCoords = new TFloatArrayList();
+        pendingIds = new TIntArrayList();
+        tree = buildTree(coords, ids);
+    }
+
     /**
      * Return the closest points to the specified point.
      * The returned distances are estimated using the Haversine formula.
@@ -48,27 +106,310 @@ public class ClosestPointIndex implements Serializable {
      * @return
      */
     public List<Result> query(Geometry query, int maxNeighbors) {
-        final Point c = WikiBrainSpatialUtils.getCenter(query);
-        final double[] c1 = WikiBrainSpatialUtils.get3DPoints(c);
-        MaxHeap<Result> heap = index.findNearestNeighbors(
-                c1,
-                maxNeighbors,
-                new SquareEuclideanDistanceFunction());
+        if (!pendingIds.isEmpty()) {
+            build();
+        }
+        Tree t = tree;
+        Point c = WikiBrainSpatialUtils.getCenter(query);
+        double [] q = WikiBrainSpatialUtils.get3DPoints(c);
 
         List<Result> results = new ArrayList<Result>();
-        while (heap.size() > 0) {
-            Result r = heap.getMax();
-            heap.removeMax();
-            double d = WikiBrainSpatialUtils.haversine(c, r.point);
-            results.add(new Result(r.id, r.geometry, r.point, d));
+        if (maxNeighbors <= 0 || t.size == 0) {
+            return results;
         }
-        Collections.reverse(results);
+        Heap heap = HEAPS.get();
+        heap.reset(maxNeighbors);
+        t.search(0, t.size, 0, q, heap);
 
+        int [] nodes = heap.drainInIncreasingOrder();
+        for (int node : nodes) {
+            Point p = t.getPoint(node);
+            double d = WikiBrainSpatialUtils.haversine(c, p);
+            results.add(new Result(t.ids.get(node), null, p, d));
+        }
         return results;
     }
 
     public int size() {
-        return index.size();
+        return tree.size + pendingIds.size();
+    }
+
+    /**
+     * Writes the index in a format that can be memory-mapped by read().
+     */
+    public void write(File file) throws IOException {
+        build();
+        Tree t = tree;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(t.size);
+            for (int i = 0; i < 3 * t.size; i++) {
+                out.writeFloat(t.coords.get(i));
+            }
+            for (int i = 0; i < t.size; i++) {
+                out.writeInt(t.ids.get(i));
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Memory-maps an index written by write().
+     */
+    public static ClosestPointIndex read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Invalid closest point index " + file);
+            }
+            int n = buffer.getInt(4);
+            buffer.position(8);
+            FloatBuffer coords = buffer.slice().asFloatBuffer();
+            coords.limit(3 * n);
+            buffer.position(8 + 12 * n);
+            IntBuffer ids = buffer.slice().asIntBuffer();
+            ids.limit(n);
+            return new ClosestPointIndex(new Tree(coords, ids));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        build();
+        out.defaultWriteObject();
+        Tree t = tree;
+        float [] coords = new float[3 * t.size];
+        int [] ids = new int[t.size];
+        t.coords.duplicate().get(coords);
+        t.ids.duplicate().get(ids);
+        out.writeObject(coords);
+        out.writeObject(ids);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        float [] coords = (float[]) in.readObject();
+        int [] ids = (int[]) in.readObject();
+        pendingCoords = new TFloatArrayList();
+        pendingIds = new TIntArrayList();
+        tree = new Tree(FloatBuffer.wrap(coords), IntBuffer.wrap(ids));
+    }
+
+    /**
+     * Arranges the points into an implicit k-d tree in place.
+     * The top levels are split sequentially, then subtrees are built in parallel.
+     */
+    private static Tree buildTree(final float [] coords, final int [] ids) {
+        int n = ids.length;
+        final List<int[]> subtrees = new ArrayList<int[]>();   // lo, hi, depth
+        List<int[]> ranges = new ArrayList<int[]>();
+        ranges.add(new int[] { 0, n, 0 });
+        int minSize = Math.max(MIN_PARALLEL_SIZE, n / (4 * WpThreadUtils.getMaxThreads()));
+        while (!ranges.isEmpty()) {
+            int [] r = ranges.remove(ranges.size() - 1);
+            if (r[1] - r[0] <= minSize) {
+                subtrees.add(r);
+                continue;
+            }
+            int mid = (r[0] + r[1]) >>> 1;
+            select(coords, ids, r[0], r[1] - 1, mid, r[2] % 3);
+            ranges.add(new int[] { r[0], mid, r[2] + 1 });
+            ranges.add(new int[] { mid + 1, r[1], r[2] + 1 });
+        }
+        if (subtrees.size() == 1) {
+            int [] r = subtrees.get(0);
+            buildSubtree(coords, ids, r[0], r[1], r[2]);
+        } else {
+            ParallelForEach.loop(subtrees, WpThreadUtils.getMaxThreads(), new Procedure<int[]>() {
+                @Override
+                public void call(int[] r) throws Exception {
+                    buildSubtree(coords, ids, r[0], r[1], r[2]);
+                }
+            }, Integer.MAX_VALUE);
+        }
+        return new Tree(FloatBuffer.wrap(coords), IntBuffer.wrap(ids));
+    }
+
+    private static void buildSubtree(float [] coords, int [] ids, int lo, int hi, int depth) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            select(coords, ids, lo, hi - 1, mid, depth % 3);
+            buildSubtree(coords, ids, lo, mid, depth + 1);
+            lo = mid + 1;
+            depth++;
+        }
+    }
+
+    /**
+     * Partially sorts points [left, right] along dim so that the point at k is in its sorted position.
+     */
+    private static void select(float [] coords, int [] ids, int left, int right, int k, int dim) {
+        while (right > left) {
+            int mid = (left + right) >>> 1;
+            float pivot = median(coords[3 * left + dim], coords[3 * mid + dim], coords[3 * right + dim]);
+            int i = left, j = right;
+            while (i <= j) {
+                while (coords[3 * i + dim] < pivot) i++;
+                while (coords[3 * j + dim] > pivot) j--;
+                if (i <= j) {
+                    swap(coords, ids, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static float median(float a, float b, float c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(float [] coords, int [] ids, int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        for (int d = 0; d < 3; d++) {
+            float f = coords[3 * i + d];
+            coords[3 * i + d] = coords[3 * j + d];
+            coords[3 * j + d] = f;
+        }
+    }
+
+    /**
+     * An immutable implicit k-d tree, possibly memory-mapped.
+     * Reads use absolute gets, so it is safe for concurrent queries.
+     */
+    private static class Tree {
+        final FloatBuffer coords;
+        final IntBuffer ids;
+        final int size;
+
+        Tree(FloatBuffer coords, IntBuffer ids) {
+            this.coords = coords;
+            this.ids = ids;
+            this.size = ids.limit();
+        }
+
+        void search(int lo, int hi, int depth, double [] q, Heap heap) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                double dx = q[0] - coords.get(3 * mid);
+                double dy = q[1] - coords.get(3 * mid + 1);
+                double dz = q[2] - coords.get(3 * mid + 2);
+                heap.offer(mid, dx * dx + dy * dy + dz * dz);
+
+                int dim = depth % 3;
+                double diff = q[dim] - coords.get(3 * mid + dim);
+                int nearLo, nearHi, farLo, farHi;
+                if (diff < 0) {
+                    nearLo = lo; nearHi = mid; farLo = mid + 1; farHi = hi;
+                } else {
+                    nearLo = mid + 1; nearHi = hi; farLo = lo; farHi = mid;
+                }
+                search(nearLo, nearHi, depth + 1, q, heap);
+                if (!heap.isFull() || diff * diff < heap.maxDistance()) {
+                    lo = farLo;
+                    hi = farHi;
+                    depth++;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        Point getPoint(int node) {
+            double x = coords.get(3 * node);
+            double y = coords.get(3 * node + 1);
+            double z = coords.get(3 * node + 2);
+            // Inverts WikiBrainSpatialUtils.get3DPoints
+            double lat = -Math.toDegrees(Math.asin(Math.max(-1.0, Math.min(1.0, z))));
+            double lng = -Math.toDegrees(Math.atan2(x, y));
+            return WikiBrainSpatialUtils.getPoint(lat, lng);
+        }
+    }
+
+    /**
+     * A bounded max-heap of tree nodes keyed by distance. Reused across queries by each thread.
+     */
+    private static class Heap {
+        private int [] nodes = new int[16];
+        private double [] distances = new double[16];
+        private int capacity;
+        private int size;
+
+        void reset(int capacity) {
+            this.capacity = capacity;
+            this.size = 0;
+            if (nodes.length < capacity) {
+                nodes = new int[capacity];
+                distances = new double[capacity];
+            }
+        }
+
+        boolean isFull() {
+            return size == capacity;
+        }
+
+        double maxDistance() {
+            return distances[0];
+        }
+
+        void offer(int node, double distance) {
+            if (size < capacity) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= distance) break;
+                    nodes[i] = nodes[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                nodes[i] = node;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(node, distance);
+            }
+        }
+
+        /**
+         * Replaces the root and restores the heap property.
+         */
+        private void siftDown(int node, double distance) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && distances[child + 1] > distances[child]) child++;
+                if (distances[child] <= distance) break;
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        int [] drainInIncreasingOrder() {
+            int [] result = new int[size];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = nodes[0];
+                size--;
+                if (size > 0) {
+                    siftDown(nodes[size], distances[size]);
+                }
+            }
+            return result;
+        }
     }
 
     public static class Result implements Serializable {
@@ -0,0 +1,284 @@
+package org.wikibrain.spatial.util;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable graph over concept ids stored in compressed sparse row (CSR) form.
+ *
+ * Nodes are numbered densely. The neighbors of node i are
+ * edges[offsets[i]] ... edges[offsets[i + 1] - 1].
+ *
+ * Supports breadth first searches from a set of source nodes, and a bit-parallel
+ * multi-source BFS that computes hop distances for up to 64 rows of a distance
+ * matrix with a single traversal. Rows are processed in parallel.
+ *
+ * @author Shilad Sen
+ */
+public class SpatialGraph {
+    private static final int BATCH_SIZE = 64;
+
+    private final int [] ids;
+    private final TIntIntMap index;
+    private final int [] offsets;
+    private final int [] edges;
+
+    private final ThreadLocal<int[]> levels = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            int [] l = new int[ids.length];
+            Arrays.fill(l, -1);
+            return l;
+        }
+    };
+
+    /**
+     * Visits nodes reached by a breadth first search.
+     */
+    public static interface Visitor {
+        /**
+         * @param id The concept id.
+         * @param level The number of hops from the sources, plus the starting level.
+         * @return true if the search should continue.
+         */
+        boolean visit(int id, int level);
+    }
+
+    /**
+     * Builds the graph from an adjacency list. Ids that only appear as neighbors become nodes
+     * without outgoing edges.
+     */
+    public SpatialGraph(TIntObjectMap<TIntSet> adjacency) {
+        index = new TIntIntHashMap(adjacency.size() * 2, 0.5f, -1, -1);
+        TIntArrayList nodeIds = new TIntArrayList(adjacency.size());
+        int numEdges = 0;
+        for (int id : adjacency.keys()) {
+            addNode(id, nodeIds);
+        }
+        for (int id : adjacency.keys()) {
+            for (int id2 : adjacency.get(id).toArray()) {
+                addNode(id2, nodeIds);
+                numEdges++;
+            }
+        }
+        ids = nodeIds.toArray();
+        offsets = new int[ids.length + 1];
+        edges = new int[numEdges];
+        int e = 0;
+        for (int i = 0; i < ids.length; i++) {
+            offsets[i] = e;
+            TIntSet neighbors = adjacency.get(ids[i]);
+            if (neighbors != null) {
+                for (int id2 : neighbors.toArray()) {
+                    edges[e++] = index.get(id2);
+                }
+                Arrays.sort(edges, offsets[i], e);
+            }
+        }
+        offsets[ids.length] = e;
+    }
+
+    private void addNode(int id, TIntArrayList nodeIds) {
+        if (!index.containsKey(id)) {
+            index.put(id, nodeIds.size());
+            nodeIds.add(id);
+        }
+    }
+
+    public int getNumNodes() {
+        return ids.length;
+    }
+
+    public int getNumEdges() {
+        return edges.length;
+    }
+
+    public boolean containsNode(int id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     * Visits nodes in breadth first order, starting from the sources at startLevel and
+     * ending after nodes at maxLevel. Each node is visited once. Sources that are not
+     * in the graph are visited but have no neighbors.
+     */
+    public void bfs(int [] sourceIds, int startLevel, int maxLevel, Visitor visitor) {
+        int [] level = levels.get();
+        TIntArrayList touched = new TIntArrayList();
+        TIntArrayList frontier = new TIntArrayList();
+        try {
+            for (int id : sourceIds) {
+                int i = index.get(id);
+                if (i < 0) {
+                    if (!visitor.visit(id, startLevel)) return;
+                } else if (level[i] < 0) {
+                    level[i] = startLevel;
+                    touched.add(i);
+                    frontier.add(i);
+                    if (!visitor.visit(id, startLevel)) return;
+                }
+            }
+            for (int l = startLevel + 1; l <= maxLevel && !frontier.isEmpty(); l++) {
+                TIntArrayList next = new TIntArrayList();
+                for (int k = 0; k < frontier.size(); k++) {
+                    int i = frontier.get(k);
+                    for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                        int j = edges[e];
+                        if (level[j] < 0) {
+                            level[j] = l;
+                            touched.add(j);
+                            next.add(j);
+                            if (!visitor.visit(ids[j], l)) return;
+                        }
+                    }
+                }
+                frontier = next;
+            }
+        } finally {
+            for (int k = 0; k < touched.size(); k++) {
+                level[touched.get(k)] = -1;
+            }
+        }
+    }
+
+    /**
+     * Computes the hop distance from each set of sources to each target.
+     *
+     * @param sources The source ids for each row. Sources are at startLevel.
+     * @param startLevel The distance of the sources themselves.
+     * @param maxLevel Targets further than this are unreachable.
+     * @param targetIds The target id for each column.
+     * @return A matrix with one row per source set and one column per target.
+     *         Unreachable targets have distance Float.POSITIVE_INFINITY.
+     */
+    public float[][] hopDistances(final List<int[]> sources, final int startLevel, final int maxLevel, final int [] targetIds) {
+        final float [][] result = new float[sources.size()][targetIds.length];
+
+        // Columns for each node as linked lists: colHead[node] -> colNext[col] -> ...
+        final int [] colHead = new int[ids.length];
+        final int [] colNext = new int[targetIds.length];
+        Arrays.fill(colHead, -1);
+        for (int c = 0; c < targetIds.length; c++) {
+            int i = index.get(targetIds[c]);
+            colNext[c] = -1;
+            if (i >= 0) {
+                colNext[c] = colHead[i];
+                colHead[i] = c;
+            }
+        }
+
+        int numBatches = (sources.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        ParallelForEach.range(0, numBatches, WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+            @Override
+            public void call(Integer batch) throws Exception {
+                int from = batch * BATCH_SIZE;
+                int to = Math.min(sources.size(), from + BATCH_SIZE);
+                hopDistances(sources, from, to, startLevel, maxLevel, targetIds, colHead, colNext, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs one bit-parallel BFS for rows [from, to), where bit b of a node's mask
+     * corresponds to row from + b.
+     */
+    private void hopDistances(List<int[]> sources, int from, int to, int startLevel, int maxLevel,
+                              int [] targetIds, int [] colHead, int [] colNext, float [][] result) {
+        int n = ids.length;
+        long [] seen = new long[n];
+        long [] frontier = new long[n];
+        long [] next = new long[n];
+        TIntArrayList frontierNodes = new TIntArrayList();
+        TIntArrayList nextNodes = new TIntArrayList();
+
+        int remaining = 0;
+        for (int r = from; r < to; r++) {
+            Arrays.fill(result[r], Float.POSITIVE_INFINITY);
+            long bit = 1L << (r - from);
+            for (int id : sources.get(r)) {
+                int i = index.get(id);
+                if (i < 0) {
+                    // Not in the graph: only matches targets with the same id
+                    for (int c = 0; c < targetIds.length; c++) {
+                        if (targetIds[c] == id) {
+                            result[r][c] = startLevel;
+                        }
+                    }
+                } else if ((seen[i] & bit) == 0) {
+                    if (frontier[i] == 0) frontierNodes.add(i);
+                    frontier[i] |= bit;
+                    seen[i] |= bit;
+                }
+            }
+        }
+        for (int c = 0; c < targetIds.length; c++) {
+            if (index.containsKey(targetIds[c])) {
+                remaining += to - from;
+            }
+        }
+
+        int level = startLevel;
+        remaining -= record(frontierNodes, frontier, from, level, colHead, colNext, result);
+        while (remaining > 0 && level < maxLevel && !frontierNodes.isEmpty()) {
+            level++;
+            for (int k = 0; k < frontierNodes.size(); k++) {
+                int i = frontierNodes.get(k);
+                long f = frontier[i];
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    int j = edges[e];
+                    long bits = f & ~seen[j];
+                    if (bits != 0) {
+                        if (next[j] == 0) nextNodes.add(j);
+                        next[j] |= bits;
+                    }
+                }
+                frontier[i] = 0;
+            }
+            for (int k = 0; k < nextNodes.size(); k++) {
+                int j = nextNodes.get(k);
+                seen[j] |= next[j];
+                frontier[j] = next[j];
+                next[j] = 0;
+            }
+            TIntArrayList tmp = frontierNodes;
+            frontierNodes = nextNodes;
+            nextNodes = tmp;
+            nextNodes.resetQuick();
+            remaining -= record(frontierNodes, frontier, from, level, colHead, colNext, result);
+        }
+    }
+
+    /**
+     * Sets the distance of each newly reached target.
+     * @return The number of matrix cells that were set.
+     */
+    private int record(TIntArrayList nodes, long [] masks, int from, int level,
+                       int [] colHead, int [] colNext, float [][] result) {
+        int count = 0;
+        for (int k = 0; k < nodes.size(); k++) {
+            int i = nodes.get(k);
+            for (int c = colHead[i]; c >= 0; c = colNext[c]) {
+                long mask = masks[i];
+                while (mask != 0) {
+                    int b = Long.numberOfTrailingZeros(mask);
+                    mask &= mask - 1;
+                    if (result[from + b][c] == Float.POSITIVE_INFINITY) {
+                        result[from + b][c] = level;
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
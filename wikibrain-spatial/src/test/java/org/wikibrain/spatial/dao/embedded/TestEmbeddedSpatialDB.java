@@ -0,0 +1,182 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.vividsolutions.jts.geom.*;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+import org.wikibrain.spatial.constants.RefSys;
+import org.wikibrain.spatial.dao.SpatialContainmentDao;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestEmbeddedSpatialDB {
+    private GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = WpIOUtils.createTempDirectory("embedded-spatial");
+    }
+
+    @After
+    public void deleteDir() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testSaveAndReopen() throws DaoException {
+        EmbeddedSpatialDB db = new EmbeddedSpatialDB(dir);
+        EmbeddedSpatialDataDao dao = new EmbeddedSpatialDataDao(db, null, null);
+        dao.beginSaveGeometries();
+        for (int i = 0; i < 100; i++) {
+            dao.saveGeometry(i, "points", RefSys.EARTH, point(i, i / 2.0));
+        }
+        dao.saveGeometry(1, "squares", RefSys.EARTH, square(0, 0, 10));
+        dao.saveGeometry(5, "points", RefSys.EARTH, point(-5, -5));   // replaces the first
+        assertNull(dao.getGeometry(5, "points"));                      // not visible yet
+        dao.endSaveGeometries();
+
+        assertEquals(point(-5, -5), dao.getGeometry(5, "points"));
+        assertEquals(point(7, 3.5), dao.getGeometry(7, "points"));
+        assertNull(dao.getGeometry(100, "points"));
+        assertEquals(square(0, 0, 10), dao.getGeometry(1, "squares"));
+        assertEquals(100, dao.getAllGeometriesInLayer("points").size());
+        assertEquals(2, dao.getGeometries(1).size());
+        assertEquals(new HashSet<String>(Arrays.asList("points", "squares")), dao.getAllLayerNames(RefSys.EARTH));
+
+        SpatialContainerMetadata md = dao.getLayerMetadata("points", RefSys.EARTH);
+        assertEquals(100, md.geomCount);
+        assertEquals(SpatialContainerMetadata.ShapeType.POINT, md.shapeType);
+
+        // Adding to an existing layer keeps its other geometries
+        dao.beginSaveGeometries();
+        dao.saveGeometry(200, "points", RefSys.EARTH, point(20, 20));
+        dao.endSaveGeometries();
+
+        EmbeddedSpatialDataDao dao2 = new EmbeddedSpatialDataDao(new EmbeddedSpatialDB(dir), null, null);
+        assertEquals(101, dao2.getAllGeometriesInLayer("points").size());
+        assertEquals(point(-5, -5), dao2.getGeometry(5, "points"));
+        assertEquals(point(20, 20), dao2.getGeometry(200, "points"));
+        assertEquals(3, dao2.getBulkGeometriesInLayer(Arrays.asList(1, 2, 200, 300), "points", RefSys.EARTH).size());
+
+        dao2.removeLayer(RefSys.EARTH, "points");
+        assertNull(dao2.getGeometry(7, "points"));
+        assertEquals(Collections.singleton("squares"), dao2.getAllLayerNames(RefSys.EARTH));
+    }
+
+    @Test
+    public void testQueries() throws DaoException {
+        EmbeddedSpatialDB db = new EmbeddedSpatialDB(dir);
+        Random random = new Random(0);
+        Map<Integer, Geometry> points = new HashMap<Integer, Geometry>();
+        for (int i = 0; i < 1000; i++) {
+            Geometry p = point(random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10);
+            points.put(i, p);
+            db.saveGeometry(i, "points", RefSys.EARTH, p);
+        }
+        db.saveGeometry(1, "squares", RefSys.EARTH, square(0, 0, 5));
+        db.saveGeometry(2, "squares", RefSys.EARTH, square(5, 0, 5));
+        db.saveGeometry(3, "squares", RefSys.EARTH, square(20, 20, 5));
+        db.flush();
+
+        EmbeddedSpatialContainmentDao containment = new EmbeddedSpatialContainmentDao(db);
+        TIntSet contained = containment.getContainedItemIds(1, "squares", RefSys.EARTH,
+                Collections.singleton("points"), SpatialContainmentDao.ContainmentOperationType.CONTAINMENT);
+        Geometry square = square(0, 0, 5);
+        for (int id : points.keySet()) {
+            assertEquals(square.contains(points.get(id)), contained.contains(id));
+        }
+        assertTrue(contained.size() > 0);
+
+        EmbeddedSpatialNeighborDao neighbors = new EmbeddedSpatialNeighborDao(db);
+        TIntSet near = neighbors.getNeighboringItemIds(point(1, 1), RefSys.EARTH, Collections.singleton("points"), 0.5, 3.0);
+        for (int id : points.keySet()) {
+            double d = points.get(id).distance(point(1, 1));
+            assertEquals(d > 0.5 && d <= 3.0, near.contains(id));
+        }
+
+        Map<Integer, Geometry> touching = neighbors.getNeighbors(1, "squares", RefSys.EARTH, new HashSet<Integer>());
+        assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), touching.keySet());
+
+        Map<Integer, Geometry> knn = neighbors.getKNNeighbors(point(0, 0), 10, "points", RefSys.EARTH, new HashSet<Integer>(Arrays.asList(0)));
+        assertEquals(10, knn.size());
+        assertFalse(knn.containsKey(0));
+    }
+
+    @Test
+    public void testKNNearPolesAndAntimeridian() throws DaoException {
+        EmbeddedSpatialDB db = new EmbeddedSpatialDB(dir);
+        Random random = new Random(1);
+        final Map<Integer, Geometry> points = new HashMap<Integer, Geometry>();
+        for (int i = 0; i < 3000; i++) {
+            double lon = random.nextDouble() * 360 - 180;
+            double lat;
+            switch (i % 3) {
+                case 0: lat = 80 + random.nextDouble() * 10; break;           // near the north pole
+                case 1: lat = -90 + random.nextDouble() * 10; break;          // near the south pole
+                default:                                                      // near the antimeridian
+                    double offset = random.nextDouble() * 5;
+                    lon = random.nextBoolean() ? 180 - offset : -180 + offset;
+                    lat = random.nextDouble() * 120 - 60;
+                    break;
+            }
+            Geometry p = point(lon, lat);
+            points.put(i, p);
+            db.saveGeometry(i, "points", RefSys.EARTH, p);
+        }
+        db.flush();
+
+        EmbeddedSpatialNeighborDao neighbors = new EmbeddedSpatialNeighborDao(db);
+        Set<Integer> exclude = new HashSet<Integer>(Arrays.asList(0, 1, 2));
+        List<Point> queries = Arrays.asList(
+                point(0, 89.9), point(120, 85), point(-170, -89.5), point(45, -80),
+                point(179.9, 0), point(-179.9, 30), point(179, -55), point(-178, 70));
+        for (final Point q : queries) {
+            for (int k : Arrays.asList(1, 10, 50)) {
+                Map<Integer, Geometry> knn = neighbors.getKNNeighbors(q, k, "points", RefSys.EARTH, exclude);
+
+                List<Integer> expected = new ArrayList<Integer>(points.keySet());
+                expected.removeAll(exclude);
+                Collections.sort(expected, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer i1, Integer i2) {
+                        return Double.compare(distance(q, points.get(i1)), distance(q, points.get(i2)));
+                    }
+                });
+                assertEquals(q + " k=" + k, expected.subList(0, k), new ArrayList<Integer>(knn.keySet()));
+            }
+        }
+    }
+
+    private static double distance(Point p, Geometry g) {
+        Coordinate c = g.getCoordinate();
+        return WikiBrainSpatialUtils.haversine(p.getX(), p.getY(), c.x, c.y);
+    }
+
+    private Point point(double x, double y) {
+        return factory.createPoint(new Coordinate(x, y));
+    }
+
+    private Polygon square(double x, double y, double width) {
+        return factory.createPolygon(factory.createLinearRing(new Coordinate[] {
+                new Coordinate(x, y),
+                new Coordinate(x + width, y),
+                new Coordinate(x + width, y + width),
+                new Coordinate(x, y + width),
+                new Coordinate(x, y),
+        }), null);
+    }
+}
@@ -13,6 +13,8 @@ import org.wikibrain.spatial.util.ClosestPointIndex;
 import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
 import org.wikibrain.utils.Scoreboard;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
@@ -41,12 +43,15 @@ public class TestClosestPointIndex {
         Point query = makePoint();
         Scoreboard<Point> actual = new Scoreboard<Point>(numNeighbors, Scoreboard.Order.INCREASING);
         ClosestPointIndex index = new ClosestPointIndex();
+        Map<Integer, Point> points = new HashMap<Integer, Point>();
 
         for (int i = 0; i < 100000; i++) {
             Point p = makePoint();
             actual.add(p, WikiBrainSpatialUtils.haversine(query, p));
             index.insert(i * 3, p);
+            points.put(i * 3, p);
         }
+        index.build();
 
         System.out.println("Closest points to " + query + " are: ");
         long before = System.currentTimeMillis();
@@ -57,11 +62,35 @@ public class TestClosestPointIndex {
         for (int i = 0; i < neighbors.size(); i++) {
             ClosestPointIndex.Result n = neighbors.get(i);
             Point p = actual.getElement(i);
-            assertSame(p, n.point);
+            assertSame(p, points.get(n.id));
+            assertEquals(WikiBrainSpatialUtils.haversine(query, p), n.distance, 10.0);
             System.out.println("\t" + n.point + " with distance " + n.distance);
         }
     }
 
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ClosestPointIndex index = new ClosestPointIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.insert(i, makePoint());
+        }
+        File file = File.createTempFile("closest-points", ".bin");
+        file.deleteOnExit();
+        index.write(file);
+
+        ClosestPointIndex mapped = ClosestPointIndex.read(file);
+        assertEquals(10000, mapped.size());
+        for (int i = 0; i < 20; i++) {
+            Point query = makePoint();
+            List<ClosestPointIndex.Result> expected = index.query(query, 10);
+            List<ClosestPointIndex.Result> actual = mapped.query(query, 10);
+            assertEquals(10, actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j).id, actual.get(j).id);
+            }
+        }
+    }
+
     private Point makePoint() {
         double lat = 90 - random.nextDouble() * 180;
         double lon = 180 - random.nextDouble() * 360;
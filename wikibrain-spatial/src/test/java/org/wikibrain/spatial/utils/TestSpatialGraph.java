@@ -0,0 +1,110 @@
+package org.wikibrain.spatial.utils;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.spatial.util.SpatialGraph;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSpatialGraph {
+    private Random random = new Random(0);
+
+    @Test
+    public void testBfs() {
+        // A path 10 - 20 - 30 - 40 with a branch 20 - 50
+        TIntObjectMap<TIntSet> adjacency = new TIntObjectHashMap<TIntSet>();
+        addEdge(adjacency, 10, 20);
+        addEdge(adjacency, 20, 30);
+        addEdge(adjacency, 30, 40);
+        addEdge(adjacency, 20, 50);
+        SpatialGraph graph = new SpatialGraph(adjacency);
+        assertEquals(5, graph.getNumNodes());
+        assertEquals(8, graph.getNumEdges());
+
+        final TIntIntMap levels = new TIntIntHashMap();
+        graph.bfs(new int[] { 10, 99 }, 1, 3, new SpatialGraph.Visitor() {
+            @Override
+            public boolean visit(int id, int level) {
+                levels.put(id, level);
+                return true;
+            }
+        });
+        assertEquals(5, levels.size());
+        assertEquals(1, levels.get(10));
+        assertEquals(1, levels.get(99));
+        assertEquals(2, levels.get(20));
+        assertEquals(3, levels.get(30));
+        assertEquals(3, levels.get(50));
+        assertEquals(false, levels.containsKey(40));
+
+        float [][] matrix = graph.hopDistances(
+                Arrays.asList(new int[] { 10 }, new int[] { 40, 50 }, new int[] { 99 }),
+                0, 10, new int[] { 10, 40, 99 });
+        assertEquals(0, matrix[0][0], 0.01);
+        assertEquals(3, matrix[0][1], 0.01);
+        assertEquals(Float.POSITIVE_INFINITY, matrix[0][2], 0.01);
+        assertEquals(2, matrix[1][0], 0.01);
+        assertEquals(0, matrix[1][1], 0.01);
+        assertEquals(Float.POSITIVE_INFINITY, matrix[2][0], 0.01);
+        assertEquals(0, matrix[2][2], 0.01);
+    }
+
+    @Test
+    public void testHopDistancesMatchBfs() {
+        int numNodes = 2000;
+        TIntObjectMap<TIntSet> adjacency = new TIntObjectHashMap<TIntSet>();
+        for (int i = 0; i < numNodes * 2; i++) {
+            addEdge(adjacency, random.nextInt(numNodes) * 7, random.nextInt(numNodes) * 7);
+        }
+        SpatialGraph graph = new SpatialGraph(adjacency);
+
+        List<int[]> sources = new ArrayList<int[]>();
+        for (int i = 0; i < 150; i++) {
+            int [] s = new int[1 + random.nextInt(3)];
+            for (int j = 0; j < s.length; j++) {
+                s[j] = random.nextInt(numNodes) * 7;
+            }
+            sources.add(s);
+        }
+        int [] targets = new int[300];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = random.nextInt(numNodes) * 7;
+        }
+
+        float [][] matrix = graph.hopDistances(sources, 1, 6, targets);
+        for (int i = 0; i < sources.size(); i++) {
+            final TIntIntMap levels = new TIntIntHashMap();
+            graph.bfs(sources.get(i), 1, 6, new SpatialGraph.Visitor() {
+                @Override
+                public boolean visit(int id, int level) {
+                    levels.put(id, level);
+                    return true;
+                }
+            });
+            for (int j = 0; j < targets.length; j++) {
+                float expected = levels.containsKey(targets[j]) ? levels.get(targets[j]) : Float.POSITIVE_INFINITY;
+                assertEquals(expected, matrix[i][j], 0.01);
+            }
+        }
+    }
+
+    private void addEdge(TIntObjectMap<TIntSet> adjacency, int id1, int id2) {
+        if (id1 == id2) {
+            return;
+        }
+        if (!adjacency.containsKey(id1)) adjacency.put(id1, new TIntHashSet());
+        if (!adjacency.containsKey(id2)) adjacency.put(id2, new TIntHashSet());
+        adjacency.get(id1).add(id2);
+        adjacency.get(id2).add(id1);
+    }
+}
@@ -8,7 +8,7 @@ import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.WikiBrainException;
@@ -28,15 +28,13 @@ import org.wikibrain.sr.normalize.IdentityNormalizer;
 import org.wikibrain.sr.normalize.Normalizer;
 import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SrNormalizers;
-import org.wikibrain.utils.ParallelForEach;
-import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.StageTimings;
 import org.wikibrain.utils.WpIOUtils;
-import org.wikibrain.utils.WpThreadUtils;
+import org.wikibrain.utils.WpStringUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.lang.reflect.Method;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -48,6 +46,10 @@ import org.slf4j.LoggerFactory;
 public abstract class BaseSRMetric implements SRMetric {
     private static Logger LOG = LoggerFactory.getLogger(BaseSRMetric.class);
 
+    // Names of the StageTimings recorded while answering queries
+    public static final String STAGE_DISAMBIGUATOR = "disambiguator";
+    public static final String STAGE_NORMALIZER = "normalizer";
+
     private final String name;
     private final Language language;
 
@@ -61,11 +63,18 @@ public abstract class BaseSRMetric implements SRMetric {
     private boolean buildMostSimilarCache = false;
     private SparseMatrix mostSimilarCache = null;
     private TIntSet mostSimilarCacheRowIds = null;
+    private int mostSimilarCacheRowsPerShard = MostSimilarCacheBuilder.DEFAULT_ROWS_PER_SHARD;
+
+    // in-memory cache of results for interactive queries, or null if disabled
+    private SRResultCache resultCache = null;
 
 
     // the number of senses to consider for each phrase
     private int numSenses = 5;
 
+    // True if a subclass scores phrases itself rather than by disambiguating them to pages
+    private final boolean customPhraseSimilarity = overridesPhraseSimilarity(getClass());
+
     /**
      * Returns properties about the metric.
      */
@@ -103,11 +112,13 @@ public abstract class BaseSRMetric implements SRMetric {
     @Override
     public void setMostSimilarNormalizer(Normalizer n){
         normalizers.setMostSimilarNormalizer(n);
+        invalidateResultCache();
     }
 
     @Override
     public void setSimilarityNormalizer(Normalizer n){
         normalizers.setSimilarityNormalizer(n);
+        invalidateResultCache();
     }
 
     @Override
@@ -157,12 +168,18 @@ public abstract class BaseSRMetric implements SRMetric {
      */
     protected SRResultList normalize(SRResultList srl) {
         ensureMostSimilarTrained();
-        return normalizers.getMostSimilarNormalizer().normalize(srl);
+        long start = System.nanoTime();
+        SRResultList normalized = normalizers.getMostSimilarNormalizer().normalize(srl);
+        StageTimings.record(STAGE_NORMALIZER, start);
+        return normalized;
     }
 
     protected double normalize (double score){
         ensureSimilarityTrained();
-        return normalizers.getSimilarityNormalizer().normalize(score);
+        long start = System.nanoTime();
+        double normalized = normalizers.getSimilarityNormalizer().normalize(score);
+        StageTimings.record(STAGE_NORMALIZER, start);
+        return normalized;
     }
 
     @Override
@@ -184,6 +201,7 @@ public abstract class BaseSRMetric implements SRMetric {
         if (shouldReadNormalizers && normalizers.hasReadableNormalizers(dataDir)) {
             normalizers.read(dataDir);
         }
+        invalidateResultCache();
         IOUtils.closeQuietly(mostSimilarCache);
         if (getMostSimilarMatrixPath().isFile()) {
             mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
@@ -196,6 +214,7 @@ public abstract class BaseSRMetric implements SRMetric {
             throw new IllegalArgumentException("SR metric has language " + getLanguage() + " but dataset has language " + dataset.getLanguage());
         }
         normalizers.trainSimilarity(this, dataset);
+        invalidateResultCache();
     }
 
     @Override
@@ -204,6 +223,7 @@ public abstract class BaseSRMetric implements SRMetric {
             throw new IllegalArgumentException("SR metric has language " + getLanguage() + " but dataset has language " + dataset.getLanguage());
         }
         normalizers.trainMostSimilar(this, disambiguator, dataset, validIds, numResults);
+        invalidateResultCache();
         try {
             if (buildMostSimilarCache) {
                 writeMostSimilarCache(numResults, mostSimilarCacheRowIds, validIds);
@@ -218,12 +238,27 @@ public abstract class BaseSRMetric implements SRMetric {
 
     @Override
     public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+        if (resultCache == null || explanations) {
+            return phraseSimilarity(phrase1, phrase2, explanations);
+        }
+        String key = SRResultCache.makeKey("similarity", phrase1, phrase2);
+        SRResult result = resultCache.getResult(key);
+        if (result == null) {
+            result = phraseSimilarity(phrase1, phrase2, false);
+            resultCache.putResult(key, result);
+        }
+        return result;
+    }
+
+    private SRResult phraseSimilarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
         Language language = getLanguage();
         List<LocalString> phrases = Arrays.asList(
                 new LocalString(language, phrase1),
                 new LocalString(language, phrase2));
 //        debugSimilarityDisambiguator(phrases);
+        long start = System.nanoTime();
         List<LocalId> resolutions =  disambiguator.disambiguateTop(phrases, null);
+        StageTimings.record(STAGE_DISAMBIGUATOR, start);
         if (resolutions.get(0) == null || resolutions.get(1) == null) {
             return new SRResult();
         }
@@ -263,7 +298,16 @@ public abstract class BaseSRMetric implements SRMetric {
 
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
-        return mostSimilar(pageId, maxResults, null);
+        if (resultCache == null) {
+            return mostSimilar(pageId, maxResults, null);
+        }
+        String key = SRResultCache.makeKey("mostSimilar", pageId, maxResults);
+        SRResultList results = resultCache.getResultList(key);
+        if (results == null) {
+            results = mostSimilar(pageId, maxResults, null);
+            resultCache.putResultList(key, results);
+        }
+        return results;
     }
 
     @Override
@@ -271,18 +315,27 @@ public abstract class BaseSRMetric implements SRMetric {
 
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults) throws DaoException {
-        LocalId similar = disambiguator.disambiguateTop(new LocalString(getLanguage(), phrase), null);
-        if (similar==null){
-            SRResultList resultList = new SRResultList(1);
-            resultList.set(0, new SRResult());
-            return resultList;
-        }
-        return mostSimilar(similar.getId(), maxResults);
+        return mostSimilar(phrase, maxResults, null);
     }
 
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException{
+        if (resultCache == null) {
+            return phraseMostSimilar(phrase, maxResults, validIds);
+        }
+        String key = SRResultCache.makeKey("phraseMostSimilar", phrase, maxResults, SRResultCache.fingerprint(validIds));
+        SRResultList results = resultCache.getResultList(key);
+        if (results == null) {
+            results = phraseMostSimilar(phrase, maxResults, validIds);
+            resultCache.putResultList(key, results);
+        }
+        return results;
+    }
+
+    private SRResultList phraseMostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException{
+        long start = System.nanoTime();
         LocalId similar = disambiguator.disambiguateTop(new LocalString(getLanguage(), phrase), null);
+        StageTimings.record(STAGE_DISAMBIGUATOR, start);
         if (similar==null){
             SRResultList resultList = new SRResultList(1);
             resultList.set(0, new SRResult());
@@ -306,22 +359,87 @@ public abstract class BaseSRMetric implements SRMetric {
         return cos;
     }
 
+    /**
+     * Disambiguates all pairs of phrases in one batch, so candidate senses and
+     * their similarities are shared across pairs. Subclasses that override
+     * similarity(String, String) are scored pair by pair with that method instead,
+     * so both methods agree.
+     */
     @Override
     public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
+        if (hasCustomPhraseSimilarity()) {
+            return pairwiseCosimilarity(rowPhrases, colPhrases);
+        }
+        List<List<LocalString>> pairs = new ArrayList<List<LocalString>>();
+        for (String row : rowPhrases) {
+            for (String col : colPhrases) {
+                if (!row.equals(col)) {
+                    pairs.add(Arrays.asList(
+                            new LocalString(getLanguage(), row),
+                            new LocalString(getLanguage(), col)));
+                }
+            }
+        }
+        long start = System.nanoTime();
+        List<List<LinkedHashMap<LocalId, Float>>> senses = disambiguator.disambiguateBatch(pairs, null);
+        StageTimings.record(STAGE_DISAMBIGUATOR, start);
+
         double[][] cos = new double[rowPhrases.length][colPhrases.length];
+        int pair = 0;
         for (int i=0; i<rowPhrases.length; i++){
             for (int j=0; j<colPhrases.length; j++){
                 if (rowPhrases[i].equals(colPhrases[j])){
                     cos[i][j]=normalize(1.0);
+                    continue;
                 }
-                else{
-                    cos[i][j]=similarity(rowPhrases[i],colPhrases[j],false).getScore();
+                List<LinkedHashMap<LocalId, Float>> pairSenses = senses.get(pair++);
+                LocalId id1 = getTopSense(pairSenses.get(0));
+                LocalId id2 = getTopSense(pairSenses.get(1));
+                if (id1 == null || id2 == null) {
+                    cos[i][j] = new SRResult().getScore();
+                } else {
+                    cos[i][j] = similarity(id1.getId(), id2.getId(), false).getScore();
                 }
             }
         }
         return cos;
     }
 
+    /**
+     * @return True if similarity(String, String) scores phrases without disambiguating
+     * them to pages, so phrase cosimilarity must call it for each pair.
+     */
+    protected boolean hasCustomPhraseSimilarity() {
+        return customPhraseSimilarity;
+    }
+
+    private double[][] pairwiseCosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
+        double[][] cos = new double[rowPhrases.length][colPhrases.length];
+        for (int i=0; i<rowPhrases.length; i++){
+            for (int j=0; j<colPhrases.length; j++){
+                if (rowPhrases[i].equals(colPhrases[j])){
+                    cos[i][j]=normalize(1.0);
+                } else {
+                    cos[i][j]=similarity(rowPhrases[i], colPhrases[j], false).getScore();
+                }
+            }
+        }
+        return cos;
+    }
+
+    private static boolean overridesPhraseSimilarity(Class<?> klass) {
+        try {
+            Method m = klass.getMethod("similarity", String.class, String.class, boolean.class);
+            return m.getDeclaringClass() != BaseSRMetric.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static LocalId getTopSense(LinkedHashMap<LocalId, Float> senses) {
+        return (senses == null || senses.isEmpty()) ? null : senses.keySet().iterator().next();
+    }
+
     @Override
     public double[][] cosimilarity(int[] ids) throws DaoException {
         double[][] cos = new double[ids.length][ids.length];
@@ -344,7 +462,9 @@ public abstract class BaseSRMetric implements SRMetric {
         for (String phrase : phrases){
             localStringList.add(new LocalString(getLanguage(), phrase));
         }
+        long start = System.nanoTime();
         List<LocalId> localIds = disambiguator.disambiguateTop(localStringList, null);
+        StageTimings.record(STAGE_DISAMBIGUATOR, start);
         for (int i=0; i<phrases.length; i++){
             ids[i] = localIds.get(i).getId();
         }
@@ -394,6 +514,8 @@ public abstract class BaseSRMetric implements SRMetric {
 
     /**
      * Creates and writes a sparse matrix that records the top-k results for every page.
+     * The cache is built in resumable shards by a {@link MostSimilarCacheBuilder}.
+     *
      * @param maxHits
      * @param rowIds
      * @param colIds
@@ -423,56 +545,64 @@ public abstract class BaseSRMetric implements SRMetric {
         if (colIds == null) colIds = allPageIds;
 
         getDataDir().mkdirs();
-        IOUtils.closeQuietly(mostSimilarCache);
 
+        // Rows must be computed by the metric itself, not read from the cache being rebuilt.
+        IOUtils.closeQuietly(mostSimilarCache);
+        mostSimilarCache = null;
 
-        SRConfig config = getConfig();
-        final AtomicInteger idCounter = new AtomicInteger();
-        final AtomicLong cellCounter = new AtomicLong();
-        ValueConf vconf = new ValueConf(config.minScore, config.maxScore);
-
-        final SparseMatrixWriter writer = new SparseMatrixWriter(getMostSimilarMatrixPath(), vconf);
-        final TIntSet colIdSet = colIds == null ? null : new TIntHashSet(colIds);
-
+        MostSimilarCacheBuilder builder = new MostSimilarCacheBuilder(this, maxHits, rowIds, new TIntHashSet(colIds));
+        builder.setRowsPerShard(mostSimilarCacheRowsPerShard);
 
         Normalizer simNormalizer = getSimilarityNormalizer();
         Normalizer mostSimNormalizer = getMostSimilarNormalizer();
         setMostSimilarNormalizer(new IdentityNormalizer());
         setSimilarityNormalizer(new IdentityNormalizer());
         try {
-            ParallelForEach.loop(
-                    Arrays.asList(ArrayUtils.toObject(rowIds.toArray())),
-                    WpThreadUtils.getMaxThreads(),
-                    new Procedure<Integer>() {
-                        public void call(Integer wpId) throws IOException, DaoException {
-                            writeSim(writer, wpId, colIdSet, maxHits, idCounter, cellCounter);
-                        }
-                    }, Integer.MAX_VALUE);
+            builder.build(getMostSimilarMatrixPath());
         } finally {
             setSimilarityNormalizer(simNormalizer);
             setMostSimilarNormalizer(mostSimNormalizer);
         }
 
-        LOG.info("wrote " + cellCounter.get() + " non-zero similarity cells");
-        writer.finish();
         mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
+        invalidateResultCache();
+        LOG.info("wrote " + mostSimilarCache.getNumRows() + " most similar rows");
     }
 
     protected File getMostSimilarMatrixPath() {
         return new File(getDataDir(), "mostSimilar.matrix");
     }
 
-
-    private void writeSim(SparseMatrixWriter writer, Integer wpId, TIntSet colIds, int maxSimsPerDoc, AtomicInteger idCounter, AtomicLong cellCounter) throws IOException, DaoException {
-        if (idCounter.incrementAndGet() % 10000 == 0) {
-            LOG.info("finding matches for page " + idCounter.get());
+    /**
+     * Returns a fingerprint of the trained model that raw mostSimilar scores depend on.
+     * {@link MostSimilarCacheBuilder} only resumes a build if the fingerprint is unchanged.
+     *
+     * By default this is a checksum of the files in the data directory other than the
+     * most similar cache and the normalizers, which are not used while the cache is built.
+     * Subclasses with trained state that is not yet written to the data directory should
+     * include it.
+     *
+     * @throws IOException
+     */
+    public String getModelFingerprint() throws IOException {
+        File dir = getDataDir();
+        if (dir == null || !dir.isDirectory()) {
+            return "none";
         }
-        SRResultList scores = mostSimilar(wpId, maxSimsPerDoc, colIds);
-        if (scores != null) {
-            int ids[] = scores.getIds();
-            cellCounter.getAndIncrement();
-            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), wpId, ids, scores.getScoresAsFloat()));
+        String cacheName = getMostSimilarMatrixPath().getName();
+        List<File> files = new ArrayList<File>(FileUtils.listFiles(dir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+        Collections.sort(files);
+        StringBuilder b = new StringBuilder();
+        for (File f : files) {
+            String path = f.getAbsolutePath().substring(dir.getAbsolutePath().length() + 1);
+            if (path.startsWith(cacheName)
+            ||  path.equals(SrNormalizers.SIMILARITY_NORMALIZER)
+            ||  path.equals(SrNormalizers.MOST_SIMILAR_NORMALIZER)) {
+                continue;
+            }
+            b.append(path).append(':').append(f.length()).append(':').append(FileUtils.checksumCRC32(f)).append('\n');
         }
+        return Long.toHexString(WpStringUtils.longHashCode(b.toString()));
     }
 
     public Language getLanguage() {
@@ -505,16 +635,50 @@ public abstract class BaseSRMetric implements SRMetric {
         IOUtils.closeQuietly(mostSimilarCache);
         FileUtils.deleteQuietly(getMostSimilarMatrixPath());
         mostSimilarCache = null;
+        invalidateResultCache();
+    }
+
+    /**
+     * Enables an in-memory cache of results for repeated queries.
+     * @param resultCache The cache, or null to disable caching.
+     */
+    public void setResultCache(SRResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public SRResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Discards all results in the in-memory result cache, if there is one.
+     * This happens automatically when the metric is read or retrained.
+     */
+    public void invalidateResultCache() {
+        if (resultCache != null) {
+            resultCache.invalidate();
+        }
     }
 
     public void setBuildMostSimilarCache(boolean buildMostSimilarCache) {
         this.buildMostSimilarCache = buildMostSimilarCache;
     }
 
+    /**
+     * @return True if trainMostSimilar() writes a most similar cache to the data directory.
+     */
+    public boolean getBuildMostSimilarCache() {
+        return buildMostSimilarCache;
+    }
+
     public void setMostSimilarCacheRowIds(TIntSet rowIds) {
         this.mostSimilarCacheRowIds = rowIds;
     }
 
+    public void setMostSimilarCacheRowsPerShard(int rowsPerShard) {
+        this.mostSimilarCacheRowsPerShard = rowsPerShard;
+    }
+
     protected static void configureBase(Configurator configurator, BaseSRMetric sr, Config config) throws ConfigurationException {
         Config rootConfig = configurator.getConf().get();
 
@@ -532,6 +696,18 @@ public abstract class BaseSRMetric implements SRMetric {
         if (config.hasPath("buildMostSimilarCache")) {
             sr.setBuildMostSimilarCache(config.getBoolean("buildMostSimilarCache"));
         }
+        if (config.hasPath("mostSimilarCacheRowsPerShard")) {
+            sr.setMostSimilarCacheRowsPerShard(config.getInt("mostSimilarCacheRowsPerShard"));
+        }
+        Config cacheConfig = config.hasPath("resultCache")
+                ? config.getConfig("resultCache").withFallback(rootConfig.getConfig("sr.metric.resultCache"))
+                : rootConfig.getConfig("sr.metric.resultCache");
+        if (cacheConfig.getInt("size") > 0) {
+            sr.setResultCache(new SRResultCache(
+                    cacheConfig.getInt("size"),
+                    cacheConfig.getLong("ttlSeconds") * 1000,
+                    cacheConfig.getInt("admitAfter")));
+        }
 
         try {
             sr.read();
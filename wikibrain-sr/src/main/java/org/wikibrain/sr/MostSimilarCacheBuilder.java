@@ -0,0 +1,189 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.ArrayUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.matrix.*;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the most similar cache for a metric in resumable shards.
+ *
+ * Row ids are sorted and split into contiguous id ranges. Each shard is
+ * computed in parallel and written to its own sparse matrix in a work
+ * directory next to the output file. A shard file only appears once the
+ * shard is complete, so if the build is interrupted a later build with the
+ * same parameters and the same trained model skips the finished shards (see
+ * {@link BaseSRMetric#getModelFingerprint()}). The shards are merged into
+ * the output matrix at the end and the work directory is removed.
+ *
+ * @author Shilad Sen
+ */
+public class MostSimilarCacheBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(MostSimilarCacheBuilder.class);
+
+    public static final int DEFAULT_ROWS_PER_SHARD = 50000;
+
+    private static final String MANIFEST = "manifest.txt";
+
+    private final BaseSRMetric metric;
+    private final int maxHits;
+    private final int[] rowIds;
+    private final TIntSet colIds;
+    private final ValueConf vconf;
+
+    private int rowsPerShard = DEFAULT_ROWS_PER_SHARD;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    /**
+     * @param metric The metric whose mostSimilar results are cached.
+     * @param maxHits Number of results stored for each row.
+     * @param rowIds Ids whose results should be cached.
+     * @param colIds Ids that may appear in results, or null for all ids.
+     */
+    public MostSimilarCacheBuilder(BaseSRMetric metric, int maxHits, TIntSet rowIds, TIntSet colIds) {
+        this.metric = metric;
+        this.maxHits = maxHits;
+        this.rowIds = rowIds.toArray();
+        this.colIds = colIds;
+        Arrays.sort(this.rowIds);
+        BaseSRMetric.SRConfig config = metric.getConfig();
+        this.vconf = new ValueConf(config.minScore, config.maxScore);
+    }
+
+    public void setRowsPerShard(int rowsPerShard) {
+        this.rowsPerShard = rowsPerShard;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Builds the cache and writes it to the output path.
+     * @param output
+     * @throws IOException
+     */
+    public void build(File output) throws IOException {
+        File workDir = getWorkDir(output);
+        int numShards = buildShards(workDir, rowIds);
+        File tmp = new File(output.getParentFile(), output.getName() + ".tmp");
+        merge(workDir, numShards, tmp);
+        FileUtils.deleteQuietly(output);
+        FileUtils.moveFile(tmp, output);
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    /**
+     * Computes all shards that have not already been completed.
+     * @return The number of shards.
+     */
+    int buildShards(File workDir, int[] ids) throws IOException {
+        prepareWorkDir(workDir, ids);
+        int numShards = (ids.length + rowsPerShard - 1) / rowsPerShard;
+        for (int i = 0; i < numShards; i++) {
+            File shard = getShardPath(workDir, i);
+            if (shard.isFile()) {
+                LOG.info("skipping completed shard " + (i + 1) + " of " + numShards);
+                continue;
+            }
+            int from = i * rowsPerShard;
+            int to = Math.min(ids.length, from + rowsPerShard);
+            buildShard(Arrays.copyOfRange(ids, from, to), shard);
+            LOG.info("completed shard " + (i + 1) + " of " + numShards +
+                    " (ids " + ids[from] + " to " + ids[to - 1] + ")");
+        }
+        return numShards;
+    }
+
+    static File getWorkDir(File output) {
+        return new File(output.getParentFile(), output.getName() + ".shards");
+    }
+
+    /**
+     * Clears the work directory unless it was created by a build with identical parameters
+     * and an identical trained model.
+     */
+    private void prepareWorkDir(File workDir, int[] ids) throws IOException {
+        String manifest = "maxHits=" + maxHits + "\n" +
+                "rowsPerShard=" + rowsPerShard + "\n" +
+                "numRows=" + ids.length + "\n" +
+                "rowHash=" + Arrays.hashCode(ids) + "\n" +
+                "colHash=" + hashIds(colIds) + "\n" +
+                "minScore=" + vconf.minScore + "\n" +
+                "maxScore=" + vconf.maxScore + "\n" +
+                "model=" + metric.getModelFingerprint() + "\n";
+        File manifestFile = new File(workDir, MANIFEST);
+        if (manifestFile.isFile() && FileUtils.readFileToString(manifestFile).equals(manifest)) {
+            LOG.info("resuming most similar cache build in " + workDir);
+            return;
+        }
+        FileUtils.deleteQuietly(workDir);
+        workDir.mkdirs();
+        FileUtils.write(manifestFile, manifest);
+    }
+
+    private void buildShard(int[] ids, File shard) throws IOException {
+        final long start = System.currentTimeMillis();
+        final AtomicInteger counter = new AtomicInteger();
+        File tmp = new File(shard.getParentFile(), shard.getName() + ".tmp");
+        final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, vconf);
+        ParallelForEach.loop(
+                Arrays.asList(ArrayUtils.toObject(ids)),
+                numThreads,
+                new Procedure<Integer>() {
+                    public void call(Integer wpId) throws IOException, DaoException {
+                        SRResultList scores = metric.mostSimilar(wpId, maxHits, colIds);
+                        if (scores != null) {
+                            writer.writeRow(new SparseMatrixRow(vconf, wpId, scores.getIds(), scores.getScoresAsFloat()));
+                        }
+                        int n = counter.incrementAndGet();
+                        if (n % 10000 == 0) {
+                            double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+                            LOG.info(String.format("computed %d most similar rows (%.1f rows/sec)", n, n / elapsed));
+                        }
+                    }
+                }, Integer.MAX_VALUE);
+        writer.finish();
+        FileUtils.moveFile(tmp, shard);
+    }
+
+    private void merge(File workDir, int numShards, File output) throws IOException {
+        SparseMatrixWriter writer = new SparseMatrixWriter(output, vconf);
+        for (int i = 0; i < numShards; i++) {
+            SparseMatrix shard = new SparseMatrix(getShardPath(workDir, i));
+            try {
+                for (SparseMatrixRow row : shard) {
+                    writer.writeRow(row);
+                }
+            } finally {
+                IOUtils.closeQuietly(shard);
+            }
+        }
+        writer.finish();
+    }
+
+    static File getShardPath(File workDir, int shard) {
+        return new File(workDir, "shard-" + shard + ".matrix");
+    }
+
+    private static int hashIds(TIntSet ids) {
+        if (ids == null) {
+            return 0;
+        }
+        int[] sorted = ids.toArray();
+        Arrays.sort(sorted);
+        return Arrays.hashCode(sorted);
+    }
+}
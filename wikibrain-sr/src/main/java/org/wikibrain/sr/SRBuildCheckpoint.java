@@ -0,0 +1,114 @@
+package org.wikibrain.sr;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Records which phases of a metric build have completed, so an interrupted or
+ * failed build can resume where it left off.
+ *
+ * A checkpoint is tied to a fingerprint of the build's inputs. If the stored
+ * fingerprint differs from the current one, the checkpoint is stale and no
+ * phase counts as complete.
+ *
+ * @author Shilad Sen
+ */
+public class SRBuildCheckpoint {
+    public static final String SIMILARITY = "similarity";
+    public static final String MOSTSIMILAR = "mostSimilar";
+    public static final String FINISHED = "finished";
+
+    private static final String FINGERPRINT_KEY = "fingerprint";
+
+    private final File file;
+    private final String fingerprint;
+    private final Properties properties = new Properties();
+    private final boolean stale;
+
+    /**
+     * Reads the checkpoint at file, if it exists.
+     * @param file
+     * @param fingerprint A summary of the build's inputs.
+     * @throws IOException
+     */
+    public SRBuildCheckpoint(File file, String fingerprint) throws IOException {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        boolean matches = false;
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            matches = fingerprint.equals(properties.getProperty(FINGERPRINT_KEY));
+            if (!matches) {
+                properties.clear();
+            }
+        }
+        this.stale = file.isFile() && !matches;
+        properties.setProperty(FINGERPRINT_KEY, fingerprint);
+    }
+
+    /**
+     * @return True if a checkpoint exists on disk but was written for different inputs.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    public synchronized boolean isComplete(String phase) {
+        return properties.containsKey(phase);
+    }
+
+    /**
+     * @return The time the build finished, or -1 if it has not finished.
+     */
+    public synchronized long getFinishedTime() {
+        String t = properties.getProperty(FINISHED);
+        return (t == null) ? -1 : Long.valueOf(t);
+    }
+
+    /**
+     * Marks a phase as complete and writes the checkpoint.
+     * The file is replaced atomically, so a crash leaves either the old or the new checkpoint.
+     * @param phase
+     * @throws IOException
+     */
+    public synchronized void markComplete(String phase) throws IOException {
+        properties.setProperty(phase, "" + System.currentTimeMillis());
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "SR build checkpoint");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(tmp, file);
+        }
+    }
+
+    /**
+     * Removes the checkpoint from disk and forgets all completed phases.
+     */
+    public synchronized void clear() {
+        properties.clear();
+        properties.setProperty(FINGERPRINT_KEY, fingerprint);
+        FileUtils.deleteQuietly(file);
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
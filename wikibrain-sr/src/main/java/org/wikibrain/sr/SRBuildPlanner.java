@@ -0,0 +1,293 @@
+package org.wikibrain.sr;
+
+import com.typesafe.config.Config;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a metric and all of its submetrics for several languages at once.
+ *
+ * The planner resolves the submetric dependency tree for every language into a
+ * graph of build tasks. A task starts once its dependencies have been built, and
+ * independent tasks (for example, the same submetric in different languages) run
+ * in parallel as long as they fit in the thread and memory budgets.
+ *
+ * Unless the builder is configured to delete existing data, each built metric
+ * records a {@link SRBuildCheckpoint} with a fingerprint of its inputs. Metrics whose
+ * fingerprint is unchanged since they were last built are skipped, and a metric
+ * whose build failed partway resumes after its last completed phase.
+ *
+ * If a task fails, the tasks that depend on it are skipped, the remaining tasks
+ * still run, and a WikiBrainException describing the failures is thrown at the end.
+ *
+ * @author Shilad Sen
+ */
+public class SRBuildPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(SRBuildPlanner.class);
+
+    public static final String CHECKPOINT_FILE = "build.checkpoint";
+
+    private final Map<Language, SRBuilder> builders = new LinkedHashMap<Language, SRBuilder>();
+
+    private int maxConcurrentBuilds;
+    private int memoryBudgetMB;
+    private int memoryPerMetricMB;
+
+    /**
+     * @param prototype A configured builder. Its settings are copied for each language.
+     * @param languages
+     * @throws ConfigurationException
+     */
+    public SRBuildPlanner(SRBuilder prototype, LanguageSet languages) throws ConfigurationException {
+        for (Language lang : languages) {
+            builders.put(lang, prototype.copyForLanguage(lang));
+        }
+        Config config = prototype.getEnv().getConfiguration().get().getConfig("sr.builder");
+        this.maxConcurrentBuilds = config.getInt("maxConcurrentBuilds");
+        this.memoryPerMetricMB = config.getInt("memoryPerMetricMB");
+        this.memoryBudgetMB = config.getInt("memoryBudgetMB");
+        if (memoryBudgetMB <= 0) {
+            memoryBudgetMB = (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Returns the builder used for a language, so its settings can be customized.
+     */
+    public SRBuilder getBuilder(Language language) {
+        return builders.get(language);
+    }
+
+    public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+    }
+
+    public void setMemoryBudgetMB(int memoryBudgetMB) {
+        this.memoryBudgetMB = memoryBudgetMB;
+    }
+
+    public void setMemoryPerMetricMB(int memoryPerMetricMB) {
+        this.memoryPerMetricMB = memoryPerMetricMB;
+    }
+
+    /**
+     * Returns the build tasks in an order that respects their dependencies.
+     * @return
+     * @throws ConfigurationException
+     */
+    public List<Task> plan() throws ConfigurationException {
+        List<Task> tasks = new ArrayList<Task>();
+        for (SRBuilder builder : builders.values()) {
+            addTask(builder, builder.getMetricName(), new HashMap<String, Task>(), new HashSet<String>(), tasks);
+        }
+        return tasks;
+    }
+
+    /**
+     * Creates the task for a metric after the tasks for its dependencies,
+     * so tasks are appended in dependency order.
+     */
+    private Task addTask(SRBuilder builder, String name, Map<String, Task> created, Set<String> visiting, List<Task> tasks) throws ConfigurationException {
+        if (created.containsKey(name)) {
+            return created.get(name);
+        }
+        if (!visiting.add(name)) {
+            throw new ConfigurationException("metric " + name + " depends on itself");
+        }
+        Task task = new Task(builder, name, getMemoryEstimate(builder, name));
+        for (String dep : builder.getDependencies(name)) {
+            Task depTask = addTask(builder, dep, created, visiting, tasks);
+            task.dependencies.add(depTask);
+            depTask.dependents.add(task);
+        }
+        visiting.remove(name);
+        created.put(name, task);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Builds all metrics for all languages.
+     */
+    public void build() throws ConfigurationException, WikiBrainException, InterruptedException {
+        List<Task> tasks = plan();
+        LOG.info("planned " + tasks.size() + " metric builds for " + builders.size() + " languages " +
+                "with at most " + maxConcurrentBuilds + " concurrent builds and " + memoryBudgetMB + "MB of memory");
+
+        for (Task task : tasks) {
+            task.remaining = task.dependencies.size();
+        }
+        LinkedList<Task> ready = new LinkedList<Task>();
+        for (Task task : tasks) {
+            if (task.remaining == 0) {
+                ready.add(task);
+            }
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, maxConcurrentBuilds));
+        CompletionService<Task> completions = new ExecutorCompletionService<Task>(exec);
+        Map<Task, Exception> failures = new LinkedHashMap<Task, Exception>();
+        List<Task> skipped = new ArrayList<Task>();
+        int running = 0;
+        int freeMB = memoryBudgetMB;
+        try {
+            while (true) {
+                // Start every ready task that fits. A task larger than the whole budget runs alone.
+                Iterator<Task> iter = ready.iterator();
+                while (iter.hasNext() && running < Math.max(1, maxConcurrentBuilds)) {
+                    final Task task = iter.next();
+                    int mb = Math.min(task.memoryMB, memoryBudgetMB);
+                    if (mb <= freeMB || running == 0) {
+                        iter.remove();
+                        freeMB -= mb;
+                        running++;
+                        completions.submit(new Callable<Task>() {
+                            @Override
+                            public Task call() {
+                                try {
+                                    runTask(task);
+                                } catch (Exception e) {
+                                    task.error = e;
+                                }
+                                return task;
+                            }
+                        });
+                    }
+                }
+                if (running == 0) {
+                    break;
+                }
+                Task done;
+                try {
+                    done = completions.take().get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);  // should not happen; runTask errors are captured
+                }
+                running--;
+                freeMB += Math.min(done.memoryMB, memoryBudgetMB);
+                if (done.error == null) {
+                    for (Task dependent : done.dependents) {
+                        if (--dependent.remaining == 0 && !dependent.skip) {
+                            ready.add(dependent);
+                        }
+                    }
+                } else {
+                    LOG.error("building " + done + " failed", done.error);
+                    failures.put(done, done.error);
+                    skipDependents(done, skipped);
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder("failed to build " + failures.size() + " metrics:");
+            for (Map.Entry<Task, Exception> entry : failures.entrySet()) {
+                message.append(" ").append(entry.getKey()).append(" (").append(entry.getValue().getMessage()).append(")");
+            }
+            if (!skipped.isEmpty()) {
+                message.append("; skipped dependent metrics ").append(skipped);
+            }
+            throw new WikiBrainException(message.toString(), failures.values().iterator().next());
+        }
+        LOG.info("finished building " + tasks.size() + " metrics");
+    }
+
+    private void skipDependents(Task task, List<Task> skipped) {
+        for (Task dependent : task.dependents) {
+            if (!dependent.skip) {
+                dependent.skip = true;
+                skipped.add(dependent);
+                skipDependents(dependent, skipped);
+            }
+        }
+    }
+
+    private void runTask(Task task) throws Exception {
+        SRBuilder builder = task.builder;
+        File dir = builder.getMetricDirectory(task.name);
+        File file = new File(dir.getParentFile(), dir.getName() + "." + CHECKPOINT_FILE);
+
+        // The fingerprint covers the metric's own inputs and when each dependency was last built,
+        // so rebuilding a submetric also rebuilds everything that relies on it.
+        StringBuilder fingerprint = new StringBuilder(builder.getBuildFingerprint(task.name));
+        for (Task dep : task.dependencies) {
+            fingerprint.append("-").append(dep.finishedTime);
+        }
+        SRBuildCheckpoint checkpoint = new SRBuildCheckpoint(file, fingerprint.toString());
+
+        if (builder.getDeleteExistingData() || checkpoint.isStale()) {
+            if (dir.exists()) {
+                LOG.info("deleting metric directory " + dir);
+                FileUtils.deleteQuietly(dir);
+            }
+            checkpoint.clear();
+        } else if (checkpoint.isComplete(SRBuildCheckpoint.FINISHED)) {
+            LOG.info("metric " + task + " is up to date... skipping");
+            task.finishedTime = checkpoint.getFinishedTime();
+            return;
+        }
+
+        builder.buildConceptsIfNecessary();
+        builder.buildMetric(task.name, checkpoint);
+        checkpoint.markComplete(SRBuildCheckpoint.FINISHED);
+        task.finishedTime = checkpoint.getFinishedTime();
+    }
+
+    private int getMemoryEstimate(SRBuilder builder, String name) throws ConfigurationException {
+        Config config = builder.getMetricConfig(name);
+        return config.hasPath("buildMemoryMB") ? config.getInt("buildMemoryMB") : memoryPerMetricMB;
+    }
+
+    /**
+     * A single metric to build in a single language.
+     */
+    public static class Task {
+        private final SRBuilder builder;
+        private final String name;
+        private final int memoryMB;
+        private final List<Task> dependencies = new ArrayList<Task>();
+        private final List<Task> dependents = new ArrayList<Task>();
+
+        // Scheduling state. Only accessed by the thread running build(), except for
+        // error and finishedTime, which are published through the completion service.
+        private int remaining;
+        private boolean skip = false;
+        private Exception error;
+        private long finishedTime = -1;
+
+        Task(SRBuilder builder, String name, int memoryMB) {
+            this.builder = builder;
+            this.name = name;
+            this.memoryMB = memoryMB;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Language getLanguage() {
+            return builder.getLanguage();
+        }
+
+        public List<Task> getDependencies() {
+            return Collections.unmodifiableList(dependencies);
+        }
+
+        @Override
+        public String toString() {
+            return name + "/" + builder.getLanguage().getLangCode();
+        }
+    }
+}
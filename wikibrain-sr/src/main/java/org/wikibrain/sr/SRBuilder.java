@@ -1,6 +1,7 @@
 package org.wikibrain.sr;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
@@ -14,7 +15,12 @@ import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.MetaInfo;
+import org.wikibrain.core.model.RawPage;
 import org.wikibrain.download.FileDownloader;
 import org.wikibrain.phrases.LinkProbabilityDao;
 import org.wikibrain.sr.dataset.Dataset;
@@ -27,6 +33,7 @@ import org.wikibrain.sr.wikify.Corpus;
 import org.wikibrain.sr.word2vec.Word2VecGenerator;
 import org.wikibrain.sr.word2vec.Word2VecTrainer;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpStringUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -44,6 +51,9 @@ import java.util.zip.GZIPInputStream;
  * A "script" to build the semantic relatedness models.
  * This script takes care to not load the metric in build() until after data directories are deleted.
  *
+ * build() builds the metric and its submetrics one at a time for a single language.
+ * {@link SRBuildPlanner} builds them for many languages in parallel and resumes from checkpoints.
+ *
  * @author Shilad Sen
  */
 public class SRBuilder {
@@ -79,7 +89,10 @@ public class SRBuilder {
 
     // We may need to create a fake gold standard for languages that don't have one.
     private boolean createFakeGoldStandard = false;
-    private Dataset fakeGoldStandard = null;
+
+    // The training dataset is built once and shared by all metrics built in this language.
+    private final Object datasetLock = new Object();
+    private Dataset dataset = null;
 
     public static enum Mode {
         SIMILARITY,
@@ -89,6 +102,9 @@ public class SRBuilder {
 
     private Mode mode = Mode.BOTH;
 
+    // Components whose load times determine whether a built metric is out of date.
+    private static final Class [] INPUT_COMPONENTS = { RawPage.class, LocalPage.class, LocalLink.class };
+
     public SRBuilder(Env env, String metricName, Language language) throws ConfigurationException {
         this.env = env;
         this.language = language;
@@ -108,6 +124,27 @@ public class SRBuilder {
         this(env, metricName, env.getDefaultLanguage());
     }
 
+    /**
+     * Returns a builder for another language with the same settings as this one.
+     * @param language
+     * @return
+     * @throws ConfigurationException
+     */
+    public SRBuilder copyForLanguage(Language language) throws ConfigurationException {
+        SRBuilder copy = new SRBuilder(env, metricName, language);
+        copy.deleteExistingData = deleteExistingData;
+        copy.maxResults = maxResults;
+        copy.buildCosimilarity = buildCosimilarity;
+        copy.rowIds = rowIds;
+        copy.colIds = colIds;
+        copy.datasetNames = datasetNames;
+        copy.skipBuiltMetrics = skipBuiltMetrics;
+        copy.validMostSimilarIds = validMostSimilarIds;
+        copy.createFakeGoldStandard = createFakeGoldStandard;
+        copy.mode = mode;
+        return copy;
+    }
+
 
 
     public synchronized SRMetric getMetric() throws ConfigurationException {
@@ -189,9 +226,88 @@ public class SRBuilder {
         return results;
     }
 
+    /**
+     * Returns the metrics that must be built before the specified metric.
+     * Unlike getSubmetrics(), this only includes direct dependencies.
+     *
+     * @param name
+     * @return
+     * @throws ConfigurationException
+     */
+    public List<String> getDependencies(String name) throws ConfigurationException {
+        String type = getMetricType(name);
+        Config config = getMetricConfig(name);
+        List<String> deps = new ArrayList<String>();
+        if (type.equals("ensemble") || type.equals("simple-ensemble")) {
+            deps.addAll(config.getStringList("metrics"));
+        } else if (type.equals("sparsevector.mostsimilarconcepts")) {
+            deps.add(config.getString("generator.basemetric"));
+        } else if (type.equals("milnewitten")) {
+            deps.add(config.getString("inlink"));
+            deps.add(config.getString("outlink"));
+        } else if (config.hasPath("reliesOn")) {
+            deps.addAll(config.getStringList("reliesOn"));
+        }
+        deps.remove(name);
+        return deps;
+    }
+
+    /**
+     * Returns a fingerprint of everything that affects how the metric is built:
+     * its configuration, the build settings, and the load times of the underlying
+     * Wikipedia data recorded by the MetaInfoDao. It does not include dependencies.
+     *
+     * @param name
+     * @return
+     * @throws ConfigurationException
+     */
+    public String getBuildFingerprint(String name) throws ConfigurationException {
+        StringBuilder b = new StringBuilder();
+        b.append("metric=").append(name).append('\n');
+        b.append("language=").append(language.getLangCode()).append('\n');
+        b.append("config=").append(getMetricConfig(name).root().render(ConfigRenderOptions.concise())).append('\n');
+        b.append("mode=").append(mode).append('\n');
+        b.append("maxResults=").append(maxResults).append('\n');
+        b.append("datasets=").append(datasetNames).append('\n');
+        b.append("fakeGold=").append(createFakeGoldStandard).append('\n');
+        b.append("cosimilarity=").append(buildCosimilarity).append('\n');
+        b.append("validIds=").append(validMostSimilarIds == null ? "all" : "" + validMostSimilarIds.size()).append('\n');
+        MetaInfoDao metaDao = env.getConfigurator().get(MetaInfoDao.class);
+        for (Class component : INPUT_COMPONENTS) {
+            String loaded;
+            try {
+                MetaInfo info = metaDao.getInfo(component, language);
+                loaded = (info == null || info.getLastUpdated() == null) ? "none" : "" + info.getLastUpdated().getTime();
+            } catch (DaoException e) {
+                LOG.warn("couldn't read meta info for " + component.getSimpleName() + " in " + language, e);
+                loaded = "unknown";
+            }
+            b.append(component.getSimpleName()).append('=').append(loaded).append('\n');
+        }
+        return Long.toHexString(WpStringUtils.longHashCode(b.toString()));
+    }
+
+    /**
+     * Returns the directory that holds the data for a metric in this builder's language.
+     */
+    public File getMetricDirectory(String name) {
+        return FileUtils.getFile(srDir, name, language.getLangCode());
+    }
+
     public void buildMetric(String name) throws ConfigurationException, DaoException, IOException, InterruptedException {
+        buildMetric(name, null);
+    }
+
+    /**
+     * Builds a metric, skipping the phases the checkpoint records as complete and
+     * recording each phase as it completes.
+     *
+     * @param name
+     * @param checkpoint May be null.
+     */
+    public void buildMetric(String name, SRBuildCheckpoint checkpoint) throws ConfigurationException, DaoException, IOException, InterruptedException {
 
-        LOG.info("building component metric " + name);
+        LOG.info("building component metric " + name + " for " + language);
         String type = getMetricType(name);
         if (type.equals("densevector.word2vec")) {
             initWord2Vec(name);
@@ -218,14 +334,22 @@ public class SRBuilder {
         if (mode == Mode.SIMILARITY || mode == Mode.BOTH) {
             if (skipBuiltMetrics && metric.similarityIsTrained()) {
                 LOG.info("metric " + name + " similarity() is already trained... skipping");
+            } else if (checkpoint != null && checkpoint.isComplete(SRBuildCheckpoint.SIMILARITY) && metric.similarityIsTrained()) {
+                LOG.info("metric " + name + " similarity() was trained in an earlier run... skipping");
             } else {
                 metric.trainSimilarity(ds);
+                if (checkpoint != null) {
+                    metric.write();
+                    checkpoint.markComplete(SRBuildCheckpoint.SIMILARITY);
+                }
             }
         }
 
         if (mode == Mode.MOSTSIMILAR || mode == Mode.BOTH) {
             if (skipBuiltMetrics && metric.mostSimilarIsTrained()) {
                 LOG.info("metric " + name + " mostSimilar() is already trained... skipping");
+            } else if (checkpoint != null && checkpoint.isComplete(SRBuildCheckpoint.MOSTSIMILAR) && metric.mostSimilarIsTrained()) {
+                LOG.info("metric " + name + " mostSimilar() was trained in an earlier run... skipping");
             } else {
                 Config config = getMetricConfig(name);
                 int n = maxResults * EnsembleMetric.SEARCH_MULTIPLIER;
@@ -238,6 +362,10 @@ public class SRBuilder {
                     validIds = readIds(path);
                 }
                 metric.trainMostSimilar(ds, n, validIds);
+                if (checkpoint != null) {
+                    metric.write();
+                    checkpoint.markComplete(SRBuildCheckpoint.MOSTSIMILAR);
+                }
             }
         }
         metric.write();
@@ -246,7 +374,7 @@ public class SRBuilder {
     private String localize(String str) {
         return str.replace("LANG", language.getLangCode());
     }
-    private void initWord2Vec(String name) throws ConfigurationException, IOException, DaoException, InterruptedException {
+    private synchronized void initWord2Vec(String name) throws ConfigurationException, IOException, DaoException, InterruptedException {
         Config config = getMetricConfig(name).getConfig("generator");
         File model = Word2VecGenerator.getModelFile(config.getString("modelDir"), language);
         if (skipBuiltMetrics && model.isFile()) {
@@ -322,6 +450,17 @@ public class SRBuilder {
             LOG.info("set window to " + config.getInt("maxWords"));
             trainer.setWindow(config.getInt("window"));
         }
+        if (config.hasPath("negative")) {
+            LOG.info("set negative samples to " + config.getInt("negative"));
+            trainer.setNegative(config.getInt("negative"));
+        }
+        if (config.hasPath("hierarchicalSoftmax")) {
+            trainer.setHierarchicalSoftmax(config.getBoolean("hierarchicalSoftmax"));
+        }
+        if (config.hasPath("sample")) {
+            LOG.info("set subsampling threshold to " + config.getDouble("sample"));
+            trainer.setSample(config.getDouble("sample"));
+        }
         trainer.setKeepAllArticles(true);
         trainer.train(corpus.getDirectory());
         trainer.save(model);
@@ -336,7 +475,10 @@ public class SRBuilder {
         this.validMostSimilarIds = validMostSimilarIds;
     }
 
-    private void buildConceptsIfNecessary() throws IOException, ConfigurationException, DaoException {
+    /**
+     * Builds the concept file for this builder's language if the metric or its submetrics need it.
+     */
+    public synchronized void buildConceptsIfNecessary() throws IOException, ConfigurationException, DaoException {
         boolean needsConcepts = false;
         for (String name : getSubmetrics(metricName)) {
             String type = getMetricType(name);
@@ -367,21 +509,31 @@ public class SRBuilder {
                 " with " + FileUtils.readLines(path).size() + " lines");
     }
 
+    /**
+     * Returns the dataset used to train metrics. It is built on the first call,
+     * and later calls (possibly from concurrent metric builds) share it.
+     */
     public Dataset getDataset() throws ConfigurationException, DaoException {
+        synchronized (datasetLock) {
+            if (dataset == null) {
+                dataset = buildDataset();
+            }
+            return dataset;
+        }
+    }
+
+    private Dataset buildDataset() throws ConfigurationException, DaoException {
         if (createFakeGoldStandard) {
-            if (fakeGoldStandard == null) {
-                Corpus c = env.getConfigurator().get(
-                        Corpus.class, "plain", "language",
-                        language.getLangCode());
-                try {
-                    if (!c.exists()) c.create();
-                    FakeDatasetCreator creator = new FakeDatasetCreator(c);
-                    fakeGoldStandard = creator.generate(500);
-                } catch (IOException e) {
-                    throw new DaoException(e);
-                }
+            Corpus c = env.getConfigurator().get(
+                    Corpus.class, "plain", "language",
+                    language.getLangCode());
+            try {
+                if (!c.exists()) c.create();
+                FakeDatasetCreator creator = new FakeDatasetCreator(c);
+                return creator.generate(500);
+            } catch (IOException e) {
+                throw new DaoException(e);
             }
-            return fakeGoldStandard;
         } else {
             DatasetDao dao = env.getConfigurator().get(DatasetDao.class);
             List<Dataset> datasets = new ArrayList<Dataset>();
@@ -392,6 +544,12 @@ public class SRBuilder {
         }
     }
 
+    private void clearDataset() {
+        synchronized (datasetLock) {
+            dataset = null;
+        }
+    }
+
 
     public String getMetricType() throws ConfigurationException {
         return getMetricType(metricName);
@@ -424,6 +582,7 @@ public class SRBuilder {
 
     public void setDatasetNames(List<String> datasetNames) {
         this.datasetNames = datasetNames;
+        clearDataset();
     }
 
     public void setBuildCosimilarity(boolean buildCosimilarity) {
@@ -453,7 +612,26 @@ public class SRBuilder {
         this.skipBuiltMetrics = skipBuiltMetrics;
     }
 
-    public void setLanguage(Language language) {this.language = language; }
+    public void setLanguage(Language language) {
+        this.language = language;
+        clearDataset();
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public boolean getDeleteExistingData() {
+        return deleteExistingData;
+    }
+
+    public Env getEnv() {
+        return env;
+    }
 
     private static TIntSet readIds(String path) throws IOException {
         TIntSet ids = new TIntHashSet();
@@ -471,6 +649,7 @@ public class SRBuilder {
 
     public void setCreateFakeGoldStandard(boolean createFakeGoldStandard) {
         this.createFakeGoldStandard = createFakeGoldStandard;
+        clearDataset();
     }
 
     public static void main(String args[]) throws ConfigurationException, IOException, WikiBrainException, DaoException, InterruptedException {
@@ -550,6 +729,21 @@ public class SRBuilder {
                         .withDescription("Don't rebuild already built bmetrics (implies -d false)")
                         .create("k"));
 
+        // reuse metrics whose inputs are unchanged and resume interrupted builds.
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("resume")
+                        .withDescription("Reuse built metrics whose inputs are unchanged and resume interrupted builds (implies -d false)")
+                        .create("u"));
+
+        // limit on the number of metrics built at the same time
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("concurrent-builds")
+                        .withDescription("maximum number of metrics (across all languages) built at the same time")
+                        .create("b"));
+
         // when building pairwise cosine and ensembles, don't rebuild already built sub-metrics.
         options.addOption(
                 new DefaultOptionBuilder()
@@ -600,8 +794,8 @@ public class SRBuilder {
         if (cmd.hasOption("o")) {
             builder.setMode(Mode.valueOf(cmd.getOptionValue("o").toUpperCase()));
         }
-        if (cmd.hasOption("l")) {
-            builder.setLanguage(Language.getByLangCode(cmd.getOptionValue("l")));
+        if (cmd.hasOption("u")) {
+            builder.setDeleteExistingData(false);
         }
         if (cmd.hasOption("r")) {
             builder.setMaxResults(Integer.valueOf(cmd.getOptionValue("r")));
@@ -610,6 +804,11 @@ public class SRBuilder {
             builder.setCreateFakeGoldStandard(true);
         }
 
-        builder.build();
+        // Build every requested language together so independent metrics run in parallel.
+        SRBuildPlanner planner = new SRBuildPlanner(builder, env.getLanguages());
+        if (cmd.hasOption("b")) {
+            planner.setMaxConcurrentBuilds(Integer.valueOf(cmd.getOptionValue("b")));
+        }
+        planner.build();
     }
 }
@@ -0,0 +1,153 @@
+package org.wikibrain.sr;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.wikibrain.sr.utils.TopKSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact list of SR results backed by parallel primitive arrays.
+ *
+ * Unlike SRResultList, which holds an SRResult object per entry, this class
+ * stores ids and scores in an int[] and a float[]. Explanations are rare, so
+ * they are only allocated when one is attached, and they are keyed by id so
+ * sorting does not need to move them.
+ *
+ * Use {@link #toResultList()} to convert the results at API boundaries.
+ *
+ * @author Shilad Sen
+ */
+public class SRResultArray {
+    private int[] ids;
+    private float[] scores;
+    private int size;
+    private TIntObjectMap<List<Explanation>> explanations;
+
+    public SRResultArray(int capacity) {
+        this.ids = new int[capacity];
+        this.scores = new float[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Wraps existing arrays. The arrays are not copied.
+     * @param ids
+     * @param scores
+     * @param size Number of valid entries at the start of the arrays.
+     */
+    public SRResultArray(int[] ids, float[] scores, int size) {
+        if (ids.length < size || scores.length < size) {
+            throw new IllegalArgumentException("arrays are smaller than size " + size);
+        }
+        this.ids = ids;
+        this.scores = scores;
+        this.size = size;
+    }
+
+    public void add(int id, double score) {
+        if (size == ids.length) {
+            int capacity = Math.max(8, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+        ids[size] = id;
+        scores[size] = (float) score;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getId(int i) {
+        checkIndex(i);
+        return ids[i];
+    }
+
+    public float getScore(int i) {
+        checkIndex(i);
+        return scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        checkIndex(i);
+        scores[i] = (float) score;
+    }
+
+    /**
+     * @return A copy of the ids.
+     */
+    public int[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return A copy of the scores.
+     */
+    public float[] getScores() {
+        return Arrays.copyOf(scores, size);
+    }
+
+    /**
+     * Returns the explanations attached to an id, or null if there are none.
+     * @param id
+     * @return
+     */
+    public List<Explanation> getExplanations(int id) {
+        return (explanations == null) ? null : explanations.get(id);
+    }
+
+    public void addExplanation(int id, Explanation explanation) {
+        if (explanations == null) {
+            explanations = new TIntObjectHashMap<List<Explanation>>();
+        }
+        List<Explanation> list = explanations.get(id);
+        if (list == null) {
+            list = new ArrayList<Explanation>();
+            explanations.put(id, list);
+        }
+        list.add(explanation);
+    }
+
+    /**
+     * Truncates the list to the specified size.
+     * @param size
+     */
+    public void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Sorts the results by score, highest first.
+     * The relative order of results with equal scores is unspecified.
+     */
+    public void sortDescending() {
+        TopKSelector.sortDescending(ids, scores, 0, size);
+    }
+
+    /**
+     * Converts the results to an SRResultList in the same order.
+     * @return
+     */
+    public SRResultList toResultList() {
+        SRResultList list = new SRResultList(size);
+        for (int i = 0; i < size; i++) {
+            List<Explanation> e = getExplanations(ids[i]);
+            if (e == null) {
+                list.set(i, ids[i], scores[i]);
+            } else {
+                list.set(i, ids[i], scores[i], new ArrayList<Explanation>(e));
+            }
+        }
+        return list;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + " for size " + size);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.wikibrain.sr;
+
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.utils.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache of SR results for a single metric.
+ *
+ * Entries are evicted in approximately least-recently-used order once the
+ * cache is full, and expire after a fixed time to live. To keep one-off
+ * queries from pushing popular ones out of the cache, a result is only
+ * admitted after its key has missed admitAfter times; the recent misses are
+ * tracked in a small "doorkeeper" cache of keys.
+ *
+ * Results are copied on the way in and out, so callers may modify them.
+ *
+ * @author Shilad Sen
+ */
+public class SRResultCache {
+    private final LruCache<String, Entry> entries;
+    private final LruCache<String, Integer> doorkeeper;
+    private final long ttlMillis;
+    private final int admitAfter;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of cached results.
+     * @param ttlMillis Time to live for each result, or a non-positive number for no expiration.
+     * @param admitAfter Number of misses for a key before its result is cached. 1 admits every result.
+     */
+    public SRResultCache(int capacity, long ttlMillis, int admitAfter) {
+        this.entries = new LruCache<String, Entry>(capacity);
+        this.doorkeeper = (admitAfter > 1) ? new LruCache<String, Integer>(capacity) : null;
+        this.ttlMillis = ttlMillis;
+        this.admitAfter = admitAfter;
+    }
+
+    public SRResult getResult(String key) {
+        Object value = get(key);
+        return (value == null) ? null : copy((SRResult) value);
+    }
+
+    public void putResult(String key, SRResult result) {
+        if (result != null && shouldAdmit(key)) {
+            put(key, copy(result));
+        }
+    }
+
+    public SRResultList getResultList(String key) {
+        Object value = get(key);
+        return (value == null) ? null : copy((SRResultList) value);
+    }
+
+    public void putResultList(String key, SRResultList results) {
+        if (results != null && shouldAdmit(key)) {
+            put(key, copy(results));
+        }
+    }
+
+    /**
+     * Removes all results. Called when the underlying model changes.
+     * The hit and miss counters are preserved.
+     */
+    public void invalidate() {
+        entries.clear();
+        if (doorkeeper != null) {
+            doorkeeper.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : 1.0 * h / total;
+    }
+
+    /**
+     * Builds a cache key from a query type and its arguments.
+     * String arguments are trimmed, so equivalent phrases share an entry.
+     */
+    public static String makeKey(String type, Object ... args) {
+        StringBuilder key = new StringBuilder(type);
+        for (Object arg : args) {
+            key.append('\t');
+            key.append((arg instanceof String) ? ((String) arg).trim() : arg);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns an order independent 64-bit fingerprint of a set of ids,
+     * or 0 for a null set.
+     */
+    public static long fingerprint(TIntSet ids) {
+        if (ids == null) {
+            return 0;
+        }
+        final long[] sum = { ids.size() };
+        ids.forEach(new TIntProcedure() {
+            @Override
+            public boolean execute(int id) {
+                long h = id * 0x9E3779B97F4A7C15L;
+                h ^= (h >>> 31);
+                h *= 0xBF58476D1CE4E5B9L;
+                sum[0] += h ^ (h >>> 29);
+                return true;
+            }
+        });
+        return sum[0];
+    }
+
+    private Object get(String key) {
+        Entry e = entries.get(key);
+        if (e != null && ttlMillis > 0 && System.currentTimeMillis() > e.expires) {
+            entries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return e.value;
+        }
+    }
+
+    private void put(String key, Object value) {
+        long expires = (ttlMillis > 0) ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        entries.put(key, new Entry(value, expires));
+    }
+
+    private boolean shouldAdmit(String key) {
+        if (doorkeeper == null) {
+            return true;
+        }
+        synchronized (doorkeeper) {
+            Integer n = doorkeeper.get(key);
+            n = (n == null) ? 1 : n + 1;
+            if (n >= admitAfter) {
+                doorkeeper.remove(key);
+                return true;
+            }
+            doorkeeper.put(key, n);
+            return false;
+        }
+    }
+
+    private static SRResult copy(SRResult r) {
+        return new SRResult(r.getId(), r.getScore(), r.getExplanations());
+    }
+
+    private static SRResultList copy(SRResultList list) {
+        SRResultList copy = new SRResultList(list.numDocs());
+        for (int i = 0; i < list.numDocs(); i++) {
+            copy.set(i, list.getId(i), list.getScore(i));
+        }
+        copy.setMissingScore(list.getMissingScore());
+        return copy;
+    }
+
+    private static class Entry {
+        final Object value;
+        final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
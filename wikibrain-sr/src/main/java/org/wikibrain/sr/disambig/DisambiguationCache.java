@@ -0,0 +1,121 @@
+package org.wikibrain.sr.disambig;
+
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.lang.LocalString;
+import org.wikibrain.utils.LruCache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of phrase disambiguations.
+ *
+ * The sense distribution for a phrase depends on the phrases it was disambiguated
+ * alongside, so each entry is keyed by the phrase, the target phrases of its group
+ * in order, and the sorted context phrases.
+ *
+ * Results are copied on the way in and out, so callers may modify them.
+ *
+ * Entries are never expired. The senses chosen by a {@link SimilarityDisambiguator}
+ * depend on its SR metric, so the cache must be cleared if that metric is retrained.
+ *
+ * @author Shilad Sen
+ */
+public class DisambiguationCache {
+    private final LruCache<String, LinkedHashMap<LocalId, Float>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of cached phrase disambiguations.
+     */
+    public DisambiguationCache(int capacity) {
+        this.entries = new LruCache<String, LinkedHashMap<LocalId, Float>>(capacity);
+    }
+
+    /**
+     * Returns the cached senses for a phrase, or null if they are not cached.
+     * @param phrase
+     * @param contextKey A key for the phrase's group created by {@link #makeContextKey(java.util.List, java.util.Set)}
+     * @return
+     */
+    public LinkedHashMap<LocalId, Float> get(LocalString phrase, String contextKey) {
+        LinkedHashMap<LocalId, Float> senses = entries.get(makeKey(phrase, contextKey));
+        if (senses == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return new LinkedHashMap<LocalId, Float>(senses);
+        }
+    }
+
+    public void put(LocalString phrase, String contextKey, LinkedHashMap<LocalId, Float> senses) {
+        if (senses != null) {
+            entries.put(makeKey(phrase, contextKey), new LinkedHashMap<LocalId, Float>(senses));
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Builds a key for the group of phrases disambiguated together.
+     * Phrases are used exactly, without trimming, because they are disambiguated
+     * as given. The target phrases are kept in order, with duplicates, because the results
+     * of a disambiguation are returned in the order of its phrases. The context
+     * is an unordered set, so its phrases are sorted.
+     * @param phrases
+     * @param context May be null.
+     * @return
+     */
+    public static String makeContextKey(List<LocalString> phrases, Set<LocalString> context) {
+        StringBuilder key = new StringBuilder();
+        for (LocalString phrase : phrases) {
+            appendPhrase(key, phrase.getString());
+        }
+        if (context != null && !context.isEmpty()) {
+            List<String> sorted = new ArrayList<String>();
+            for (LocalString phrase : context) {
+                sorted.add(phrase.getString());
+            }
+            Collections.sort(sorted);
+            key.append('\n');
+            for (String s : sorted) {
+                appendPhrase(key, s);
+            }
+        }
+        return key.toString();
+    }
+
+    private static String makeKey(LocalString phrase, String contextKey) {
+        StringBuilder key = new StringBuilder(phrase.getLanguage().getLangCode());
+        appendPhrase(key, phrase.getString());
+        return key.append(contextKey).toString();
+    }
+
+    /**
+     * Appends a phrase exactly as it was disambiguated. The length prefix keeps
+     * phrases containing separators from colliding with other groups.
+     */
+    private static void appendPhrase(StringBuilder key, String phrase) {
+        key.append('\t');
+        key.append(phrase.length());
+        key.append(':');
+        key.append(phrase);
+    }
+}
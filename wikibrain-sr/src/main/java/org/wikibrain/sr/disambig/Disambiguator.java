@@ -18,8 +18,12 @@ import java.util.*;
  *
  * UniversalDisambiguator will be a wrapper class around some concrete
  * implementation of a Disambiguator.
+ *
+ * If a {@link DisambiguationCache} is set, the convenience methods and the batch
+ * methods reuse the results of earlier disambiguations of the same phrase groups.
  */
 public abstract class Disambiguator {
+    private DisambiguationCache cache;
 
     /**
      * Disambiguates a single string in some language to a local pages in that language.
@@ -32,7 +36,7 @@ public abstract class Disambiguator {
      * @return
      */
     public LinkedHashMap<LocalId, Float> disambiguate(LocalString phrase, Set<LocalString> context) throws DaoException {
-        return disambiguate(Arrays.asList(phrase), context).get(0);
+        return disambiguateCached(Arrays.asList(phrase), context).get(0);
     }
 
     /**
@@ -64,8 +68,8 @@ public abstract class Disambiguator {
      */
     public List<LocalId> disambiguateTop(List<LocalString> phrases, Set<LocalString> context) throws DaoException {
         List<LocalId> result = new ArrayList<LocalId>();
-        for (LinkedHashMap<LocalId, Float> dab : disambiguate(phrases, context)) {
-            if (dab.isEmpty()) {
+        for (LinkedHashMap<LocalId, Float> dab : disambiguateCached(phrases, context)) {
+            if (dab == null || dab.isEmpty()) {
                 result.add(null);
             } else {
                 result.add(dab.keySet().iterator().next());
@@ -86,4 +90,147 @@ public abstract class Disambiguator {
      * @return          The disambiguated pages. The order matches phrases.
      */
     public abstract List<LinkedHashMap<LocalId, Float>> disambiguate(List<LocalString> phrases, Set<LocalString> context) throws DaoException;
+
+    /**
+     * Disambiguates a batch of independent phrases, each without context.
+     * Each distinct phrase is only disambiguated once.
+     *
+     * @param phrases   The target phrases being disambiguated.
+     * @return          The disambiguated pages. The order matches phrases.
+     */
+    public List<LinkedHashMap<LocalId, Float>> disambiguate(List<LocalString> phrases) throws DaoException {
+        List<List<LocalString>> groups = new ArrayList<List<LocalString>>();
+        for (LocalString phrase : phrases) {
+            groups.add(Arrays.asList(phrase));
+        }
+        List<LinkedHashMap<LocalId, Float>> results = new ArrayList<LinkedHashMap<LocalId, Float>>();
+        for (List<LinkedHashMap<LocalId, Float>> groupResult : disambiguateBatch(groups, null)) {
+            results.add(groupResult.get(0));
+        }
+        return results;
+    }
+
+    /**
+     * Disambiguates a batch of phrase groups. The phrases in each group are disambiguated
+     * together, exactly as in {@link #disambiguate(java.util.List, java.util.Set)}, but
+     * duplicate groups are only disambiguated once and subclasses may share work
+     * (for example candidate senses) across the groups.
+     *
+     * @param groups    Groups of target phrases, for example the two phrases in an SR query.
+     * @param context   Other phrases related to all groups. May be null.
+     * @return          The disambiguated pages for each group. The order matches groups.
+     */
+    public List<List<LinkedHashMap<LocalId, Float>>> disambiguateBatch(List<List<LocalString>> groups, Set<LocalString> context) throws DaoException {
+        Map<List<LocalString>, List<LinkedHashMap<LocalId, Float>>> resolved = new HashMap<List<LocalString>, List<LinkedHashMap<LocalId, Float>>>();
+        List<List<LocalString>> missing = new ArrayList<List<LocalString>>();
+        for (List<LocalString> group : groups) {
+            if (resolved.containsKey(group)) {
+                continue;
+            }
+            List<LinkedHashMap<LocalId, Float>> cached = getCached(group, context);
+            resolved.put(group, cached);
+            if (cached == null) {
+                missing.add(group);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<List<LinkedHashMap<LocalId, Float>>> computed = disambiguateGroups(missing, context);
+            for (int i = 0; i < missing.size(); i++) {
+                resolved.put(missing.get(i), computed.get(i));
+                putCached(missing.get(i), context, computed.get(i));
+            }
+        }
+
+        List<List<LinkedHashMap<LocalId, Float>>> results = new ArrayList<List<LinkedHashMap<LocalId, Float>>>();
+        Set<List<LocalString>> used = new HashSet<List<LocalString>>();
+        for (List<LocalString> group : groups) {
+            List<LinkedHashMap<LocalId, Float>> groupResult = resolved.get(group);
+            if (!used.add(group)) {
+                // Callers may modify the results, so repeated groups get their own copy.
+                List<LinkedHashMap<LocalId, Float>> copy = new ArrayList<LinkedHashMap<LocalId, Float>>();
+                for (LinkedHashMap<LocalId, Float> senses : groupResult) {
+                    copy.add(senses == null ? null : new LinkedHashMap<LocalId, Float>(senses));
+                }
+                groupResult = copy;
+            }
+            results.add(groupResult);
+        }
+        return results;
+    }
+
+    /**
+     * Disambiguates distinct groups of phrases that are not in the cache.
+     * The default implementation disambiguates each group independently.
+     *
+     * @param groups    Distinct groups of target phrases.
+     * @param context   Other phrases related to all groups. May be null.
+     * @return          The disambiguated pages for each group. The order matches groups.
+     */
+    protected List<List<LinkedHashMap<LocalId, Float>>> disambiguateGroups(List<List<LocalString>> groups, Set<LocalString> context) throws DaoException {
+        List<List<LinkedHashMap<LocalId, Float>>> results = new ArrayList<List<LinkedHashMap<LocalId, Float>>>();
+        for (List<LocalString> group : groups) {
+            results.add(disambiguate(group, context));
+        }
+        return results;
+    }
+
+    /**
+     * Disambiguates phrases, consulting the cache if one is set.
+     */
+    protected List<LinkedHashMap<LocalId, Float>> disambiguateCached(List<LocalString> phrases, Set<LocalString> context) throws DaoException {
+        List<LinkedHashMap<LocalId, Float>> result = getCached(phrases, context);
+        if (result == null) {
+            result = disambiguate(phrases, context);
+            putCached(phrases, context, result);
+        }
+        return result;
+    }
+
+    private List<LinkedHashMap<LocalId, Float>> getCached(List<LocalString> phrases, Set<LocalString> context) {
+        if (cache == null) {
+            return null;
+        }
+        String contextKey = DisambiguationCache.makeContextKey(phrases, context);
+        List<LinkedHashMap<LocalId, Float>> result = new ArrayList<LinkedHashMap<LocalId, Float>>();
+        for (LocalString phrase : phrases) {
+            LinkedHashMap<LocalId, Float> senses = cache.get(phrase, contextKey);
+            if (senses == null) {
+                return null;
+            }
+            result.add(senses);
+        }
+        return result;
+    }
+
+    private void putCached(List<LocalString> phrases, Set<LocalString> context, List<LinkedHashMap<LocalId, Float>> result) {
+        if (cache == null) {
+            return;
+        }
+        String contextKey = DisambiguationCache.makeContextKey(phrases, context);
+        for (int i = 0; i < phrases.size(); i++) {
+            cache.put(phrases.get(i), contextKey, result.get(i));
+        }
+    }
+
+    public DisambiguationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the cache used to reuse disambiguations. Null disables caching.
+     * @param cache
+     */
+    public void setCache(DisambiguationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Clears the cache, if one is set. Called when the settings that affect
+     * disambiguation change.
+     */
+    public void clearCache() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
 }
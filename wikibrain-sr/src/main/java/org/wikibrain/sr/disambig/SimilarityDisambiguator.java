@@ -3,6 +3,8 @@ package org.wikibrain.sr.disambig;
 import com.google.common.collect.Maps;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigValueFactory;
+import gnu.trove.map.TLongDoubleMap;
+import gnu.trove.map.hash.TLongDoubleHashMap;
 import org.apache.commons.collections.CollectionUtils;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -48,6 +50,32 @@ public class SimilarityDisambiguator extends Disambiguator {
 
     @Override
     public List<LinkedHashMap<LocalId, Float>> disambiguate(List<LocalString> phrases, Set<LocalString> context) throws DaoException {
+        return disambiguate(phrases, context, new HashMap<LocalString, LinkedHashMap<LocalId, Float>>(), null);
+    }
+
+    /**
+     * Disambiguates each group with a single set of candidate resolutions and
+     * a single memo of candidate pair similarities, so phrases and sense pairs
+     * shared by several groups are only resolved and scored once.
+     */
+    @Override
+    protected List<List<LinkedHashMap<LocalId, Float>>> disambiguateGroups(List<List<LocalString>> groups, Set<LocalString> context) throws DaoException {
+        Map<LocalString, LinkedHashMap<LocalId, Float>> resolutions = new HashMap<LocalString, LinkedHashMap<LocalId, Float>>();
+        TLongDoubleMap pairSims = new TLongDoubleHashMap();
+        List<List<LinkedHashMap<LocalId, Float>>> results = new ArrayList<List<LinkedHashMap<LocalId, Float>>>();
+        for (List<LocalString> group : groups) {
+            results.add(disambiguate(group, context, resolutions, pairSims));
+        }
+        return results;
+    }
+
+    /**
+     * @param resolutions Candidate senses for phrases that have already been resolved. Updated with new phrases.
+     * @param pairSims Memo of candidate pair similarities, or null to not memoize them.
+     */
+    private List<LinkedHashMap<LocalId, Float>> disambiguate(List<LocalString> phrases, Set<LocalString> context,
+                                                            Map<LocalString, LinkedHashMap<LocalId, Float>> resolutions,
+                                                            TLongDoubleMap pairSims) throws DaoException {
         List<LinkedHashMap<LocalId, Float>> results = new ArrayList<LinkedHashMap<LocalId, Float>>();
 
         List<LocalString> allPhrases = new ArrayList<LocalString>(
@@ -56,7 +84,10 @@ public class SimilarityDisambiguator extends Disambiguator {
         // Step 0: calculate most frequent candidate senses for each phrase
         Map<LocalString, LinkedHashMap<LocalId, Float>> candidates = Maps.newHashMap();
         for (LocalString s : allPhrases) {
-            candidates.put(s, phraseAnalyzer.resolve(s.getLanguage(), s.getString(), numCandidates));
+            if (!resolutions.containsKey(s)) {
+                resolutions.put(s, phraseAnalyzer.resolve(s.getLanguage(), s.getString(), numCandidates));
+            }
+            candidates.put(s, resolutions.get(s));
         }
 
         // Skip using the sr metric at all!
@@ -72,7 +103,7 @@ public class SimilarityDisambiguator extends Disambiguator {
         }
 
         // Step 2: calculate the sum of cosimilarities for each page
-        Map<LocalId, Float> pageSims = getCosimilaritySums(candidates);
+        Map<LocalId, Float> pageSims = getCosimilaritySums(candidates, pairSims);
 
         // Step 3: multiply background probability by sim sums, choose best product
         List<LinkedHashMap<LocalId, Float>> result = new ArrayList<LinkedHashMap<LocalId, Float>>();
@@ -88,6 +119,8 @@ public class SimilarityDisambiguator extends Disambiguator {
         if (phrasePops == null || phrasePops.isEmpty()) {
             return null;
         }
+        // Candidates may be shared with other phrases, so score a copy.
+        phrasePops = new HashMap<LocalId, Float>(phrasePops);
         double sum = 0.0;
         for (LocalId lp : phrasePops.keySet()) {
             float pop = phrasePops.get(lp);
@@ -124,11 +157,12 @@ public class SimilarityDisambiguator extends Disambiguator {
     /**
      * Return the sum of cosimilarity scores for all unique pages among the candidates.
      * @param candidates
+     * @param pairSims Memo of pair similarities, or null.
      * @return
      * @throws DaoException
      */
-    private Map<LocalId, Float> getCosimilaritySums(Map<LocalString, LinkedHashMap<LocalId, Float>> candidates) throws DaoException {
-    	
+    private Map<LocalId, Float> getCosimilaritySums(Map<LocalString, LinkedHashMap<LocalId, Float>> candidates, TLongDoubleMap pairSims) throws DaoException {
+
         // Step 1: compute the page cosimilarity matrix
         Set<LocalId> uniques = new HashSet<LocalId>();
         for (LinkedHashMap<LocalId, Float> prob : candidates.values()) {
@@ -147,7 +181,17 @@ public class SimilarityDisambiguator extends Disambiguator {
             for (int i=0; i<pages.size(); i++){
                 pageIds[i] = pages.get(i).getId();
             }
-            cosim = metric.cosimilarity(pageIds);
+            cosim = (pairSims == null) ? null : getMemoizedCosimilarity(pageIds, pairSims);
+            if (cosim == null) {
+                cosim = metric.cosimilarity(pageIds);
+                if (pairSims != null) {
+                    for (int i = 0; i < pageIds.length; i++) {
+                        for (int j = i + 1; j < pageIds.length; j++) {
+                            pairSims.put(pairKey(pageIds[i], pageIds[j]), cosim[i][j]);
+                        }
+                    }
+                }
+            }
         }
 
         // Step 2: calculate the sum of cosimilarities for each page
@@ -165,12 +209,37 @@ public class SimilarityDisambiguator extends Disambiguator {
         return pageSims;
     }
 
+    /**
+     * Returns the cosimilarity matrix for the pages if the similarity of every pair
+     * has been memoized, and null otherwise.
+     */
+    private static double[][] getMemoizedCosimilarity(int[] pageIds, TLongDoubleMap pairSims) {
+        double[][] cosim = new double[pageIds.length][pageIds.length];
+        for (int i = 0; i < pageIds.length; i++) {
+            for (int j = i + 1; j < pageIds.length; j++) {
+                long key = pairKey(pageIds[i], pageIds[j]);
+                if (!pairSims.containsKey(key)) {
+                    return null;
+                }
+                cosim[i][j] = cosim[j][i] = pairSims.get(key);
+            }
+        }
+        return cosim;
+    }
+
+    private static long pairKey(int id1, int id2) {
+        int lo = Math.min(id1, id2);
+        int hi = Math.max(id1, id2);
+        return (((long) lo) << 32) | (hi & 0xffffffffL);
+    }
+
     public Criteria getCriteria() {
         return criteria;
     }
 
     public void setCriteria(Criteria criteria) {
         this.criteria = criteria;
+        clearCache();
     }
 
     public int getNumCandidates() {
@@ -179,6 +248,7 @@ public class SimilarityDisambiguator extends Disambiguator {
 
     public void setNumCandidates(int numCandidates) {
         this.numCandidates = numCandidates;
+        clearCache();
     }
 
     public static class Provider extends org.wikibrain.conf.Provider<Disambiguator>{
@@ -221,6 +291,9 @@ public class SimilarityDisambiguator extends Disambiguator {
             if (config.hasPath("criteria")) {
                 dab.setCriteria(Criteria.valueOf(config.getString("criteria").toUpperCase()));
             }
+            if (config.hasPath("cacheSize") && config.getInt("cacheSize") > 0) {
+                dab.setCache(new DisambiguationCache(config.getInt("cacheSize")));
+            }
             return dab;
         }
     }
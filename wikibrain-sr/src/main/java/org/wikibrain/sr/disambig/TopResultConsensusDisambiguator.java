@@ -117,7 +117,11 @@ public class TopResultConsensusDisambiguator extends Disambiguator {
             for (String analyzer : config.getStringList("phraseAnalyzers")){
                 phraseAnalyzers.add(getConfigurator().get(PhraseAnalyzer.class,analyzer));
             }
-            return new TopResultConsensusDisambiguator(phraseAnalyzers);
+            TopResultConsensusDisambiguator dab = new TopResultConsensusDisambiguator(phraseAnalyzers);
+            if (config.hasPath("cacheSize") && config.getInt("cacheSize") > 0) {
+                dab.setCache(new DisambiguationCache(config.getInt("cacheSize")));
+            }
+            return dab;
         }
     }
 }
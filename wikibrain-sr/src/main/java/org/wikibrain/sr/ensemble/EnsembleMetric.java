@@ -2,6 +2,7 @@ package org.wikibrain.sr.ensemble;
 
 import com.typesafe.config.Config;
 import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -80,6 +81,11 @@ public class EnsembleMetric extends BaseSRMetric {
         return normalize(ensemble.predictSimilarity(scores));
     }
 
+    @Override
+    protected boolean hasCustomPhraseSimilarity() {
+        return !resolvePhrases;
+    }
+
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
@@ -205,12 +211,52 @@ public class EnsembleMetric extends BaseSRMetric {
         this.trainSubmetrics = trainSubmetrics;
     }
 
+    public boolean getTrainSubmetrics() {
+        return trainSubmetrics;
+    }
+
+    @Override
+    public boolean getBuildMostSimilarCache() {
+        if (super.getBuildMostSimilarCache()) {
+            return true;
+        }
+        if (trainSubmetrics) {
+            for (SRMetric metric : metrics) {
+                if (metric instanceof BaseSRMetric && ((BaseSRMetric) metric).getBuildMostSimilarCache()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public void write() throws  IOException {
         super.write();
         ensemble.write(new File(getDataDir(), "ensemble").getAbsolutePath());
     }
 
+    /**
+     * Includes the trained ensemble, which is only written to the data directory
+     * after the most similar cache is built, and the fingerprints of the submetrics.
+     */
+    @Override
+    public String getModelFingerprint() throws IOException {
+        StringBuilder b = new StringBuilder(super.getModelFingerprint());
+        File tmp = File.createTempFile("ensemble", null);
+        try {
+            ensemble.write(tmp.getAbsolutePath());
+            b.append(':').append(FileUtils.checksumCRC32(tmp));
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+        for (SRMetric metric : metrics) {
+            b.append(':').append(metric.getName()).append('=');
+            b.append((metric instanceof BaseSRMetric) ? ((BaseSRMetric) metric).getModelFingerprint() : "unknown");
+        }
+        return Long.toHexString(WpStringUtils.longHashCode(b.toString()));
+    }
+
     @Override
     public void read() throws IOException{
         super.read();
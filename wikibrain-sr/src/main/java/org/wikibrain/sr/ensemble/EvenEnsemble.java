@@ -9,9 +9,9 @@ import org.wikibrain.conf.Configurator;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.TopKSelector;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -52,17 +52,9 @@ public class EvenEnsemble implements Ensemble{
                 scoreMap.adjustOrPutValue(result.getId(),value,value);
             }
         }
-        List<SRResult> resultList = new ArrayList<SRResult>();
-        for (int id : scoreMap.keys()){
-            resultList.add(new SRResult(id,scoreMap.get(id)));
-        }
-        Collections.sort(resultList);
-        Collections.reverse(resultList);
-        SRResultList result = new SRResultList(maxResults);
-        for (int i=0; i<maxResults&&i<resultList.size();i++){
-            result.set(i,resultList.get(i));
-        }
-        return result;
+        TopKSelector selector = new TopKSelector(maxResults);
+        selector.offerAll(scoreMap);
+        return selector.getTop();
     }
 
     @Override
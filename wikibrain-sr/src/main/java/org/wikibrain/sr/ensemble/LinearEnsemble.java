@@ -8,10 +8,10 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.TopKSelector;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -179,18 +179,9 @@ public class LinearEnsemble implements Ensemble{
             }
             i+=2;
         }
-        List<SRResult> resultList = new ArrayList<SRResult>();
-        for (int id : scoreMap.keys()){
-            resultList.add(new SRResult(id,scoreMap.get(id)));
-        }
-        Collections.sort(resultList);
-        Collections.reverse(resultList);
-        int size = maxResults>resultList.size()? resultList.size() : maxResults;
-        SRResultList result = new SRResultList(size);
-        for (i=0; i<size;i++){
-            result.set(i,resultList.get(i));
-        }
-        return result;
+        TopKSelector selector = new TopKSelector(maxResults);
+        selector.offerAll(scoreMap);
+        return selector.getTop();
     }
 
     @Override
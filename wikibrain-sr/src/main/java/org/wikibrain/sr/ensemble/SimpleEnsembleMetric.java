@@ -4,7 +4,6 @@ import com.typesafe.config.Config;
 import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
-import gnu.trove.procedure.TIntDoubleProcedure;
 import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -20,7 +19,7 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.normalize.Normalizer;
-import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.TopKSelector;
 
 import java.io.File;
 import java.io.IOException;
@@ -126,10 +125,8 @@ public class SimpleEnsembleMetric implements SRMetric {
         }
         int candidates[] = candidateSet.toArray();
         double cosims[][] = cosimilarity(new int[]{pageId}, candidates);
-        Leaderboard top = new Leaderboard(maxResults);
-        for (int i = 0; i < candidates.length; i++) {
-            top.tallyScore(candidates[i], cosims[0][i]);
-        }
+        TopKSelector top = new TopKSelector(maxResults);
+        top.offer(candidates, cosims[0], candidates.length);
         return top.getTop();
     }
 
@@ -173,14 +170,8 @@ public class SimpleEnsembleMetric implements SRMetric {
                 }
             }
         }
-        final Leaderboard top = new Leaderboard(maxResults);
-        scores.forEachEntry(new TIntDoubleProcedure() {
-            @Override
-            public boolean execute(int id, double score) {
-                top.tallyScore(id, score);
-                return true;
-            }
-        });
+        TopKSelector top = new TopKSelector(maxResults);
+        top.offerAll(scores);
         return top.getTop();
     }
 
@@ -232,6 +223,10 @@ public class SimpleEnsembleMetric implements SRMetric {
         this.trainSubmetrics = trainSubmetrics;
     }
 
+    public boolean getTrainSubmetrics() {
+        return trainSubmetrics;
+    }
+
     @Override
     public Normalizer getMostSimilarNormalizer() { return null; }
 
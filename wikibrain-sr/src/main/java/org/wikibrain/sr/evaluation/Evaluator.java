@@ -7,12 +7,17 @@ import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.ensemble.EnsembleMetric;
+import org.wikibrain.sr.ensemble.SimpleEnsembleMetric;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.regex.Matcher;
@@ -37,6 +42,15 @@ import java.util.regex.Pattern;
  *              splitname2.err
  *              splitname3.err
  *
+ * Splits are evaluated concurrently. The number of concurrent splits is
+ * limited by the number of available threads and a heap budget per split
+ * (see {@link #setMemoryPerSplitMB(int)}), because each split trains its own metric.
+ * The metrics of all splits share a data directory and any ensemble submetrics, so
+ * splits are evaluated one at a time if training writes to the directory or retrains
+ * the submetrics (see {@link #canTrainConcurrently(SRMetric)}).
+ * Metrics are created in split order and results are merged and logged in split
+ * order, so the output does not depend on the order in which splits finish.
+ *
  * @author Shilad Sen
  */
 public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
@@ -53,6 +67,12 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
 
     private boolean writeToStdout = true;
 
+    // maximum number of concurrent splits, or -1 to derive it from the memory budget
+    private int maxConcurrentSplits = -1;
+
+    // estimated heap needed to train and evaluate the metric for one split
+    private int memoryPerSplitMB = 2048;
+
     private List<Split> splits = new ArrayList<Split>();
 
     /**
@@ -70,6 +90,51 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
         this.writeToStdout = writeToStdout;
     }
 
+    /**
+     * Sets the maximum number of splits evaluated at the same time.
+     * If not set, it is derived from the maximum heap size and the memory per split.
+     * @param maxConcurrentSplits
+     */
+    public void setMaxConcurrentSplits(int maxConcurrentSplits) {
+        this.maxConcurrentSplits = maxConcurrentSplits;
+    }
+
+    /**
+     * Sets the estimated heap needed to evaluate one split.
+     * @param memoryPerSplitMB
+     */
+    public void setMemoryPerSplitMB(int memoryPerSplitMB) {
+        this.memoryPerSplitMB = memoryPerSplitMB;
+    }
+
+    /**
+     * @return The maximum number of splits that will be evaluated concurrently.
+     */
+    public int getConcurrentSplits() {
+        int n = maxConcurrentSplits;
+        if (n <= 0) {
+            long budgetMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+            n = (int) Math.max(1, budgetMB / memoryPerSplitMB);
+        }
+        return Math.max(1, Math.min(n, Math.min(splits.size(), WpThreadUtils.getMaxThreads())));
+    }
+
+    /**
+     * Returns false if the metrics created for different splits share state that
+     * training changes. Metrics created by a factory share a data directory, and
+     * ensembles that train their submetrics share the submetrics, which the
+     * configurator creates once per language.
+     */
+    protected boolean canTrainConcurrently(SRMetric metric) {
+        if (metric instanceof EnsembleMetric) {
+            return !((EnsembleMetric) metric).getTrainSubmetrics();
+        } else if (metric instanceof SimpleEnsembleMetric) {
+            return !((SimpleEnsembleMetric) metric).getTrainSubmetrics();
+        } else {
+            return true;
+        }
+    }
+
     public abstract void addCrossfolds(Dataset ds, int numFolds);
 
     /**
@@ -146,8 +211,13 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
 
         Map<String, T> groupEvals = new HashMap<String, T>();
 
-        for (Split split : splits) {
-            T splitEval = evaluateSplitInternal(factory, split, runNumber);
+        List<T> splitEvals = evaluateSplits(factory, runNumber);
+        for (int i = 0; i < splits.size(); i++) {
+            Split split = splits.get(i);
+            T splitEval = splitEvals.get(i);
+            maybeWriteToStdout(
+                    "Split " + modeName + ", " + split.getGroup() + ", " + split.getName() + ", " + factory.getName() + ", " + runNumber,
+                    splitEval);
             overall.merge(splitEval);
             if (!groupEvals.containsKey(split.getGroup())) {
                 File gfile = new File(getLocalDir(split, runNumber, metricName), "overall.log");
@@ -172,6 +242,73 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
         return overall;
     }
 
+    /**
+     * Evaluates all splits, several at a time.
+     * Metrics are created in split order by the calling thread, which waits
+     * for a free slot before creating the next one.
+     *
+     * @return The results for each split, in split order.
+     */
+    private List<T> evaluateSplits(final MonolingualSRFactory factory, final int runNumber) throws IOException, DaoException, WikiBrainException {
+        if (splits.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SRMetric first = factory.create();
+        int numConcurrent = getConcurrentSplits();
+        if (numConcurrent > 1 && !canTrainConcurrently(first)) {
+            LOG.info("training " + factory.getName() + " changes state shared across splits; evaluating one split at a time");
+            numConcurrent = 1;
+        }
+        final int scoringThreads = Math.max(1, WpThreadUtils.getMaxThreads() / numConcurrent);
+        LOG.info("evaluating " + splits.size() + " splits, " + numConcurrent + " at a time");
+
+        final Semaphore slots = new Semaphore(numConcurrent);
+        ExecutorService exec = Executors.newFixedThreadPool(numConcurrent);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            for (final Split split : splits) {
+                slots.acquire();
+                final SRMetric metric;
+                try {
+                    metric = futures.isEmpty() ? first : factory.create();
+                } catch (RuntimeException e) {
+                    slots.release();
+                    throw e;
+                }
+                futures.add(exec.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        try {
+                            return evaluateSplitInternal(factory, metric, split, runNumber, scoringThreads);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<T>();
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            throw new WikiBrainException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof DaoException) throw (DaoException) cause;
+            if (cause instanceof WikiBrainException) throw (WikiBrainException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new WikiBrainException((Exception) cause);
+        } finally {
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+            exec.shutdown();
+        }
+    }
+
     private Split getSplitWithGroup(String group) {
         for (Split s : splits) {
             if (s.getGroup().equals(group)) {
@@ -212,13 +349,15 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
      *
      *
      * @param factory
+     * @param metric A new metric created by the factory for this split.
      * @param split
      * @param runNumber
+     * @param numThreads Threads available to score the test data.
      * @return
      * @throws IOException
      * @throws DaoException
      */
-    private T evaluateSplitInternal(MonolingualSRFactory factory, Split split, int runNumber) throws IOException, DaoException, WikiBrainException {
+    private T evaluateSplitInternal(MonolingualSRFactory factory, SRMetric metric, Split split, int runNumber, int numThreads) throws IOException, DaoException, WikiBrainException {
         File dir = getLocalDir(split, runNumber, factory.getName());
         ensureIsDirectory(dir);
         File log = new File(dir, split.getName() + ".log");
@@ -235,15 +374,17 @@ public abstract class Evaluator <T extends BaseEvaluationLog<T>> {
         config.put("disambigConfig", factory.describeDisambiguator());
         config.put("resolvePhrases", String.valueOf(resolvePhrases));
 
-        T splitEval = evaluateSplit(factory, split, log, err, config);
+        T splitEval = evaluateSplit(metric, split, log, err, config, numThreads);
         splitEval.summarize(summary);
-        maybeWriteToStdout(
-                "Split " + modeName + ", " + split.getGroup() + ", " + split.getName() + ", " + factory.getName() + ", " + runNumber,
-                splitEval);
         return splitEval;
     }
 
-    protected abstract T evaluateSplit(MonolingualSRFactory factory, Split split, File log, File err, Map<String, String> conf) throws DaoException, IOException, WikiBrainException;
+    /**
+     * Trains the metric on the split's training data and evaluates it on the test data.
+     * This may be called concurrently for different splits. Implementations should record
+     * results in the order of the test data, using at most numThreads threads.
+     */
+    protected abstract T evaluateSplit(SRMetric metric, Split split, File log, File err, Map<String, String> conf, int numThreads) throws DaoException, IOException, WikiBrainException;
 
     private void maybeWriteToStdout(String caption, BaseEvaluationLog eval) throws IOException {
         if (!writeToStdout) {
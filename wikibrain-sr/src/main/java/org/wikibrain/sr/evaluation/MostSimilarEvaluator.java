@@ -5,12 +5,12 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.sr.BaseSRMetric;
 import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.utils.Function;
 import org.wikibrain.utils.ParallelForEach;
-import org.wikibrain.utils.Procedure;
-import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -110,52 +110,73 @@ public class MostSimilarEvaluator extends Evaluator<MostSimilarEvaluationLog> {
     }
 
 
+    /**
+     * Training a metric that builds a most similar cache writes the cache to its data directory.
+     */
+    @Override
+    protected boolean canTrainConcurrently(SRMetric metric) {
+        if (!super.canTrainConcurrently(metric)) {
+            return false;
+        }
+        return !(metric instanceof BaseSRMetric) || !((BaseSRMetric) metric).getBuildMostSimilarCache();
+    }
+
     /**
      * Evaluates a particular split for mostSimilar()
-     * @param factory
+     * The phrases are scored in parallel, then the results are recorded in order.
+     *
+     * @param metric
      * @param split
      * @param log
      * @param err
      * @param config
+     * @param numThreads
      * @return
      * @throws java.io.IOException
      * @throws org.wikibrain.core.dao.DaoException
      */
     @Override
-    protected MostSimilarEvaluationLog evaluateSplit(MonolingualSRFactory factory, Split split, File log, final File err, Map<String, String> config) throws IOException, DaoException, WikiBrainException {
-        final SRMetric metric = factory.create();
+    protected MostSimilarEvaluationLog evaluateSplit(final SRMetric metric, Split split, File log, final File err, Map<String, String> config, int numThreads) throws IOException, DaoException, WikiBrainException {
         metric.trainMostSimilar(split.getTrain(), numMostSimilarResults, mostSimilarIds);
-        final MostSimilarEvaluationLog splitEval = new MostSimilarEvaluationLog(config, log);
-        final BufferedWriter errFile = new BufferedWriter(new FileWriter(err));
         final MostSimilarDataset msd = new MostSimilarDataset(split.getTest());
-        ParallelForEach.iterate(msd.getPhrases().iterator(), WpThreadUtils.getMaxThreads(), 1000,  new Procedure<String>() {
+        List<String> phrases = new ArrayList<String>(msd.getPhrases());
+        List<Object> results = ParallelForEach.loop(phrases, numThreads, new Function<String, Object>() {
             @Override
-            public void call(String phrase) throws Exception {
-
+            public Object call(String phrase) {
                 KnownMostSim kms = msd.getSimilarities(phrase);
                 try {
-                    SRResultList result;
                     if (shouldResolvePhrases()) {
-                        result = metric.mostSimilar(kms.getPageId(), numMostSimilarResults, mostSimilarIds);
+                        return metric.mostSimilar(kms.getPageId(), numMostSimilarResults, mostSimilarIds);
                     } else {
-                        result = metric.mostSimilar(phrase, numMostSimilarResults, mostSimilarIds);
+                        return metric.mostSimilar(phrase, numMostSimilarResults, mostSimilarIds);
                     }
-                    splitEval.record(kms, result);
                 } catch (Exception e) {
-                    LOG.warn("Similarity of " + kms.getPhrase() + ", id=" + kms.getPageId() + " failed. Logging error to " + err);
-                    splitEval.recordFailed(kms);
-                    synchronized (errFile) {
-                        errFile.write("KnownSim failed: " + phrase + "\n");
-                        errFile.write("\t" + e.getMessage() + "\n");
-                        for (String frame : ExceptionUtils.getStackFrames(e)) {
-                            errFile.write("\t" + frame + "\n");
-                        }
-                        errFile.write("\n");
-                        errFile.flush();
-                    }
+                    return e;
                 }
             }
-        }, 100);
+        }, 1000);
+
+        MostSimilarEvaluationLog splitEval = new MostSimilarEvaluationLog(config, log);
+        BufferedWriter errFile = new BufferedWriter(new FileWriter(err));
+        for (int i = 0; i < phrases.size(); i++) {
+            String phrase = phrases.get(i);
+            KnownMostSim kms = msd.getSimilarities(phrase);
+            Object result = results.get(i);
+            if (result instanceof Exception) {
+                Exception e = (Exception) result;
+                LOG.warn("Similarity of " + kms.getPhrase() + ", id=" + kms.getPageId() + " failed. Logging error to " + err);
+                splitEval.recordFailed(kms);
+                errFile.write("KnownSim failed: " + phrase + "\n");
+                errFile.write("\t" + e.getMessage() + "\n");
+                for (String frame : ExceptionUtils.getStackFrames(e)) {
+                    errFile.write("\t" + frame + "\n");
+                }
+                errFile.write("\n");
+                errFile.flush();
+            } else {
+                splitEval.record(kms, (SRResultList) result);
+            }
+        }
 
         IOUtils.closeQuietly(splitEval);
         IOUtils.closeQuietly(errFile);
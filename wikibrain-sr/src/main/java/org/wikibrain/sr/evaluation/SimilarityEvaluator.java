@@ -7,6 +7,8 @@ import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.utils.KnownSim;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -73,22 +75,35 @@ public class SimilarityEvaluator extends Evaluator<SimilarityEvaluationLog> {
         );
     }
 
+    /**
+     * Scores the test data in parallel, then records the results in order.
+     */
     @Override
-    protected SimilarityEvaluationLog evaluateSplit(MonolingualSRFactory factory, Split split, File log, File err, Map<String, String> config) throws DaoException, IOException {
-        SRMetric metric = factory.create();
+    protected SimilarityEvaluationLog evaluateSplit(final SRMetric metric, Split split, File log, File err, Map<String, String> config, int numThreads) throws DaoException, IOException {
         metric.trainSimilarity(split.getTrain());
+        List<KnownSim> data = split.getTest().getData();
+        List<Object> results = ParallelForEach.loop(data, numThreads, new Function<KnownSim, Object>() {
+            @Override
+            public Object call(KnownSim ks) {
+                try {
+                    if (shouldResolvePhrases()) {
+                        return metric.similarity(ks.wpId1, ks.wpId2, false);
+                    } else {
+                        return metric.similarity(ks.phrase1, ks.phrase2, false);
+                    }
+                } catch (Exception e) {
+                    return e;
+                }
+            }
+        }, Integer.MAX_VALUE);
+
         SimilarityEvaluationLog splitEval = new SimilarityEvaluationLog(config, log);
         BufferedWriter errFile = new BufferedWriter(new FileWriter(err));
-        for (KnownSim ks : split.getTest().getData()) {
-            try {
-                SRResult result;
-                if (shouldResolvePhrases()) {
-                    result = metric.similarity(ks.wpId1, ks.wpId2, false);
-                } else {
-                    result = metric.similarity(ks.phrase1, ks.phrase2, false);
-                }
-                splitEval.record(ks, result);
-            } catch (Exception e) {
+        for (int i = 0; i < data.size(); i++) {
+            KnownSim ks = data.get(i);
+            Object result = results.get(i);
+            if (result instanceof Exception) {
+                Exception e = (Exception) result;
                 LOG.warn("Similarity of " + ks + " failed. Logging error to " + err);
                 splitEval.recordFailed(ks);
                 errFile.write("KnownSim failed: " + ks + "\n");
@@ -98,6 +113,8 @@ public class SimilarityEvaluator extends Evaluator<SimilarityEvaluationLog> {
                 }
                 errFile.write("\n");
                 errFile.flush();
+            } else {
+                splitEval.record(ks, (SRResult) result);
             }
         }
         IOUtils.closeQuietly(splitEval);
@@ -4,7 +4,11 @@ import gnu.trove.list.array.TDoubleArrayList;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.wikibrain.sr.SRResultList;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -15,12 +19,23 @@ import java.util.Random;
  * 3. Call finalize.
  * 4. Call normalize() on a new datapoint.
  * Make sure to set the missingScore value for the SRResultList version.
+ *
+ * By default, observations are kept in a reservoir sample that is updated under a lock.
+ * In streaming mode (see {@link #setStreaming(boolean)}) each thread instead adds its
+ * observations to its own {@link QuantileSketch}. The sketches are merged when
+ * observations finish and the sample is replaced by evenly spaced quantiles, so training
+ * over many observations uses bounded memory and does not contend on a lock.
+ *
+ * Subclasses whose normalize(double) is expensive can return true from
+ * {@link #shouldCompile()} to normalize SRResultLists through a {@link NormalizerLookupTable}.
  */
 public abstract class BaseNormalizer implements Serializable, Normalizer {
     public static final long serialVersionUID = 4305858822325261880L;
 
     public final static int SAMPLE_SIZE = 50000;
 
+    public final static int LOOKUP_TABLE_SIZE = 1 << 14;
+
     public double min = Double.MIN_VALUE;
     protected double max = -Double.MAX_VALUE;
 
@@ -39,6 +54,17 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
     private boolean trained = false;
     private int sampleSize = SAMPLE_SIZE;
 
+    private boolean streaming = false;
+
+    // Sketches observed since the last call to observationsFinished(). A new list is
+    // created for each round of observations, so a thread's sketch belongs to the
+    // current round only if it was registered in the current list.
+    private transient volatile List<QuantileSketch> sketches;
+
+    // Created eagerly and never replaced, except when deserializing.
+    private transient ThreadLocal<LocalSketch> localSketch = new ThreadLocal<LocalSketch>();
+    private transient volatile NormalizerLookupTable lookupTable;
+
     /**
      * To meet the serializable contract.
      */
@@ -48,6 +74,14 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
         this.sampleSize = sampleSize;
     }
 
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
     @Override
     public void reset() {
         min = Double.MIN_VALUE;
@@ -59,6 +93,8 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
         missingSum = 0.0;
         missingCount = 0;
         trained = false;
+        sketches = null;
+        lookupTable = null;
     }
 
     @Override
@@ -83,6 +119,10 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
 
     @Override
     public void observe(double x) {
+        if (streaming && !Double.isNaN(x) && !Double.isInfinite(x)) {
+            getLocalSketch().add(x);
+            return;
+        }
         synchronized (this) {
             if (!Double.isNaN(x) && !Double.isInfinite(x)) {
                 if (x < min) { min = x; }
@@ -97,8 +137,80 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
         }
     }
 
+    /**
+     * Adds all observations summarized by a sketch, for example one built
+     * in parallel by another process. Requires streaming mode.
+     * @param sketch
+     */
+    public synchronized void observe(QuantileSketch sketch) {
+        if (!streaming) {
+            throw new IllegalStateException("sketches can only be observed in streaming mode");
+        }
+        if (sketches == null) {
+            sketches = new ArrayList<QuantileSketch>();
+        }
+        sketches.add(sketch);
+    }
+
+    /**
+     * Returns the calling thread's sketch for the current round of observations.
+     * Only registering a new sketch requires the lock.
+     */
+    private QuantileSketch getLocalSketch() {
+        LocalSketch local = localSketch.get();
+        if (local == null || local.owner != sketches) {
+            local = registerLocalSketch();
+        }
+        return local.sketch;
+    }
+
+    private synchronized LocalSketch registerLocalSketch() {
+        QuantileSketch sketch = new QuantileSketch();
+        observe(sketch);
+        LocalSketch local = new LocalSketch(sketch, sketches);
+        localSketch.set(local);
+        return local;
+    }
+
+    private static class LocalSketch {
+        final QuantileSketch sketch;
+        final List<QuantileSketch> owner;
+
+        LocalSketch(QuantileSketch sketch, List<QuantileSketch> owner) {
+            this.sketch = sketch;
+            this.owner = owner;
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        localSketch = new ThreadLocal<LocalSketch>();
+    }
+
+    /**
+     * Merges the sketches and replaces the sample with evenly spaced quantiles.
+     */
+    private synchronized void finishSketches() {
+        if (sketches == null) {
+            return;
+        }
+        QuantileSketch merged = new QuantileSketch();
+        for (QuantileSketch sketch : sketches) {
+            merged.merge(sketch);
+        }
+        if (merged.getCount() > 0) {
+            min = Math.min(min, merged.getMin());
+            max = Math.max(max, merged.getMax());
+            numObservations += (int) merged.getCount();
+            sample.addAll(merged.getSample((int) Math.min(sampleSize, merged.getCount())));
+        }
+        sketches = null;
+    }
+
     @Override
     public void observationsFinished() {
+        finishSketches();
+        lookupTable = null;
         sample.sort();
         stats = new DescriptiveStatistics(sample.toArray());
 
@@ -118,12 +230,46 @@ public abstract class BaseNormalizer implements Serializable, Normalizer {
     public SRResultList normalize(SRResultList list) {
         SRResultList dsl = new SRResultList(list.numDocs());
         list.setMissingScore(missingMean);
-        for (int i = 0; i < list.numDocs(); i++) {
-            dsl.set(i, list.getId(i), normalize(list.getScore(i)));
+        NormalizerLookupTable table = getLookupTable();
+        if (table != null) {
+            double[] scores = list.getScores();
+            table.normalize(scores);
+            for (int i = 0; i < scores.length; i++) {
+                dsl.set(i, list.getId(i), scores[i]);
+            }
+        } else {
+            for (int i = 0; i < list.numDocs(); i++) {
+                dsl.set(i, list.getId(i), normalize(list.getScore(i)));
+            }
         }
         return dsl;
     }
 
+    /**
+     * @return True if normalize(SRResultList) should use a lookup table compiled
+     * from normalize(double) over the range of the sample.
+     */
+    protected boolean shouldCompile() {
+        return false;
+    }
+
+    /**
+     * Returns the lookup table for this normalizer, compiling it if necessary.
+     * @return The table, or null if the normalizer should not or can not be compiled.
+     */
+    protected NormalizerLookupTable getLookupTable() {
+        NormalizerLookupTable table = lookupTable;
+        if (table == null && shouldCompile() && trained && sample.size() > 1) {
+            double lo = sample.get(0);
+            double hi = sample.get(sample.size() - 1);
+            if (hi > lo) {
+                table = NormalizerLookupTable.compile(this, lo, hi, LOOKUP_TABLE_SIZE);
+                lookupTable = table;
+            }
+        }
+        return table;
+    }
+
 
     public String toString() { return "min=" + min + ", max=" + max; }
 
@@ -177,6 +177,11 @@ public class LoessNormalizer extends BaseNormalizer {
         }
     }
 
+    @Override
+    protected boolean shouldCompile() {
+        return true;
+    }
+
     @Override
     public String dump() {
         init();
@@ -0,0 +1,85 @@
+package org.wikibrain.sr.normalize;
+
+/**
+ * A normalizer function compiled into a table of evenly spaced points.
+ *
+ * Scores inside the table's range are normalized by linearly interpolating
+ * between the two nearest points, so an array of scores is mapped in one loop
+ * without calls through the Normalizer interface. Scores outside the range,
+ * and NaN, fall back to the original normalizer.
+ *
+ * @author Shilad Sen
+ */
+public final class NormalizerLookupTable {
+    private final Normalizer normalizer;
+    private final double lo;
+    private final double hi;
+    private final double scale;
+    private final int size;
+    private final double[] ys;
+
+    private NormalizerLookupTable(Normalizer normalizer, double lo, double hi, double[] ys) {
+        this.normalizer = normalizer;
+        this.lo = lo;
+        this.hi = hi;
+        this.size = ys.length - 1;
+        this.scale = size / (hi - lo);
+        this.ys = ys;
+    }
+
+    /**
+     * Evaluates the normalizer at size + 1 evenly spaced points in [lo, hi].
+     * @param normalizer
+     * @param lo
+     * @param hi Must be greater than lo.
+     * @param size Number of intervals in the table.
+     * @return
+     */
+    public static NormalizerLookupTable compile(Normalizer normalizer, double lo, double hi, int size) {
+        if (!(hi > lo) || size < 1) {
+            throw new IllegalArgumentException("invalid table range [" + lo + ", " + hi + "] with size " + size);
+        }
+        double[] ys = new double[size + 1];
+        for (int i = 0; i <= size; i++) {
+            ys[i] = normalizer.normalize(lo + (hi - lo) * i / size);
+        }
+        return new NormalizerLookupTable(normalizer, lo, hi, ys);
+    }
+
+    public double normalize(double x) {
+        double pos = (x - lo) * scale;
+        if (pos >= 0 && pos < size) {
+            int i = (int) pos;
+            return ys[i] + (pos - i) * (ys[i + 1] - ys[i]);
+        } else if (x == hi) {
+            return ys[size];
+        } else {
+            return normalizer.normalize(x);
+        }
+    }
+
+    /**
+     * Normalizes the scores in place.
+     * @param scores
+     */
+    public void normalize(double[] scores) {
+        for (int j = 0; j < scores.length; j++) {
+            double x = scores[j];
+            double pos = (x - lo) * scale;
+            if (pos >= 0 && pos < size) {
+                int i = (int) pos;
+                scores[j] = ys[i] + (pos - i) * (ys[i + 1] - ys[i]);
+            } else {
+                scores[j] = (x == hi) ? ys[size] : normalizer.normalize(x);
+            }
+        }
+    }
+
+    public double getLo() {
+        return lo;
+    }
+
+    public double getHi() {
+        return hi;
+    }
+}
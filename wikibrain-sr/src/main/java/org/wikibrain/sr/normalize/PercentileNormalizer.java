@@ -85,6 +85,11 @@ public class PercentileNormalizer extends BaseNormalizer {
         return y;
     }
 
+    @Override
+    protected boolean shouldCompile() {
+        return true;
+    }
+
     @Override
     public String dump() {
         StringBuffer buff = new StringBuffer("percentile normalizer: ");
@@ -132,6 +137,9 @@ public class PercentileNormalizer extends BaseNormalizer {
             if (config.hasPath("power")) {
                 n.setPower(config.getDouble("power"));
             }
+            if (config.hasPath("streaming")) {
+                n.setStreaming(config.getBoolean("streaming"));
+            }
             return n;
         }
     }
@@ -0,0 +1,203 @@
+package org.wikibrain.sr.normalize;
+
+import gnu.trove.list.array.TDoubleArrayList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A mergeable, bounded memory sketch of a distribution that answers approximate quantile queries.
+ *
+ * Observations are buffered in levels of at most k values. A value at level h stands for
+ * 2^h observations. When a level fills up it is sorted and every other value (starting at
+ * a random offset) is promoted to the next level. Memory is O(k log(n / k)), and the rank
+ * error of a quantile is roughly O(log(n / k) / k).
+ *
+ * Sketches built over disjoint streams (for example by different threads) can be merged,
+ * so training can be parallelized.
+ *
+ * This class is not threadsafe.
+ *
+ * @author Shilad Sen
+ */
+public class QuantileSketch implements Serializable {
+    public static final long serialVersionUID = 2L;
+
+    public static final int DEFAULT_K = 4096;
+
+    private final int k;
+    private final List<TDoubleArrayList> levels = new ArrayList<TDoubleArrayList>();
+    private final Random random = new Random();
+
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k Maximum number of values at each level. Larger values are more accurate.
+     */
+    public QuantileSketch(int k) {
+        if (k < 2) {
+            throw new IllegalArgumentException("k must be at least 2: " + k);
+        }
+        this.k = k;
+        levels.add(new TDoubleArrayList());
+    }
+
+    public void add(double x) {
+        if (Double.isNaN(x) || Double.isInfinite(x)) {
+            return;
+        }
+        if (x < min) min = x;
+        if (x > max) max = x;
+        count++;
+        levels.get(0).add(x);
+        if (levels.get(0).size() >= k) {
+            compact(0);
+        }
+    }
+
+    /**
+     * Adds all observations summarized by another sketch to this one.
+     * The other sketch is not modified.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int h = 0; h < other.levels.size(); h++) {
+            level(h).addAll(other.levels.get(h));
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        for (int h = 0; h < levels.size(); h++) {
+            if (levels.get(h).size() >= k) {
+                compact(h);
+            }
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @param q A quantile in [0, 1]
+     * @return The approximate value at quantile q, or NaN if the sketch is empty.
+     */
+    public double quantile(double q) {
+        double[] qs = quantiles(new double[] { q });
+        return qs[0];
+    }
+
+    /**
+     * Returns n values evenly spaced in rank, at quantiles (i + 1) / (n + 1).
+     * The result is sorted, so it can stand in for a sorted sample of the distribution.
+     */
+    public double[] getSample(int n) {
+        double[] qs = new double[n];
+        for (int i = 0; i < n; i++) {
+            qs[i] = (i + 1.0) / (n + 1.0);
+        }
+        return quantiles(qs);
+    }
+
+    /**
+     * @param qs Quantiles in [0, 1], in increasing order.
+     * @return The approximate values at each quantile.
+     */
+    public double[] quantiles(double[] qs) {
+        double[] result = new double[qs.length];
+        if (count == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+
+        // Gather the weighted values and sort them by value.
+        int n = 0;
+        for (TDoubleArrayList level : levels) {
+            n += level.size();
+        }
+        final double[] values = new double[n];
+        long[] weights = new long[n];
+        Integer[] order = new Integer[n];
+        long total = 0;
+        int i = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            TDoubleArrayList level = levels.get(h);
+            for (int j = 0; j < level.size(); j++) {
+                values[i] = level.get(j);
+                weights[i] = 1L << h;
+                order[i] = i;
+                total += weights[i];
+                i++;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a], values[b]);
+            }
+        });
+
+        long cumulative = 0;
+        int next = 0;
+        for (i = 0; i < n && next < qs.length; i++) {
+            int idx = order[i];
+            cumulative += weights[idx];
+            while (next < qs.length && cumulative >= qs[next] * total) {
+                result[next++] = values[idx];
+            }
+        }
+        while (next < qs.length) {
+            result[next++] = max;
+        }
+        return result;
+    }
+
+    private TDoubleArrayList level(int h) {
+        while (levels.size() <= h) {
+            levels.add(new TDoubleArrayList());
+        }
+        return levels.get(h);
+    }
+
+    private void compact(int h) {
+        TDoubleArrayList level = levels.get(h);
+        level.sort();
+        TDoubleArrayList up = level(h + 1);
+        int n = level.size();
+        // With an odd size, the largest value stays at this level.
+        int end = n - (n % 2);
+        for (int i = random.nextInt(2); i < end; i += 2) {
+            up.add(level.get(i));
+        }
+        if (n % 2 == 1) {
+            double last = level.get(n - 1);
+            level.resetQuick();
+            level.add(last);
+        } else {
+            level.resetQuick();
+        }
+        if (up.size() >= k) {
+            compact(h + 1);
+        }
+    }
+}
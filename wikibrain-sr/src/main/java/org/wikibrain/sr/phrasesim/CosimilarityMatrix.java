@@ -1,59 +1,234 @@
 package org.wikibrain.sr.phrasesim;
 
-import gnu.trove.list.TIntList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.IOUtils;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
 
-import java.io.Serializable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A cosimilarity matrix that is dense, but can be expanded.
+ * A dense cosimilarity matrix that can be expanded, stored off-heap in memory mapped files.
+ *
+ * The matrix is split into square tiles of tileSize x tileSize floats. Tiles are laid out
+ * in "shells": shell k holds the 2k+1 tiles whose larger tile coordinate is k. Growing
+ * the matrix by one tile in each dimension therefore only appends a shell to the end of
+ * the tile file, and existing tiles are never moved or rewritten.
+ *
+ * Within a tile, cells are stored row major, so a row of the matrix is a sequence of
+ * contiguous runs of tileSize floats.
+ *
+ * Readers and writers hold the lock on the matrix only while they look up or assign
+ * the rows of ids, never while they read or write cells. Reading cells takes no lock.
+ * Writers take a striped lock for each tile they modify.
+ *
+ * Two files are kept in the directory:
+ * <ul>
+ *     <li>tiles.bin: the tiles.</li>
+ *     <li>rows.bin: the tile size followed by the (id, completed) pair for each row.</li>
+ * </ul>
+ * Writes to tiles go directly to the mapped file. {@link #flush()} forces the tiles that
+ * changed since the last flush to disk and then writes the row entries that changed,
+ * so a row is only marked completed on disk once its cells are. A row's entry is
+ * written at the first flush after its id is assigned, whether or not it is completed.
  *
  * @author Shilad Sen
  */
-public class CosimilarityMatrix implements Serializable {
-    private static final double EXPANSION_FRACTION = 1.3;
-
+public class CosimilarityMatrix implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(CosimilarityMatrix.class);
 
-    private float[][] matrix = new float[0][0];
-    private TIntIntMap sparse2Dense = new TIntIntHashMap();
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /**
+     * Approximate size of each memory mapped region of the tile file.
+     */
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+    private static final int NUM_STRIPES = 256;
+
+    private final File dir;
+    private final int tileSize;
+    private final int tileFloats;
+    private final int tilesPerChunk;
+
+    private final RandomAccessFile tileFile;
+    private final RandomAccessFile rowFile;
+    private final Object[] stripes = new Object[NUM_STRIPES];
+
+    // Chunks are only ever appended. Readers use the array they see.
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int numShells = 0;
+
+    // The following are guarded by "this".
+    private final TIntIntMap sparse2Dense = new TIntIntHashMap();
     private int[] dense2Sparse = new int[0];
-    private boolean [] completed = new boolean[0];
+    private boolean[] completed = new boolean[0];
+    private final TIntSet dirtyRows = new TIntHashSet();
 
-    public synchronized void update(int sparseId, SRResultList neighbors) {
-        int denseId;
-        if (sparse2Dense.containsKey(sparseId)) {
-            denseId = sparse2Dense.get(sparseId);
+    public CosimilarityMatrix(File dir) throws IOException {
+        this(dir, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Opens the matrix in the specified directory, creating it if necessary.
+     * @param dir
+     * @param tileSize Tile size used if the matrix is created. An existing matrix keeps its tile size.
+     * @throws IOException
+     */
+    public CosimilarityMatrix(File dir, int tileSize) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        this.rowFile = new RandomAccessFile(new File(dir, "rows.bin"), "rw");
+        if (rowFile.length() >= 4) {
+            tileSize = rowFile.readInt();
         } else {
-            expandIfNecessary();
-            denseId = sparse2Dense.size();
-            sparse2Dense.put(sparseId, denseId);
-            dense2Sparse[denseId] = sparseId;
+            rowFile.setLength(0);
+            rowFile.writeInt(tileSize);
         }
+        this.tileSize = tileSize;
+        this.tileFloats = tileSize * tileSize;
+        this.tilesPerChunk = Math.max(1, MAX_CHUNK_BYTES / (4 * tileFloats));
+        this.tileFile = new RandomAccessFile(new File(dir, "tiles.bin"), "rw");
+        readRows();
+
+        // Every shell that fits in the existing tile file is usable.
+        int shells = (int) Math.sqrt(tileFile.length() / (4L * tileFloats));
+        ensureShells(Math.max(shells, (sparse2Dense.size() + tileSize - 1) / tileSize));
+    }
 
-        for (SRResult r : neighbors) {
-            if (!sparse2Dense.containsKey(r.getId())) continue;
-            int denseId2 = sparse2Dense.get(r.getId());
-            matrix[denseId][denseId2] = (float) r.getScore();
-            matrix[denseId2][denseId] = (float) r.getScore();
+    private void readRows() throws IOException {
+        int n = (int) ((rowFile.length() - 4) / 8);
+        ByteBuffer buffer = rowFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8L * n);
+        dense2Sparse = new int[n];
+        completed = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            dense2Sparse[i] = buffer.getInt(8 * i);
+            completed[i] = buffer.getInt(8 * i + 4) != 0;
+            sparse2Dense.put(dense2Sparse[i], i);
         }
-        completed[denseId] = true;
+        LOGGER.info("read " + n + " rows of cosimilarity matrix in " + dir);
     }
 
+    /**
+     * Sets the row and column for an id to the similarities in neighbors.
+     * Known ids that do not appear in neighbors are given a similarity of zero.
+     *
+     * @param sparseId
+     * @param neighbors
+     */
+    public void update(int sparseId, SRResultList neighbors) {
+        int denseId;
+        int n;
+        float[] values;
+        synchronized (this) {
+            if (sparse2Dense.containsKey(sparseId)) {
+                denseId = sparse2Dense.get(sparseId);
+            } else {
+                denseId = sparse2Dense.size();
+                ensureCapacity(denseId + 1);
+                sparse2Dense.put(sparseId, denseId);
+                dense2Sparse[denseId] = sparseId;
+
+                // Record the new row at the next flush even if its cells are not yet
+                // written, so the row file never has an unwritten slot before a written one.
+                dirtyRows.add(denseId);
+            }
+            n = sparse2Dense.size();
+            values = new float[n];
+            for (SRResult r : neighbors) {
+                if (sparse2Dense.containsKey(r.getId())) {
+                    values[sparse2Dense.get(r.getId())] = (float) r.getScore();
+                }
+            }
+        }
+
+        writeRow(denseId, values);
+        writeColumn(denseId, values);
+
+        synchronized (this) {
+            completed[denseId] = true;
+            dirtyRows.add(denseId);
+        }
+    }
+
+    private void writeRow(int row, float[] values) {
+        int tileRow = row / tileSize;
+        int rowOffset = (row % tileSize) * tileSize;
+        for (int start = 0; start < values.length; start += tileSize) {
+            int tile = tileIndex(tileRow, start / tileSize);
+            int len = Math.min(tileSize, values.length - start);
+            Chunk chunk = getChunk(tile);
+            synchronized (stripes[tile % NUM_STRIPES]) {
+                FloatBuffer fb = chunk.floats.duplicate();
+                fb.position(tileOffset(tile) + rowOffset);
+                fb.put(values, start, len);
+            }
+            chunk.dirty = true;
+        }
+    }
+
+    private void writeColumn(int col, float[] values) {
+        int tileCol = col / tileSize;
+        int colOffset = col % tileSize;
+        for (int start = 0; start < values.length; start += tileSize) {
+            int tile = tileIndex(start / tileSize, tileCol);
+            int len = Math.min(tileSize, values.length - start);
+            Chunk chunk = getChunk(tile);
+            int base = tileOffset(tile) + colOffset;
+            synchronized (stripes[tile % NUM_STRIPES]) {
+                for (int i = 0; i < len; i++) {
+                    chunk.floats.put(base + i * tileSize, values[start + i]);
+                }
+            }
+            chunk.dirty = true;
+        }
+    }
+
+    /**
+     * @param id
+     * @return The similarities between the id and all other ids, indexed by row number, or null if the id is unknown.
+     */
     public float[] getVector(int id) {
-        if (sparse2Dense.containsKey(id)) {
-            return matrix[sparse2Dense.get(id)];
-        } else {
-            return null;
+        int denseId;
+        int n;
+        synchronized (this) {
+            if (!sparse2Dense.containsKey(id)) {
+                return null;
+            }
+            denseId = sparse2Dense.get(id);
+            n = sparse2Dense.size();
+        }
+        float[] row = new float[n];
+        readRow(denseId, row);
+        return row;
+    }
+
+    private void readRow(int row, float[] dest) {
+        int tileRow = row / tileSize;
+        int rowOffset = (row % tileSize) * tileSize;
+        for (int start = 0; start < dest.length; start += tileSize) {
+            int tile = tileIndex(tileRow, start / tileSize);
+            FloatBuffer fb = getChunk(tile).floats.duplicate();
+            fb.position(tileOffset(tile) + rowOffset);
+            fb.get(dest, start, Math.min(tileSize, dest.length - start));
         }
     }
 
@@ -62,97 +237,60 @@ public class CosimilarityMatrix implements Serializable {
     }
 
     public SRResultList mostSimilar(int id, int maxResults, TIntSet candidateIds) {
-        int n;
         int denseId;
-        boolean denseCandidateIds[] = null;
+        int[] denseCandidates = null;
+        int[] sparseIds;
+        float[] row;
         synchronized (this) {
-            n = sparse2Dense.size();    // this can be lock free because of trove's implementation
+            if (!sparse2Dense.containsKey(id)) {
+                return new SRResultList(0);
+            }
             denseId = sparse2Dense.get(id);
+            row = new float[sparse2Dense.size()];
+            sparseIds = dense2Sparse;
             if (candidateIds != null) {
-                denseCandidateIds = new boolean[candidateIds.size()];
-                final boolean[] finalDenseCandidateIds = denseCandidateIds;
-                candidateIds.forEach(new TIntProcedure() {
-                    @Override
-                    public boolean execute(int id2) {
-                        finalDenseCandidateIds[sparse2Dense.get(id2)] = true;
-                        return true;
+                denseCandidates = new int[candidateIds.size()];
+                int i = 0;
+                for (int id2 : candidateIds.toArray()) {
+                    if (sparse2Dense.containsKey(id2)) {
+                        denseCandidates[i++] = sparse2Dense.get(id2);
                     }
-                });
+                }
+                denseCandidates = Arrays.copyOf(denseCandidates, i);
             }
         }
         Leaderboard top = new Leaderboard(maxResults);
-        for (int i = 0; i < n; i++) {
-            if (denseCandidateIds == null || denseCandidateIds[i]) {
-                top.tallyScore(i, matrix[denseId][i]);
+        if (denseCandidates == null) {
+            readRow(denseId, row);
+            for (int i = 0; i < row.length; i++) {
+                top.tallyScore(sparseIds[i], row[i]);
+            }
+        } else {
+            for (int denseId2 : denseCandidates) {
+                top.tallyScore(sparseIds[denseId2], get(denseId, denseId2));
             }
         }
-        SRResultList results = top.getTop();
-        for (int i = 0; i < results.numDocs(); i++) {
-            results.setId(i, dense2Sparse[results.getId(i)]);
-        }
-        return results;
+        return top.getTop();
     }
 
-
     public double[][] cosimilarity(int rows[], int columns[]) {
         double cosims[][] = new double[rows.length][columns.length];
-        int denseRowIds[] = new int[rows.length];
-        int denseColIds[] = new int[columns.length];
-        synchronized (this) {
-            for (int i = 0; i < rows.length; i++) {
-                int rowId = rows[i];
-                denseRowIds[i] = sparse2Dense.containsKey(rowId) ? sparse2Dense.get(rowId) : -1;
-            }
-            for (int i = 0; i < columns.length; i++) {
-                int colId = columns[i];
-                denseColIds[i] = sparse2Dense.containsKey(colId) ? sparse2Dense.get(colId) : -1;
-            }
-        }
+        int denseRowIds[] = toDense(rows);
+        int denseColIds[] = toDense(columns);
         for (int i = 0; i < denseRowIds.length; i++) {
             for (int j = 0; j < denseColIds.length; j++) {
                 if (denseRowIds[i] >= 0 && denseColIds[j] >= 0) {
-                    cosims[i][j] = matrix[denseRowIds[i]][denseColIds[j]];
+                    cosims[i][j] = get(denseRowIds[i], denseColIds[j]);
                 }
             }
         }
         return cosims;
     }
 
-
-    private synchronized void expandIfNecessary() {
-        if (sparse2Dense.size() < dense2Sparse.length) {
-            return;
-        }
-        if (dense2Sparse.length != sparse2Dense.size()) {
-            throw new IllegalStateException();
-        }
-        if (dense2Sparse.length != matrix.length) {
-            throw new IllegalStateException();
-        }
-        if (dense2Sparse.length > 0 && dense2Sparse.length != matrix[0].length) {
-            throw new IllegalStateException();
-        }
-        int oldn = sparse2Dense.size();
-        final int n = (int) (Math.max(500, oldn) * EXPANSION_FRACTION);
-        LOGGER.info("expanding cosimilarity matrix to length " + n);
-        float newCosims[][] = new float[n][n];
-        for (int i = 0; i < oldn; i++) {
-            System.arraycopy(matrix[i], 0, newCosims[i], 0, oldn);
-        }
-        int newDense2Sparse[] = new int[n];
-        boolean newCompleted[] = new boolean[n];
-        System.arraycopy(dense2Sparse, 0, newDense2Sparse, 0, oldn);
-        System.arraycopy(newCompleted, 0, newCompleted, 0, oldn);
-        matrix = newCosims;
-        dense2Sparse = newDense2Sparse;
-        completed = newCompleted;
-
-        LOGGER.info("finished expanding cosimilarity matrix");
-    }
-
     public float similarity(int id1, int id2) {
-        if (sparse2Dense.containsKey(id1) && sparse2Dense.containsKey(id2)) {
-            return matrix[sparse2Dense.get(id1)][sparse2Dense.get(id2)];
+        int dense[] = toDense(new int[] { id1, id2 });
+        if (dense[0] >= 0 && dense[1] >= 0) {
+            return get(dense[0], dense[1]);
         } else {
             return 0f;
         }
@@ -162,9 +300,9 @@ public class CosimilarityMatrix implements Serializable {
      * Returns all ids whose "update" method has successfully completed.
      * @return
      */
-    public TIntSet getCompleted() {
+    public synchronized TIntSet getCompleted() {
         TIntSet result = new TIntHashSet();
-        for (int i = 0; i < completed.length; i++) {
+        for (int i = 0; i < sparse2Dense.size(); i++) {
             if (completed[i]) {
                 result.add(dense2Sparse[i]);
             }
@@ -172,4 +310,121 @@ public class CosimilarityMatrix implements Serializable {
         return result;
     }
 
+    /**
+     * Forces modified tiles to disk, then records new and completed rows.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        int numFlushed = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.dirty) {
+                chunk.dirty = false;
+                chunk.buffer.force();
+                numFlushed++;
+            }
+        }
+        int[] rows;
+        int[] ids;
+        boolean[] done;
+        synchronized (this) {
+            rows = dirtyRows.toArray();
+            dirtyRows.clear();
+            ids = dense2Sparse;
+            done = completed;
+        }
+        Arrays.sort(rows);
+        synchronized (rowFile) {
+            for (int row : rows) {
+                rowFile.seek(4 + 8L * row);
+                rowFile.writeInt(ids[row]);
+                rowFile.writeInt(done[row] ? 1 : 0);
+            }
+            rowFile.getFD().sync();
+        }
+        LOGGER.info("flushed " + numFlushed + " chunks and " + rows.length + " rows of cosimilarity matrix");
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        IOUtils.closeQuietly(tileFile);
+        IOUtils.closeQuietly(rowFile);
+    }
+
+    private int[] toDense(int sparseIds[]) {
+        int dense[] = new int[sparseIds.length];
+        synchronized (this) {
+            for (int i = 0; i < sparseIds.length; i++) {
+                int id = sparseIds[i];
+                dense[i] = sparse2Dense.containsKey(id) ? sparse2Dense.get(id) : -1;
+            }
+        }
+        return dense;
+    }
+
+    private float get(int row, int col) {
+        int tile = tileIndex(row / tileSize, col / tileSize);
+        int offset = tileOffset(tile) + (row % tileSize) * tileSize + (col % tileSize);
+        return getChunk(tile).floats.get(offset);
+    }
+
+    /**
+     * Returns the position of a tile in the tile file.
+     * Shell k = max(tileRow, tileCol) starts at k^2 and holds row k followed by column k.
+     */
+    private static int tileIndex(int tileRow, int tileCol) {
+        int k = Math.max(tileRow, tileCol);
+        return k * k + ((tileRow == k) ? tileCol : k + 1 + tileRow);
+    }
+
+    private int tileOffset(int tile) {
+        return (tile % tilesPerChunk) * tileFloats;
+    }
+
+    private Chunk getChunk(int tile) {
+        return chunks[tile / tilesPerChunk];
+    }
+
+    /**
+     * Must be called while holding the lock on this.
+     */
+    private void ensureCapacity(int n) {
+        if (n > dense2Sparse.length) {
+            int newLength = Math.max(n, dense2Sparse.length * 2);
+            dense2Sparse = Arrays.copyOf(dense2Sparse, newLength);
+            completed = Arrays.copyOf(completed, newLength);
+        }
+        try {
+            ensureShells((n + tileSize - 1) / tileSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void ensureShells(int shells) throws IOException {
+        if (shells <= numShells) {
+            return;
+        }
+        int numTiles = shells * shells;
+        int numChunks = (numTiles + tilesPerChunk - 1) / tilesPerChunk;
+        Chunk[] newChunks = Arrays.copyOf(chunks, numChunks);
+        long chunkBytes = 4L * tileFloats * tilesPerChunk;
+        for (int i = chunks.length; i < numChunks; i++) {
+            newChunks[i] = new Chunk(tileFile.getChannel().map(FileChannel.MapMode.READ_WRITE, i * chunkBytes, chunkBytes));
+        }
+        chunks = newChunks;
+        numShells = shells;
+        LOGGER.info("expanded cosimilarity matrix to " + (shells * tileSize) + " rows");
+    }
+
+    private static class Chunk {
+        final MappedByteBuffer buffer;
+        final FloatBuffer floats;
+        volatile boolean dirty = false;
+
+        Chunk(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.floats = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
 }
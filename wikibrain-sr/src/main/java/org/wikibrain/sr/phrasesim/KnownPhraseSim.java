@@ -60,8 +60,9 @@ import org.slf4j.LoggerFactory;
  * all cosimilarities for a new phrase can be calculated very quickly.
  *
  * The universe of known phrases and associated data structures is serialized dynamically
- * to files in the specific data directory. However, the full cosimilarity matrix is only
- * written out when the write() method (or flushCosimilarity method) is called.
+ * to files in the specific data directory. The full cosimilarity matrix is a memory mapped
+ * {@link CosimilarityMatrix}, and is only guaranteed to be durable after the write() method
+ * (or flushCosimilarity method) is called.
  *
  * The normalizer should be retrained for internal phrases (using trainNormalizer())
  * periodically. It initially defaults to the "identity" normalizer.
@@ -97,7 +98,7 @@ public class KnownPhraseSim implements SRMetric {
     private ConcurrentHashMap<Long, TIntFloatMap> invertedIndex = new ConcurrentHashMap<Long, TIntFloatMap>();
 
     // Caches the full cosimilarity matrix.
-    private CosimilarityMatrix cosim = new CosimilarityMatrix();
+    private CosimilarityMatrix cosim;
 
     private DB phraseDb;
 
@@ -144,12 +145,18 @@ public class KnownPhraseSim implements SRMetric {
     }
 
     private void readCosimilarity() throws IOException {
-        File f = new File(dir, "cosimilarity.bin");
+        File legacy = new File(dir, "cosimilarity.bin");
+        if (legacy.isFile()) {
+            LOGGER.info("Removing serialized cosim file " + legacy + "... rebuilding it as a memory mapped matrix");
+            FileUtils.deleteQuietly(legacy);
+        }
+        File f = new File(dir, "cosimilarity");
         try {
-            this.cosim = (CosimilarityMatrix) WpIOUtils.readObjectFromFile(f);
-        } catch (Exception e) {
-            LOGGER.info("Reading cosim file " + f + " failed... rebuilding it from scratch");
-            cosim = new CosimilarityMatrix();
+            this.cosim = new CosimilarityMatrix(f);
+        } catch (IOException e) {
+            LOGGER.info("Reading cosim directory " + f + " failed... rebuilding it from scratch");
+            FileUtils.deleteQuietly(f);
+            cosim = new CosimilarityMatrix(f);
         }
         final TIntSet built = cosim.getCompleted();
         ParallelForEach.loop(byId.values(), new Procedure<KnownPhrase>() {
@@ -164,7 +171,7 @@ public class KnownPhraseSim implements SRMetric {
     }
 
     public void flushCosimilarity() throws IOException {
-        WpIOUtils.writeObjectToFile(new File(dir, "cosimilarity.bin"), cosim);
+        cosim.flush();
         db.getEngine().commit();
     }
 
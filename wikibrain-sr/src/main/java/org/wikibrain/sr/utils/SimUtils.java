@@ -53,60 +53,145 @@ public class SimUtils {
     }
 
 
+    /**
+     * If one row has more than this many times the columns of the other,
+     * intersections search the longer row instead of merging both.
+     */
+    public static final int SKEW_RATIO = 8;
+
+    /**
+     * Computes the cosine similarity of two rows with sorted column ids.
+     * Row norms come from the rows themselves, which is a constant time
+     * lookup for SparseMatrixRows that store their norm.
+     */
     public static double cosineSimilarity(MatrixRow a, MatrixRow b) {
-        double adota = 0.0;
-        double bdotb = 0.0;
-        double adotb = 0.0;
+        if (a.getNumCols() == 0 || b.getNumCols() == 0) { // do not perform calculations if one or both are 0
+            return 0;
+        }
+        double adotb = dot(a, b);
+        double norms = a.getNorm() * b.getNorm();
+        if (norms * adotb == 0) {
+            return 0.0;
+        } else {
+            return adotb / norms;
+        }
+    }
 
+    /**
+     * Computes the dot product of two rows with sorted column ids.
+     */
+    public static double dot(MatrixRow a, MatrixRow b) {
+        if (a.getNumCols() > b.getNumCols()) {
+            MatrixRow tmp = a;
+            a = b;
+            b = tmp;
+        }
         int na = a.getNumCols();
         int nb = b.getNumCols();
-        int i = 0, j = 0;
-
-        if((na == 0 || nb == 0)) { // do not perform calculations if one or both are 0
-            return 0;
+        double adotb = 0.0;
+        if (na == 0) {
+            return 0.0;
+        } else if ((long) na * SKEW_RATIO < nb) {
+            int j = 0;
+            for (int i = 0; i < na && j < nb; i++) {
+                int ca = a.getColIndex(i);
+                j = gallop(b, ca, j);
+                if (j < nb && b.getColIndex(j) == ca) {
+                    adotb += a.getColValue(i) * b.getColValue(j);
+                    j++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < na && j < nb) {
+                int ca = a.getColIndex(i);
+                int cb = b.getColIndex(j);
+                if (ca < cb) {
+                    i++;
+                } else if (ca > cb) {
+                    j++;
+                } else {
+                    adotb += a.getColValue(i++) * b.getColValue(j++);
+                }
+            }
         }
+        return adotb;
+    }
 
-        int ca = a.getColIndex(i);
-        int cb = b.getColIndex(j);
-
-        while (i < na && j < nb) {
-            if (ca < cb) {
-                // if matrix a has a lower value, then get the next column
-                float va = a.getColValue(i++);
-                adota += va * va;
-                ca = a.getColIndex(i);
-            } else if (ca > cb) {
-                // if matrix b has a lower value, then get the next column
-                float vb = b.getColValue(j++);
-                bdotb += vb * vb;
-                cb = b.getColIndex(j);
-            } else {
-                // if both have the same value, increment the intersection and get the next columns in both matrices
-                float va = a.getColValue(i++);
-                float vb = b.getColValue(j++);
-                adota += va * va;
-                bdotb += vb * vb;
-                adotb += va * vb;
-
-                ca = a.getColIndex(i);
-                cb = b.getColIndex(j);
+    /**
+     * Counts the column ids shared by two rows with sorted column ids.
+     */
+    public static int intersectionSize(MatrixRow a, MatrixRow b) {
+        if (a.getNumCols() > b.getNumCols()) {
+            MatrixRow tmp = a;
+            a = b;
+            b = tmp;
+        }
+        int na = a.getNumCols();
+        int nb = b.getNumCols();
+        int intersect = 0;
+        if (na == 0) {
+            return 0;
+        } else if ((long) na * SKEW_RATIO < nb) {
+            int j = 0;
+            for (int i = 0; i < na && j < nb; i++) {
+                int ca = a.getColIndex(i);
+                j = gallop(b, ca, j);
+                if (j < nb && b.getColIndex(j) == ca) {
+                    intersect++;
+                    j++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < na && j < nb) {
+                int ca = a.getColIndex(i);
+                int cb = b.getColIndex(j);
+                if (ca < cb) {
+                    i++;
+                } else if (ca > cb) {
+                    j++;
+                } else {
+                    intersect++;
+                    i++;
+                    j++;
+                }
             }
         }
+        return intersect;
+    }
 
-        for (; i < na; i++) {
-            float va = a.getColValue(i);
-            adota += va * va;
+    /**
+     * Finds the first column at or after from whose id is at least id.
+     * Probes exponentially increasing offsets, then binary searches the last gap.
+     *
+     * @return The column index, or row.getNumCols() if there is no such column.
+     */
+    static int gallop(MatrixRow row, int id, int from) {
+        int n = row.getNumCols();
+        if (from >= n || row.getColIndex(from) >= id) {
+            return from;
         }
-        for (; j < nb; j++) {
-            float vb = b.getColValue(j);
-            bdotb += vb * vb;
+        // invariant: the column at lo is less than id
+        int lo = from;
+        int step = 1;
+        int hi = from + step;
+        while (hi < n && row.getColIndex(hi) < id) {
+            lo = hi;
+            step *= 2;
+            hi = from + step;
         }
-
-        if (adota * bdotb * adotb == 0) {
-            return 0.0;
-        } else {
-            return adotb / Math.sqrt(adota * bdotb);
+        hi = Math.min(hi, n);
+        // binary search (lo, hi]
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (row.getColIndex(mid) < id) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
         }
+        return hi;
     }
 
     public static double googleSimilarity(int sizeA, int sizeB, int intersection, int numTotal) {
@@ -0,0 +1,233 @@
+package org.wikibrain.sr.utils;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.procedure.TIntDoubleProcedure;
+import org.wikibrain.sr.SRResultArray;
+import org.wikibrain.sr.SRResultList;
+
+/**
+ * Selects the k highest scoring ids from a stream of (id, score) pairs.
+ *
+ * Candidates are appended to parallel primitive arrays with room for about 2k
+ * entries. When the arrays fill up, a quickselect moves the k best to the front
+ * and the k-th best score becomes a threshold. From then on, any candidate that
+ * does not beat the threshold is rejected with a single comparison, which is
+ * almost all of them for long streams. The final results are sorted once.
+ *
+ * Scores are stored as floats. NaN and negative infinity scores are ignored.
+ * Like Leaderboard, a candidate that ties the current threshold is not admitted.
+ *
+ * This class is not threadsafe.
+ *
+ * @author Shilad Sen
+ */
+public class TopKSelector {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final int k;
+    private final int[] ids;
+    private final float[] scores;
+    private int size = 0;
+    private float threshold;
+
+    public TopKSelector(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be non-negative: " + k);
+        }
+        this.k = k;
+        int capacity = (k == 0) ? 0 : Math.max(2 * k, k + 16);
+        this.ids = new int[capacity];
+        this.scores = new float[capacity];
+        this.threshold = (k == 0) ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY;
+    }
+
+    public void offer(int id, double score) {
+        float s = (float) score;
+        if (!(s > threshold)) {
+            return;
+        }
+        if (size == ids.length) {
+            trim();
+            if (!(s > threshold)) {
+                return;
+            }
+        }
+        ids[size] = id;
+        scores[size] = s;
+        size++;
+    }
+
+    /**
+     * Offers the first n pairs from parallel arrays.
+     */
+    public void offer(int[] candidateIds, float[] candidateScores, int n) {
+        for (int i = 0; i < n; i++) {
+            float s = candidateScores[i];
+            if (s > threshold) {
+                offer(candidateIds[i], s);
+            }
+        }
+    }
+
+    /**
+     * Offers the first n pairs from parallel arrays.
+     */
+    public void offer(int[] candidateIds, double[] candidateScores, int n) {
+        for (int i = 0; i < n; i++) {
+            double s = candidateScores[i];
+            if (s > threshold) {
+                offer(candidateIds[i], s);
+            }
+        }
+    }
+
+    /**
+     * Offers every entry of a map from id to score.
+     */
+    public void offerAll(TIntDoubleMap candidates) {
+        candidates.forEachEntry(new TIntDoubleProcedure() {
+            @Override
+            public boolean execute(int id, double score) {
+                offer(id, score);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return The score a candidate must exceed to be admitted.
+     */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the k highest scoring results, highest first.
+     * The selector can continue to receive offers afterwards.
+     */
+    public SRResultArray select() {
+        if (size > k) {
+            trim();
+        }
+        int[] topIds = new int[size];
+        float[] topScores = new float[size];
+        System.arraycopy(ids, 0, topIds, 0, size);
+        System.arraycopy(scores, 0, topScores, 0, size);
+        sortDescending(topIds, topScores, 0, size);
+        return new SRResultArray(topIds, topScores, size);
+    }
+
+    /**
+     * Returns the k highest scoring results, highest first, as an SRResultList.
+     */
+    public SRResultList getTop() {
+        return select().toResultList();
+    }
+
+    /**
+     * Moves the k highest scoring candidates to the front and raises the threshold.
+     */
+    private void trim() {
+        if (size > k) {
+            selectTop(ids, scores, 0, size, k);
+            size = k;
+        }
+        if (size == k && k > 0) {
+            float kth = scores[0];
+            for (int i = 1; i < k; i++) {
+                kth = Math.min(kth, scores[i]);
+            }
+            threshold = Math.max(threshold, kth);
+        }
+    }
+
+    /**
+     * Partially orders the range so the n highest scores occupy [from, from + n).
+     */
+    static void selectTop(int[] ids, float[] scores, int from, int to, int n) {
+        int target = from + n - 1;
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            float pivot = medianOfThree(scores, lo, (lo + hi) >>> 1, hi);
+            // three way partition: [lo, lt) > pivot, [lt, gt] == pivot, (gt, hi] < pivot
+            int lt = lo, i = lo, gt = hi;
+            while (i <= gt) {
+                if (scores[i] > pivot) {
+                    swap(ids, scores, lt++, i++);
+                } else if (scores[i] < pivot) {
+                    swap(ids, scores, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            if (target < lt) {
+                hi = lt - 1;
+            } else if (target > gt) {
+                lo = gt + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sorts parallel arrays in [from, to) by score, highest first.
+     * The relative order of equal scores is unspecified.
+     */
+    public static void sortDescending(int[] ids, float[] scores, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            float pivot = medianOfThree(scores, from, (from + to - 1) >>> 1, to - 1);
+            int lt = from, i = from, gt = to - 1;
+            while (i <= gt) {
+                if (scores[i] > pivot) {
+                    swap(ids, scores, lt++, i++);
+                } else if (scores[i] < pivot) {
+                    swap(ids, scores, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // Recurse into the smaller side to bound the stack depth.
+            if (lt - from < to - gt - 1) {
+                sortDescending(ids, scores, from, lt);
+                from = gt + 1;
+            } else {
+                sortDescending(ids, scores, gt + 1, to);
+                to = lt;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int id = ids[i];
+            float score = scores[i];
+            int j = i - 1;
+            while (j >= from && scores[j] < score) {
+                ids[j + 1] = ids[j];
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            scores[j + 1] = score;
+        }
+    }
+
+    private static float medianOfThree(float[] scores, int a, int b, int c) {
+        float x = scores[a], y = scores[b], z = scores[c];
+        if (x < y) {
+            if (y < z) return y;
+            return (x < z) ? z : x;
+        } else {
+            if (x < z) return x;
+            return (y < z) ? z : y;
+        }
+    }
+
+    private static void swap(int[] ids, float[] scores, int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
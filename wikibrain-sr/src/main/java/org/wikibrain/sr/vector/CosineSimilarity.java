@@ -1,6 +1,7 @@
 package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
@@ -14,7 +15,7 @@ import org.wikibrain.matrix.MatrixRow;
 import org.wikibrain.matrix.SparseMatrix;
 import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.sr.SRResultList;
-import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.TopKSelector;
 import org.wikibrain.sr.utils.SimUtils;
 import org.wikibrain.utils.WpIOUtils;
 
@@ -88,7 +89,7 @@ public class CosineSimilarity implements VectorSimilarity {
     }
 
     private SRResultList mostSimilarWithRegularIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
+        TopKSelector selector = new TopKSelector(maxResults);
         double rowNorm = norm(query);
 
         for (int id : validIds.toArray()) {
@@ -105,11 +106,11 @@ public class CosineSimilarity implements VectorSimilarity {
                 double l1 = lengths.get(id);
                 double l2 = rowNorm;
                 double sim = dot / (l1 * l2);
-                leaderboard.tallyScore(id, sim);
+                selector.offer(id, sim);
             }
         }
 
-        return leaderboard.getTop();
+        return selector.getTop();
     }
 
     private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
@@ -133,19 +134,19 @@ public class CosineSimilarity implements VectorSimilarity {
             }
         }
 
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
+        // Score all candidates in one pass over the map, then offer them in bulk.
         double rowNorm = norm(query);
-        keys = dots.keys();
-        for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            double l1 = lengths.get(id);
-            double l2 = rowNorm;
-            double dot = dots.get(id);
-            double sim = dot / (l1 * l2);
-            leaderboard.tallyScore(id, sim);
+        keys = new int[dots.size()];
+        float sims[] = new float[dots.size()];
+        TIntDoubleIterator iter = dots.iterator();
+        for (int i = 0; iter.hasNext(); i++) {
+            iter.advance();
+            keys[i] = iter.key();
+            sims[i] = (float) (iter.value() / (lengths.get(iter.key()) * rowNorm));
         }
-
-        return leaderboard.getTop();
+        TopKSelector selector = new TopKSelector(maxResults);
+        selector.offer(keys, sims, keys.length);
+        return selector.getTop();
     }
 
     @Override
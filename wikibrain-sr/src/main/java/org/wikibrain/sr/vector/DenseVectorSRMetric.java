@@ -11,6 +11,7 @@ import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.VectorKernels;
 import org.wikibrain.matrix.knn.KNNFinder;
 import org.wikibrain.matrix.knn.Neighborhood;
 import org.wikibrain.matrix.knn.RandomProjectionKNNFinder;
@@ -20,7 +21,7 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.disambig.Disambiguator;
-import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.TopKSelector;
 import org.wikibrain.sr.utils.SimUtils;
 
 import java.io.File;
@@ -142,19 +143,20 @@ public class DenseVectorSRMetric extends BaseSRMetric {
                 result.set(i, nhood.getId(i), nhood.getScore(i));
             }
         } else {
-            final Leaderboard board = new Leaderboard(maxResults);
+            final TopKSelector selector = new TopKSelector(maxResults);
+            final double norm = VectorKernels.norm(vector);
             if (validIds == null) {
                 for (DenseMatrixRow row : articleFeatures) {
-                    board.tallyScore(row.getRowIndex(), SimUtils.cosineSimilarity(row.getValues(), vector));
+                    selector.offer(row.getRowIndex(), row.cosine(vector, norm));
                 }
             } else {
                 validIds.forEach(new TIntProcedure() {
                     @Override
                     public boolean execute(int id) {
                         try {
-                            float [] v = getPageVector(id);
-                            if (v != null) {
-                                board.tallyScore(id, SimUtils.cosineSimilarity(v, vector));
+                            DenseMatrixRow row = articleFeatures.getRow(id);
+                            if (row != null) {
+                                selector.offer(id, row.cosine(vector, norm));
                             }
                         } catch (Exception e) {
                             LOG.warn("similarity for " + id + " failed: ", e);
@@ -163,7 +165,7 @@ public class DenseVectorSRMetric extends BaseSRMetric {
                     }
                 });
             }
-            result = board.getTop();
+            result = selector.getTop();
         }
         return normalize(result);
     }
@@ -18,6 +18,7 @@ import org.wikibrain.lucene.LuceneSearcher;
 import org.wikibrain.lucene.QueryBuilder;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
 import org.wikibrain.lucene.WpIdFilter;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
@@ -36,7 +37,7 @@ import org.slf4j.LoggerFactory;
 /**
  * @author Shilad Sen
  */
-public class ESAGenerator implements SparseVectorGenerator {
+public class ESAGenerator implements SparseVectorGenerator, FeatureMatrixGenerator {
 
     private static final Logger LOG = LoggerFactory.getLogger(ESAGenerator.class);
 
@@ -45,6 +46,8 @@ public class ESAGenerator implements SparseVectorGenerator {
     private final LocalPageDao pageDao;
 
     private WpIdFilter conceptFilter = null;
+    private TIntSet conceptIds = null;
+    private boolean nativeMatrixBuild = false;
     private TIntSet blackListSet;
     private final String blackListFilePath;
 
@@ -107,6 +110,7 @@ public class ESAGenerator implements SparseVectorGenerator {
 
     public void setConcepts(File file) throws IOException {
         conceptFilter = null;
+        conceptIds = null;
         if (!file.isFile()) {
             LOG.warn("concept path " + file + " not a file; defaulting to all concepts");
             return;
@@ -119,9 +123,30 @@ public class ESAGenerator implements SparseVectorGenerator {
             }
         }
         conceptFilter = new WpIdFilter(ids.toArray());
+        conceptIds = ids;
         LOG.warn("installed " + ids.size() + " concepts for " + language);
     }
 
+    /**
+     * If true, the feature matrix is built directly from the lucene index by an
+     * ESAMatrixBuilder instead of one MoreLikeThis query per page. This is much
+     * faster, but the vectors only approximate those returned by getVector().
+     * Defaults to false.
+     * @param nativeMatrixBuild
+     */
+    public void setNativeMatrixBuild(boolean nativeMatrixBuild) {
+        this.nativeMatrixBuild = nativeMatrixBuild;
+    }
+
+    @Override
+    public boolean writeFeatureMatrix(TIntSet pageIds, SparseMatrixWriter writer) throws IOException {
+        if (!nativeMatrixBuild) {
+            return false;
+        }
+        new ESAMatrixBuilder(searcher, language).write(pageIds, conceptIds, writer);
+        return true;
+    }
+
     private boolean isBlacklisted(int wpLocalIDNumb) {
         return blackListSet.contains(wpLocalIDNumb);
     }
@@ -250,6 +275,9 @@ public class ESAGenerator implements SparseVectorGenerator {
                     getConfigurator().get(LuceneSearcher.class, config.getString("luceneSearcher")),
                     getConfig().get().getString("sr.blacklist.path")
             );
+            if (config.hasPath("nativeMatrixBuild")) {
+                generator.setNativeMatrixBuild(config.getBoolean("nativeMatrixBuild"));
+            }
             if (config.hasPath("concepts")) {
                 try {
                     generator.setConcepts(FileUtils.getFile(
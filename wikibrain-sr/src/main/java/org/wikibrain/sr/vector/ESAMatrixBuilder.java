@@ -0,0 +1,330 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.QueryBuilder;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the ESA feature matrix directly from the lucene inverted index.
+ *
+ * ESAGenerator.getVector() runs a MoreLikeThis search for every page, which makes
+ * building the full feature matrix very slow. This class instead reads every posting
+ * list once and computes the same style of concept vectors in bulk:
+ *
+ * <ol>
+ *     <li>Each term's posting list becomes a row of a term-by-concept matrix whose
+ *     values are TF-IDF weights normalized by the length of each concept.</li>
+ *     <li>Postings that are frequent enough to be query terms are also written to a
+ *     second matrix that is transposed to get each document's terms.</li>
+ *     <li>In a multi-threaded pass, each document's top terms are combined with the
+ *     term-by-concept rows to produce its concept vector, which is pruned and normalized
+ *     like ESAGenerator's vectors.</li>
+ * </ol>
+ *
+ * As in ESAGenerator, feature ids are lucene document ids.
+ *
+ * @author Shilad Sen
+ */
+public class ESAMatrixBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(ESAMatrixBuilder.class);
+
+    private static final ValueConf TERM_VCONF = new ValueConf(0.0f, 1.0f);
+
+    private final LuceneSearcher searcher;
+    private final Language language;
+    private final String fieldName;
+
+    private int maxPercentage;
+    private int maxQueryTerms;
+    private int minTermFreq;
+    private int minDocFreq;
+    private int numHits;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    public ESAMatrixBuilder(LuceneSearcher searcher, Language language) {
+        this.searcher = searcher;
+        this.language = language;
+        this.fieldName = searcher.getOptions().elements.getTextFieldName();
+
+        // Mirror the defaults used for MoreLikeThis queries.
+        QueryBuilder qb = searcher.getQueryBuilderByLanguage(language);
+        this.maxPercentage = qb.getMaxPercentage();
+        this.maxQueryTerms = qb.getMaxQueryTerms();
+        this.minTermFreq = qb.getMinTermFreq();
+        this.minDocFreq = qb.getMinDocFreq();
+        this.numHits = qb.getNumHits();
+    }
+
+    /**
+     * Writes concept vectors for the specified pages.
+     *
+     * @param pageIds Local ids of pages whose vectors should be written.
+     * @param conceptIds Local ids of pages that may appear as concepts, or null for all pages.
+     * @param writer
+     * @throws IOException
+     */
+    public void write(final TIntSet pageIds, TIntSet conceptIds, final SparseMatrixWriter writer) throws IOException {
+        long start = System.currentTimeMillis();
+        AtomicReader reader = SlowCompositeReaderWrapper.wrap(searcher.getReaderByLanguage(language));
+        final int maxDoc = reader.maxDoc();
+
+        final int[] localIds = searcher.getLocalIdsByDocId(language);
+        boolean[] isConcept = new boolean[maxDoc];
+        for (int i = 0; i < maxDoc; i++) {
+            isConcept[i] = localIds[i] >= 0 && (conceptIds == null || conceptIds.contains(localIds[i]));
+        }
+
+        File conceptPath = File.createTempFile("esa-concepts", ".matrix");
+        File queryPath = File.createTempFile("esa-queries", ".matrix");
+        File queryTransposePath = File.createTempFile("esa-queries-transpose", ".matrix");
+        try {
+            writeTermMatrices(reader, isConcept, conceptPath, queryPath);
+            SparseMatrix queries = new SparseMatrix(queryPath);
+            new SparseMatrixTransposer(queries, queryTransposePath).transpose();
+            queries.close();
+
+            final SparseMatrix concepts = new SparseMatrix(conceptPath);
+            final SparseMatrix docTerms = new SparseMatrix(queryTransposePath);
+            final AtomicInteger numWritten = new AtomicInteger();
+            final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>() {
+                @Override
+                protected Accumulator initialValue() {
+                    return new Accumulator(maxDoc);
+                }
+            };
+            ParallelForEach.iterate(docTerms.iterator(), numThreads, 100, new Procedure<SparseMatrixRow>() {
+                @Override
+                public void call(SparseMatrixRow row) throws Exception {
+                    int localId = localIds[row.getRowIndex()];
+                    if (localId < 0 || !pageIds.contains(localId)) {
+                        return;
+                    }
+                    TIntFloatMap vector = makeVector(row, concepts, accumulators.get());
+                    if (!vector.isEmpty()) {
+                        writer.writeRow(new SparseMatrixRow(writer.getValueConf(), localId, vector));
+                        numWritten.incrementAndGet();
+                    }
+                }
+            }, 100000);
+            concepts.close();
+            docTerms.close();
+            LOG.info("wrote " + numWritten.get() + " ESA vectors for " + language + " in " +
+                    (System.currentTimeMillis() - start) / 1000 + " seconds");
+        } finally {
+            FileUtils.deleteQuietly(conceptPath);
+            FileUtils.deleteQuietly(queryPath);
+            FileUtils.deleteQuietly(queryTransposePath);
+        }
+    }
+
+    /**
+     * Streams through every posting list twice: once to calculate the length of
+     * each document and once to write the normalized term by concept matrix and
+     * the matrix of candidate query terms.
+     */
+    private void writeTermMatrices(AtomicReader reader, boolean[] isConcept, File conceptPath, File queryPath) throws IOException {
+        Terms terms = reader.terms(fieldName);
+        if (terms == null) {
+            throw new IOException("No field " + fieldName + " in lucene index for " + language);
+        }
+        Bits liveDocs = reader.getLiveDocs();
+        int numDocs = reader.numDocs();
+        int maxDocFreq = (int) (numDocs * maxPercentage / 100.0);
+
+        // Pass 1: document lengths
+        double[] lengths = new double[reader.maxDoc()];
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docsEnum = null;
+        while (termsEnum.next() != null) {
+            int df = termsEnum.docFreq();
+            if (df < minDocFreq || df > maxDocFreq) {
+                continue;
+            }
+            double idf = idf(df, numDocs);
+            docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+            int doc;
+            while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                double w = Math.sqrt(docsEnum.freq()) * idf;
+                lengths[doc] += w * w;
+            }
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = Math.sqrt(lengths[i]);
+        }
+
+        // Pass 2: normalized weights
+        SparseMatrixWriter conceptWriter = new SparseMatrixWriter(conceptPath, TERM_VCONF);
+        SparseMatrixWriter queryWriter = new SparseMatrixWriter(queryPath, TERM_VCONF);
+        TIntArrayList conceptCols = new TIntArrayList();
+        TIntArrayList queryCols = new TIntArrayList();
+        TFloatArrayList conceptVals = new TFloatArrayList();
+        TFloatArrayList queryVals = new TFloatArrayList();
+        int termId = 0;
+        termsEnum = terms.iterator(null);
+        while (termsEnum.next() != null) {
+            int df = termsEnum.docFreq();
+            if (df < minDocFreq || df > maxDocFreq) {
+                continue;
+            }
+            double idf = idf(df, numDocs);
+            conceptCols.resetQuick();
+            conceptVals.resetQuick();
+            queryCols.resetQuick();
+            queryVals.resetQuick();
+            docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+            int doc;
+            while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                int tf = docsEnum.freq();
+                float w = (float) (Math.sqrt(tf) * idf / lengths[doc]);
+                if (isConcept[doc]) {
+                    conceptCols.add(doc);
+                    conceptVals.add(w);
+                }
+                if (tf >= minTermFreq) {
+                    queryCols.add(doc);
+                    queryVals.add(w);
+                }
+            }
+            if (!conceptCols.isEmpty()) {
+                conceptWriter.writeRow(new SparseMatrixRow(TERM_VCONF, termId, conceptCols.toArray(), conceptVals.toArray()));
+            }
+            if (!queryCols.isEmpty()) {
+                queryWriter.writeRow(new SparseMatrixRow(TERM_VCONF, termId, queryCols.toArray(), queryVals.toArray()));
+            }
+            termId++;
+        }
+        conceptWriter.finish();
+        queryWriter.finish();
+        LOG.info("wrote term by concept matrix with " + termId + " terms for " + language);
+    }
+
+    /**
+     * Calculates the concept vector for a document given its candidate query terms.
+     */
+    private TIntFloatMap makeVector(SparseMatrixRow docTerms, SparseMatrix concepts, Accumulator acc) throws IOException {
+        Leaderboard topTerms = new Leaderboard(maxQueryTerms);
+        for (int i = 0; i < docTerms.getNumCols(); i++) {
+            topTerms.tallyScore(docTerms.getColIndex(i), docTerms.getColValue(i));
+        }
+        SRResultList terms = topTerms.getTop();
+        for (int i = 0; i < terms.numDocs(); i++) {
+            SparseMatrixRow row = concepts.getRow(terms.getId(i));
+            if (row == null) {
+                continue;
+            }
+            float w = (float) terms.getScore(i);
+            for (int j = 0; j < row.getNumCols(); j++) {
+                acc.add(row.getColIndex(j), w * row.getColValue(j));
+            }
+        }
+
+        Leaderboard top = new Leaderboard(numHits);
+        acc.drainTo(top);
+        SRResultList scores = top.getTop();
+
+        // Prune the tail of the vector, as ESAGenerator.pruneSimilar does.
+        int cutoff = scores.numDocs();
+        if (cutoff > 0) {
+            double threshold = 0.005 * scores.getScore(0);
+            for (int i = 0, j = 100; j < scores.numDocs(); i++, j++) {
+                if (scores.getScore(i) - scores.getScore(j) < threshold) {
+                    cutoff = j;
+                    break;
+                }
+            }
+        }
+        TIntFloatMap vector = new TIntFloatHashMap(cutoff * 2);
+        for (int i = 0; i < cutoff; i++) {
+            vector.put(scores.getId(i), (float) scores.getScore(i));
+        }
+        return SimUtils.normalizeVector(vector);
+    }
+
+    /**
+     * Lucene's DefaultSimilarity idf.
+     */
+    private static double idf(int docFreq, int numDocs) {
+        return 1.0 + Math.log(numDocs / (docFreq + 1.0));
+    }
+
+    /**
+     * A dense, reusable score accumulator that remembers which entries were touched.
+     */
+    private static class Accumulator {
+        private final float[] scores;
+        private final TIntArrayList touched = new TIntArrayList();
+
+        Accumulator(int size) {
+            this.scores = new float[size];
+        }
+
+        void add(int id, float score) {
+            if (score == 0.0f) {
+                return;
+            }
+            if (scores[id] == 0.0f) {
+                touched.add(id);
+            }
+            scores[id] += score;
+        }
+
+        void drainTo(Leaderboard top) {
+            for (int i = 0; i < touched.size(); i++) {
+                int id = touched.getQuick(i);
+                top.tallyScore(id, scores[id]);
+                scores[id] = 0.0f;
+            }
+            touched.resetQuick();
+        }
+    }
+
+    public void setMaxPercentage(int maxPercentage) {
+        this.maxPercentage = maxPercentage;
+    }
+
+    public void setMaxQueryTerms(int maxQueryTerms) {
+        this.maxQueryTerms = maxQueryTerms;
+    }
+
+    public void setMinTermFreq(int minTermFreq) {
+        this.minTermFreq = minTermFreq;
+    }
+
+    public void setMinDocFreq(int minDocFreq) {
+        this.minDocFreq = minDocFreq;
+    }
+
+    public void setNumHits(int numHits) {
+        this.numHits = numHits;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+}
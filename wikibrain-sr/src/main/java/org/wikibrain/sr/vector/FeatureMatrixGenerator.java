@@ -0,0 +1,25 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.set.TIntSet;
+import org.wikibrain.matrix.SparseMatrixWriter;
+
+import java.io.IOException;
+
+/**
+ * A sparse vector generator that can write the complete feature matrix in bulk.
+ * This is usually much faster than generating each page's vector independently.
+ *
+ * @author Shilad Sen
+ */
+public interface FeatureMatrixGenerator {
+
+    /**
+     * Writes the feature vectors for the specified pages.
+     *
+     * @param pageIds Pages whose vectors should be written.
+     * @param writer
+     * @return true if the matrix was written, or false if the caller should
+     *         instead build the matrix by generating each vector.
+     */
+    public boolean writeFeatureMatrix(TIntSet pageIds, SparseMatrixWriter writer) throws IOException;
+}
@@ -103,36 +103,10 @@ public class GoogleSimilarity implements VectorSimilarity {
     public double similarity(MatrixRow a, MatrixRow b) {
         int na = a.getNumCols();
         int nb = b.getNumCols();
-        int intersect = 0;
-        int i = 0, j = 0;
-
         if((na == 0 || nb == 0)) { // do not perform calculations if one or both are 0
             return 0;
         }
-
-        // Start by getting the first column in each matrix
-        int ca = a.getColIndex(i);
-        int cb = b.getColIndex(j);
-
-        while (i < na && j < nb) {
-            if (ca < cb) {
-                // if matrix a has a lower value, then get the next column
-                i++;
-                ca = a.getColIndex(i);
-            } else if (ca > cb) {
-                // if matrix b has a lower value, then get the next column
-                j++;
-                cb = b.getColIndex(j);
-            } else {
-                // if both have the same value, increment the intersection and get the next columns in both matrices
-                i++;
-                j++;
-                intersect++;
-                ca = a.getColIndex(i);
-                cb = b.getColIndex(j);
-            }
-        }
-
+        int intersect = SimUtils.intersectionSize(a, b);
         return SimUtils.googleSimilarity(na, nb, intersect, numPages);
     }
 
@@ -348,7 +348,8 @@ public class SparseVectorSRMetric extends BaseSRMetric {
     /**
      * Rebuild the feature and transpose matrices.
      * If the matrices are available from the feature generator, they will be used.
-     * If not, they will be regenerated.
+     * If not, they will be regenerated. Generators that implement FeatureMatrixGenerator
+     * write the matrix in bulk; otherwise each page's vector is generated separately.
      * @param validIds
      * @throws IOException
      */
@@ -367,17 +368,22 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
         final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
-        ParallelForEach.loop(
-                WbArrayUtils.toList(validIds.toArray()),
-                WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    public void call(Integer pageId) throws IOException {
-                        TIntFloatMap scores = getPageVector(pageId);
-                        if (scores != null && !scores.isEmpty()) {
-                            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+        if (generator instanceof FeatureMatrixGenerator
+        &&  ((FeatureMatrixGenerator)generator).writeFeatureMatrix(validIds, writer)) {
+            LOG.info("wrote feature matrix in bulk using " + generator.getClass().getSimpleName());
+        } else {
+            ParallelForEach.loop(
+                    WbArrayUtils.toList(validIds.toArray()),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer pageId) throws IOException {
+                            TIntFloatMap scores = getPageVector(pageId);
+                            if (scores != null && !scores.isEmpty()) {
+                                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+                            }
                         }
-                    }
-                }, 10000);
+                    }, 10000);
+        }
         writer.finish();
 
         // Reload the feature matrix
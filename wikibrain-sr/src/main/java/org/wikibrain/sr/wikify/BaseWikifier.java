@@ -0,0 +1,81 @@
+package org.wikibrain.sr.wikify;
+
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements streaming batch wikification on top of the single document methods.
+ *
+ * @author Shilad Sen
+ */
+public abstract class BaseWikifier implements Wikifier {
+    private static final Logger LOG = LoggerFactory.getLogger(BaseWikifier.class);
+
+    private int numThreads = WpThreadUtils.getMaxThreads();
+    private int logInterval = 1000;
+
+    @Override
+    public void wikify(Iterable<IdAndText> docs, final Callback callback) throws DaoException {
+        final long start = System.currentTimeMillis();
+        final AtomicInteger numDocs = new AtomicInteger();
+        ParallelForEach.iterate(docs.iterator(), numThreads, numThreads * 4, new Procedure<IdAndText>() {
+            @Override
+            public void call(IdAndText doc) throws Exception {
+                callback.call(doc, wikify(doc));
+                int n = numDocs.incrementAndGet();
+                if (n % logInterval == 0) {
+                    logProgress(n, start);
+                }
+            }
+        }, -1);
+        logProgress(numDocs.get(), start);
+    }
+
+    /**
+     * Wikifies a single document from a batch.
+     * @see Wikifier#wikify(Iterable, Callback)
+     */
+    public List<LocalLink> wikify(IdAndText doc) throws DaoException {
+        if (doc.getId() < 0) {
+            return wikify(doc.getText());
+        } else if (doc.getText() == null) {
+            return wikify(doc.getId());
+        } else {
+            return wikify(doc.getId(), doc.getText());
+        }
+    }
+
+    /**
+     * @return The shared cache used by this wikifier, or null if it does not use one.
+     */
+    public WikifierCache getCache() {
+        return null;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public void setLogInterval(int logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    private void logProgress(int numDocs, long start) {
+        double elapsed = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        String msg = String.format("%s wikified %d documents in %.1f seconds (%.1f docs/sec)",
+                getClass().getSimpleName(), numDocs, elapsed, numDocs / elapsed);
+        WikifierCache cache = getCache();
+        if (cache != null) {
+            msg += "; cache " + cache.getStats();
+        }
+        LOG.info(msg);
+    }
+}
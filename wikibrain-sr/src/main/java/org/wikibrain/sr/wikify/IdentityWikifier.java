@@ -25,7 +25,7 @@ import java.util.*;
  *
  * @author Shilad Sen
  */
-public class IdentityWikifier implements Wikifier {
+public class IdentityWikifier extends BaseWikifier {
     private final RawPageDao pageDao;
     private final LocalLinkDao linkDao;
     private final Language language;
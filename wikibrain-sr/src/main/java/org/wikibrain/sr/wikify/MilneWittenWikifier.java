@@ -30,7 +30,7 @@ import org.slf4j.LoggerFactory;
 /**
  * @author Shilad Sen
  */
-public class MilneWittenWikifier implements Wikifier {
+public class MilneWittenWikifier extends BaseWikifier {
     private static final Logger LOG = LoggerFactory.getLogger(MilneWittenWikifier.class);
 
     private final LocalPageDao lpd;
@@ -46,6 +46,8 @@ public class MilneWittenWikifier implements Wikifier {
 
     private int maxNGram = 3;
 
+    private WikifierCache wikifierCache = new WikifierCache();
+
     private StringTokenizer tokenizer = new StringTokenizer();
     private NGramCreator nGramCreator = new NGramCreator();
 
@@ -168,7 +170,7 @@ public class MilneWittenWikifier implements Wikifier {
 
         int [] knownIds = knownSet.toArray();
         int [] candidateIds = candidateSet.toArray();
-        double cosimilarity[][] = metric.cosimilarity(candidateIds, knownIds);
+        double cosimilarity[][] = wikifierCache.cosimilarity(metric, candidateIds, knownIds);
 
         TIntDoubleMap similarities = new TIntDoubleHashMap();
         for (int i = 0; i < candidateIds.length; i++) {
@@ -252,6 +254,19 @@ public class MilneWittenWikifier implements Wikifier {
         }
     }
 
+    @Override
+    public WikifierCache getCache() {
+        return wikifierCache;
+    }
+
+    /**
+     * Replaces the cache of phrase priors and relatedness scores.
+     * This should be called if the underlying SR metric or phrase analyzer is rebuilt.
+     */
+    public void setCache(WikifierCache cache) {
+        this.wikifierCache = cache;
+    }
+
     public List<LinkInfo> getTextContext(String text) throws DaoException {
         return getCandidates(text);
     }
@@ -286,7 +301,7 @@ public class MilneWittenWikifier implements Wikifier {
             return li;
         }
 
-        PrunedCounts<Integer> counts = phraseDao.getPhraseCounts(language, token.getToken(), 30);
+        PrunedCounts<Integer> counts = wikifierCache.getPhraseCounts(phraseDao, language, token.getToken(), 30);
         if (counts != null && !counts.isEmpty()) {
             LinkInfo li = new LinkInfo();
             li.setLinkProbability(linkProbability);
@@ -33,7 +33,7 @@ import org.slf4j.LoggerFactory;
  * http://web-ngram.research.microsoft.com/erd2014/Docs/submissions/erd14_submission_24.pdf
  * @author Shilad Sen
  */
-public class WebSailWikifier implements Wikifier {
+public class WebSailWikifier extends BaseWikifier {
     private static final Logger LOG = LoggerFactory.getLogger(WebSailWikifier.class);
 
     /**
@@ -54,6 +54,8 @@ public class WebSailWikifier implements Wikifier {
     private double minLinkProbability = 0.01;
     private double minFinalScore = 0.001;
 
+    private WikifierCache wikifierCache = new WikifierCache();
+
     public WebSailWikifier(Wikifier identityWikifier, RawPageDao rawPageDao, LocalLinkDao linkDao, LinkProbabilityDao linkProbDao, PhraseAnalyzerDao phraseDao, SRMetric metric) throws DaoException {
         this.identityWikifier = identityWikifier;
         this.metric = metric;
@@ -126,7 +128,7 @@ public class WebSailWikifier implements Wikifier {
 
         // Find disambiguation candidates for each possible mention
         for (LinkInfo li : mentions) {
-            li.setPrior(phraseDao.getPhraseCounts(language, li.getAnchortext(), 5));
+            li.setPrior(wikifierCache.getPhraseCounts(phraseDao, language, li.getAnchortext(), 5));
         }
 
         // Calculate the relatedness of each mention to known links in the article
@@ -157,7 +159,7 @@ public class WebSailWikifier implements Wikifier {
 
         // Temporarily score eveything based on link probability and prior
         for (LinkInfo li : mentions) {
-            PrunedCounts<Integer> prior = phraseDao.getPhraseCounts(language, li.getAnchortext(), 5);
+            PrunedCounts<Integer> prior = wikifierCache.getPhraseCounts(phraseDao, language, li.getAnchortext(), 5);
             li.setPrior(prior);
             if (prior == null || prior.isEmpty()) continue;
             double p = 1.0 * prior.values().iterator().next() / (prior.getTotal() + 1);
@@ -237,7 +239,7 @@ public class WebSailWikifier implements Wikifier {
             return results;
         }
 
-        double [][] cosim = metric.cosimilarity(candidates, existing);
+        double [][] cosim = wikifierCache.cosimilarity(metric, candidates, existing);
         for (int i = 0; i < candidates.length; i++) {
             double sum = 0.0;
             for (double s : cosim[i]) {
@@ -254,6 +256,19 @@ public class WebSailWikifier implements Wikifier {
         this.minFinalScore = minFinalScore;
     }
 
+    @Override
+    public WikifierCache getCache() {
+        return wikifierCache;
+    }
+
+    /**
+     * Replaces the cache of phrase priors and relatedness scores.
+     * This should be called if the underlying SR metric or phrase analyzer is rebuilt.
+     */
+    public void setCache(WikifierCache cache) {
+        this.wikifierCache = cache;
+    }
+
     private List<LocalLink> link(int wpId, String text, List<LinkInfo> infos) throws DaoException {
         BitSet used = new BitSet(text.length());
         List<LocalLink> results = identityWikifier.wikify(wpId, text);
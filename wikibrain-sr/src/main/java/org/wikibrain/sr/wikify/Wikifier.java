@@ -14,4 +14,24 @@ public interface Wikifier {
     public List<LocalLink> wikify(int wpId) throws DaoException;
 
     public List<LocalLink> wikify(String text) throws DaoException;
+
+    /**
+     * Wikifies a stream of documents in parallel.
+     *
+     * Documents with a negative id are wikified as free text, documents
+     * with null text are looked up by id, and all others use both.
+     * The callback is invoked from worker threads as each document completes,
+     * so results do not arrive in the same order as the documents.
+     *
+     * @param docs
+     * @param callback
+     */
+    public void wikify(Iterable<IdAndText> docs, Callback callback) throws DaoException;
+
+    /**
+     * Receives the links detected for a single document in a batch.
+     */
+    public static interface Callback {
+        public void call(IdAndText doc, List<LocalLink> links) throws Exception;
+    }
 }
@@ -0,0 +1,126 @@
+package org.wikibrain.sr.wikify;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.phrases.PhraseAnalyzerDao;
+import org.wikibrain.phrases.PrunedCounts;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.utils.LruCache;
+
+/**
+ * Bounded caches shared by all documents a wikifier processes.
+ *
+ * Phrase priors and pairwise relatedness scores for popular phrases and
+ * concepts recur across documents, so caching them avoids most of the
+ * phrase dao lookups and SR computations when wikifying large batches.
+ *
+ * @author Shilad Sen
+ */
+public class WikifierCache {
+    public static final int DEFAULT_NUM_PRIORS = 200000;
+    public static final int DEFAULT_NUM_PAIRS = 1000000;
+
+    private final LruCache<String, PrunedCounts<Integer>> priors;
+    private final LruCache<PairKey, Double> pairs;
+
+    public WikifierCache() {
+        this(DEFAULT_NUM_PRIORS, DEFAULT_NUM_PAIRS);
+    }
+
+    public WikifierCache(int numPriors, int numPairs) {
+        this.priors = new LruCache<String, PrunedCounts<Integer>>(numPriors);
+        this.pairs = new LruCache<PairKey, Double>(numPairs);
+    }
+
+    /**
+     * Returns the (possibly cached) phrase counts for a phrase.
+     * Counts are cached separately for each language and maxPages, so one cache
+     * can be shared by wikifiers with different settings.
+     * The returned counts are shared between threads and must not be modified.
+     */
+    public PrunedCounts<Integer> getPhraseCounts(PhraseAnalyzerDao dao, Language language, String phrase, int maxPages) throws DaoException {
+        String key = language.getLangCode() + "\t" + maxPages + "\t" + phrase;
+        PrunedCounts<Integer> counts = priors.get(key);
+        if (counts == null && !priors.containsKey(key)) {
+            counts = dao.getPhraseCounts(language, phrase, maxPages);
+            priors.put(key, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the cosimilarity matrix between rows and columns, computing
+     * only the rows that have at least one pair missing from the cache.
+     * Scores are cached separately for each metric and language.
+     */
+    public double[][] cosimilarity(SRMetric metric, int rows[], int columns[]) throws DaoException {
+        Language lang = metric.getLanguage();
+        String metricKey = metric.getName() + "\t" + (lang == null ? "" : lang.getLangCode());
+        double[][] result = new double[rows.length][columns.length];
+        TIntList missingRows = new TIntArrayList();
+        TIntList missingIndexes = new TIntArrayList();
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < columns.length; j++) {
+                Double s = pairs.get(new PairKey(metricKey, rows[i], columns[j]));
+                if (s == null) {
+                    missingRows.add(rows[i]);
+                    missingIndexes.add(i);
+                    break;
+                }
+                result[i][j] = s;
+            }
+        }
+        if (missingRows.isEmpty() || columns.length == 0) {
+            return result;
+        }
+
+        double[][] computed = metric.cosimilarity(missingRows.toArray(), columns);
+        for (int i = 0; i < missingRows.size(); i++) {
+            int row = missingRows.get(i);
+            result[missingIndexes.get(i)] = computed[i];
+            for (int j = 0; j < columns.length; j++) {
+                pairs.put(new PairKey(metricKey, row, columns[j]), computed[i][j]);
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        priors.clear();
+        pairs.clear();
+    }
+
+    /**
+     * @return A short summary of cache sizes and hit rates, suitable for logging.
+     */
+    public String getStats() {
+        return String.format("priors: %d entries (%.1f%% hits), relatedness: %d pairs (%.1f%% hits)",
+                priors.size(), 100 * priors.getHitRate(), pairs.size(), 100 * pairs.getHitRate());
+    }
+
+    private static final class PairKey {
+        private final String metric;
+        private final int row;
+        private final int column;
+
+        PairKey(String metric, int row, int column) {
+            this.metric = metric;
+            this.row = row;
+            this.column = column;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PairKey)) return false;
+            PairKey that = (PairKey) o;
+            return row == that.row && column == that.column && metric.equals(that.metric);
+        }
+
+        @Override
+        public int hashCode() {
+            return (metric.hashCode() * 31 + row) * 31 + column;
+        }
+    }
+}
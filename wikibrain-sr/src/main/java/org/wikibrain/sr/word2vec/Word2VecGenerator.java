@@ -45,15 +45,25 @@ public class Word2VecGenerator implements DenseVectorGenerator {
     private final Language language;
     private final LocalPageDao localPageDao;
     private final File path;
+    private final DenseMatrixRow.Encoding encoding;
 
     private TLongIntMap phraseIds;
     private DenseMatrix phraseMatrix;
     private DenseMatrix articleMatrix;
 
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
+        this(language, localPageDao, path, DenseMatrixRow.Encoding.PACKED16);
+    }
+
+    /**
+     * @param encoding Row layout used when the article and phrase matrices are rebuilt.
+     *                 FLOAT32 is exact and fastest to score, INT8 uses a quarter of the space.
+     */
+    public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path, DenseMatrixRow.Encoding encoding) throws IOException {
         this.language = language;
         this.localPageDao = localPageDao;
         this.path = path;
+        this.encoding = encoding;
         this.read();
     }
 
@@ -146,13 +156,13 @@ public class Word2VecGenerator implements DenseVectorGenerator {
                     String[] pieces = word.split("/", 5);
                     int wpId = Integer.valueOf(pieces[3]);
                     if (wpId >= 0) {
-                        DenseMatrixRow row = new DenseMatrixRow(vconf, wpId, colIds, vector);
+                        DenseMatrixRow row = new DenseMatrixRow(vconf, wpId, colIds, vector, encoding);
                         articleWriter.writeRow(row);
                         numArticles++;
                     }
                 } else {
                     word = word.replace('\t', ' ').replace('\n', ' ');
-                    DenseMatrixRow row = new DenseMatrixRow(vconf, numPhrases, colIds, vector);
+                    DenseMatrixRow row = new DenseMatrixRow(vconf, numPhrases, colIds, vector, encoding);
                     phraseWriter.writeRow(row);
                     phraseIdWriter.write(numPhrases + "\t" + word + "\n");
                     numPhrases++;
@@ -308,11 +318,16 @@ public class Word2VecGenerator implements DenseVectorGenerator {
             if (!path.isFile()) {
                 throw new ConfigurationException("Path to word2vec model " + path.getAbsolutePath() + " is not a file. Do you need to download or build the model?");
             }
+            DenseMatrixRow.Encoding encoding = DenseMatrixRow.Encoding.PACKED16;
+            if (config.hasPath("encoding")) {
+                encoding = DenseMatrixRow.Encoding.valueOf(config.getString("encoding").toUpperCase());
+            }
             try {
                 return new Word2VecGenerator(
                         language,
                         getConfigurator().get(LocalPageDao.class),
-                        path
+                        path,
+                        encoding
                 );
             } catch (IOException e) {
                 throw new ConfigurationException(e);
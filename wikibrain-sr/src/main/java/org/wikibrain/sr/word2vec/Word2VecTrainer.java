@@ -36,12 +36,20 @@ import java.util.regex.Matcher;
  * @author Shilad Sen
  *
  * Heavily adapted from https://github.com/piskvorky/gensim/blob/develop/gensim/models/word2vec.py
+ *
+ * Supports hierarchical softmax (the default), negative sampling, or both.
+ * Weights for all words are stored in single contiguous arrays and updated
+ * without locks by all training threads, as in the original C implementation.
  */
 public class Word2VecTrainer {
     private static final Logger LOG = LoggerFactory.getLogger(Word2VecTrainer.class);
     private static final int ARTICLE_COUNT_BONUS = 10;
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
+    private static final int UNIGRAM_TABLE_SIZE = 10000000;
+
+    // Number of words a thread trains before it publishes progress and updates the learning rate.
+    private static final int PROGRESS_INTERVAL = 10000;
 
     private final Language language;
     private final LocalPageDao pageDao;
@@ -73,12 +81,34 @@ public class Word2VecTrainer {
 
 
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
+    private volatile double alpha = startingAlpha;
     private int window = 5;
 
+    /**
+     * Whether to train with hierarchical softmax.
+     */
+    private boolean hierarchicalSoftmax = true;
+
+    /**
+     * Number of negative samples per word. Zero disables negative sampling.
+     */
+    private int negative = 0;
+
+    /**
+     * Threshold for subsampling frequent words. Zero disables subsampling.
+     */
+    private double sample = 0.0;
+
     private int layer1Size = 200;
-    private float syn0[][];
-    private float syn1[][];
+
+    // Row-major weights: the vector for word i starts at i * layer1Size.
+    private float syn0[];
+    private float syn1[];
+    private float syn1neg[];
+
+    // Word counts by index, and the table of word indexes used to draw negative samples.
+    private int[] counts;
+    private int[] unigramTable;
 
     /**
      * Fast sigmoid function table.
@@ -92,7 +122,15 @@ public class Word2VecTrainer {
     }
 
     private AtomicLong wordsTrainedSoFar = new AtomicLong();
-    private Random random = new Random();
+    private long trainingStart;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
 
     private byte[][] wordCodes;
     private int[][] wordParents;
@@ -111,61 +149,90 @@ public class Word2VecTrainer {
     }
 
     public void train(File directory, boolean wikibrainFormat) throws IOException, DaoException {
+        if (!hierarchicalSoftmax && negative <= 0) {
+            throw new IllegalArgumentException("one of hierarchical softmax or negative sampling must be enabled");
+        }
         LOG.info("counting word frequencies.");
         readWords(new File(directory, "dictionary.txt"));
-        buildTree();
+        if (hierarchicalSoftmax) {
+            buildTree();
+        }
+        if (negative > 0) {
+            buildUnigramTable();
+        }
 
-        syn0 = new float[wordIndexes.size()][layer1Size];
-        for (float[] row :syn0) {
-            for (int i = 0; i < row.length; i++) {
-                row[i] = (random.nextFloat() - 0.5f) / layer1Size;
-            }
+        long size = (long) words.length * layer1Size;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("model with " + words.length + " words and " +
+                    layer1Size + " dimensions is too large");
+        }
+        Random random = new Random();
+        syn0 = new float[(int) size];
+        for (int i = 0; i < syn0.length; i++) {
+            syn0[i] = (random.nextFloat() - 0.5f) / layer1Size;
+        }
+        if (hierarchicalSoftmax) {
+            syn1 = new float[(int) size];
+        }
+        if (negative > 0) {
+            syn1neg = new float[(int) size];
         }
-        syn1 = new float[wordIndexes.size()][layer1Size];
 
+        trainingStart = System.currentTimeMillis();
         for (int it = 0; it < iterations; it++) {
             if (wikibrainFormat) {
                 WBCorpusDocReader reader = new WBCorpusDocReader(new File(directory, "corpus.txt"));
                 ParallelForEach.iterate(reader.iterator(),
-                        WpThreadUtils.getMaxThreads(),
+                        numThreads,
                         1000,
                         new Procedure<WBCorpusDocReader.Doc>() {
                             @Override
                             public void call(WBCorpusDocReader.Doc doc) throws Exception {
-                                int n = 0;
+                                ThreadState state = threadState.get();
                                 for (String line : doc.getLines()) {
-                                    n += trainSentence(doc.getDoc().getId(), line);
+                                    trainSentence(state, doc.getDoc().getId(), line);
                                 }
-                                wordsTrainedSoFar.addAndGet(n);
-
-                                // update the learning rate
-                                alpha = Math.max(
-                                        startingAlpha * (1 - wordsTrainedSoFar.get() / (iterations * totalWords + 1.0)),
-                                        startingAlpha * 0.0001);
                             }
                         },
                         10000);
             } else {
                 LineIterator iterator = FileUtils.lineIterator(new File(directory, "corpus.txt"));
                 ParallelForEach.iterate(iterator,
-                        WpThreadUtils.getMaxThreads(),
+                        numThreads,
                         1000,
                         new Procedure<String>() {
                             @Override
                             public void call(String sentence) throws Exception {
-                                int n = trainSentence(null, sentence);
-                                wordsTrainedSoFar.addAndGet(n);
-
-                                // update the learning rate
-                                alpha = Math.max(
-                                        startingAlpha * (1 - wordsTrainedSoFar.get() / (iterations * totalWords + 1.0)),
-                                        startingAlpha * 0.0001);
+                                trainSentence(threadState.get(), null, sentence);
                             }
                         },
                         10000);
                 iterator.close();
             }
         }
+        logProgress();
+    }
+
+    /**
+     * Adds words trained by a thread to the global count and updates the learning rate.
+     */
+    private void updateProgress(ThreadState state) {
+        long before = wordsTrainedSoFar.get();
+        long total = wordsTrainedSoFar.addAndGet(state.wordsSinceUpdate);
+        state.wordsSinceUpdate = 0;
+        alpha = Math.max(
+                startingAlpha * (1 - total / (iterations * totalWords + 1.0)),
+                startingAlpha * 0.0001);
+        if (before / 1000000 != total / 1000000) {
+            logProgress();
+        }
+    }
+
+    private void logProgress() {
+        long total = wordsTrainedSoFar.get();
+        double elapsed = Math.max(1, System.currentTimeMillis() - trainingStart) / 1000.0;
+        LOG.info(String.format("trained %d of %d words, alpha %.5f, %.0f words/sec/thread",
+                total, iterations * totalWords, alpha, total / elapsed / numThreads));
     }
 
     public void readWords(File dictionary) throws IOException, DaoException {
@@ -207,11 +274,16 @@ public class Word2VecTrainer {
             }
         }
         words = top.toArray(new String[top.size()]);
+        counts = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            counts[i] = wordCounts.get(hashWord(words[i]));
+        }
 
         LOG.info("retained " + dict.getNumUnigrams() + " words and " + articleIndexes.size() + " articles");
     }
 
-    private int trainSentence(Integer wpId, String sentence) {
+    private int trainSentence(ThreadState state, Integer wpId, String sentence) {
+        Random random = state.random;
         int wpIdIndex = (wpId != null && articleIndexes.containsKey(wpId)) ? articleIndexes.get(wpId) : -1;
         String words[] = sentence.trim().split(" +");
         TIntList indexList = new TIntArrayList(words.length * 3 / 2);
@@ -235,6 +307,8 @@ public class Word2VecTrainer {
                     wordIndex = wordIndexes.get(h);
                 }
             }
+            wordIndex = subsample(wordIndex, random);
+            mentionIndex = subsample(mentionIndex, random);
             if (mentionIndex >= 0) {
                 if (random.nextDouble() >= 0.5) {
                     indexList.add(wordIndex);
@@ -249,18 +323,12 @@ public class Word2VecTrainer {
         }
         int indexes[] = indexList.toArray();
 
-        float[] neu1e = new float[layer1Size];
+        float[] neu1e = state.neu1e;
         for (int i = 0; i < indexes.length; i++) {
             if (indexes[i] < 0) {
                 continue; // skip out of vocabulary words
             }
 
-            byte [] code = wordCodes[indexes[i]];
-            int [] parents = wordParents[indexes[i]];
-            if (code.length != parents.length) {
-                throw new IllegalStateException();
-            }
-
             // now go over all words from the (reduced) window, predicting each one in turn
             int reducedWindow = random.nextInt(window);
             int start = Math.max(0, i - window + reducedWindow);
@@ -279,31 +347,132 @@ public class Word2VecTrainer {
                     continue;
                 }
                 Arrays.fill(neu1e, 0f);
-                float l1[] = syn0[q];
-
-                for (int k = 0; k < parents.length; k++) {
-                    float l2[] = syn1[parents[k]];
-                    double f = WbMathUtils.dot(l1, l2);
-                    if (f <= -MAX_EXP || f >= MAX_EXP) {
-                        continue;
-                    }
-                    double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
-                    double g = (1 - code[k] - s) * alpha;
-
-                    for (int c = 0; c < layer1Size; c++) {
-                        neu1e[c] += g * l2[c];
-                        l2[c] += g * l1[c];
-                    }
+                int l1 = q * layer1Size;
+                if (hierarchicalSoftmax) {
+                    trainHierarchicalSoftmax(indexes[i], l1, neu1e);
+                }
+                if (negative > 0) {
+                    trainNegativeSampling(indexes[i], l1, neu1e, random);
                 }
                 for (int c = 0; c < layer1Size; c++) {
-                    l1[c] += neu1e[c];
+                    syn0[l1 + c] += neu1e[c];
                 }
             }
+        }
 
+        state.wordsSinceUpdate += indexes.length;
+        if (state.wordsSinceUpdate >= PROGRESS_INTERVAL) {
+            updateProgress(state);
         }
         return indexes.length;
     }
 
+    private void trainHierarchicalSoftmax(int word, int l1, float[] neu1e) {
+        byte [] code = wordCodes[word];
+        int [] parents = wordParents[word];
+        if (code.length != parents.length) {
+            throw new IllegalStateException();
+        }
+        for (int k = 0; k < parents.length; k++) {
+            int l2 = parents[k] * layer1Size;
+            double f = dot(syn0, l1, syn1, l2);
+            if (f <= -MAX_EXP || f >= MAX_EXP) {
+                continue;
+            }
+            double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+            float g = (float) ((1 - code[k] - s) * alpha);
+            update(g, syn0, l1, syn1, l2, neu1e);
+        }
+    }
+
+    private void trainNegativeSampling(int word, int l1, float[] neu1e, Random random) {
+        for (int d = 0; d <= negative; d++) {
+            int target;
+            int label;
+            if (d == 0) {
+                target = word;
+                label = 1;
+            } else {
+                target = unigramTable[random.nextInt(unigramTable.length)];
+                if (target == word) continue;
+                label = 0;
+            }
+            int l2 = target * layer1Size;
+            double f = dot(syn0, l1, syn1neg, l2);
+            double g;
+            if (f > MAX_EXP) {
+                g = (label - 1) * alpha;
+            } else if (f < -MAX_EXP) {
+                g = label * alpha;
+            } else {
+                g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * alpha;
+            }
+            update((float) g, syn0, l1, syn1neg, l2, neu1e);
+        }
+    }
+
+    /**
+     * Accumulates the error for the input vector in neu1e and updates the output vector.
+     */
+    private void update(float g, float[] in, int inOffset, float[] out, int outOffset, float[] neu1e) {
+        for (int c = 0; c < layer1Size; c++) {
+            neu1e[c] += g * out[outOffset + c];
+            out[outOffset + c] += g * in[inOffset + c];
+        }
+    }
+
+    private double dot(float[] v1, int offset1, float[] v2, int offset2) {
+        double sum = 0.0;
+        for (int c = 0; c < layer1Size; c++) {
+            sum += v1[offset1 + c] * v2[offset2 + c];
+        }
+        return sum;
+    }
+
+    /**
+     * Randomly discards frequent words, following Mikolov et al.
+     * @return The word index, or -1 if the word was discarded.
+     */
+    private int subsample(int index, Random random) {
+        if (index < 0 || sample <= 0) {
+            return index;
+        }
+        double threshold = sample * totalWords;
+        double keep = (Math.sqrt(counts[index] / threshold) + 1) * threshold / counts[index];
+        return (keep < random.nextDouble()) ? -1 : index;
+    }
+
+    /**
+     * Builds the table used to draw negative samples. Each word appears
+     * in proportion to its count raised to the 3/4 power.
+     */
+    private void buildUnigramTable() {
+        LOG.info("building unigram table");
+        double power = 0.75;
+        double total = 0.0;
+        for (int c : counts) {
+            total += Math.pow(c, power);
+        }
+        unigramTable = new int[UNIGRAM_TABLE_SIZE];
+        int i = 0;
+        double cumulative = Math.pow(counts[0], power) / total;
+        for (int a = 0; a < unigramTable.length; a++) {
+            unigramTable[a] = i;
+            if (a / (double) unigramTable.length > cumulative && i < counts.length - 1) {
+                i++;
+                cumulative += Math.pow(counts[i], power) / total;
+            }
+        }
+    }
+
+    /**
+     * Training state owned by a single thread.
+     */
+    private class ThreadState {
+        final Random random = new Random();
+        final float[] neu1e = new float[layer1Size];
+        long wordsSinceUpdate = 0;
+    }
 
     private class Node implements Comparable<Node> {
         long hash;
@@ -385,7 +554,7 @@ public class Word2VecTrainer {
         for (String w : words) {
             stream.write(w.getBytes("UTF-8"));
             stream.write(' ');
-            float[] vector = syn0[wordIndexes.get(Word2VecUtils.hashWord(w))];
+            float[] vector = getVector(wordIndexes.get(Word2VecUtils.hashWord(w)));
             WbMathUtils.normalize(vector);
             for (float f : vector) {
                 stream.write(floatToBytes(f));
@@ -396,12 +565,12 @@ public class Word2VecTrainer {
 
     private void test() {
         long h = hashWord("person");
-        float [] v1 = syn0[wordIndexes.get(h)];
+        float [] v1 = getVector(wordIndexes.get(h));
         WbMathUtils.normalize(v1);
 
         Map<String, Double> sims = new HashMap<String, Double>();
         for (int i = 0; i < words.length; i++) {
-            float [] v2 = syn0[i];
+            float [] v2 = getVector(i);
             WbMathUtils.normalize(v2);
             double sim =  WbMathUtils.dot(v1, v2);
             sims.put(words[i], sim);
@@ -415,6 +584,10 @@ public class Word2VecTrainer {
         }
     }
 
+    private float[] getVector(int index) {
+        return Arrays.copyOfRange(syn0, index * layer1Size, (index + 1) * layer1Size);
+    }
+
     public void setMaxWords(int maxWords) {
         this.maxWords = maxWords;
     }
@@ -431,6 +604,22 @@ public class Word2VecTrainer {
         this.keepAllArticles = keepAllArticles;
     }
 
+    public void setHierarchicalSoftmax(boolean hierarchicalSoftmax) {
+        this.hierarchicalSoftmax = hierarchicalSoftmax;
+    }
+
+    public void setNegative(int negative) {
+        this.negative = negative;
+    }
+
+    public void setSample(double sample) {
+        this.sample = sample;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     private static byte[] floatToBytes(float value) {
         int bits = Float.floatToIntBits(value);
         byte[] bytes = new byte[4];
@@ -479,6 +668,23 @@ public class Word2VecTrainer {
                         .withLongOpt("minfreq")
                         .withDescription("minimum word frequency")
                         .create("f"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("negative")
+                        .withDescription("number of negative samples; 0 disables negative sampling")
+                        .create("n"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("nohs")
+                        .withDescription("disable hierarchical softmax")
+                        .create("s"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("sample")
+                        .withDescription("threshold for subsampling frequent words, e.g. 1e-4")
+                        .create("a"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -506,6 +712,15 @@ public class Word2VecTrainer {
         if (cmd.hasOption("z")) {
             trainer.layer1Size = Integer.valueOf(cmd.getOptionValue("z"));
         }
+        if (cmd.hasOption("n")) {
+            trainer.negative = Integer.valueOf(cmd.getOptionValue("n"));
+        }
+        if (cmd.hasOption("s")) {
+            trainer.hierarchicalSoftmax = false;
+        }
+        if (cmd.hasOption("a")) {
+            trainer.sample = Double.valueOf(cmd.getOptionValue("a"));
+        }
 
         trainer.train(new File(cmd.getOptionValue("i")));
         trainer.save(new File(cmd.getOptionValue("o")));
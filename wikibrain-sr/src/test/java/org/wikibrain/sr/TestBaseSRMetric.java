@@ -0,0 +1,70 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.disambig.Disambiguator;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestBaseSRMetric {
+
+    @Test
+    public void testCosimilarityUsesPhraseSimilarity() throws DaoException {
+        Disambiguator disambiguator = Mockito.mock(Disambiguator.class);
+        PhraseMetric metric = new PhraseMetric(disambiguator);
+        String[] rows = { "apple", "banana", "kiwi" };
+        String[] cols = { "pear", "apple", "watermelon" };
+        double[][] cos = metric.cosimilarity(rows, cols);
+        assertEquals(metric.similarity(rows[0], cols[0], false).getScore(), cos[0][0], 0.000001);
+        for (int i = 0; i < rows.length; i++) {
+            for (int j = 0; j < cols.length; j++) {
+                if (!rows[i].equals(cols[j])) {
+                    assertEquals(metric.similarity(rows[i], cols[j], false).getScore(), cos[i][j], 0.000001);
+                }
+            }
+        }
+        assertEquals(1.0, cos[0][1], 0.000001);
+
+        // Phrases are never disambiguated to pages.
+        verifyZeroInteractions(disambiguator);
+    }
+
+    /**
+     * Scores phrases directly by how close their lengths are.
+     */
+    static class PhraseMetric extends BaseSRMetric {
+        PhraseMetric(Disambiguator disambiguator) {
+            super("phrase", Language.SIMPLE, null, disambiguator);
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            SRConfig config = new SRConfig();
+            config.minScore = 0.0f;
+            config.maxScore = 1.0f;
+            return config;
+        }
+
+        @Override
+        public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+            return new SRResult(1.0 / (1 + Math.abs(phrase1.length() - phrase2.length())));
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -6,10 +6,16 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.sr.wikify.IdAndText;
 import org.wikibrain.sr.wikify.IdentityWikifier;
+import org.wikibrain.sr.wikify.Wikifier;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -103,6 +109,43 @@ public class TestIdentityWikifier {
         }
     }
 
+    @Test
+    public void testBatch() throws DaoException {
+        LocalLinkDao llDao = Mockito.mock(LocalLinkDao.class);
+        List<IdAndText> docs = new ArrayList<IdAndText>();
+        for (int i = 0; i < 500; i++) {
+            Mockito.when(llDao.getLinks(Language.SIMPLE, i, true)).thenReturn(Arrays.asList(
+                    new LocalLink(Language.SIMPLE, "North Battleford", i, i + 1000, true, 1, true, LOC_TYPE),
+                    new LocalLink(Language.SIMPLE, "Ian Hamilton", i, i + 2000, true, 8, true, LOC_TYPE)
+            ));
+            docs.add(new IdAndText(i, TEXT1));
+        }
+        docs.add(new IdAndText(TEXT1));     // free text, which this wikifier does not link
+
+        final IdentityWikifier wikifier = new IdentityWikifier(Language.SIMPLE, null, llDao);
+        wikifier.setNumThreads(4);
+        final Map<Integer, List<LocalLink>> results = new ConcurrentHashMap<Integer, List<LocalLink>>();
+        final AtomicInteger numCalls = new AtomicInteger();
+        wikifier.wikify(docs, new Wikifier.Callback() {
+            @Override
+            public void call(IdAndText doc, List<LocalLink> links) throws Exception {
+                numCalls.incrementAndGet();
+                results.put(doc.getId(), links);
+            }
+        });
+
+        assertEquals(docs.size(), numCalls.get());
+        assertEquals(docs.size(), results.size());
+        assertTrue(results.get(-1).isEmpty());
+        for (int i = 0; i < 500; i++) {
+            List<LocalLink> links = results.get(i);
+            assertEquals(wikifier.wikify(i, TEXT1).toString(), links.toString());
+            assertEquals(2, links.size());
+            assertEquals(i + 1000, links.get(0).getDestId());
+            assertEquals(i + 2000, links.get(1).getDestId());
+        }
+    }
+
     private List<LocalLink> wikify(String text, LocalLink ... links) throws DaoException {
         LocalLinkDao llDao = Mockito.mock(LocalLinkDao.class);
         Mockito.when(llDao.getLinks(Language.SIMPLE, 12, true)).thenReturn(Arrays.asList(links));
@@ -0,0 +1,170 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestMostSimilarCacheBuilder {
+
+    @Test
+    public void testShardedBuild() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("most-similar");
+        try {
+            DistanceMetric metric = new DistanceMetric();
+            File output = new File(dir, "mostSimilar.matrix");
+            MostSimilarCacheBuilder builder = new MostSimilarCacheBuilder(metric, 5, range(0, 100), null);
+            builder.setRowsPerShard(7);
+            builder.build(output);
+
+            assertEquals(100, metric.calls.get());
+            assertFalse(new File(dir, "mostSimilar.matrix.shards").exists());
+            SparseMatrix matrix = new SparseMatrix(output);
+            assertEquals(100, matrix.getNumRows());
+            SparseMatrixRow row = matrix.getRow(50);
+            assertEquals(5, row.getNumCols());
+            assertTrue(row.asTroveMap().containsKey(50));
+            assertTrue(row.asTroveMap().containsKey(52));
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("most-similar");
+        try {
+            File output = new File(dir, "mostSimilar.matrix");
+            File workDir = MostSimilarCacheBuilder.getWorkDir(output);
+            int[] ids = range(0, 30).toArray();
+            Arrays.sort(ids);
+
+            // Simulate a build that crashed while working on the last shard.
+            DistanceMetric metric = new DistanceMetric();
+            MostSimilarCacheBuilder builder = new MostSimilarCacheBuilder(metric, 5, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            assertEquals(3, builder.buildShards(workDir, ids));
+            assertTrue(MostSimilarCacheBuilder.getShardPath(workDir, 2).delete());
+
+            metric = new DistanceMetric();
+            builder = new MostSimilarCacheBuilder(metric, 5, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            builder.build(output);
+            assertEquals(10, metric.calls.get());
+
+            SparseMatrix matrix = new SparseMatrix(output);
+            assertEquals(30, matrix.getNumRows());
+            matrix.close();
+
+            // Different parameters must not reuse stale shards.
+            assertTrue(workDir.mkdirs());
+            metric = new DistanceMetric();
+            builder = new MostSimilarCacheBuilder(metric, 5, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            builder.buildShards(workDir, ids);
+            metric = new DistanceMetric();
+            builder = new MostSimilarCacheBuilder(metric, 4, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            builder.build(output);
+            assertEquals(30, metric.calls.get());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testRetrainedModelIsNotResumed() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("most-similar");
+        try {
+            File output = new File(dir, "mostSimilar.matrix");
+            File workDir = MostSimilarCacheBuilder.getWorkDir(output);
+            File model = new File(dir, "model.bin");
+            int[] ids = range(0, 30).toArray();
+            Arrays.sort(ids);
+
+            FileUtils.write(model, "first model");
+            DistanceMetric metric = new DistanceMetric();
+            metric.setDataDir(dir);
+            String fingerprint = metric.getModelFingerprint();
+            MostSimilarCacheBuilder builder = new MostSimilarCacheBuilder(metric, 5, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            builder.buildShards(workDir, ids);
+
+            // The work directory and normalizers do not change the fingerprint.
+            FileUtils.write(new File(dir, "similarityNormalizer"), "normalizer");
+            assertEquals(fingerprint, metric.getModelFingerprint());
+
+            FileUtils.write(model, "second model");
+            assertFalse(fingerprint.equals(metric.getModelFingerprint()));
+            metric = new DistanceMetric();
+            metric.setDataDir(dir);
+            builder = new MostSimilarCacheBuilder(metric, 5, range(0, 30), null);
+            builder.setRowsPerShard(10);
+            builder.build(output);
+            assertEquals(30, metric.calls.get());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static TIntSet range(int from, int to) {
+        TIntSet ids = new TIntHashSet();
+        for (int i = from; i < to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Pages are similar if their ids are close.
+     */
+    static class DistanceMetric extends BaseSRMetric {
+        final AtomicInteger calls = new AtomicInteger();
+
+        DistanceMetric() {
+            super("distance", Language.SIMPLE, null, null);
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            SRConfig config = new SRConfig();
+            config.minScore = 0.0f;
+            config.maxScore = 1.0f;
+            return config;
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            return new SRResult(pageId2, 1.0 / (1 + Math.abs(pageId1 - pageId2)));
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            calls.incrementAndGet();
+            Leaderboard top = new Leaderboard(maxResults);
+            for (int i = pageId - maxResults; i <= pageId + maxResults; i++) {
+                if (i >= 0 && (validIds == null || validIds.contains(i))) {
+                    top.tallyScore(i, similarity(pageId, i, false).getScore());
+                }
+            }
+            return top.getTop();
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.Random;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -64,4 +65,72 @@ public class TestNormalizer {
         assertTrue(p.normalize(20) < 1.0);
         assertTrue(p.normalize(20) < p.normalize(200));
     }
+
+    @Test
+    public void testStreamingPercent() {
+        Random random = new Random(1);
+        PercentileNormalizer sampled = new PercentileNormalizer();
+        PercentileNormalizer streamed = new PercentileNormalizer();
+        streamed.setStreaming(true);
+        for (int i = 0; i < 200000; i++) {
+            double x = random.nextGaussian();
+            sampled.observe(x);
+            streamed.observe(x);
+        }
+        sampled.observationsFinished();
+        streamed.observationsFinished();
+        for (double x = -2.5; x <= 2.5; x += 0.25) {
+            assertEquals(sampled.normalize(x), streamed.normalize(x), 0.01);
+        }
+    }
+
+    @Test
+    public void testStreamingRetrain() throws IOException, ClassNotFoundException {
+        PercentileNormalizer p = new PercentileNormalizer();
+        p.setStreaming(true);
+        for (int i = 0; i < 1000; i++) {
+            p.observe(i);
+        }
+        p.observationsFinished();
+        assertEquals(0.5, p.normalize(500), 0.01);
+
+        // The thread's old sketch must not be reused after the first round.
+        p.reset();
+        for (int i = 0; i < 1000; i++) {
+            p.observe(1000 + i);
+        }
+        p.observationsFinished();
+        assertEquals(0.5, p.normalize(1500), 0.01);
+        assertTrue(p.normalize(900) < 0.01);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        new ObjectOutputStream(stream).writeObject(p);
+        p = (PercentileNormalizer) new ObjectInputStream(new ByteArrayInputStream(stream.toByteArray())).readObject();
+        p.reset();
+        for (int i = 0; i < 1000; i++) {
+            p.observe(2000 + i);
+        }
+        p.observationsFinished();
+        assertEquals(0.5, p.normalize(2500), 0.01);
+    }
+
+    @Test
+    public void testLookupTable() {
+        Random random = new Random(2);
+        PercentileNormalizer p = new PercentileNormalizer();
+        for (int i = 0; i < 10000; i++) {
+            p.observe(random.nextDouble() * 10);
+        }
+        p.observationsFinished();
+
+        SRResultList list = new SRResultList(1000);
+        for (int i = 0; i < list.numDocs(); i++) {
+            list.set(i, i, random.nextDouble() * 12 - 1);
+        }
+        SRResultList normalized = p.normalize(list);
+        for (int i = 0; i < list.numDocs(); i++) {
+            assertEquals(i, normalized.getId(i));
+            assertEquals(p.normalize(list.getScore(i)), normalized.getScore(i), 0.001);
+        }
+    }
 }
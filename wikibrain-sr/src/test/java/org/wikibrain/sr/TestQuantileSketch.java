@@ -0,0 +1,70 @@
+package org.wikibrain.sr;
+
+import org.junit.Test;
+import org.wikibrain.sr.normalize.QuantileSketch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestQuantileSketch {
+
+    @Test
+    public void testQuantiles() {
+        QuantileSketch sketch = new QuantileSketch(256);
+        for (int i = 0; i < 100000; i++) {
+            sketch.add(i);
+        }
+        sketch.add(Double.NaN);
+        assertEquals(100000L, sketch.getCount());
+        assertEquals(0.0, sketch.getMin(), 0.0);
+        assertEquals(99999.0, sketch.getMax(), 0.0);
+        for (double q : new double[] { 0.01, 0.1, 0.5, 0.9, 0.99 }) {
+            assertEquals(q * 100000, sketch.quantile(q), 2000);
+        }
+        double[] sample = sketch.getSample(100);
+        for (int i = 1; i < sample.length; i++) {
+            assertTrue(sample[i - 1] <= sample[i]);
+        }
+        assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(3);
+        double[] values = new double[200000];
+        QuantileSketch single = new QuantileSketch(512);
+        QuantileSketch[] parts = new QuantileSketch[4];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new QuantileSketch(512);
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextGaussian();
+            single.add(values[i]);
+            parts[i % parts.length].add(values[i]);
+        }
+        QuantileSketch merged = new QuantileSketch(512);
+        for (QuantileSketch part : parts) {
+            merged.merge(part);
+        }
+        assertEquals(single.getCount(), merged.getCount());
+        assertEquals(single.getMin(), merged.getMin(), 0.0);
+        assertEquals(single.getMax(), merged.getMax(), 0.0);
+
+        // Compaction is randomized, so compare the ranks of the estimates rather than their values.
+        Arrays.sort(values);
+        for (double q : new double[] { 0.05, 0.25, 0.5, 0.75, 0.95 }) {
+            assertEquals(q, rank(values, single.quantile(q)), 0.02);
+            assertEquals(q, rank(values, merged.quantile(q)), 0.02);
+        }
+    }
+
+    private static double rank(double[] sorted, double x) {
+        int i = Arrays.binarySearch(sorted, x);
+        return 1.0 * ((i >= 0) ? i : -i - 1) / sorted.length;
+    }
+}
@@ -0,0 +1,55 @@
+package org.wikibrain.sr;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSRBuildCheckpoint {
+
+    @Test
+    public void testResume() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("checkpoint");
+        try {
+            File file = new File(dir, "foo/en.build.checkpoint");
+            SRBuildCheckpoint checkpoint = new SRBuildCheckpoint(file, "abc");
+            assertFalse(checkpoint.isStale());
+            assertFalse(checkpoint.isComplete(SRBuildCheckpoint.SIMILARITY));
+            checkpoint.markComplete(SRBuildCheckpoint.SIMILARITY);
+
+            checkpoint = new SRBuildCheckpoint(file, "abc");
+            assertFalse(checkpoint.isStale());
+            assertTrue(checkpoint.isComplete(SRBuildCheckpoint.SIMILARITY));
+            assertFalse(checkpoint.isComplete(SRBuildCheckpoint.MOSTSIMILAR));
+            assertEquals(-1L, checkpoint.getFinishedTime());
+            checkpoint.markComplete(SRBuildCheckpoint.FINISHED);
+            assertTrue(checkpoint.getFinishedTime() > 0);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testStale() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("checkpoint");
+        try {
+            File file = new File(dir, "en.build.checkpoint");
+            new SRBuildCheckpoint(file, "abc").markComplete(SRBuildCheckpoint.FINISHED);
+
+            SRBuildCheckpoint checkpoint = new SRBuildCheckpoint(file, "def");
+            assertTrue(checkpoint.isStale());
+            assertFalse(checkpoint.isComplete(SRBuildCheckpoint.FINISHED));
+            checkpoint.clear();
+            assertFalse(file.exists());
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.wikibrain.sr;
+
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the planner over builders whose metrics record when they are built.
+ *
+ * @author Shilad Sen
+ */
+public class TestSRBuildPlanner {
+    private static final LanguageSet LANGS = new LanguageSet("en,simple");
+
+    private File dir;
+
+    // Metric name -> direct dependencies
+    private Map<String, List<String>> graph;
+
+    // Metric name -> build memory (absent means the default)
+    private Map<String, Integer> memory;
+
+    // Metrics whose builds throw an exception
+    private Set<String> failing;
+
+    // Builds in the order they finished, as name/langCode
+    private List<String> built;
+
+    // Build -> {start, end} in nanoseconds
+    private Map<String, long[]> intervals;
+
+    private AtomicInteger running;
+    private AtomicInteger maxRunning;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = WpIOUtils.createTempDirectory("sr-planner");
+        graph = new HashMap<String, List<String>>();
+        memory = new HashMap<String, Integer>();
+        failing = new HashSet<String>();
+        built = Collections.synchronizedList(new ArrayList<String>());
+        intervals = Collections.synchronizedMap(new HashMap<String, long[]>());
+        running = new AtomicInteger();
+        maxRunning = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testDependencyOrder() throws Exception {
+        graph.put("ensemble", Arrays.asList("a", "b"));
+        graph.put("b", Arrays.asList("c"));
+        SRBuildPlanner planner = planner();
+
+        List<SRBuildPlanner.Task> tasks = planner.plan();
+        assertEquals(8, tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            for (SRBuildPlanner.Task dep : tasks.get(i).getDependencies()) {
+                assertTrue(tasks.indexOf(dep) < i);
+                assertEquals(tasks.get(i).getLanguage(), dep.getLanguage());
+            }
+        }
+
+        planner.build();
+        assertEquals(8, built.size());
+        for (Language lang : LANGS) {
+            assertBuiltBefore("a", "ensemble", lang);
+            assertBuiltBefore("b", "ensemble", lang);
+            assertBuiltBefore("c", "b", lang);
+        }
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        graph.put("ensemble", Arrays.asList("a"));
+        graph.put("a", Arrays.asList("ensemble"));
+        try {
+            planner().plan();
+            fail();
+        } catch (org.wikibrain.conf.ConfigurationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailureSkipsDependents() throws Exception {
+        graph.put("ensemble", Arrays.asList("a", "b"));
+        graph.put("b", Arrays.asList("c"));
+        graph.put("d", Arrays.asList("b"));
+        graph.put("a", Arrays.asList("d"));
+        failing.add("c");
+        SRBuildPlanner planner = planner();
+        try {
+            planner.build();
+            fail();
+        } catch (WikiBrainException e) {
+            assertTrue(e.getMessage().contains("c/en"));
+            assertTrue(e.getMessage().contains("c/simple"));
+        }
+
+        // Nothing that depends on c (directly or not) is built.
+        assertEquals(0, built.size());
+
+        // Other languages and independent metrics still build.
+        failing.clear();
+        failing.add("c/simple");
+        built.clear();
+        graph.put("a", new ArrayList<String>());
+        try {
+            planner().build();
+            fail();
+        } catch (WikiBrainException e) {
+            assertTrue(e.getMessage().contains("skipped"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a/en", "c/en", "b/en", "ensemble/en", "a/simple")),
+                new HashSet<String>(built));
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        graph.put("ensemble", Arrays.asList("a", "b", "c", "d", "e", "f"));
+        SRBuildPlanner planner = planner();
+        planner.setMaxConcurrentBuilds(8);
+        planner.setMemoryPerMetricMB(100);
+        planner.setMemoryBudgetMB(250);
+        planner.build();
+        assertEquals(14, built.size());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testLargeMetricRunsAlone() throws Exception {
+        graph.put("ensemble", Arrays.asList("a", "b", "c"));
+        memory.put("b", 1000);
+        SRBuildPlanner planner = planner();
+        planner.setMaxConcurrentBuilds(8);
+        planner.setMemoryPerMetricMB(100);
+        planner.setMemoryBudgetMB(500);
+        planner.build();
+        assertEquals(8, built.size());
+        assertTrue(maxRunning.get() > 1);
+        for (Language lang : LANGS) {
+            long[] large = intervals.get("b/" + lang.getLangCode());
+            for (Map.Entry<String, long[]> entry : intervals.entrySet()) {
+                if (entry.getValue() != large) {
+                    long[] other = entry.getValue();
+                    assertTrue(entry.getKey(), other[1] <= large[0] || other[0] >= large[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThreadLimit() throws Exception {
+        graph.put("ensemble", Arrays.asList("a", "b", "c", "d", "e", "f"));
+        SRBuildPlanner planner = planner();
+        planner.setMaxConcurrentBuilds(3);
+        planner.setMemoryPerMetricMB(1);
+        planner.setMemoryBudgetMB(1000);
+        planner.build();
+        assertEquals(14, built.size());
+        assertEquals(3, maxRunning.get());
+    }
+
+    private void assertBuiltBefore(String first, String second, Language lang) {
+        int i = built.indexOf(first + "/" + lang.getLangCode());
+        int j = built.indexOf(second + "/" + lang.getLangCode());
+        assertTrue(i >= 0);
+        assertTrue(j >= 0);
+        assertTrue(i < j);
+    }
+
+    private SRBuildPlanner planner() throws Exception {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("baseDir", dir.getAbsolutePath());
+        Env env = Mockito.mock(Env.class);
+        when(env.getConfiguration()).thenReturn(new Configuration(params));
+
+        SRBuilder prototype = Mockito.mock(SRBuilder.class);
+        when(prototype.getEnv()).thenReturn(env);
+        for (Language lang : LANGS) {
+            SRBuilder builder = builder(lang);
+            when(prototype.copyForLanguage(lang)).thenReturn(builder);
+        }
+        return new SRBuildPlanner(prototype, LANGS);
+    }
+
+    private SRBuilder builder(final Language lang) throws Exception {
+        SRBuilder builder = Mockito.mock(SRBuilder.class);
+        when(builder.getLanguage()).thenReturn(lang);
+        when(builder.getMetricName()).thenReturn("ensemble");
+        when(builder.getDeleteExistingData()).thenReturn(true);
+        when(builder.getBuildFingerprint(anyString())).thenReturn("fingerprint");
+        when(builder.getDependencies(anyString())).thenAnswer(new Answer<List<String>>() {
+            @Override
+            public List<String> answer(InvocationOnMock invocation) {
+                List<String> deps = graph.get((String) invocation.getArguments()[0]);
+                return deps == null ? new ArrayList<String>() : deps;
+            }
+        });
+        when(builder.getMetricConfig(anyString())).thenAnswer(new Answer<com.typesafe.config.Config>() {
+            @Override
+            public com.typesafe.config.Config answer(InvocationOnMock invocation) {
+                Integer mb = memory.get((String) invocation.getArguments()[0]);
+                Map<String, Object> config = new HashMap<String, Object>();
+                if (mb != null) {
+                    config.put("buildMemoryMB", mb);
+                }
+                return ConfigFactory.parseMap(config);
+            }
+        });
+        when(builder.getMetricDirectory(anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) {
+                return FileUtils.getFile(dir, (String) invocation.getArguments()[0], lang.getLangCode());
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                String name = (String) invocation.getArguments()[0];
+                String key = name + "/" + lang.getLangCode();
+                long start = System.nanoTime();
+                int n = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), n));
+                }
+                try {
+                    Thread.sleep(50);
+                    if (failing.contains(name) || failing.contains(key)) {
+                        throw new IllegalStateException("failed " + key);
+                    }
+                    built.add(key);
+                } finally {
+                    running.decrementAndGet();
+                    intervals.put(key, new long[] { start, System.nanoTime() });
+                }
+                return null;
+            }
+        }).when(builder).buildMetric(anyString(), any(SRBuildCheckpoint.class));
+        return builder;
+    }
+}
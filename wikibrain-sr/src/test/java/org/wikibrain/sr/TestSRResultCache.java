@@ -0,0 +1,78 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSRResultCache {
+
+    @Test
+    public void testAdmission() {
+        SRResultCache cache = new SRResultCache(100, 0, 2);
+        cache.putResult("a", new SRResult(3, 0.5));
+        assertNull(cache.getResult("a"));       // first miss only records the key
+        cache.putResult("a", new SRResult(3, 0.5));
+        SRResult r = cache.getResult("a");
+        assertEquals(3, r.getId());
+        assertEquals(0.5, r.getScore(), 0.0);
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void testCopiesAndInvalidation() {
+        SRResultCache cache = new SRResultCache(100, 0, 1);
+        SRResultList list = new SRResultList(2);
+        list.set(0, 7, 0.9);
+        list.set(1, 8, 0.1);
+        cache.putResultList("b", list);
+        list.set(0, 99, 0.0);
+
+        SRResultList cached = cache.getResultList("b");
+        assertEquals(7, cached.getId(0));
+        cached.set(0, 100, 0.0);
+        assertEquals(7, cache.getResultList("b").getId(0));
+
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertNull(cache.getResultList("b"));
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        SRResultCache cache = new SRResultCache(100, 20, 1);
+        cache.putResult("c", new SRResult(0.3));
+        assertNotNull(cache.getResult("c"));
+        Thread.sleep(50);
+        assertNull(cache.getResult("c"));
+    }
+
+    @Test
+    public void testKeys() {
+        assertEquals(SRResultCache.makeKey("s", " foo ", 3), SRResultCache.makeKey("s", "foo", 3));
+        assertFalse(SRResultCache.makeKey("s", "foo", 3).equals(SRResultCache.makeKey("s", "foo", 4)));
+        assertEquals(
+                SRResultCache.fingerprint(new TIntHashSet(new int[] { 1, 2, 3 })),
+                SRResultCache.fingerprint(new TIntHashSet(new int[] { 3, 1, 2 })));
+        assertFalse(SRResultCache.fingerprint(new TIntHashSet(new int[] { 1, 2, 3 }))
+                == SRResultCache.fingerprint(new TIntHashSet(new int[] { 1, 2, 4 })));
+    }
+
+    @Test
+    public void testMetric() throws Exception {
+        TestMostSimilarCacheBuilder.DistanceMetric metric = new TestMostSimilarCacheBuilder.DistanceMetric();
+        metric.setResultCache(new SRResultCache(100, 0, 1));
+        metric.mostSimilar(5, 3);
+        metric.mostSimilar(5, 3);
+        metric.mostSimilar(5, 4);
+        assertEquals(2, metric.calls.get());
+
+        metric.invalidateResultCache();
+        metric.mostSimilar(5, 3);
+        assertEquals(3, metric.calls.get());
+    }
+}
@@ -0,0 +1,83 @@
+package org.wikibrain.sr;
+
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import org.junit.Test;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.sr.utils.TopKSelector;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestTopKSelector {
+
+    @Test
+    public void testMatchesLeaderboard() {
+        Random random = new Random(4);
+        for (int k : new int[] { 1, 5, 100, 1000 }) {
+            TopKSelector selector = new TopKSelector(k);
+            Leaderboard leaderboard = new Leaderboard(k);
+            for (int i = 0; i < 20000; i++) {
+                // Coarse scores produce many ties.
+                float score = random.nextInt(500) / 100.0f;
+                selector.offer(i, score);
+                leaderboard.tallyScore(i, score);
+            }
+            SRResultArray top = selector.select();
+            SRResultList expected = leaderboard.getTop();
+            assertEquals(expected.numDocs(), top.size());
+            for (int i = 0; i < top.size(); i++) {
+                assertEquals(expected.getScore(i), top.getScore(i), 0.00001);
+                if (i > 0) {
+                    assertTrue(top.getScore(i - 1) >= top.getScore(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBulkAndEdgeCases() {
+        TopKSelector selector = new TopKSelector(3);
+        selector.offer(new int[] { 1, 2, 3, 4, 5 }, new float[] { 0.1f, Float.NaN, 0.9f, 0.5f, 0.7f }, 5);
+        SRResultList top = selector.getTop();
+        assertEquals(3, top.numDocs());
+        assertEquals(3, top.getId(0));
+        assertEquals(5, top.getId(1));
+        assertEquals(4, top.getId(2));
+
+        TIntDoubleHashMap map = new TIntDoubleHashMap();
+        map.put(7, 0.2);
+        map.put(8, -0.4);
+        selector = new TopKSelector(10);
+        selector.offerAll(map);
+        top = selector.getTop();
+        assertEquals(2, top.numDocs());
+        assertEquals(7, top.getId(0));
+
+        assertEquals(0, new TopKSelector(0).select().size());
+        selector = new TopKSelector(0);
+        selector.offer(1, 1.0);
+        assertEquals(0, selector.select().size());
+    }
+
+    @Test
+    public void testResultArray() {
+        SRResultArray array = new SRResultArray(1);
+        array.add(10, 0.5);
+        array.add(11, 0.9);
+        array.add(12, 0.1);
+        array.addExplanation(12, new Explanation("low"));
+        array.sortDescending();
+        assertEquals(11, array.getId(0));
+        assertEquals(12, array.getId(2));
+
+        SRResultList list = array.toResultList();
+        assertEquals(3, list.numDocs());
+        assertEquals(0.9, list.getScore(0), 0.00001);
+        assertEquals(1, list.get(2).getExplanations().size());
+        assertTrue(list.get(0).getExplanations().isEmpty());
+    }
+}
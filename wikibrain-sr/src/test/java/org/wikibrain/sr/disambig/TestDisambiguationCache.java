@@ -0,0 +1,109 @@
+package org.wikibrain.sr.disambig;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.lang.LocalString;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.phrases.PhraseAnalyzer;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestDisambiguationCache {
+    private static final Language EN = Language.getByLangCode("en");
+
+    @Test
+    public void testBatch() throws DaoException {
+        CountingAnalyzer analyzer = new CountingAnalyzer();
+        TopResultDisambiguator dab = new TopResultDisambiguator(analyzer);
+
+        List<LinkedHashMap<LocalId, Float>> results = dab.disambiguate(Arrays.asList(
+                new LocalString(EN, "apple"), new LocalString(EN, "pear"), new LocalString(EN, "apple")));
+        assertEquals(3, results.size());
+        assertEquals(2, analyzer.calls);
+        assertEquals(results.get(0), results.get(2));
+        assertNotSame(results.get(0), results.get(2));
+        assertEquals("apple".hashCode(), results.get(0).keySet().iterator().next().getId());
+        assertEquals("pear".hashCode(), results.get(1).keySet().iterator().next().getId());
+    }
+
+    @Test
+    public void testCache() throws DaoException {
+        CountingAnalyzer analyzer = new CountingAnalyzer();
+        TopResultDisambiguator dab = new TopResultDisambiguator(analyzer);
+        dab.setCache(new DisambiguationCache(100));
+
+        List<LocalString> pair = Arrays.asList(new LocalString(EN, "apple"), new LocalString(EN, "pear"));
+        List<LocalId> ids = dab.disambiguateTop(pair, null);
+        assertEquals(2, analyzer.calls);
+        assertEquals(ids, dab.disambiguateTop(pair, null));
+        assertEquals(2, analyzer.calls);
+
+        // The same phrase in a different context is disambiguated again.
+        dab.disambiguateTop(new LocalString(EN, "apple"), null);
+        assertEquals(3, analyzer.calls);
+
+        dab.disambiguateBatch(Arrays.asList(pair, pair), null);
+        assertEquals(3, analyzer.calls);
+        assertEquals(2L, dab.getCache().getMisses());
+
+        dab.clearCache();
+        dab.disambiguateTop(pair, null);
+        assertEquals(5, analyzer.calls);
+    }
+
+    @Test
+    public void testContextKey() {
+        List<LocalString> a = Arrays.asList(new LocalString(EN, "x"), new LocalString(EN, "y"));
+        List<LocalString> b = Arrays.asList(new LocalString(EN, "y"), new LocalString(EN, "x"));
+        List<LocalString> c = Arrays.asList(new LocalString(EN, " x"), new LocalString(EN, "y "));
+        List<LocalString> d = Arrays.asList(new LocalString(EN, "x"), new LocalString(EN, "y"), new LocalString(EN, "y"));
+        List<LocalString> e = Arrays.asList(new LocalString(EN, "x\ty"));
+        List<LocalString> f = Arrays.asList(new LocalString(EN, "x"), new LocalString(EN, "y"));
+        assertEquals(DisambiguationCache.makeContextKey(a, null), DisambiguationCache.makeContextKey(f, null));
+        assertFalse(DisambiguationCache.makeContextKey(a, null).equals(DisambiguationCache.makeContextKey(c, null)));
+        assertFalse(DisambiguationCache.makeContextKey(e, null).equals(DisambiguationCache.makeContextKey(f, null)));
+        assertFalse(DisambiguationCache.makeContextKey(a, null).equals(DisambiguationCache.makeContextKey(b, null)));
+        assertFalse(DisambiguationCache.makeContextKey(a, null).equals(DisambiguationCache.makeContextKey(d, null)));
+
+        // Context phrases are unordered, and are distinct from target phrases.
+        Set<LocalString> context1 = new LinkedHashSet<LocalString>(Arrays.asList(new LocalString(EN, "z"), new LocalString(EN, "w")));
+        Set<LocalString> context2 = new LinkedHashSet<LocalString>(Arrays.asList(new LocalString(EN, "w"), new LocalString(EN, "z")));
+        assertEquals(DisambiguationCache.makeContextKey(a, context1), DisambiguationCache.makeContextKey(a, context2));
+        assertFalse(DisambiguationCache.makeContextKey(a, null).equals(DisambiguationCache.makeContextKey(a, context1)));
+        assertFalse(DisambiguationCache.makeContextKey(a, new HashSet<LocalString>(Arrays.asList(new LocalString(EN, "z")))).equals(
+                DisambiguationCache.makeContextKey(Arrays.asList(new LocalString(EN, "x"), new LocalString(EN, "y"), new LocalString(EN, "z")), null)));
+    }
+
+    /**
+     * Resolves each phrase to a single page whose id is the phrase's hash code.
+     */
+    private static class CountingAnalyzer implements PhraseAnalyzer {
+        int calls = 0;
+
+        @Override
+        public int loadCorpus(LanguageSet langs) {
+            return 0;
+        }
+
+        @Override
+        public LinkedHashMap<String, Float> describe(Language language, LocalPage page, int maxPhrases) {
+            return null;
+        }
+
+        @Override
+        public LinkedHashMap<LocalId, Float> resolve(Language language, String phrase, int maxPages) {
+            calls++;
+            LinkedHashMap<LocalId, Float> result = new LinkedHashMap<LocalId, Float>();
+            result.put(new LocalId(language, phrase.hashCode()), 1.0f);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.wikibrain.sr.disambig;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.lang.LocalString;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.phrases.PhraseAnalyzer;
+import org.wikibrain.sr.SRMetric;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSimilarityDisambiguator {
+    private static final Language EN = Language.getByLangCode("en");
+
+    @Test
+    public void testBatchSharesPairSimilarities() throws DaoException {
+        SRMetric metric = metric();
+        CandidateAnalyzer analyzer = new CandidateAnalyzer();
+        SimilarityDisambiguator dab = new SimilarityDisambiguator(analyzer, metric);
+
+        List<LocalString> applePear = Arrays.asList(new LocalString(EN, "apple"), new LocalString(EN, "pear"));
+        List<LocalString> pearApple = Arrays.asList(new LocalString(EN, "pear"), new LocalString(EN, "apple"));
+        List<LocalString> applePlum = Arrays.asList(new LocalString(EN, "apple"), new LocalString(EN, "plum"));
+        List<List<LocalString>> groups = Arrays.asList(applePear, pearApple, applePear, applePlum);
+        List<List<LinkedHashMap<LocalId, Float>>> results = dab.disambiguateBatch(groups, null);
+
+        // Each phrase is resolved once. The second group has the same candidate
+        // pages as the first, so its pair similarities come from the memo.
+        assertEquals(3, analyzer.calls);
+        verify(metric, times(2)).cosimilarity(any(int[].class));
+
+        // The results match disambiguating each group on its own.
+        SimilarityDisambiguator single = new SimilarityDisambiguator(new CandidateAnalyzer(), metric());
+        assertEquals(groups.size(), results.size());
+        for (int i = 0; i < groups.size(); i++) {
+            assertEquals(single.disambiguate(groups.get(i), null), results.get(i));
+        }
+        assertEquals(results.get(0).get(0), results.get(1).get(1));
+        assertEquals(results.get(0).get(1), results.get(1).get(0));
+    }
+
+    /**
+     * A metric whose similarity between two pages decreases with the distance between their ids.
+     */
+    private static SRMetric metric() throws DaoException {
+        SRMetric metric = Mockito.mock(SRMetric.class);
+        when(metric.getLanguage()).thenReturn(EN);
+        when(metric.cosimilarity(any(int[].class))).thenAnswer(new Answer<double[][]>() {
+            @Override
+            public double[][] answer(InvocationOnMock invocation) {
+                int[] ids = (int[]) invocation.getArguments()[0];
+                double[][] result = new double[ids.length][ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    for (int j = 0; j < ids.length; j++) {
+                        result[i][j] = 1.0 / (1.0 + Math.abs(ids[i] - ids[j]));
+                    }
+                }
+                return result;
+            }
+        });
+        return metric;
+    }
+
+    /**
+     * Resolves each phrase to two candidate pages.
+     */
+    private static class CandidateAnalyzer implements PhraseAnalyzer {
+        int calls = 0;
+
+        @Override
+        public int loadCorpus(LanguageSet langs) {
+            return 0;
+        }
+
+        @Override
+        public LinkedHashMap<String, Float> describe(Language language, LocalPage page, int maxPhrases) {
+            return null;
+        }
+
+        @Override
+        public LinkedHashMap<LocalId, Float> resolve(Language language, String phrase, int maxPages) {
+            calls++;
+            int base = (phrase.hashCode() & 0xff) * 10;
+            LinkedHashMap<LocalId, Float> result = new LinkedHashMap<LocalId, Float>();
+            result.put(new LocalId(language, base), 0.6f);
+            result.put(new LocalId(language, base + 3), 0.4f);
+            return result;
+        }
+    }
+}
@@ -7,16 +7,20 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
 import org.junit.Test;
+import org.mockito.Mockito;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.dataset.DatasetDao;
+import org.wikibrain.sr.ensemble.SimpleEnsembleMetric;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -88,6 +92,33 @@ public class TestEvaluator {
         );
     }
 
+    @Test
+    public void testConcurrentSplits() throws IOException, DaoException, ConfigurationException, WikiBrainException {
+        DatasetDao dsDao = new DatasetDao();
+        Language simple = Language.getByLangCode("simple");
+        File file = WpIOUtils.createTempDirectory("evaluator");
+
+        SimilarityEvaluator evaluator = new SimilarityEvaluator(file);
+        evaluator.setWriteToStdout(false);
+        evaluator.setMaxConcurrentSplits(4);
+        evaluator.addCrossfolds(dsDao.get(simple, "atlasify240.txt"), 7);
+
+        TestLocalSR.Factory factory = new TestLocalSR.Factory();
+        SimilarityEvaluationLog eval = evaluator.evaluate(factory);
+
+        // Metrics are created and results merged in split order regardless of completion order.
+        TDoubleList actual = new TDoubleArrayList();
+        TDoubleList estimated = new TDoubleArrayList();
+        for (int i = 0; i < factory.metrics.size(); i++) {
+            Dataset test = evaluator.getSplits().get(i).getTest();
+            actual.addAll(factory.metrics.get(i).getActual(test.getData()));
+            estimated.addAll(factory.metrics.get(i).getEstimated(test.getData()));
+        }
+        assertEquals(7, eval.getChildFiles().size());
+        assertEquals(actual, eval.getActual());
+        assertEquals(estimated, eval.getEstimates());
+    }
+
     @Test
     public void testRunNumber() throws IOException, DaoException, ConfigurationException, WikiBrainException {
         DatasetDao dsDao = new DatasetDao();
@@ -117,4 +148,23 @@ public class TestEvaluator {
         eval = simEvaluator.evaluate(factory);
         assertTrue(eval.getChildFiles().get(0).toString().contains("4-"));
     }
+
+    @Test
+    public void testEnsemblesWithSharedSubmetrics() throws IOException {
+        File file = WpIOUtils.createTempDirectory("evaluator");
+        try {
+            SimilarityEvaluator evaluator = new SimilarityEvaluator(file);
+            SimpleEnsembleMetric ensemble = new SimpleEnsembleMetric(
+                    "ensemble", Language.SIMPLE,
+                    Arrays.asList(Mockito.mock(SRMetric.class)), Arrays.asList(1.0));
+            assertFalse(evaluator.canTrainConcurrently(ensemble));
+            ensemble.setTrainSubmetrics(false);
+            assertTrue(evaluator.canTrainConcurrently(ensemble));
+
+            ensemble.setTrainSubmetrics(true);
+            assertFalse(new MostSimilarEvaluator(file).canTrainConcurrently(ensemble));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package org.wikibrain.sr.phrasesim;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestCosimilarityMatrix {
+    private static final int N = 50;
+
+    @Test
+    public void testGrowAndReopen() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("cosim");
+        try {
+            // A tiny tile size forces the matrix across many shells.
+            CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 4);
+            for (int i = 0; i < N; i++) {
+                matrix.update(toSparse(i), neighbors(i));
+            }
+            verify(matrix);
+            matrix.close();
+
+            matrix = new CosimilarityMatrix(dir, 16);
+            assertEquals(N, matrix.size());
+            assertEquals(N, matrix.getCompleted().size());
+            verify(matrix);
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testUnflushedRowsAreIncomplete() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("cosim");
+        try {
+            CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 4);
+            for (int i = 0; i < 10; i++) {
+                matrix.update(toSparse(i), neighbors(i));
+            }
+            matrix.flush();
+            for (int i = 10; i < 20; i++) {
+                matrix.update(toSparse(i), neighbors(i));
+            }
+
+            CosimilarityMatrix reopened = new CosimilarityMatrix(dir);
+            assertEquals(10, reopened.getCompleted().size());
+            assertTrue(reopened.getCompleted().contains(toSparse(9)));
+            assertFalse(reopened.getCompleted().contains(toSparse(10)));
+            reopened.close();
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private void verify(CosimilarityMatrix matrix) {
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                assertEquals(sim(i, j), matrix.similarity(toSparse(i), toSparse(j)), 0.00001);
+            }
+        }
+        assertEquals(0.0f, matrix.similarity(toSparse(3), 12345), 0.0);
+
+        float[] vector = matrix.getVector(toSparse(7));
+        assertEquals(N, vector.length);
+        assertEquals(sim(7, 30), vector[30], 0.00001);
+
+        SRResultList top = matrix.mostSimilar(toSparse(20), 3, null);
+        assertEquals(3, top.numDocs());
+        assertEquals(toSparse(20), top.getId(0));
+        assertTrue(top.getId(1) == toSparse(19) || top.getId(1) == toSparse(21));
+
+        top = matrix.mostSimilar(toSparse(20), 3, new TIntHashSet(new int[] { toSparse(1), toSparse(30), 12345 }));
+        assertEquals(2, top.numDocs());
+        assertEquals(toSparse(30), top.getId(0));
+
+        double[][] cosims = matrix.cosimilarity(new int[] { toSparse(2), 12345 }, new int[] { toSparse(5) });
+        assertEquals(sim(2, 5), cosims[0][0], 0.00001);
+        assertEquals(0.0, cosims[1][0], 0.0);
+    }
+
+    private static int toSparse(int i) {
+        return 1000 + 3 * i;
+    }
+
+    private static float sim(int i, int j) {
+        return 1.0f / (1 + Math.abs(i - j));
+    }
+
+    /**
+     * Neighbors among the rows that have already been added.
+     */
+    private static SRResultList neighbors(int i) {
+        Leaderboard top = new Leaderboard(N);
+        for (int j = 0; j <= i; j++) {
+            top.tallyScore(toSparse(j), sim(i, j));
+        }
+        return top.getTop();
+    }
+}
@@ -1,9 +1,13 @@
 package org.wikibrain.sr.utils;
 
 import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
 import org.junit.Assert;
 import org.junit.Test;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.ValueConf;
 
 import java.util.Map;
 import java.util.Random;
@@ -89,4 +93,31 @@ public class TestSimUtils {
 //        }
     }
 
+    @Test
+    public void testRowSimilarity() {
+        Random random = new Random(42);
+        ValueConf vconf = new ValueConf(-1.0f, 1.0f);
+        int sizes[][] = { {10, 50000}, {50000, 10}, {200, 300}, {1, 1000}, {0, 100} };
+        for (int[] size : sizes) {
+            SparseMatrixRow a = randomRow(random, vconf, size[0], 60000);
+            SparseMatrixRow b = randomRow(random, vconf, size[1], 60000);
+            TIntFloatMap ma = a.asTroveMap();
+            TIntFloatMap mb = b.asTroveMap();
+
+            int intersect = 0;
+            for (int id : ma.keys()) {
+                if (mb.containsKey(id)) intersect++;
+            }
+            assertEquals(intersect, SimUtils.intersectionSize(a, b));
+            assertEquals(SimUtils.cosineSimilarity(ma, mb), SimUtils.cosineSimilarity(a, b), 0.0001);
+        }
+    }
+
+    private SparseMatrixRow randomRow(Random random, ValueConf vconf, int n, int maxId) {
+        TIntFloatMap row = new TIntFloatHashMap();
+        while (row.size() < n) {
+            row.put(random.nextInt(maxId), random.nextFloat() * 2 - 1);
+        }
+        return new SparseMatrixRow(vconf, 0, row);
+    }
 }
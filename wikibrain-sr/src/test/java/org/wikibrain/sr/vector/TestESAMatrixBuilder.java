@@ -0,0 +1,151 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainAnalyzer;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the vectors built by an ESAMatrixBuilder to those returned
+ * by ESAGenerator.getVector() on a small synthetic index.
+ *
+ * @author Shilad Sen
+ */
+public class TestESAMatrixBuilder {
+    private static final int NUM_DOCS = 400;
+    private static final int NUM_TOPICS = 30;
+    private static final int TOPIC_WORDS = 50;
+    private static final int GLOBAL_WORDS = 1000;
+
+    @Test
+    public void testVectors() throws IOException, DaoException {
+        Language lang = Language.SIMPLE;
+        File root = WpIOUtils.createTempDirectory("esa-lucene");
+        File matrixPath = File.createTempFile("esa", ".matrix");
+        try {
+            LuceneOptions options = LuceneOptions.getDefaultOptions();
+            writeIndex(lang, options, new File(root, lang.getLangCode()));
+            LuceneSearcher searcher = new LuceneSearcher(new LanguageSet(lang), root);
+
+            TIntSet pageIds = new TIntHashSet();
+            for (int i = 0; i < NUM_DOCS; i++) {
+                pageIds.add(localId(i));
+            }
+            SparseMatrixWriter writer = new SparseMatrixWriter(matrixPath, new ValueConf());
+            ESAMatrixBuilder builder = new ESAMatrixBuilder(searcher, lang);
+            builder.setNumThreads(2);
+            builder.write(pageIds, null, writer);
+            writer.finish();
+
+            ESAGenerator generator = new ESAGenerator(lang, null, searcher, null);
+            SparseMatrix matrix = new SparseMatrix(matrixPath);
+            double sumCosine = 0.0;
+            int sameTop = 0;
+            for (int i = 0; i < NUM_DOCS; i++) {
+                TIntFloatMap expected = generator.getVector(localId(i));
+                SparseMatrixRow row = matrix.getRow(localId(i));
+                assertNotNull(row);
+                TIntFloatMap actual = new TIntFloatHashMap();
+                for (int j = 0; j < row.getNumCols(); j++) {
+                    actual.put(row.getColIndex(j), row.getColValue(j));
+                }
+                assertFalse(expected.isEmpty());
+                assertFalse(actual.isEmpty());
+
+                double cosine = SimUtils.cosineSimilarity(expected, actual);
+                assertTrue(cosine > 0.5);
+                sumCosine += cosine;
+                if (argMax(expected) == argMax(actual)) {
+                    sameTop++;
+                }
+            }
+            matrix.close();
+            assertTrue(sumCosine / NUM_DOCS > 0.8);
+            assertTrue(sameTop > NUM_DOCS * 0.9);
+        } finally {
+            FileUtils.deleteQuietly(root);
+            FileUtils.deleteQuietly(matrixPath);
+        }
+    }
+
+    /**
+     * Writes documents with the same fields as a LuceneIndexer. Each document
+     * mixes words from its topic with words shared by all documents.
+     */
+    private void writeIndex(Language lang, LuceneOptions options, File dir) throws IOException {
+        Random random = new Random(1);
+        IndexWriterConfig iwc = new IndexWriterConfig(options.matchVersion, new WikiBrainAnalyzer(lang, options));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(dir), iwc);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            int topic = i % NUM_TOPICS;
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 60; j++) {
+                text.append(word(topic * TOPIC_WORDS + random.nextInt(TOPIC_WORDS))).append(' ');
+            }
+            for (int j = 0; j < 20; j++) {
+                text.append(word(NUM_TOPICS * TOPIC_WORDS + random.nextInt(GLOBAL_WORDS))).append(' ');
+            }
+            Document doc = new Document();
+            doc.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId(i), Field.Store.YES));
+            doc.add(new IntField(LuceneOptions.LANG_ID_FIELD_NAME, lang.getId(), Field.Store.YES));
+            doc.add(new TextField(options.elements.getTextFieldName(), text.toString().trim(), Field.Store.YES));
+            writer.addDocument(doc);
+        }
+        writer.close();
+    }
+
+    private static int localId(int i) {
+        return 1000 + 3 * i;
+    }
+
+    /**
+     * Encodes a word id as letters so it is not split or stemmed by the analyzer.
+     */
+    private static String word(int id) {
+        StringBuilder sb = new StringBuilder("q");
+        do {
+            sb.append((char) ('a' + id % 26));
+            id /= 26;
+        } while (id > 0);
+        return sb.append('x').toString();
+    }
+
+    private static int argMax(TIntFloatMap vector) {
+        int best = -1;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int id : vector.keys()) {
+            if (vector.get(id) > bestScore) {
+                best = id;
+                bestScore = vector.get(id);
+            }
+        }
+        return best;
+    }
+}
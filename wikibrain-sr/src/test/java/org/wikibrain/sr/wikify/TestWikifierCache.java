@@ -0,0 +1,102 @@
+package org.wikibrain.sr.wikify;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.phrases.PhraseAnalyzerDao;
+import org.wikibrain.phrases.PrunedCounts;
+import org.wikibrain.sr.SRMetric;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWikifierCache {
+
+    @Test
+    public void testPhraseCounts() throws DaoException {
+        PhraseAnalyzerDao dao = Mockito.mock(PhraseAnalyzerDao.class);
+        PrunedCounts<Integer> simple30 = counts(30);
+        PrunedCounts<Integer> simple5 = counts(5);
+        PrunedCounts<Integer> en30 = counts(30);
+        when(dao.getPhraseCounts(Language.SIMPLE, "apple", 30)).thenReturn(simple30);
+        when(dao.getPhraseCounts(Language.SIMPLE, "apple", 5)).thenReturn(simple5);
+        when(dao.getPhraseCounts(Language.EN, "apple", 30)).thenReturn(en30);
+
+        WikifierCache cache = new WikifierCache();
+        for (int i = 0; i < 3; i++) {
+            assertSame(simple30, cache.getPhraseCounts(dao, Language.SIMPLE, "apple", 30));
+            assertSame(simple5, cache.getPhraseCounts(dao, Language.SIMPLE, "apple", 5));
+            assertSame(en30, cache.getPhraseCounts(dao, Language.EN, "apple", 30));
+            assertNull(cache.getPhraseCounts(dao, Language.SIMPLE, "unknown", 30));
+        }
+        verify(dao, times(1)).getPhraseCounts(Language.SIMPLE, "apple", 30);
+        verify(dao, times(1)).getPhraseCounts(Language.SIMPLE, "apple", 5);
+        verify(dao, times(1)).getPhraseCounts(Language.EN, "apple", 30);
+        verify(dao, times(1)).getPhraseCounts(Language.SIMPLE, "unknown", 30);
+    }
+
+    @Test
+    public void testCosimilarity() throws DaoException {
+        SRMetric metric1 = metric("metric1", 1.0);
+        SRMetric metric2 = metric("metric2", 2.0);
+
+        WikifierCache cache = new WikifierCache();
+        int [] rows = { 1, 2 };
+        int [] cols = { 3, 4, 5 };
+        for (int i = 0; i < 2; i++) {
+            double [][] m1 = cache.cosimilarity(metric1, rows, cols);
+            double [][] m2 = cache.cosimilarity(metric2, rows, cols);
+            assertEquals(1.0 * 1 + 3, m1[0][0], 0.0001);
+            assertEquals(1.0 * 2 + 5, m1[1][2], 0.0001);
+            assertEquals(2.0 * 1 + 3, m2[0][0], 0.0001);
+            assertEquals(2.0 * 2 + 5, m2[1][2], 0.0001);
+        }
+        verify(metric1, times(1)).cosimilarity(any(int[].class), any(int[].class));
+        verify(metric2, times(1)).cosimilarity(any(int[].class), any(int[].class));
+
+        // Only the row with a missing pair is recomputed
+        double [][] m = cache.cosimilarity(metric1, new int[] { 1, 6 }, cols);
+        assertEquals(1.0 * 1 + 4, m[0][1], 0.0001);
+        assertEquals(1.0 * 6 + 4, m[1][1], 0.0001);
+        verify(metric1, times(1)).cosimilarity(new int[] { 6 }, cols);
+    }
+
+    private PrunedCounts<Integer> counts(int n) {
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(n);
+        for (int i = 0; i < n; i++) {
+            counts.put(i, n - i);
+        }
+        return counts;
+    }
+
+    /**
+     * A metric whose similarity between row r and column c is scale * r + c.
+     */
+    private SRMetric metric(String name, final double scale) throws DaoException {
+        SRMetric metric = Mockito.mock(SRMetric.class);
+        when(metric.getName()).thenReturn(name);
+        when(metric.getLanguage()).thenReturn(Language.SIMPLE);
+        when(metric.cosimilarity(any(int[].class), any(int[].class))).thenAnswer(new Answer<double[][]>() {
+            @Override
+            public double[][] answer(InvocationOnMock invocation) {
+                int [] rows = (int[]) invocation.getArguments()[0];
+                int [] cols = (int[]) invocation.getArguments()[1];
+                double [][] result = new double[rows.length][cols.length];
+                for (int i = 0; i < rows.length; i++) {
+                    for (int j = 0; j < cols.length; j++) {
+                        result[i][j] = scale * rows[i] + cols[j];
+                    }
+                }
+                return result;
+            }
+        });
+        return metric;
+    }
+}
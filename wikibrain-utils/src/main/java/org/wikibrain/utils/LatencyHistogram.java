@@ -0,0 +1,131 @@
+package org.wikibrain.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations in nanoseconds with bounded relative error.
+ *
+ * Buckets are log-linear, as in HdrHistogram: each power of two is split into
+ * 32 equal sub-buckets, so a recorded value is known to within about 3%.
+ * Recording is a few atomic increments and never allocates.
+ *
+ * @author Shilad Sen
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Values above this (about 73 minutes) are recorded as this value.
+     */
+    public static final long MAX_VALUE = (1L << 42) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(bucketIndex(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+    }
+
+    /**
+     * Records the time elapsed since startNanos, as returned by System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of all recorded values, in nanoseconds.
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the value at a percentile, to within the histogram's precision.
+     * @param percentile A number between 0 and 100.
+     * @return The largest value equivalent to the percentile, or 0 if the histogram is empty.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long [] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return bucketUpperBound(i) - 1;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Returns, for each bound, the number of values at or below it.
+     * Values are attributed to the bucket holding them, so counts are approximate
+     * near each bound. The result has one extra element at the end: the total count.
+     * All elements come from the same pass, so they are mutually consistent.
+     *
+     * @param bounds Upper bounds in nanoseconds, in increasing order.
+     */
+    public long[] getCumulativeCounts(long [] bounds) {
+        long [] result = new long[bounds.length + 1];
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long lower = bucketLowerBound(i);
+            while (b < bounds.length && bounds[b] < lower) {
+                result[b++] = seen;
+            }
+            seen += counts.get(i);
+        }
+        while (b < bounds.length) {
+            result[b++] = seen;
+        }
+        result[bounds.length] = seen;
+        return result;
+    }
+
+    static int bucketIndex(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int top = (int) (v >>> (exp - SUB_BITS));
+        return (exp - SUB_BITS + 1) * SUB_COUNT + (top - SUB_COUNT);
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int k = index / SUB_COUNT;
+        long top = index % SUB_COUNT + SUB_COUNT;
+        return top << (k - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index + 1;
+        }
+        int k = index / SUB_COUNT;
+        long top = index % SUB_COUNT + SUB_COUNT;
+        return (top + 1) << (k - 1);
+    }
+}
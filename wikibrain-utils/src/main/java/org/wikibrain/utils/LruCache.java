@@ -0,0 +1,148 @@
+package org.wikibrain.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, threadsafe least-recently-used cache.
+ *
+ * Entries are split across several independently locked segments so that
+ * many threads can read and write the cache without contending on a single lock.
+ * Each segment evicts its own least-recently-used entry when it grows past
+ * its share of the capacity, so the eviction order is approximately (not exactly) LRU.
+ *
+ * Null keys are not supported. Null values are cached like any other value;
+ * use {@link #containsKey(Object)} to distinguish them from misses.
+ *
+ * @author Shilad Sen
+ */
+public class LruCache<K, V> {
+    private final Segment<K, V>[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new cache holding about capacity entries.
+     * @param capacity
+     */
+    public LruCache(int capacity) {
+        this(capacity, Math.max(1, Math.min(16, capacity / 64)));
+    }
+
+    /**
+     * Creates a new cache holding about capacity entries split across numSegments locks.
+     * @param capacity
+     * @param numSegments
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int capacity, int numSegments) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        numSegments = Math.max(1, Math.min(numSegments, capacity));
+        this.segments = new Segment[numSegments];
+        int perSegment = (int) Math.ceil(1.0 * capacity / numSegments);
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment<K, V>(perSegment);
+        }
+    }
+
+    /**
+     * @param key
+     * @return The cached value, or null if it is not cached.
+     */
+    public V get(K key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            V v = s.get(key);
+            if (v != null || s.containsKey(key)) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return v;
+        }
+    }
+
+    public boolean containsKey(K key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            return s.containsKey(key);
+        }
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            s.put(key, value);
+        }
+    }
+
+    public V remove(K key) {
+        Segment<K, V> s = segmentFor(key);
+        synchronized (s) {
+            return s.remove(key);
+        }
+    }
+
+    /**
+     * Removes all entries and resets the hit and miss counters.
+     */
+    public void clear() {
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment<K, V> s : segments) {
+            synchronized (s) {
+                n += s.size();
+            }
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The fraction of calls to get() that found a cached value.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : 1.0 * h / total;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(Math.min(capacity, 1024), 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.wikibrain.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the time a thread spends in named stages of a single request.
+ *
+ * A request calls begin() and end() on the thread doing its work. Code along the
+ * way brackets a stage with System.nanoTime() and record(). Outside of a request
+ * record() does nothing, so library code can be instrumented unconditionally.
+ * Stages may nest, in which case the outer stage includes the inner one.
+ * Work done on other threads is not counted.
+ *
+ * @author Shilad Sen
+ */
+public class StageTimings {
+    private static final ThreadLocal<Map<String, long[]>> TIMINGS = new ThreadLocal<Map<String, long[]>>();
+
+    /**
+     * Starts collecting timings for a request on this thread, discarding any previous ones.
+     */
+    public static void begin() {
+        TIMINGS.set(new LinkedHashMap<String, long[]>());
+    }
+
+    /**
+     * Adds the time since startNanos, as returned by System.nanoTime(), to a stage.
+     */
+    public static void record(String stage, long startNanos) {
+        Map<String, long[]> timings = TIMINGS.get();
+        if (timings == null) {
+            return;
+        }
+        long [] total = timings.get(stage);
+        if (total == null) {
+            total = new long[1];
+            timings.put(stage, total);
+        }
+        total[0] += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return Nanoseconds spent in each stage so far, or an empty map outside of a request.
+     */
+    public static Map<String, Long> get() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        Map<String, long[]> timings = TIMINGS.get();
+        if (timings != null) {
+            for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+                result.put(entry.getKey(), entry.getValue()[0]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops collecting timings on this thread.
+     * @return Nanoseconds spent in each stage.
+     */
+    public static Map<String, Long> end() {
+        Map<String, Long> result = get();
+        TIMINGS.remove();
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLatencyHistogram {
+    @Test
+    public void testBuckets() {
+        int last = -1;
+        for (long v = 0; v < 100000; v++) {
+            int i = LatencyHistogram.bucketIndex(v);
+            assertTrue(i == last || i == last + 1);
+            assertTrue(LatencyHistogram.bucketLowerBound(i) <= v);
+            assertTrue(LatencyHistogram.bucketUpperBound(i) > v);
+            last = i;
+        }
+        int i = LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE + 1, LatencyHistogram.bucketUpperBound(i));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentile(50));
+
+        Random random = new Random(0);
+        long [] values = new long[10000];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+            sum += values[i];
+        }
+        Arrays.sort(values);
+        assertEquals((long) values.length, histogram.getCount());
+        assertEquals(sum, histogram.getSum());
+        for (double p : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+            long expected = values[(int) Math.ceil(values.length * p / 100.0) - 1];
+            long actual = histogram.getPercentile(p);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 1.04 + 1);
+        }
+
+        long [] bounds = { 10, 1000, 100000, 100000000 };
+        long [] cumulative = histogram.getCumulativeCounts(bounds);
+        assertEquals(bounds.length + 1, cumulative.length);
+        assertEquals((long) values.length, cumulative[bounds.length]);
+        for (int b = 0; b < bounds.length; b++) {
+            int expected = 0;
+            while (expected < values.length && values[expected] <= bounds[b]) expected++;
+            assertEquals(expected, cumulative[b], values.length * 0.01);
+        }
+    }
+
+    @Test
+    public void testStageTimings() throws InterruptedException {
+        StageTimings.record("ignored", System.nanoTime());
+        assertTrue(StageTimings.get().isEmpty());
+
+        StageTimings.begin();
+        long start = System.nanoTime();
+        Thread.sleep(5);
+        StageTimings.record("dao", start);
+        StageTimings.record("dao", System.nanoTime());
+        Map<String, Long> timings = StageTimings.end();
+        assertEquals(1, timings.size());
+        assertTrue(timings.get("dao") >= 5000000);
+        assertTrue(StageTimings.get().isEmpty());
+    }
+}
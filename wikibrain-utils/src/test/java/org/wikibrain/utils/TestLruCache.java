@@ -0,0 +1,50 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLruCache {
+    @Test
+    public void testEviction() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(3, 1);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertEquals("a", cache.get(1));   // 1 is now the most recently used
+        cache.put(4, "d");
+        assertEquals(3, cache.size());
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals("d", cache.get(4));
+    }
+
+    @Test
+    public void testNullValuesAndCounters() {
+        LruCache<String, String> cache = new LruCache<String, String>(100);
+        cache.put("foo", null);
+        assertTrue(cache.containsKey("foo"));
+        assertNull(cache.get("foo"));
+        assertNull(cache.get("bar"));
+        assertEquals(1L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 0.0001);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getHits());
+    }
+
+    @Test
+    public void testCapacity() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(1000);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        assertTrue(cache.size() <= 1000 + 16);
+        assertEquals(9999, (int) cache.get(9999));
+    }
+}
@@ -1,7 +1,136 @@
 package org.wikibrain.webapi;
 
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
 /**
+ * Writes JSON incrementally to a writer so that large responses are never
+ * materialized as Maps and Lists.
+ *
+ * Callers nest beginObject / endObject and beginArray / endArray calls.
+ * Inside an object, each value is preceded by a call to key().
+ * Maps and Lists passed to value() are written with json-simple.
+ *
  * @author Shilad Sen
  */
 public class JSONSerializer {
+    private final Writer writer;
+
+    // For each open container, whether it already has an element
+    private boolean [] nonEmpty = new boolean[16];
+    private int depth = 0;
+    private boolean afterKey = false;
+
+    public JSONSerializer(Writer writer) {
+        this.writer = writer;
+    }
+
+    public JSONSerializer beginObject() throws IOException {
+        beforeValue();
+        writer.write('{');
+        push();
+        return this;
+    }
+
+    public JSONSerializer endObject() throws IOException {
+        pop();
+        writer.write('}');
+        return this;
+    }
+
+    public JSONSerializer beginArray() throws IOException {
+        beforeValue();
+        writer.write('[');
+        push();
+        return this;
+    }
+
+    public JSONSerializer endArray() throws IOException {
+        pop();
+        writer.write(']');
+        return this;
+    }
+
+    public JSONSerializer key(String name) throws IOException {
+        if (depth == 0 || afterKey) {
+            throw new IllegalStateException("key " + name + " must appear directly within an object");
+        }
+        separate();
+        writeString(name);
+        writer.write(':');
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a key and its value.
+     */
+    public JSONSerializer field(String name, Object value) throws IOException {
+        return key(name).value(value);
+    }
+
+    /**
+     * Writes a single value. NaN and infinite numbers are written as null,
+     * since they are not valid JSON.
+     */
+    public JSONSerializer value(Object value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            writer.write((Double.isNaN(d) || Double.isInfinite(d)) ? "null" : value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else {
+            JSONValue.writeJSONString(value, writer);
+        }
+        return this;
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void writeString(String s) throws IOException {
+        writer.write('"');
+        writer.write(JSONValue.escape(s));
+        writer.write('"');
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException {
+        if (depth > 0) {
+            if (nonEmpty[depth - 1]) {
+                writer.write(',');
+            }
+            nonEmpty[depth - 1] = true;
+        }
+    }
+
+    private void push() {
+        if (depth == nonEmpty.length) {
+            nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+        }
+        nonEmpty[depth++] = false;
+    }
+
+    private void pop() {
+        if (depth == 0 || afterKey) {
+            throw new IllegalStateException("unbalanced JSON container");
+        }
+        depth--;
+    }
 }
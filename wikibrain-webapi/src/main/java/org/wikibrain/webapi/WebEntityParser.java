@@ -8,7 +8,9 @@ import org.wikibrain.core.dao.UniversalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.StageTimings;
 
+import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -51,6 +53,14 @@ public class WebEntityParser {
     }
 
     public List<WebEntity> extractEntityList(WikiBrainWebRequest req) throws WikiBrainWebException, DaoException {
+        return extractEntityList(req, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Extracts a list of entities, rejecting requests with more than maxEntities
+     * entities with a 400 before any of them are resolved.
+     */
+    public List<WebEntity> extractEntityList(WikiBrainWebRequest req, int maxEntities) throws WikiBrainWebException, DaoException {
         int numMatches = 0;
         for (WebEntity.Type t : WebEntity.Type.values()) {
             if (req.hasParam(t.toPluralString())) numMatches++;
@@ -76,8 +86,13 @@ public class WebEntityParser {
         }
         if (type == null) throw new IllegalStateException();
 
+        String[] tokens = values.split("\\|");
+        if (tokens.length > maxEntities) {
+            throw new WikiBrainWebException(HttpServletResponse.SC_BAD_REQUEST,
+                    "At most " + maxEntities + " entities may be requested at once, but " + tokens.length + " were given");
+        }
         List<WebEntity> result = new ArrayList<WebEntity>();
-        for (String value : values.split("\\|")) {
+        for (String value : tokens) {
             result.add(makeWebEntity(lang, type, value));
         }
         return result;
@@ -85,6 +100,7 @@ public class WebEntityParser {
 
 
     private WebEntity makeWebEntity(Language lang, WebEntity.Type t, String value) throws DaoException {
+        long start = System.nanoTime();
         WebEntity we;
         switch (t) {
             case TITLE:
@@ -109,6 +125,7 @@ public class WebEntityParser {
                 break;
             default: throw new IllegalStateException();
         }
+        StageTimings.record(WebMetrics.STAGE_DAO, start);
         return we;
     }
 }
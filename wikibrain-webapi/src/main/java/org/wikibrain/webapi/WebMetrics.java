@@ -0,0 +1,173 @@
+package org.wikibrain.webapi;
+
+import org.wikibrain.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request metrics for the web API: per-endpoint latency histograms, in-flight and
+ * rejected request counters, and per-stage latency histograms built from the
+ * StageTimings of each request.
+ *
+ * Metrics are written in the Prometheus text exposition format.
+ *
+ * @author Shilad Sen
+ */
+public class WebMetrics {
+    /**
+     * Upper bounds of the exported histogram buckets, in seconds.
+     */
+    private static final double [] BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0
+    };
+
+    private static final long [] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1.0E9);
+        }
+    }
+
+    // Names of the StageTimings recorded by the server, in addition to those recorded by SR metrics
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_METRIC = "metric";
+    public static final String STAGE_DAO = "dao";
+    public static final String STAGE_SERIALIZE = "serialize";
+
+    /**
+     * Requests for any other target are counted under this endpoint, which
+     * bounds the number of distinct labels.
+     */
+    public static final String OTHER_ENDPOINT = "other";
+
+    private final Set<String> endpoints;
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> rejected = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<List<String>, LatencyHistogram> stages = new ConcurrentHashMap<List<String>, LatencyHistogram>();
+
+    public WebMetrics(Collection<String> endpoints) {
+        this.endpoints = new HashSet<String>(endpoints);
+    }
+
+    /**
+     * @return The endpoint label for a request target.
+     */
+    public String getEndpoint(String target) {
+        return endpoints.contains(target) ? target : OTHER_ENDPOINT;
+    }
+
+    public void requestStarted(String endpoint) {
+        get(inFlight, endpoint).incrementAndGet();
+    }
+
+    /**
+     * Records a completed request.
+     * @param nanos Total latency, including time spent waiting for a compute thread.
+     * @param stageNanos Time spent in each stage of the request.
+     */
+    public void requestFinished(String endpoint, long nanos, Map<String, Long> stageNanos) {
+        get(inFlight, endpoint).decrementAndGet();
+        getHistogram(latencies, endpoint).record(nanos);
+        for (Map.Entry<String, Long> entry : stageNanos.entrySet()) {
+            getHistogram(stages, Arrays.asList(endpoint, entry.getKey())).record(entry.getValue());
+        }
+    }
+
+    /**
+     * Records a request that was accepted by requestStarted() but then shed.
+     */
+    public void requestRejected(String endpoint) {
+        get(inFlight, endpoint).decrementAndGet();
+        get(rejected, endpoint).incrementAndGet();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format, version 0.0.4.
+     * @param queued The number of requests waiting for a compute thread.
+     */
+    public void write(Writer writer, int queued) throws IOException {
+        writer.write("# HELP wikibrain_requests_in_flight Requests accepted and not yet finished.\n");
+        writer.write("# TYPE wikibrain_requests_in_flight gauge\n");
+        for (String endpoint : sorted(inFlight.keySet())) {
+            writer.write("wikibrain_requests_in_flight{endpoint=\"" + escape(endpoint) + "\"} " + inFlight.get(endpoint).get() + "\n");
+        }
+
+        writer.write("# HELP wikibrain_requests_queued Requests waiting for a compute thread.\n");
+        writer.write("# TYPE wikibrain_requests_queued gauge\n");
+        writer.write("wikibrain_requests_queued " + queued + "\n");
+
+        writer.write("# HELP wikibrain_requests_rejected_total Requests shed because the server was overloaded.\n");
+        writer.write("# TYPE wikibrain_requests_rejected_total counter\n");
+        for (String endpoint : sorted(rejected.keySet())) {
+            writer.write("wikibrain_requests_rejected_total{endpoint=\"" + escape(endpoint) + "\"} " + rejected.get(endpoint).get() + "\n");
+        }
+
+        writer.write("# HELP wikibrain_request_seconds Request latency, including time queued.\n");
+        writer.write("# TYPE wikibrain_request_seconds histogram\n");
+        for (String endpoint : sorted(latencies.keySet())) {
+            writeHistogram(writer, "wikibrain_request_seconds",
+                    "endpoint=\"" + escape(endpoint) + "\"", latencies.get(endpoint));
+        }
+
+        writer.write("# HELP wikibrain_stage_seconds Time spent in each stage of a request. Stages may nest.\n");
+        writer.write("# TYPE wikibrain_stage_seconds histogram\n");
+        List<List<String>> keys = new ArrayList<List<String>>(stages.keySet());
+        Collections.sort(keys, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> k1, List<String> k2) {
+                int r = k1.get(0).compareTo(k2.get(0));
+                return (r != 0) ? r : k1.get(1).compareTo(k2.get(1));
+            }
+        });
+        for (List<String> key : keys) {
+            writeHistogram(writer, "wikibrain_stage_seconds",
+                    "endpoint=\"" + escape(key.get(0)) + "\",stage=\"" + escape(key.get(1)) + "\"",
+                    stages.get(key));
+        }
+    }
+
+    private void writeHistogram(Writer writer, String name, String labels, LatencyHistogram histogram) throws IOException {
+        long [] counts = histogram.getCumulativeCounts(BUCKET_NANOS);
+        for (int i = 0; i < BUCKETS.length; i++) {
+            writer.write(name + "_bucket{" + labels + ",le=\"" + BUCKETS[i] + "\"} " + counts[i] + "\n");
+        }
+        writer.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + counts[BUCKETS.length] + "\n");
+        writer.write(name + "_sum{" + labels + "} " + (histogram.getSum() / 1.0E9) + "\n");
+        writer.write(name + "_count{" + labels + "} " + counts[BUCKETS.length] + "\n");
+    }
+
+    private static <K> AtomicLong get(ConcurrentMap<K, AtomicLong> map, K key) {
+        AtomicLong value = map.get(key);
+        if (value == null) {
+            map.putIfAbsent(key, new AtomicLong());
+            value = map.get(key);
+        }
+        return value;
+    }
+
+    private static <K> LatencyHistogram getHistogram(ConcurrentMap<K, LatencyHistogram> map, K key) {
+        LatencyHistogram value = map.get(key);
+        if (value == null) {
+            map.putIfAbsent(key, new LatencyHistogram());
+            value = map.get(key);
+        }
+        return value;
+    }
+
+    private static List<String> sorted(Collection<String> keys) {
+        List<String> result = new ArrayList<String>(keys);
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
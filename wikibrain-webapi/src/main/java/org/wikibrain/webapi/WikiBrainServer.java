@@ -1,6 +1,7 @@
 package org.wikibrain.webapi;
 
 import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
@@ -26,15 +27,29 @@ import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.wikify.Wikifier;
+import org.wikibrain.utils.StageTimings;
 import org.wikibrain.utils.WpCollectionUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Serves WikiBrain requests as JSON.
+ *
+ * Jetty threads only accept requests. Each request is suspended (servlet 3 async)
+ * and computed on a fixed size executor with a bounded queue. When the queue is full,
+ * or a request waited in the queue longer than maxQueueMillis, the server responds
+ * with a 503 instead of accepting more work than it can finish.
+ *
  * @author Shilad Sen
  */
 public class WikiBrainServer extends AbstractHandler {
@@ -43,10 +58,33 @@ public class WikiBrainServer extends AbstractHandler {
     private final LocalPageDao pageDao;
     private final LocalLinkDao linkDao;
     private final LocalCategoryMemberDao catDao;
+    private static final List<String> ENDPOINTS = Arrays.asList(
+            "/languages", "/similarity", "/batchSimilarity", "/cosimilarity", "/mostSimilar",
+            "/batchMostSimilar", "/wikify", "/pageRank", "/articlesInCategory", "/categoriesForArticle");
+
+    private final ThreadPoolExecutor executor;
+    private final long maxQueueMillis;
+    private final int maxEntities;
+    private final WebMetrics metrics = new WebMetrics(ENDPOINTS);
     private WebEntityParser entityParser;
 
     public WikiBrainServer(Env env) throws ConfigurationException, DaoException {
+        this(env, WpThreadUtils.getMaxThreads(), WpThreadUtils.getMaxThreads() * 8, 10000, 500);
+    }
+
+    /**
+     * @param numThreads Number of threads that compute responses.
+     * @param maxQueued Maximum number of requests waiting for a compute thread.
+     * @param maxQueueMillis Requests that wait longer than this are rejected.
+     * @param maxEntities Maximum number of entities in a batch or cosimilarity request.
+     */
+    public WikiBrainServer(Env env, int numThreads, int maxQueued, long maxQueueMillis, int maxEntities) throws ConfigurationException, DaoException {
         this.env = env;
+        this.maxQueueMillis = maxQueueMillis;
+        this.maxEntities = maxEntities;
+        this.executor = new ThreadPoolExecutor(
+                numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued));
         this.entityParser = new WebEntityParser(env);
         this.pageDao = env.getConfigurator().get(LocalPageDao.class);
         this.linkDao = env.getConfigurator().get(LocalLinkDao.class);
@@ -65,20 +103,81 @@ public class WikiBrainServer extends AbstractHandler {
     }
 
     @Override
-    public void handle(String target, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException, ServletException {
-        WikiBrainWebRequest req = new WikiBrainWebRequest(target, request, httpServletRequest, httpServletResponse);
-        LOG.info("received request for {}, URL {}?{}", target, request.getRequestURL(), request.getQueryString());
+    public void handle(final String target, final Request request, final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse) throws IOException, ServletException {
+        LOG.debug("received request for {}, URL {}?{}", target, request.getRequestURL(), request.getQueryString());
+
+        request.setHandled(true);
+        if (target.equals("/admin/metrics")) {
+            // Answered directly so that metrics are available while the server is overloaded
+            doMetrics(httpServletResponse);
+            return;
+        }
+
+        final String endpoint = metrics.getEndpoint(target);
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        final long queuedAt = System.nanoTime();
+        metrics.requestStarted(endpoint);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Created on the compute thread so that cpu timings are for this thread.
+                    StageTimings.begin();
+                    StageTimings.record(WebMetrics.STAGE_QUEUE, queuedAt);
+                    WikiBrainWebRequest req = new WikiBrainWebRequest(target, request, httpServletRequest, httpServletResponse);
+                    boolean shed = false;
+                    try {
+                        long waited = (System.nanoTime() - queuedAt) / 1000000;
+                        if (waited > maxQueueMillis) {
+                            LOG.warn("shedding request for {} after waiting {} millis", target, waited);
+                            req.writeUnavailable("Server overloaded: request waited " + waited + " millis");
+                            shed = true;
+                        } else {
+                            dispatch(target, req);
+                        }
+                    } finally {
+                        Map<String, Long> stages = StageTimings.end();
+                        if (shed) {
+                            metrics.requestRejected(endpoint);
+                        } else {
+                            metrics.requestFinished(endpoint, System.nanoTime() - queuedAt, stages);
+                        }
+                        context.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("shedding request for {}: {} requests queued", target, executor.getQueue().size());
+            metrics.requestRejected(endpoint);
+            WikiBrainWebRequest req = new WikiBrainWebRequest(target, request, httpServletRequest, httpServletResponse);
+            req.writeUnavailable("Server overloaded: too many pending requests");
+            context.complete();
+        }
+    }
 
+    private void doMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        metrics.write(writer, executor.getQueue().size());
+        writer.close();
+    }
+
+    private void dispatch(String target, WikiBrainWebRequest req) {
         try {
-            // TODO: add logging
             if (target.equals("/languages")) {
                 doLanguages(req);
             } else if (target.equals("/similarity")) {
                 doSimilarity(req);
+            } else if (target.equals("/batchSimilarity")) {
+                doBatchSimilarity(req);
             } else if (target.equals("/cosimilarity")) {
-                throw new UnsupportedOperationException();
+                doCosimilarity(req);
             } else if (target.equals("/mostSimilar")) {
                 doMostSimilar(req);
+            } else if (target.equals("/batchMostSimilar")) {
+                doBatchMostSimilar(req);
             } else if (target.equals("/wikify")) {
                 doWikify(req);
             } else if (target.equals("/pageRank")) {
@@ -87,16 +186,30 @@ public class WikiBrainServer extends AbstractHandler {
                 doArticlesInCategory(req);
             } else if (target.equals("/categoriesForArticle")) {
                 doCategoriesForArticle(req);
+            } else {
+                req.writeError(HttpServletResponse.SC_NOT_FOUND, new WikiBrainWebException("Unknown endpoint: " + target));
             }
         } catch (WikiBrainWebException e) {
-            req.writeError(e);
+            req.writeError(e.getStatus(), e);
         } catch (ConfigurationException e) {
             req.writeError(e);
         } catch (DaoException e) {
             req.writeError(e);
+        } catch (IOException e) {
+            LOG.debug("writing response for " + target + " failed", e);
+        } catch (Exception e) {
+            // Nothing upstream will write a response for the suspended request
+            LOG.error("request for " + target + " failed", e);
+            req.writeError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
         }
     }
 
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        super.doStop();
+    }
+
     private void doLanguages(WikiBrainWebRequest req) {
         List<String> langs = new ArrayList<String>();
         for (Language l : env.getLanguages()) {
@@ -119,8 +232,37 @@ public class WikiBrainServer extends AbstractHandler {
         }
         WebEntity entity1 = entities.get(0);
         WebEntity entity2 = entities.get(1);
+        Double sim = similarity(getSr(lang), entity1, entity2);
+        req.writeJsonResponse("score", sim, "entity1", entity1.toJson(), "entity2", entity2.toJson());
+    }
+
+    /**
+     * Scores many pairs in one request. Entities are paired in order: the first with
+     * the second, the third with the fourth, etc.
+     */
+    private void doBatchSimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req, maxEntities);
+        if (entities.size() % 2 != 0) {
+            throw new WikiBrainWebException("Batch similarity requires an even number of entities, one pair per two entities");
+        }
         SRMetric sr = getSr(lang);
-        SRResult r = null;
+        List jsonResults = new ArrayList();
+        for (int i = 0; i < entities.size(); i += 2) {
+            WebEntity entity1 = entities.get(i);
+            WebEntity entity2 = entities.get(i + 1);
+            Map obj = new HashMap();
+            obj.put("score", similarity(sr, entity1, entity2));
+            obj.put("entity1", entity1.toJson());
+            obj.put("entity2", entity2.toJson());
+            jsonResults.add(obj);
+        }
+        req.writeJsonResponse("results", jsonResults);
+    }
+
+    private Double similarity(SRMetric sr, WebEntity entity1, WebEntity entity2) throws DaoException {
+        long start = System.nanoTime();
+        SRResult r;
         switch (entity1.getType()) {
             case ARTICLE_ID: case TITLE:
                 r = sr.similarity(entity1.getArticleId(), entity2.getArticleId(), false);
@@ -131,15 +273,102 @@ public class WikiBrainServer extends AbstractHandler {
             default:
                 throw new WikiBrainWebException("Unsupported entity type: " + entity1.getType());
         }
-        Double sim = (r != null && r.isValid()) ? r.getScore() : null;
-        req.writeJsonResponse("score", sim, "entity1", entity1.toJson(), "entity2", entity2.toJson());
+        StageTimings.record(WebMetrics.STAGE_METRIC, start);
+        return (r != null && r.isValid()) ? r.getScore() : null;
+    }
+
+    /**
+     * Computes the symmetric similarity matrix of all entities with a single call to the metric.
+     */
+    private void doCosimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req, maxEntities);
+        if (entities.isEmpty()) {
+            throw new WikiBrainWebException(HttpServletResponse.SC_BAD_REQUEST, "Cosimilarity requires at least one entity");
+        }
+        SRMetric sr = getSr(lang);
+        long start = System.nanoTime();
+        double [][] matrix;
+        switch (entities.get(0).getType()) {
+            case ARTICLE_ID: case TITLE:
+                int [] ids = new int[entities.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = entities.get(i).getArticleId();
+                }
+                matrix = sr.cosimilarity(ids);
+                break;
+            case PHRASE:
+                String [] phrases = new String[entities.size()];
+                for (int i = 0; i < phrases.length; i++) {
+                    phrases[i] = entities.get(i).getPhrase();
+                }
+                matrix = sr.cosimilarity(phrases);
+                break;
+            default:
+                throw new WikiBrainWebException("Unsupported entity type: " + entities.get(0).getType());
+        }
+        StageTimings.record(WebMetrics.STAGE_METRIC, start);
+        List jsonEntities = new ArrayList();
+        for (WebEntity entity : entities) {
+            jsonEntities.add(entity.toJson());
+        }
+        List jsonMatrix = new ArrayList();
+        for (double [] row : matrix) {
+            List jsonRow = new ArrayList();
+            for (double score : row) {
+                // NaN and infinity are not valid JSON
+                jsonRow.add((Double.isNaN(score) || Double.isInfinite(score)) ? null : score);
+            }
+            jsonMatrix.add(jsonRow);
+        }
+        req.writeJsonResponse("entities", jsonEntities, "matrix", jsonMatrix);
     }
 
-    private void doMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException {
+    private void doMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException, IOException {
         Language lang = req.getLanguage();
         WebEntity entity = entityParser.extractEntity(req);
         int n = Integer.valueOf(req.getParam("n", "10"));
+        SRResultList results = mostSimilar(getSr(lang), entity, n);
+        Map<Integer, LocalPage> pages = getPages(lang, results == null ? new int[0] : results.getIds());
+
+        JSONSerializer json = req.beginJsonResponse();
+        json.key("results");
+        writeResults(json, lang, results, pages);
+        req.endJsonResponse();
+    }
+
+    /**
+     * Finds the most similar articles for each of many entities.
+     */
+    private void doBatchMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException, IOException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req, maxEntities);
+        int n = Integer.valueOf(req.getParam("n", "10"));
         SRMetric sr = getSr(lang);
+        List<SRResultList> results = new ArrayList<SRResultList>();
+        TIntSet ids = new TIntHashSet();
+        for (WebEntity entity : entities) {
+            SRResultList list = mostSimilar(sr, entity, n);
+            results.add(list);
+            if (list != null) ids.addAll(list.getIds());
+        }
+        Map<Integer, LocalPage> pages = getPages(lang, ids.toArray());
+
+        JSONSerializer json = req.beginJsonResponse();
+        json.key("results").beginArray();
+        for (int i = 0; i < entities.size(); i++) {
+            json.beginObject();
+            json.field("entity", entities.get(i).toJson());
+            json.key("results");
+            writeResults(json, lang, results.get(i), pages);
+            json.endObject();
+        }
+        json.endArray();
+        req.endJsonResponse();
+    }
+
+    private SRResultList mostSimilar(SRMetric sr, WebEntity entity, int n) throws DaoException {
+        long start = System.nanoTime();
         SRResultList results;
         switch (entity.getType()) {
             case ARTICLE_ID: case TITLE:
@@ -151,17 +380,21 @@ public class WikiBrainServer extends AbstractHandler {
             default:
                 throw new WikiBrainWebException("Unsupported entity type: " + entity.getType());
         }
-        List jsonResults = new ArrayList();
-        for (SRResult r : results) {
-            LocalPage page = pageDao.getById(lang, r.getId());
-            Map obj = new HashMap();
-            obj.put("articleId", r.getId());
-            obj.put("score", r.getScore());
-            obj.put("lang", lang.getLangCode());
-            obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
-            jsonResults.add(obj);
+        StageTimings.record(WebMetrics.STAGE_METRIC, start);
+        return results;
+    }
+
+    private void writeResults(JSONSerializer json, Language lang, SRResultList results, Map<Integer, LocalPage> pages) throws IOException {
+        json.beginArray();
+        if (results != null) {
+            for (SRResult r : results) {
+                json.beginObject();
+                writePage(json, lang, r.getId(), pages);
+                json.field("score", r.getScore());
+                json.endObject();
+            }
         }
-        req.writeJsonResponse("results", jsonResults);
+        json.endArray();
     }
 
     private void doPageRank(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
@@ -171,14 +404,16 @@ public class WikiBrainServer extends AbstractHandler {
             throw new WikiBrainWebException("articleId or title parameter required.");
         }
         int id = entity.getArticleId();
+        long start = System.nanoTime();
         double pageRank = linkDao.getPageRank(lang, id);
+        StageTimings.record(WebMetrics.STAGE_DAO, start);
         req.writeJsonResponse(
                 "article", pageJson(lang, id),
                 "pageRank", pageRank
             );
     }
 
-    private void doCategoriesForArticle(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+    private void doCategoriesForArticle(WikiBrainWebRequest req) throws ConfigurationException, DaoException, IOException {
         Language lang = req.getLanguage();
         WebEntity entity = entityParser.extractEntity(req);
         if (entity.getArticleId() < 0) {
@@ -186,17 +421,10 @@ public class WikiBrainServer extends AbstractHandler {
         }
         Set<LocalPage> candidates = extractCategories(req, lang);
         boolean weighted = Boolean.valueOf(req.getParam("weighted", "true"));
+        long start = System.nanoTime();
         TIntDoubleMap distances = catDao.getCategoryDistances(candidates, entity.getArticleId(), weighted);
-        List distanceJson = new ArrayList();
-        for (int catId : WpCollectionUtils.sortMapKeys(distances, false)) {
-            Map articleJson = pageJson(lang, catId);
-            articleJson.put("distance", distances.get(catId));
-            distanceJson.add(articleJson);
-        }
-        req.writeJsonResponse(
-                "article", entity.toJson(),
-                "distances", distanceJson
-        );
+        StageTimings.record(WebMetrics.STAGE_DAO, start);
+        writeDistances(req, lang, "article", entity.toJson(), distances);
     }
 
     private Set<LocalPage> extractCategories(WikiBrainWebRequest req, Language lang) throws DaoException {
@@ -224,7 +452,7 @@ public class WikiBrainServer extends AbstractHandler {
         return candidates;
     }
 
-    private void doArticlesInCategory(WikiBrainWebRequest req) throws DaoException {
+    private void doArticlesInCategory(WikiBrainWebRequest req) throws DaoException, IOException {
         Language lang = req.getLanguage();
         TIntSet pageIds = null;
 
@@ -257,21 +485,30 @@ public class WikiBrainServer extends AbstractHandler {
         }
 
         boolean weighted = Boolean.valueOf(req.getParam("weighted", "true"));
+        long start = System.nanoTime();
         Map<LocalPage, TIntDoubleMap> distances = catDao.getClosestCategories(candidates, pageIds, weighted);
-        final List distanceJson = new ArrayList();
+        StageTimings.record(WebMetrics.STAGE_DAO, start);
+        TIntDoubleMap targetDistances = distances.get(target);
+        writeDistances(req, lang, "category", pageJson(target),
+                targetDistances == null ? new TIntDoubleHashMap() : targetDistances);
+    }
 
-        if (distances.containsKey(target)) {
-            for (int pageId : WpCollectionUtils.sortMapKeys(distances.get(target), false)) {
-                Map json = pageJson(lang, pageId);
-                json.put("distance", distances.get(target).get(pageId));
-                distanceJson.add(json);
-            }
+    /**
+     * Writes pages ordered by increasing distance, resolving all their titles with a single query.
+     */
+    private void writeDistances(WikiBrainWebRequest req, Language lang, String key, Object value, TIntDoubleMap distances) throws DaoException, IOException {
+        Map<Integer, LocalPage> pages = getPages(lang, distances.keys());
+        JSONSerializer json = req.beginJsonResponse();
+        json.field(key, value);
+        json.key("distances").beginArray();
+        for (int pageId : WpCollectionUtils.sortMapKeys(distances, false)) {
+            json.beginObject();
+            writePage(json, lang, pageId, pages);
+            json.field("distance", distances.get(pageId));
+            json.endObject();
         }
-
-        req.writeJsonResponse(
-                "category", pageJson(target),
-                "distances", distanceJson
-        );
+        json.endArray();
+        req.endJsonResponse();
     }
 
     private Map pageJson(LocalPage p) {
@@ -289,36 +526,96 @@ public class WikiBrainServer extends AbstractHandler {
         return pageJson(pageDao.getById(lang, pageId));
     }
 
-    private void doWikify(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+    /**
+     * Looks up pages for all the ids in a response with a single query.
+     */
+    private Map<Integer, LocalPage> getPages(Language lang, int [] pageIds) throws DaoException {
+        if (pageIds.length == 0) {
+            return new HashMap<Integer, LocalPage>();
+        }
+        List<Integer> ids = new ArrayList<Integer>(pageIds.length);
+        for (int id : pageIds) {
+            ids.add(id);
+        }
+        long start = System.nanoTime();
+        Map<Integer, LocalPage> pages = pageDao.getByIds(lang, ids);
+        StageTimings.record(WebMetrics.STAGE_DAO, start);
+        return (pages == null) ? new HashMap<Integer, LocalPage>() : pages;
+    }
+
+    /**
+     * Writes the fields describing a page into the current object.
+     */
+    private void writePage(JSONSerializer json, Language lang, int pageId, Map<Integer, LocalPage> pages) throws IOException {
+        LocalPage page = pages.get(pageId);
+        json.field("articleId", pageId);
+        json.field("lang", lang.getLangCode());
+        json.field("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
+    }
+
+    private void doWikify(WikiBrainWebRequest req) throws ConfigurationException, DaoException, IOException {
         Language lang = req.getLanguage();
         Wikifier wf = env.getConfigurator().get(Wikifier.class, "websail", "language", lang.getLangCode());
         String text = req.getParamOrDie("text");
-        List jsonConcepts = new ArrayList();
-        for (LocalLink ll : wf.wikify(text)) {
-            LocalPage page = pageDao.getById(lang, ll.getDestId());
-            Map obj = new HashMap();
-            obj.put("index", ll.getLocation());
-            obj.put("text", ll.getAnchorText());
-            obj.put("lang", lang.getLangCode());
-            obj.put("articleId", ll.getDestId());
-            obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
-            jsonConcepts.add(obj);
+        List<LocalLink> links = wf.wikify(text);
+        TIntSet ids = new TIntHashSet();
+        for (LocalLink ll : links) {
+            ids.add(ll.getDestId());
         }
-        req.writeJsonResponse("text", text, "references", jsonConcepts);
+        Map<Integer, LocalPage> pages = getPages(lang, ids.toArray());
+
+        JSONSerializer json = req.beginJsonResponse();
+        json.field("text", text);
+        json.key("references").beginArray();
+        for (LocalLink ll : links) {
+            json.beginObject();
+            json.field("index", ll.getLocation());
+            json.field("text", ll.getAnchorText());
+            writePage(json, lang, ll.getDestId(), pages);
+            json.endObject();
+        }
+        json.endArray();
+        req.endJsonResponse();
     }
 
     public static void main(String args[]) throws Exception {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
+                        .hasArg()
                         .withLongOpt("port")
                         .withDescription("Server port number")
                         .create("p"));
         options.addOption(
                 new DefaultOptionBuilder()
+                        .hasArg()
                         .withLongOpt("listeners")
                         .withDescription("Size of listener queue")
                         .create("q"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("compute-threads")
+                        .withDescription("Number of threads computing responses")
+                        .create("t"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("max-queued")
+                        .withDescription("Maximum number of requests waiting for a compute thread")
+                        .create("m"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("max-queue-millis")
+                        .withDescription("Maximum time a request may wait for a compute thread")
+                        .create("w"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("max-entities")
+                        .withDescription("Maximum number of entities in a batch or cosimilarity request")
+                        .create("e"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -336,8 +633,12 @@ public class WikiBrainServer extends AbstractHandler {
 
         int port = Integer.valueOf(cmd.getOptionValue("p", "8000"));
         int queueSize = Integer.valueOf(cmd.getOptionValue("q", "100"));
+        int numThreads = Integer.valueOf(cmd.getOptionValue("t", "" + WpThreadUtils.getMaxThreads()));
+        int maxQueued = Integer.valueOf(cmd.getOptionValue("m", "" + numThreads * 8));
+        long maxQueueMillis = Long.valueOf(cmd.getOptionValue("w", "10000"));
+        int maxEntities = Integer.valueOf(cmd.getOptionValue("e", "500"));
         Server server = new Server(new QueuedThreadPool(queueSize, 20));
-        server.setHandler(new WikiBrainServer(env));
+        server.setHandler(new WikiBrainServer(env, numThreads, maxQueued, maxQueueMillis, maxEntities));
         ServerConnector sc = new ServerConnector(server);
         sc.setPort(port);
         server.setConnectors(new Connector[]{sc});
@@ -1,7 +1,12 @@
 package org.wikibrain.webapi;
 
+import javax.servlet.http.HttpServletResponse;
+
 public class WikiBrainWebException extends RuntimeException {
 
+	// Most errors are reported in the body of a 200 response
+	private int status = HttpServletResponse.SC_OK;
+
 	public WikiBrainWebException(Exception e) {
 		super(e);
 	}
@@ -17,6 +22,18 @@ public class WikiBrainWebException extends RuntimeException {
 	public WikiBrainWebException(String string, Exception e){
 		super(string, e);
 	}
+
+	public WikiBrainWebException(int status, String string) {
+		super(string);
+		this.status = status;
+	}
+
+	/**
+	 * @return The http status of the error response.
+	 */
+	public int getStatus() {
+		return status;
+	}
 	
 }
 
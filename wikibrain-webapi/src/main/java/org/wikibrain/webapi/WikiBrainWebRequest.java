@@ -2,16 +2,19 @@ package org.wikibrain.webapi;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.eclipse.jetty.server.Request;
-import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.StageTimings;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
+import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Shilad Sen
@@ -30,6 +33,12 @@ public class WikiBrainWebRequest {
     private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
 
+    // For streaming responses
+    private static final int BUFFER_SIZE = 8192;
+    private Writer responseWriter;
+    private JSONSerializer serializer;
+    private long serializeStart;
+
     public WikiBrainWebRequest(String target, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         startCpuTime = getCpuTime();
         startUserTime = getUserTime();
@@ -101,6 +110,10 @@ public class WikiBrainWebRequest {
     }
 
     public void writeJsonResponse(Map object) {
+        writeJsonResponse(HttpServletResponse.SC_OK, object);
+    }
+
+    public void writeJsonResponse(int status, Map object) {
         if (!object.containsKey("success")) {
             object.put("success", true);
         }
@@ -108,33 +121,146 @@ public class WikiBrainWebRequest {
             object.put("message", "");
         }
 
+        object.put("diagnostics", getDiagnostics());
+        long start = System.nanoTime();
+        try {
+            Writer writer = openResponse(status);
+            JSONValue.writeJSONString(object, writer);
+            writer.close();
+        } catch (IOException e) {
+            throw new WikiBrainWebException(e);
+        }
+        StageTimings.record(WebMetrics.STAGE_SERIALIZE, start);
+    }
+
+    /**
+     * Starts a response that is written incrementally. The returned serializer is
+     * positioned inside the top-level object, after the success and message keys.
+     * Callers add their own keys and then call endJsonResponse().
+     */
+    public JSONSerializer beginJsonResponse() throws IOException {
+        if (serializer != null) {
+            throw new IllegalStateException("response already started");
+        }
+        serializeStart = System.nanoTime();
+        serializer = new JSONSerializer(openResponse(HttpServletResponse.SC_OK));
+        serializer.beginObject();
+        serializer.field("success", true);
+        serializer.field("message", "");
+        return serializer;
+    }
+
+    /**
+     * Finishes a response started by beginJsonResponse().
+     */
+    public void endJsonResponse() throws IOException {
+        serializer.field("diagnostics", getDiagnostics());
+        serializer.endObject();
+        responseWriter.close();
+        StageTimings.record(WebMetrics.STAGE_SERIALIZE, serializeStart);
+    }
+
+    /**
+     * Opens the response body, gzipped if the client accepts it.
+     */
+    private Writer openResponse(int status) throws IOException {
+        httpServletResponse.setContentType("application/json;charset=utf-8");
+        httpServletResponse.setStatus(status);
+        OutputStream out = httpServletResponse.getOutputStream();
+        httpServletResponse.setHeader("Vary", "Accept-Encoding");
+        if (acceptsGzip(httpServletRequest.getHeader("Accept-Encoding"))) {
+            httpServletResponse.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        request.setHandled(true);
+        responseWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+        return responseWriter;
+    }
+
+    /**
+     * Returns true if an Accept-Encoding header allows a gzipped response.
+     * Gzip is allowed if it is listed with a nonzero q-value, or if it is not
+     * listed and the wildcard is listed with a nonzero q-value.
+     */
+    static boolean acceptsGzip(String header) {
+        if (header == null) {
+            return false;
+        }
+        double gzip = -1.0;
+        double wildcard = -1.0;
+        for (String part : header.split(",")) {
+            String [] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.length() > 1 && Character.toLowerCase(param.charAt(0)) == 'q' && param.substring(1).trim().startsWith("=")) {
+                    try {
+                        q = Double.valueOf(param.substring(param.indexOf('=') + 1).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0.0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equals("*")) {
+                wildcard = Math.max(wildcard, q);
+            }
+        }
+        return (gzip >= 0) ? gzip > 0 : wildcard > 0;
+    }
+
+    private Map<String, Object> getDiagnostics() {
         this.elapsedCpuTime = getCpuTime() - startCpuTime;
         this.elapsedUserTime = getUserTime() - startUserTime;
-        Map<String, Double> resources = new HashMap<String, Double>();
+        Map<String, Object> resources = new HashMap<String, Object>();
         resources.put("cpuTime", elapsedCpuTime / 1.0E9);
         resources.put("userTime", elapsedUserTime / 1.0E9);
-        object.put("diagnostics", resources);
 
-        httpServletResponse.setContentType("application/json;charset=utf-8");
-        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
-        try {
-            httpServletResponse.getWriter().println(JSONObject.toJSONString(object));
-        } catch (IOException e) {
-            throw new WikiBrainWebException(e);
+        // Wall clock seconds in each stage so far
+        Map<String, Double> stages = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Long> entry : StageTimings.get().entrySet()) {
+            stages.put(entry.getKey(), entry.getValue() / 1.0E9);
         }
-        request.setHandled(true);
+        resources.put("stages", stages);
+        return resources;
     }
 
     public void writeError(Exception e) {
+        writeError(HttpServletResponse.SC_OK, e);
+    }
+
+    public void writeError(int status, Exception e) {
+        if (serializer != null) {
+            // Part of a streaming response was sent, so the status can't change. Truncate it.
+            try {
+                responseWriter.close();
+            } catch (IOException e2) {
+                // client is probably gone
+            }
+            return;
+        }
         Map<String, Object> errorObj = new HashMap<String, Object>();
         errorObj.put("message", e.getMessage());
         errorObj.put("type", e.getClass().getName());
         errorObj.put("details", ExceptionUtils.getStackTrace(e));
 
-        writeJsonResponse(
-                "success", false,
-                "message", e.getMessage(),
-                "error", errorObj
-        );
+        Map obj = new HashMap();
+        obj.put("success", false);
+        obj.put("message", e.getMessage());
+        obj.put("error", errorObj);
+        writeJsonResponse(status, obj);
+    }
+
+    /**
+     * Tells the client that the server is overloaded and it should retry later.
+     */
+    public void writeUnavailable(String message) {
+        httpServletResponse.setHeader("Retry-After", "1");
+        Map obj = new HashMap();
+        obj.put("success", false);
+        obj.put("message", message);
+        writeJsonResponse(HttpServletResponse.SC_SERVICE_UNAVAILABLE, obj);
     }
 }
@@ -0,0 +1,122 @@
+package org.wikibrain.webapi;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestJSONSerializer {
+
+    @Test
+    public void testEmpty() throws IOException {
+        StringWriter out = new StringWriter();
+        new JSONSerializer(out).beginObject().endObject();
+        assertEquals("{}", out.toString());
+
+        out = new StringWriter();
+        new JSONSerializer(out).beginArray().endArray();
+        assertEquals("[]", out.toString());
+    }
+
+    @Test
+    public void testNested() throws IOException {
+        StringWriter out = new StringWriter();
+        JSONSerializer serializer = new JSONSerializer(out);
+        serializer.beginObject();
+        serializer.field("success", true);
+        serializer.key("results").beginArray();
+        for (int i = 0; i < 3; i++) {
+            serializer.beginObject().field("id", i).field("score", i / 2.0).endObject();
+        }
+        serializer.endArray();
+        serializer.key("empty").beginArray().endArray();
+        serializer.field("name", null);
+        serializer.endObject();
+        assertEquals(
+                "{\"success\":true," +
+                "\"results\":[{\"id\":0,\"score\":0.0},{\"id\":1,\"score\":0.5},{\"id\":2,\"score\":1.0}]," +
+                "\"empty\":[]," +
+                "\"name\":null}",
+                out.toString());
+        assertNotNull(JSONValue.parse(out.toString()));
+    }
+
+    @Test
+    public void testEscaping() throws IOException {
+        StringWriter out = new StringWriter();
+        new JSONSerializer(out).beginObject().field("a \"quoted\"\nkey", "back\\slash\t\u0001").endObject();
+        Map parsed = (Map) JSONValue.parse(out.toString());
+        assertEquals("back\\slash\t\u0001", parsed.get("a \"quoted\"\nkey"));
+    }
+
+    @Test
+    public void testNonFiniteNumbers() throws IOException {
+        StringWriter out = new StringWriter();
+        new JSONSerializer(out)
+                .beginArray()
+                .value(Double.NaN)
+                .value(Double.POSITIVE_INFINITY)
+                .value(Float.NEGATIVE_INFINITY)
+                .value(1.5f)
+                .value(7L)
+                .endArray();
+        assertEquals("[null,null,null,1.5,7]", out.toString());
+    }
+
+    @Test
+    public void testCollections() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("x", Arrays.asList(1, 2));
+        map.put("y", "z");
+        StringWriter out = new StringWriter();
+        new JSONSerializer(out).beginArray().value(map).value(new ArrayList<Object>()).endArray();
+        assertEquals("[{\"x\":[1,2],\"y\":\"z\"},[]]", out.toString());
+    }
+
+    @Test
+    public void testDeepNesting() throws IOException {
+        StringWriter out = new StringWriter();
+        JSONSerializer serializer = new JSONSerializer(out);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            serializer.beginArray().value(i);
+            expected.append('[').append(i).append(',');
+        }
+        for (int i = 0; i < 40; i++) {
+            serializer.endArray();
+        }
+        expected.setLength(expected.length() - 1);
+        for (int i = 0; i < 40; i++) {
+            expected.append(']');
+        }
+        assertEquals(expected.toString(), out.toString());
+        assertNotNull(JSONValue.parse(out.toString()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testKeyOutsideObject() throws IOException {
+        new JSONSerializer(new StringWriter()).key("a");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTwoKeys() throws IOException {
+        new JSONSerializer(new StringWriter()).beginObject().key("a").key("b");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testKeyWithoutValue() throws IOException {
+        new JSONSerializer(new StringWriter()).beginObject().key("a").endObject();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnbalanced() throws IOException {
+        new JSONSerializer(new StringWriter()).beginObject().endObject().endObject();
+    }
+}
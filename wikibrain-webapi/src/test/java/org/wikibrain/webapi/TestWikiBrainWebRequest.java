@@ -0,0 +1,32 @@
+package org.wikibrain.webapi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWikiBrainWebRequest {
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(WikiBrainWebRequest.acceptsGzip("gzip"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("deflate, gzip"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("gzip;q=0.5, identity"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("GZIP ; Q = 1"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("x-gzip"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("*"));
+        assertTrue(WikiBrainWebRequest.acceptsGzip("identity, *;q=0.1"));
+
+        assertFalse(WikiBrainWebRequest.acceptsGzip(null));
+        assertFalse(WikiBrainWebRequest.acceptsGzip(""));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("identity"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("deflate, br"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("gzip;q=0"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("gzip;q=0.000, deflate"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("*;q=0"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("gzip;q=0, *"));
+        assertFalse(WikiBrainWebRequest.acceptsGzip("gzip;q=bogus"));
+    }
+}
@@ -42,12 +42,13 @@ public class WikidataDumpLoader {
     private static final Logger LOG = LoggerFactory.getLogger(WikidataDumpLoader.class);
 
     private final AtomicInteger counter = new AtomicInteger();
+    private final AtomicInteger numSkipped = new AtomicInteger();
 
     private final MetaInfoDao metaDao;
     private final WikidataDao wikidataDao;
     private final UniversalPageDao universalPageDao;
     private final LanguageSet languages;
-    private final WikidataParser wdParser = new WikidataParser();
+    private final WikidataParser wdParser;
     private final TIntSet universalIds;
     private boolean keepAllLabeledEntities = false;
 
@@ -56,6 +57,7 @@ public class WikidataDumpLoader {
         this.metaDao = metaDao;
         this.languages = langs;
         this.universalPageDao = upDao;
+        this.wdParser = new WikidataParser(langs);
         Map<Language, TIntIntMap> localMaps = universalPageDao.getAllUnivToLocalIdsMap(languages);
 
         // Build up set of universal ids from the local ids that we know about
@@ -94,6 +96,7 @@ public class WikidataDumpLoader {
                 Integer.MAX_VALUE
         );
         lines.close();
+        LOG.info("skipped " + numSkipped.get() + " of " + counter.get() + " wikidata entities before parsing them");
     }
 
     private void save(File file, String json) throws WpParseException, DaoException {
@@ -107,6 +110,14 @@ public class WikidataDumpLoader {
         if (counter.incrementAndGet() % 100000 == 0) {
             LOG.info("processing wikidata entity " + counter.get());
         }
+
+        // Most entities are not needed, so check the id before parsing the whole entity.
+        if (!keepAllLabeledEntities && !keepEntityId(wdParser.parseHeader(json))) {
+            numSkipped.incrementAndGet();
+            return;
+        }
+
+        // The parser only materializes terms in the requested languages.
         WikidataEntity entity = wdParser.parse(json);
         // check if others use prune's boolean?
         entity.prune(languages);
@@ -116,10 +127,15 @@ public class WikidataDumpLoader {
         }
     }
 
+    /**
+     * Returns true if an entity should be kept based on its id and type alone.
+     */
+    private boolean keepEntityId(WikidataEntity entity) {
+        return entity.getType() == WikidataEntity.Type.PROPERTY || universalIds.contains(entity.getId());
+    }
+
     private boolean keepEntity(WikidataEntity entity) {
-        if (entity.getType() == WikidataEntity.Type.PROPERTY) {
-            return true;
-        } else if (universalIds.contains(entity.getId())) {
+        if (keepEntityId(entity)) {
             return true;
         } else if (keepAllLabeledEntities && !entity.getLabels().isEmpty()) {
             return true;
@@ -0,0 +1,472 @@
+package org.wikibrain.wikidata;
+
+import com.google.gson.Gson;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.MurmurHash;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact on-disk index of wikidata items.
+ *
+ * The index has two parts:
+ * <ul>
+ *     <li>Postings from (property, value) to the sorted ids of items with a statement
+ *     that has that property and value. Keys are 64 bit hashes of the property id,
+ *     value type, and encoded value, so they can be looked up without sql.</li>
+ *     <li>Entity blocks from item id to a compressed, serialized WikidataEntity with
+ *     its labels, descriptions, aliases, and statements.</li>
+ * </ul>
+ *
+ * The posting arrays and entity offsets are memory mapped in 1GB segments, since a
+ * single mapping cannot exceed 2GB. Entity blocks are read with positional reads,
+ * so the data file may also exceed 2GB. Reads are threadsafe.
+ *
+ * Statements in stored entities refer to bare item and property entities that
+ * only contain a type and id.
+ *
+ * @author Shilad Sen
+ */
+public class WikidataIndex implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WikidataIndex.class);
+
+    private static final String ENTITY_IDS = "entities.ids";
+    private static final String ENTITY_OFFSETS = "entities.offsets";
+    private static final String ENTITY_LENGTHS = "entities.lengths";
+    private static final String ENTITY_DATA = "entities.dat";
+    private static final String POSTING_KEYS = "postings.keys";
+    private static final String POSTING_STARTS = "postings.starts";
+    private static final String POSTING_ITEMS = "postings.items";
+
+    private static final Gson GSON = new Gson();
+
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    private final File dir;
+    private final MappedArray entityIds;
+    private final MappedArray entityOffsets;
+    private final MappedArray entityLengths;
+    private final RandomAccessFile entityData;
+    private final MappedArray postingKeys;
+    private final MappedArray postingStarts;
+    private final MappedArray postingItems;
+
+    public WikidataIndex(File dir) throws IOException {
+        this(dir, SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes The size of each mapped segment. Must be a multiple of 8.
+     */
+    WikidataIndex(File dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.entityIds = new MappedArray(new File(dir, ENTITY_IDS), 4, segmentBytes);
+        this.entityOffsets = new MappedArray(new File(dir, ENTITY_OFFSETS), 8, segmentBytes);
+        this.entityLengths = new MappedArray(new File(dir, ENTITY_LENGTHS), 4, segmentBytes);
+        this.entityData = new RandomAccessFile(new File(dir, ENTITY_DATA), "r");
+        this.postingKeys = new MappedArray(new File(dir, POSTING_KEYS), 8, segmentBytes);
+        this.postingStarts = new MappedArray(new File(dir, POSTING_STARTS), 4, segmentBytes);
+        this.postingItems = new MappedArray(new File(dir, POSTING_ITEMS), 4, segmentBytes);
+    }
+
+    /**
+     * @return True if a complete index exists in the directory.
+     */
+    public static boolean exists(File dir) {
+        return new File(dir, POSTING_ITEMS).isFile();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public int getNumEntities() {
+        return entityIds.size();
+    }
+
+    public int getNumKeys() {
+        return postingKeys.size();
+    }
+
+    /**
+     * @return The stored item, or null if it is not in the index.
+     */
+    public WikidataEntity getEntity(int itemId) throws IOException {
+        int i = binarySearch(entityIds, itemId);
+        if (i < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[entityLengths.getInt(i)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = entityOffsets.getLong(i);
+        FileChannel channel = entityData.getChannel();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("truncated wikidata index entity " + itemId);
+            }
+        }
+        ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+        try {
+            return (WikidataEntity) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the sorted ids of items with a statement that has the property and value.
+     * Because keys are hashes, callers that need exact answers should check the statements.
+     */
+    public int[] getItemIds(int propertyId, WikidataValue value) {
+        int i = binarySearch(postingKeys, valueKey(propertyId, value));
+        if (i < 0) {
+            return new int[0];
+        }
+        int start = postingStarts.getInt(i);
+        int end = postingStarts.getInt(i + 1);
+        int[] ids = new int[end - start];
+        for (int j = 0; j < ids.length; j++) {
+            ids[j] = postingItems.getInt(start + j);
+        }
+        return ids;
+    }
+
+    @Override
+    public void close() throws IOException {
+        entityData.close();
+    }
+
+    /**
+     * Returns the key for a property and value. Values are encoded as in the statement table.
+     */
+    public static long valueKey(int propertyId, WikidataValue value) {
+        String s = propertyId + "\t" + value.getTypeName().toLowerCase() + "\t" + GSON.toJson(value.getJsonValue());
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            return MurmurHash.hash64(bytes, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // should not happen
+        }
+    }
+
+    private static int binarySearch(MappedArray array, int key) {
+        int lo = 0, hi = array.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = array.getInt(mid);
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int binarySearch(MappedArray array, long key) {
+        int lo = 0, hi = array.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = array.getLong(mid);
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A read-only array of big-endian ints or longs, memory mapped in segments.
+     * Segments hold a whole number of values, so no value spans two segments.
+     */
+    private static class MappedArray {
+        private final ByteBuffer[] segments;
+        private final int segmentBytes;
+        private final int size;
+
+        MappedArray(File file, int valueBytes, int segmentBytes) throws IOException {
+            this.segmentBytes = segmentBytes;
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long length = channel.size();
+                if (length / valueBytes > Integer.MAX_VALUE) {
+                    throw new IOException("too many values in " + file);
+                }
+                this.size = (int) (length / valueBytes);
+                this.segments = new ByteBuffer[(int) ((length + segmentBytes - 1) / segmentBytes)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long) i * segmentBytes;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentBytes, length - start));
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getInt(int i) {
+            long position = 4L * i;
+            return segments[(int) (position / segmentBytes)].getInt((int) (position % segmentBytes));
+        }
+
+        long getLong(int i) {
+            long position = 8L * i;
+            return segments[(int) (position / segmentBytes)].getLong((int) (position % segmentBytes));
+        }
+    }
+
+    /**
+     * Builds an index from entities as they are loaded.
+     *
+     * Entity blocks are appended to disk as they are added, while postings are
+     * kept in memory until build() sorts them. The index is written to a
+     * temporary directory and replaces any existing index when it is complete.
+     * Adding entities is threadsafe.
+     */
+    public static class Builder {
+        private final File dir;
+        private final File tmpDir;
+        private final OutputStream data;
+        private long dataSize = 0;
+
+        private final TIntArrayList ids = new TIntArrayList();
+        private final TLongArrayList offsets = new TLongArrayList();
+        private final TIntArrayList lengths = new TIntArrayList();
+        private final TLongArrayList keys = new TLongArrayList();
+        private final TIntArrayList items = new TIntArrayList();
+
+        public Builder(File dir) throws IOException {
+            this.dir = dir;
+            this.tmpDir = new File(dir.getPath() + ".tmp");
+            FileUtils.deleteQuietly(tmpDir);
+            tmpDir.mkdirs();
+            this.data = new BufferedOutputStream(new FileOutputStream(new File(tmpDir, ENTITY_DATA)));
+        }
+
+        /**
+         * Adds an item. Other entity types are ignored.
+         */
+        public void add(WikidataEntity entity) throws IOException {
+            if (entity.getType() != WikidataEntity.Type.ITEM) {
+                return;
+            }
+            WikidataEntity stored = copyWithBareReferences(entity);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes));
+            out.writeObject(stored);
+            out.close();
+
+            long[] entityKeys = new long[stored.getStatements().size()];
+            for (int i = 0; i < entityKeys.length; i++) {
+                WikidataStatement st = stored.getStatements().get(i);
+                entityKeys[i] = valueKey(st.getProperty().getId(), st.getValue());
+            }
+
+            synchronized (this) {
+                data.write(bytes.toByteArray());
+                ids.add(entity.getId());
+                offsets.add(dataSize);
+                lengths.add(bytes.size());
+                dataSize += bytes.size();
+                for (long key : entityKeys) {
+                    keys.add(key);
+                    items.add(entity.getId());
+                }
+            }
+        }
+
+        /**
+         * Writes the index and opens it.
+         */
+        public synchronized WikidataIndex build() throws IOException {
+            data.close();
+
+            // Entity offsets, sorted by id
+            int[] entityIds = ids.toArray();
+            long[] entityOffsets = offsets.toArray();
+            int[] entityLengths = lengths.toArray();
+            sort(entityIds, entityOffsets, entityLengths, 0, entityIds.length);
+            writeInts(new File(tmpDir, ENTITY_IDS), entityIds, entityIds.length);
+            writeLongs(new File(tmpDir, ENTITY_OFFSETS), entityOffsets, entityOffsets.length);
+            writeInts(new File(tmpDir, ENTITY_LENGTHS), entityLengths, entityLengths.length);
+
+            // Postings, sorted by key and then item, without duplicates
+            long[] postingKeys = keys.toArray();
+            int[] postingItems = items.toArray();
+            sort(postingKeys, postingItems, 0, postingKeys.length);
+            int numKeys = 0;
+            int numItems = 0;
+            TIntArrayList starts = new TIntArrayList();
+            for (int i = 0; i < postingKeys.length; i++) {
+                if (i == 0 || postingKeys[i] != postingKeys[i - 1]) {
+                    postingKeys[numKeys++] = postingKeys[i];
+                    starts.add(numItems);
+                } else if (postingItems[i] == postingItems[i - 1]) {
+                    continue;
+                }
+                postingItems[numItems++] = postingItems[i];
+            }
+            starts.add(numItems);
+            writeLongs(new File(tmpDir, POSTING_KEYS), postingKeys, numKeys);
+            writeInts(new File(tmpDir, POSTING_STARTS), starts.toArray(), starts.size());
+            writeInts(new File(tmpDir, POSTING_ITEMS), postingItems, numItems);
+
+            FileUtils.deleteDirectory(dir);
+            FileUtils.moveDirectory(tmpDir, dir);
+            LOG.info("built wikidata index with " + entityIds.length + " items and " + numKeys + " property values");
+            return new WikidataIndex(dir);
+        }
+
+        /**
+         * Discards the partially built index.
+         */
+        public synchronized void abort() {
+            IOUtils.closeQuietly(data);
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    /**
+     * Copies an entity, replacing the item and property of each statement with
+     * entities that only have a type and id.
+     */
+    static WikidataEntity copyWithBareReferences(WikidataEntity entity) {
+        WikidataEntity copy = new WikidataEntity(entity.getType(), entity.getId());
+        copy.getLabels().putAll(entity.getLabels());
+        copy.getDescriptions().putAll(entity.getDescriptions());
+        for (Map.Entry<Language, List<String>> entry : entity.getAliases().entrySet()) {
+            copy.getAliases().put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        WikidataEntity item = new WikidataEntity(entity.getType(), entity.getId());
+        for (WikidataStatement st : entity.getStatements()) {
+            WikidataEntity prop = new WikidataEntity(st.getProperty().getType(), st.getProperty().getId());
+            copy.getStatements().add(new WikidataStatement(st.getId(), item, prop, st.getValue(), st.getRank()));
+        }
+        return copy;
+    }
+
+    private static void writeInts(File file, int[] values, int n) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int i = 0; i < n; i++) {
+                out.writeInt(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeLongs(File file, long[] values, int n) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (int i = 0; i < n; i++) {
+                out.writeLong(values[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Sorts parallel arrays in [from, to) by id.
+     */
+    private static void sort(int[] ids, long[] offsets, int[] lengths, int from, int to) {
+        while (to - from > 1) {
+            int pivot = ids[(from + to) >>> 1];
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (ids[i] < pivot) i++;
+                while (ids[j] > pivot) j--;
+                if (i <= j) {
+                    swap(ids, i, j);
+                    swap(offsets, i, j);
+                    swap(lengths, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (j - from < to - i) {
+                sort(ids, offsets, lengths, from, j + 1);
+                from = i;
+            } else {
+                sort(ids, offsets, lengths, i, to);
+                to = j + 1;
+            }
+        }
+    }
+
+    /**
+     * Sorts parallel arrays in [from, to) by key and then by item.
+     */
+    private static void sort(long[] keys, int[] items, int from, int to) {
+        while (to - from > 1) {
+            int mid = (from + to) >>> 1;
+            long pivotKey = keys[mid];
+            int pivotItem = items[mid];
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (compare(keys[i], items[i], pivotKey, pivotItem) < 0) i++;
+                while (compare(keys[j], items[j], pivotKey, pivotItem) > 0) j--;
+                if (i <= j) {
+                    swap(keys, i, j);
+                    swap(items, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (j - from < to - i) {
+                sort(keys, items, from, j + 1);
+                from = i;
+            } else {
+                sort(keys, items, i, to);
+                to = j + 1;
+            }
+        }
+    }
+
+    private static int compare(long k1, int i1, long k2, int i2) {
+        if (k1 != k2) {
+            return (k1 < k2) ? -1 : 1;
+        }
+        return (i1 < i2) ? -1 : ((i1 == i2) ? 0 : 1);
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
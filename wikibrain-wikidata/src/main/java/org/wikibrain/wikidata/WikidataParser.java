@@ -1,6 +1,8 @@
 package org.wikibrain.wikidata;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.*;
 import org.wikibrain.core.lang.Language;
@@ -39,7 +41,216 @@ public class WikidataParser {
 
     private static BufferedWriter writer;
 
+    /**
+     * Reads only the id of an entity, which determines its type.
+     *
+     * The scan stops as soon as the id is found. Wikidata dumps list the id near
+     * the start of each entity, so this is much cheaper than a full parse and can
+     * be used to skip unwanted entities.
+     *
+     * @param json
+     * @return An entity with an id and type but no terms or statements.
+     * @throws WpParseException
+     */
+    public WikidataEntity parseHeader(String json) throws WpParseException {
+        try {
+            JsonParser jp = mapper.getFactory().createParser(json);
+            try {
+                if (jp.nextToken() != JsonToken.START_OBJECT) {
+                    throw new WpParseException("expected a json object: " + json);
+                }
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = jp.getCurrentName();
+                    jp.nextToken();
+                    if (field.equals("id")) {
+                        return new WikidataEntity(jp.getText());
+                    }
+                    jp.skipChildren();
+                }
+            } finally {
+                jp.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Error parsing: " + json);
+            throw new WpParseException(e);
+        } catch (IllegalArgumentException e) {
+            throw new WpParseException(e);
+        }
+        throw new WpParseException("no entity id in " + json);
+    }
+
+    /**
+     * Parses an entity with a streaming parser.
+     *
+     * Labels, descriptions, and aliases in languages outside of the parser's
+     * language set are skipped without being materialized. Only the statements
+     * of items are bound to objects.
+     *
+     * @param json
+     * @return
+     * @throws WpParseException
+     */
     public WikidataEntity parse(String json) throws WpParseException {
+        try {
+            JsonParser jp = mapper.getFactory().createParser(json);
+            try {
+                return parse(jp);
+            } finally {
+                jp.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Error parsing: " + json);
+            throw new WpParseException(e);
+        } catch (IllegalArgumentException e) {
+            LOG.info("Error parsing: " + json);
+            throw new WpParseException(e);
+        }
+    }
+
+    private WikidataEntity parse(JsonParser jp) throws IOException, WpParseException {
+        if (jp.nextToken() != JsonToken.START_OBJECT) {
+            throw new WpParseException("expected a json object");
+        }
+        String id = null;
+        String type = null;
+        Map<Language, String> labels = new LinkedHashMap<Language, String>();
+        Map<Language, String> descriptions = new LinkedHashMap<Language, String>();
+        Map<Language, List<String>> aliases = new LinkedHashMap<Language, List<String>>();
+        List<JacksonStatement> statements = new ArrayList<JacksonStatement>();
+
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            jp.nextToken();
+            if (field.equals("id")) {
+                id = jp.getText();
+            } else if (field.equals("type")) {
+                type = jp.getText();
+            } else if (field.equals("labels")) {
+                readTerms(jp, labels);
+            } else if (field.equals("descriptions")) {
+                readTerms(jp, descriptions);
+            } else if (field.equals("aliases")) {
+                readAliases(jp, aliases);
+            } else if (field.equals("claims") && !"property".equals(type)) {
+                readStatements(jp, statements);
+            } else {
+                jp.skipChildren();
+            }
+        }
+        if (id == null) {
+            throw new WpParseException("no entity id");
+        }
+
+        WikidataEntity record = new WikidataEntity(id);
+        record.getLabels().putAll(labels);
+        record.getDescriptions().putAll(descriptions);
+        record.getAliases().putAll(aliases);
+
+        // Claims (only for Item entities)
+        if ("item".equals(type)) {
+            for (JacksonStatement s : statements) {
+                record.getStatements().add(parseOneClaim(record, s));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Reads a map from language code to a single term, such as labels or descriptions.
+     * Empty maps appear as empty arrays in some dumps.
+     */
+    private void readTerms(JsonParser jp, Map<Language, String> terms) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return;
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String code = jp.getCurrentName();
+            jp.nextToken();
+            if (!validLanguage(code)) {
+                jp.skipChildren();
+                continue;
+            }
+            String value = readTermValue(jp);
+            if (value != null) {
+                terms.put(Language.getByLangCodeLenient(code), value);
+            }
+        }
+    }
+
+    private void readAliases(JsonParser jp, Map<Language, List<String>> aliases) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return;
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String code = jp.getCurrentName();
+            jp.nextToken();
+            if (!validLanguage(code) || jp.getCurrentToken() != JsonToken.START_ARRAY) {
+                jp.skipChildren();
+                continue;
+            }
+            List<String> values = new ArrayList<String>();
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                String value = readTermValue(jp);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            if (!values.isEmpty()) {
+                aliases.put(Language.getByLangCodeLenient(code), values);
+            }
+        }
+    }
+
+    /**
+     * Reads the "value" of a term object such as {"language" : "en", "value" : "Paris"}.
+     */
+    private String readTermValue(JsonParser jp) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return null;
+        }
+        String value = null;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            jp.nextToken();
+            if (field.equals("value")) {
+                value = jp.getText();
+            } else {
+                jp.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    private void readStatements(JsonParser jp, List<JacksonStatement> statements) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return;
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            jp.nextToken();
+            if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+                jp.skipChildren();
+                continue;
+            }
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                statements.add(mapper.readValue(jp, JacksonStatement.class));
+            }
+        }
+    }
+
+    /**
+     * Parses an entity by binding the entire document to the Wikidata Toolkit
+     * data model. This is slower than {@link #parse(String)}, which should
+     * produce the same entity.
+     *
+     * @param json
+     * @return
+     * @throws WpParseException
+     */
+    public WikidataEntity parseDocument(String json) throws WpParseException {
         JacksonTermedStatementDocument mwDoc;
 
         try {
@@ -145,7 +356,7 @@ public class WikidataParser {
         } catch (JsonProcessingException e) {
             throw new IllegalArgumentException("Unknown snak: " + snak);
         }
-        final JsonElement element = new JsonParser().parse(jsonStr);
+        final JsonElement element = new com.google.gson.JsonParser().parse(jsonStr);
         final JsonElement jsonValue = (element.isJsonObject() && element.getAsJsonObject().has("value"))
                 ? element.getAsJsonObject().get("value")
                 : null;
@@ -7,6 +7,7 @@ import com.typesafe.config.Config;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.collections.IteratorUtils;
+import org.apache.commons.io.FileUtils;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -25,8 +26,10 @@ import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.UniversalPage;
 import org.wikibrain.parser.WpParseException;
+import org.wikibrain.utils.LruCache;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
@@ -62,6 +65,12 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
     private Map<Integer, WikidataEntity> properties;
     private WikidataParser parser = new WikidataParser();
 
+    // Optional on-disk index of items and statement values, rebuilt on each load
+    private File indexDir = null;
+    private volatile WikidataIndex index = null;
+    private WikidataIndex.Builder indexBuilder = null;
+    private LruCache<Integer, WikidataEntity> itemCache = null;
+
     /**
      * @param dataSource      Data source for jdbc connections
      * @throws org.wikibrain.core.dao.DaoException
@@ -72,6 +81,32 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
         this.upDao = upDao;
     }
 
+    /**
+     * Uses an on-disk index for items and statement value lookups.
+     * The index is opened if it exists and is rebuilt whenever entities are loaded.
+     * Items read through the index are cached, and getItem() returns a copy of the cached item.
+     *
+     * @param dir
+     * @param cacheSize Maximum number of items cached in memory.
+     * @throws DaoException
+     */
+    public void useIndex(File dir, int cacheSize) throws DaoException {
+        this.indexDir = dir;
+        this.itemCache = new LruCache<Integer, WikidataEntity>(cacheSize);
+        if (WikidataIndex.exists(dir)) {
+            try {
+                index = new WikidataIndex(dir);
+                LOG.info("opened wikidata index with " + index.getNumEntities() + " items");
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+    }
+
+    public WikidataIndex getIndex() {
+        return index;
+    }
+
     @Override
     public WikidataEntity getProperty(Language language, String name) throws DaoException {
         name = name.toLowerCase();
@@ -96,7 +131,59 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
 
     @Override
     public WikidataEntity getItem(int id) throws DaoException {
-        return getEntityWithoutCache(WikidataEntity.Type.ITEM, id);
+        WikidataIndex index = this.index;
+        if (index == null) {
+            return getEntityWithoutCache(WikidataEntity.Type.ITEM, id);
+        }
+        WikidataEntity entity = itemCache.get(id);
+        if (entity != null) {
+            return copy(entity);
+        }
+        try {
+            entity = index.getEntity(id);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+        if (entity == null) {
+            // Items that were not loaded have no labels or statements in the database either.
+            entity = new WikidataEntity(WikidataEntity.Type.ITEM, id);
+        } else {
+            entity = withFullProperties(entity);
+        }
+        itemCache.put(id, entity);
+        return copy(entity);
+    }
+
+    /**
+     * Copies a cached item so callers can modify it without changing the cache.
+     * Statements are immutable, so they are shared.
+     */
+    private static WikidataEntity copy(WikidataEntity entity) {
+        WikidataEntity copy = new WikidataEntity(entity.getType(), entity.getId());
+        copy.getLabels().putAll(entity.getLabels());
+        copy.getDescriptions().putAll(entity.getDescriptions());
+        for (Map.Entry<Language, List<String>> entry : entity.getAliases().entrySet()) {
+            copy.getAliases().put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        copy.getStatements().addAll(entity.getStatements());
+        return copy;
+    }
+
+    /**
+     * Replaces the bare properties of statements read from the index with the cached
+     * properties, matching the statements built from the database.
+     */
+    private WikidataEntity withFullProperties(WikidataEntity entity) throws DaoException {
+        List<WikidataStatement> statements = new ArrayList<WikidataStatement>(entity.getStatements());
+        entity.getStatements().clear();
+        for (WikidataStatement st : statements) {
+            WikidataEntity prop = getProperty(st.getProperty().getId());
+            if (prop == null) {
+                prop = st.getProperty();
+            }
+            entity.getStatements().add(new WikidataStatement(st.getId(), st.getItem(), prop, st.getValue(), st.getRank()));
+        }
+        return entity;
     }
 
     @Override
@@ -290,6 +377,13 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                                     });
         }
         properties = new HashMap<Integer, WikidataEntity>();
+        if (indexDir != null && indexBuilder == null) {
+            try {
+                indexBuilder = new WikidataIndex.Builder(indexDir);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
     }
 
     @Override
@@ -313,6 +407,13 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                 properties.put(entity.getId(), entity);
             }
         }
+        if (indexBuilder != null) {
+            try {
+                indexBuilder.add(entity);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
     }
 
     @Override
@@ -349,6 +450,40 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
         wpDs.optimize(WIKIDATA_ENTITY_ALIASES);
         wpDs.optimize(WIKIDATA_ENTITY_DESCRIPTIONS);
         wpDs.optimize(WIKIDATA_STATEMENT);
+
+        if (indexBuilder != null) {
+            try {
+                WikidataIndex old = index;
+                index = null;
+                if (old != null) {
+                    old.close();
+                }
+                index = indexBuilder.build();
+            } catch (IOException e) {
+                throw new DaoException(e);
+            } finally {
+                indexBuilder = null;
+                itemCache.clear();
+            }
+        }
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        super.clear();
+        if (indexDir != null) {
+            try {
+                if (index != null) {
+                    index.close();
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            } finally {
+                index = null;
+                itemCache.clear();
+                FileUtils.deleteQuietly(indexDir);
+            }
+        }
     }
 
     @Override
@@ -438,6 +573,9 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
 
     @Override
     public Iterable<WikidataStatement> getByValue(WikidataEntity property, WikidataValue value) throws DaoException {
+        if (index != null) {
+            return getIndexedStatements(Collections.singleton(property.getId()), value);
+        }
         WikidataFilter filter = new WikidataFilter.Builder()
                 .withPropertyId(property.getId())
                 .withValue(value)
@@ -454,6 +592,9 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
         if (propIds.isEmpty()) {
             return new ArrayList<WikidataStatement>();
         }
+        if (index != null) {
+            return getIndexedStatements(propIds, value);
+        }
         WikidataFilter filter = new WikidataFilter.Builder()
                 .withPropertyIds(propIds)
                 .withValue(value)
@@ -463,6 +604,8 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
 
     @Override
     public Set<Integer> conceptsWithValue(String propertyName, WikidataValue value) throws DaoException {
+        // With an index, getByValue() checks each candidate's statements,
+        // so items whose postings only share a hash with the value are dropped.
         Set<Integer> concepts = new HashSet<Integer>();
         for (WikidataStatement st : getByValue(propertyName, value)) {
             if (st.getItem().getType() == WikidataEntity.Type.ITEM) {
@@ -483,6 +626,33 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
         }
         return ids;
     }
+    /**
+     * Finds statements with one of the properties and the value using the index.
+     * Candidate items come from the postings, and their statements are checked exactly.
+     */
+    private List<WikidataStatement> getIndexedStatements(Set<Integer> propIds, WikidataValue value) throws DaoException {
+        String type = value.getTypeName().toLowerCase();
+        String encoded = encodeValue(value);
+        WikidataIndex index = this.index;
+        TIntSet itemIds = new TIntHashSet();
+        for (int propId : propIds) {
+            itemIds.addAll(index.getItemIds(propId, value));
+        }
+        int[] sorted = itemIds.toArray();
+        Arrays.sort(sorted);
+        List<WikidataStatement> statements = new ArrayList<WikidataStatement>();
+        for (int id : sorted) {
+            for (WikidataStatement st : getItem(id).getStatements()) {
+                if (propIds.contains(st.getProperty().getId())
+                &&  st.getValue().getTypeName().toLowerCase().equals(type)
+                &&  encodeValue(st.getValue()).equals(encoded)) {
+                    statements.add(st);
+                }
+            }
+        }
+        return statements;
+    }
+
     @Override
     public Iterable<WikidataStatement> get(WikidataFilter filter) throws DaoException {
         List<Condition> conditions = new ArrayList<Condition>();
@@ -612,6 +782,9 @@ public class WikidataSqlDao extends AbstractSqlDao<WikidataStatement> implements
                     cacheDir.mkdirs();
                 }
                 dao.useCache(cacheDir);
+                if (config.hasPath("indexDir")) {
+                    dao.useIndex(new File(config.getString("indexDir")), config.getInt("itemCacheSize"));
+                }
                 return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
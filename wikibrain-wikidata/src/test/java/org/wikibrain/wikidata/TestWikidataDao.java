@@ -39,6 +39,7 @@ public class TestWikidataDao {
 
     public static File cacheFile;
     public static File dbDir;
+    public static File indexDir;
 
     @BeforeClass
     public static void createDb() throws IOException, DaoException, ClassNotFoundException, URISyntaxException {
@@ -49,6 +50,8 @@ public class TestWikidataDao {
         cacheFile = File.createTempFile("dao", "cache");
         cacheFile.delete();
         cacheFile.mkdirs();
+
+        indexDir = WpIOUtils.createTempDirectory("wikidata-index");
         // Add all the entity ids we need as values for SOME key
         URL url = TestWikidataDao.class.getResource("/testDump.json.bz2");
 
@@ -88,6 +91,7 @@ public class TestWikidataDao {
         md.beginLoad();
 
         WikidataSqlDao wd = new WikidataSqlDao(ds, null, null);
+        wd.useIndex(indexDir, 100);
         wd.beginLoad();
 
         WikidataDumpLoader loader = new WikidataDumpLoader(wd, md, upDao, LanguageSet.ALL);
@@ -101,6 +105,57 @@ public class TestWikidataDao {
     public static void deleteDb() throws IOException {
         FileUtils.deleteDirectory(dbDir);
         FileUtils.deleteDirectory(cacheFile);
+        FileUtils.deleteQuietly(indexDir);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        WpDataSource ds = TestDaoUtil.getWpDataSource(dbDir);
+        WikidataSqlDao sql = new WikidataSqlDao(ds, null, null);
+        WikidataSqlDao indexed = new WikidataSqlDao(ds, null, null);
+        indexed.useIndex(indexDir, 100);
+        assertNotNull(indexed.getIndex());
+        assertEquals(400, indexed.getIndex().getNumEntities());
+
+        WikidataEntity expected = sql.getItem(23);
+        WikidataEntity actual = indexed.getItem(23);
+        assertEquals(expected.getLabels(), actual.getLabels());
+        assertEquals(expected.getDescriptions(), actual.getDescriptions());
+        assertEquals(expected.getStatements().size(), actual.getStatements().size());
+        assertEquals(2, actual.getStatementsInLanguage(EN).get("award received").size());
+
+        // Items are copied out of the cache, so changing one does not change the cache.
+        actual.getLabels().clear();
+        actual.getStatements().clear();
+        WikidataEntity cached = indexed.getItem(23);
+        assertNotSame(actual, cached);
+        assertEquals(expected.getLabels(), cached.getLabels());
+        assertEquals(expected.getStatements().size(), cached.getStatements().size());
+
+        // Reading through small mapped segments gives the same answers.
+        WikidataIndex segmented = new WikidataIndex(indexDir, 64);
+        assertEquals(indexed.getIndex().getNumEntities(), segmented.getNumEntities());
+        assertEquals(indexed.getIndex().getNumKeys(), segmented.getNumKeys());
+        assertEquals(expected.getLabels(), segmented.getEntity(23).getLabels());
+        assertArrayEquals(
+                indexed.getIndex().getItemIds(27, WikidataValue.forItem(142)),
+                segmented.getItemIds(27, WikidataValue.forItem(142)));
+        assertEquals(6, segmented.getItemIds(27, WikidataValue.forItem(142)).length);
+        segmented.close();
+
+        for (WikidataValue value : Arrays.asList(WikidataValue.forItem(142), WikidataValue.forItem(5), WikidataValue.forString("11928912p"))) {
+            for (String prop : Arrays.asList("country of citizenship", "instance of", "BnF identifier")) {
+                assertEquals(sql.conceptsWithValue(prop, value), indexed.conceptsWithValue(prop, value));
+                List<WikidataStatement> s1 = IteratorUtils.toList(sql.getByValue(prop, value).iterator());
+                List<WikidataStatement> s2 = IteratorUtils.toList(indexed.getByValue(prop, value).iterator());
+                Set<String> ids1 = new HashSet<String>();
+                Set<String> ids2 = new HashSet<String>();
+                for (WikidataStatement st : s1) ids1.add(st.getId());
+                for (WikidataStatement st : s2) ids2.add(st.getId());
+                assertEquals(ids1, ids2);
+            }
+        }
+        assertEquals(6, IteratorUtils.toList(indexed.getByValue("country of citizenship", WikidataValue.forItem(142)).iterator()).size());
     }
 
     @Test
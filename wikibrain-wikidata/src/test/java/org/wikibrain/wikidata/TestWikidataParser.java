@@ -1,11 +1,13 @@
 package org.wikibrain.wikidata;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.junit.Test;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.parser.WpParseException;
 import org.wikibrain.parser.xml.PageXmlParser;
@@ -64,4 +66,60 @@ public class TestWikidataParser {
             tmp.delete();
         }
     }
+    @Test
+    public void testParseHeader() throws IOException, WpParseException {
+        WikidataParser parser = new WikidataParser();
+        WikidataEntity entity = parser.parseHeader(WpIOUtils.resourceToString("/testPage.json"));
+        assertEquals(WikidataEntity.Type.ITEM, entity.getType());
+        assertEquals(157, entity.getId());
+        assertTrue(entity.getLabels().isEmpty());
+
+        entity = parser.parseHeader("{\"labels\" : {\"en\" : {\"value\" : \"x\"}}, \"id\" : \"P31\"}");
+        assertEquals(WikidataEntity.Type.PROPERTY, entity.getType());
+        assertEquals(31, entity.getId());
+    }
+
+    @Test
+    public void testStreamingMatchesDocument() throws IOException, WpParseException {
+        WikidataParser parser = new WikidataParser(new LanguageSet("en,de,simple"));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new BZip2CompressorInputStream(TestWikidataParser.class.getResourceAsStream("/testDump.json.bz2")),
+                "UTF-8"));
+        int numEntities = 0;
+        int numStatements = 0;
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                line = line.trim();
+                if (!line.contains("{")) {
+                    continue;
+                }
+                if (line.endsWith(",")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                WikidataEntity expected = parser.parseDocument(line);
+                WikidataEntity actual = parser.parse(line);
+                assertEquals(expected, actual);
+                assertEquals(expected, parser.parseHeader(line));
+                assertEquals(expected.getLabels(), actual.getLabels());
+                assertEquals(expected.getDescriptions(), actual.getDescriptions());
+                assertEquals(expected.getAliases(), actual.getAliases());
+                assertEquals(expected.getStatements().size(), actual.getStatements().size());
+                for (int i = 0; i < expected.getStatements().size(); i++) {
+                    WikidataStatement s1 = expected.getStatements().get(i);
+                    WikidataStatement s2 = actual.getStatements().get(i);
+                    assertEquals(s1.getId(), s2.getId());
+                    assertEquals(s1.getProperty(), s2.getProperty());
+                    assertEquals(s1.getRank(), s2.getRank());
+                    assertEquals(s1.getValue().getType(), s2.getValue().getType());
+                    assertEquals(String.valueOf(s1.getValue().getValue()), String.valueOf(s2.getValue().getValue()));
+                    numStatements++;
+                }
+                numEntities++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(1704, numEntities);
+        assertTrue(numStatements > 0);
+    }
 }